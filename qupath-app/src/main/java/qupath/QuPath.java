@@ -29,9 +29,11 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
 
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
@@ -66,6 +68,14 @@ import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.images.servers.ImageServers;
+import qupath.lib.io.ColumnarMeasurementWriter;
+import qupath.lib.metrics.Metrics;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathRootObject;
+import qupath.lib.objects.TMACoreObject;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectIO;
 
@@ -75,7 +85,7 @@ import qupath.lib.projects.ProjectIO;
  * @author Pete Bankhead
  *
  */
-@Command(name = "QuPath", subcommands = {HelpCommand.class, ScriptCommand.class, GenerateCompletion.class},
+@Command(name = "QuPath", subcommands = {HelpCommand.class, ScriptCommand.class, ExportMeasurementsCommand.class, GenerateCompletion.class},
 	footer = {"",
 			"Copyright(c) The Queen's University Belfast (2014-2016)",
 			"Copyright(c) QuPath developers (2017-2020)",
@@ -158,6 +168,9 @@ public class QuPath {
 		// Set log level
 		if (qupath.logLevel != null)
 			LogManager.setRootLogLevel(qupath.logLevel);
+		
+		// Make performance metrics available to JMX clients (e.g. JConsole, VisualVM)
+		Metrics.registerMBeans();
 				
 		// Catch all possible Options, then launch QuPath
 		if (!pr.hasSubcommand()) {
@@ -279,11 +292,17 @@ class ScriptCommand implements Runnable {
 			+ "extract the third series within the file.", paramLabel = "server-arguments")
 	private String[] serverArgs;
 
+	@Option(names = {"-m", "--metrics"}, description = "Write performance metrics as JSON to the specified file on exit. "
+			+ "A summary will also be logged every minute while the script is running.", paramLabel = "metrics")
+	private String metricsPath;
+
 	@Option(names = {"-h", "--help"}, usageHelp = true, description = "Show this help message and exit.")
 	private boolean usageHelpRequested;
 		
 	@Override
 	public void run() {
+		if (metricsPath != null)
+			Metrics.startPeriodicLogging(1, TimeUnit.MINUTES);
 		try {
 			if (projectPath != null && !projectPath.toLowerCase().endsWith(ProjectIO.getProjectExtension()))
 				throw new IOException("Project file must end with '.qpproj'");
@@ -341,6 +360,20 @@ class ScriptCommand implements Runnable {
 		} catch (Exception e) {
 			logger.error(e.getLocalizedMessage(), e);
 			throw new RuntimeException(e);
+		} finally {
+			if (metricsPath != null)
+				writeMetrics();
+		}
+	}
+	
+	private void writeMetrics() {
+		Metrics.stopPeriodicLogging();
+		Metrics.logSummary();
+		try {
+			Metrics.writeJson(Paths.get(metricsPath));
+			logger.info("Performance metrics written to {}", metricsPath);
+		} catch (IOException e) {
+			logger.error("Unable to write metrics to " + metricsPath, e);
 		}
 	}
 	
@@ -437,3 +470,68 @@ class ScriptCommand implements Runnable {
 	}
 	
 }
+
+
+@Command(name = "export-measurements", description = {
+		"Exports measurements for all images in a project, using a compressed columnar format.",
+		"Numeric measurements are stored as typed columns, and classifications, parents and image names are dictionary-encoded.",
+		"The output is a zip file containing a 'schema.json' and one .npy file per column and row group."})
+class ExportMeasurementsCommand implements Runnable {
+	
+	final private static Logger logger = LoggerFactory.getLogger(ExportMeasurementsCommand.class);
+	
+	enum ObjectType {
+		IMAGE(PathRootObject.class),
+		ANNOTATIONS(PathAnnotationObject.class),
+		DETECTIONS(PathDetectionObject.class),
+		CELLS(PathCellObject.class),
+		TMA(TMACoreObject.class);
+		
+		private final Class<? extends PathObject> cls;
+		
+		ObjectType(Class<? extends PathObject> cls) {
+			this.cls = cls;
+		}
+	}
+	
+	@Parameters(index = "0", description = "Path to the output file (.zip).", paramLabel = "output")
+	private String outputPath;
+	
+	@Option(names = {"-p", "--project"}, description = "Path to a project file (.qpproj).", paramLabel = "project", required = true)
+	private String projectPath;
+	
+	@Option(names = {"-t", "--type"}, description = {"Type of objects to export (default = DETECTIONS).", "Options: ${COMPLETION-CANDIDATES}"}, paramLabel = "type")
+	private ObjectType type = ObjectType.DETECTIONS;
+	
+	@Option(names = {"-r", "--row-group-size"}, description = "Maximum number of rows in each row group (default = " + ColumnarMeasurementWriter.DEFAULT_ROW_GROUP_SIZE + ").", paramLabel = "rows")
+	private int rowGroupSize = ColumnarMeasurementWriter.DEFAULT_ROW_GROUP_SIZE;
+	
+	@Option(names = {"-d", "--double"}, description = "Write measurements with 64-bit rather than 32-bit precision.")
+	private boolean doublePrecision;
+	
+	@Option(names = {"-h", "--help"}, usageHelp = true, description = "Show this help message and exit.")
+	private boolean usageHelpRequested;
+	
+	@Override
+	public void run() {
+		try {
+			if (!projectPath.toLowerCase().endsWith(ProjectIO.getProjectExtension()))
+				throw new IOException("Project file must end with '.qpproj'");
+			String path = QuPath.getEncodedPath(projectPath);
+			Project<BufferedImage> project = ProjectIO.loadProject(new File(path), BufferedImage.class);
+			long startTime = System.currentTimeMillis();
+			try (var writer = new ColumnarMeasurementWriter(Paths.get(outputPath))
+					.rowGroupSize(rowGroupSize)
+					.doublePrecision(doublePrecision)) {
+				writer.writeProject(project, type.cls);
+				writer.close();
+				long endTime = System.currentTimeMillis();
+				logger.info("Exported {} rows to {} ({} ms)", writer.getRowCount(), outputPath, endTime - startTime);
+			}
+		} catch (Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import qupath.lib.color.ColorDeconvolutionHelper;
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorDeconvolutionStains.DefaultColorDeconvolutionStains;
+import qupath.lib.color.ColorTransformer;
+import qupath.lib.color.ColorTransformer.ColorTransformMethod;
+
+/**
+ * Benchmark color deconvolution of packed RGB pixels, as used for all brightfield H-DAB and H&amp;E analysis.
+ * <p>
+ * The {@code perPixel} benchmark reproduces the previous implementation, which converted each pixel 
+ * to optical densities and then multiplied by the inverse stain matrix, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ColorTransformerBenchmark {
+
+	@Param({"512", "2048"})
+	private int size;
+
+	private int[] rgb;
+	private ColorDeconvolutionStains stains;
+
+	private float[] stain1, stain2, stain3;
+	private float[][] stainsOutput;
+
+	@Setup
+	public void setup() {
+		var rand = new Random(42L);
+		rgb = new int[size * size];
+		for (int i = 0; i < rgb.length; i++)
+			rgb[i] = rand.nextInt() | 0xff000000;
+		stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DefaultColorDeconvolutionStains.H_DAB);
+		stain1 = new float[rgb.length];
+		stain2 = new float[rgb.length];
+		stain3 = new float[rgb.length];
+		stainsOutput = new float[][] {stain1, stain2, stain3};
+	}
+
+	/**
+	 * Deconvolve all three stains, one pixel at a time (previous implementation).
+	 * @return
+	 */
+	@Benchmark
+	public float[] perPixel() {
+		double[] odRed = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
+		double[] odGreen = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
+		double[] odBlue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
+		double[][] invMat = stains.getMatrixInverse();
+		float[][] output = stainsOutput;
+		for (int s = 1; s <= 3; s++) {
+			float[] pixels = output[s-1];
+			for (int i = 0; i < rgb.length; i++)
+				pixels[i] = deconvolve(rgb[i], invMat, odRed, odGreen, odBlue, s);
+		}
+		return stain3;
+	}
+
+	private static float deconvolve(int rgb, double[][] invMat, double[] odRed, double[] odGreen, double[] odBlue, int stain) {
+		double r = odRed[(rgb & 0xff0000) >> 16];
+		double g = odGreen[(rgb & 0xff00) >> 8];
+		double b = odBlue[rgb & 0xff];
+		return (float)(r * invMat[0][stain-1] + g * invMat[1][stain-1] + b * invMat[2][stain-1]);
+	}
+
+	/**
+	 * Deconvolve all three stains, one stain at a time.
+	 * @return
+	 */
+	@Benchmark
+	public float[] transformedPixels() {
+		ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Stain_1, stain1, stains);
+		ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Stain_2, stain2, stains);
+		return ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Stain_3, stain3, stains);
+	}
+
+	/**
+	 * Deconvolve all three stains in a single pass.
+	 * @return
+	 */
+	@Benchmark
+	public float[][] colorDeconvolveRGBArray() {
+		return ColorTransformer.colorDeconvolveRGBArray(rgb, stains, stainsOutput);
+	}
+
+}
@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.locationtech.jts.geom.Geometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import qupath.lib.analysis.images.ContourTracing;
+import qupath.lib.analysis.images.ContourTracing.ChannelThreshold;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Benchmark tracing thresholded nuclei across multiple tiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ContourTracingBenchmark {
+
+	@Param({"4096"})
+	private int regionSize;
+
+	@Param({"1.0", "4.0"})
+	private double downsample;
+
+	private SyntheticImageServer server;
+	private RegionRequest request;
+
+	@Setup
+	public void setup() throws Exception {
+		server = new SyntheticImageServer(100_000, 80_000, 42L);
+		int size = (int)(regionSize * downsample);
+		request = RegionRequest.createInstance(server.getPath(), downsample, 1000, 1000, size, size);
+		// Read tiles in advance, so that the benchmark measures tracing rather than pixel generation
+		server.readBufferedImage(request);
+	}
+
+	/**
+	 * Trace the nuclei in a region.
+	 * @return
+	 */
+	@Benchmark
+	public Map<Integer, Geometry> traceGeometries() {
+		return ContourTracing.traceGeometries(server, request, null, ChannelThreshold.createAbove(0, 80));
+	}
+
+}
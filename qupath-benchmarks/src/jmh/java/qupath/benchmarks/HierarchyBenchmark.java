@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Benchmark adding objects to a hierarchy, and querying objects by region.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HierarchyBenchmark {
+
+	private static final int WIDTH = 100_000;
+	private static final int HEIGHT = 80_000;
+
+	/**
+	 * New detections for every invocation, since inserting objects into a hierarchy changes their parent.
+	 */
+	@State(Scope.Thread)
+	public static class InsertState {
+
+		@Param({"100000", "1000000"})
+		private int nObjects;
+
+		private List<PathObject> detections;
+
+		@Setup(Level.Invocation)
+		public void setup() {
+			detections = SyntheticObjects.createDetections(nObjects, WIDTH, HEIGHT, 42L);
+		}
+
+	}
+
+	/**
+	 * Hierarchy containing detections, along with regions similar to those requested when painting a viewer.
+	 */
+	@State(Scope.Benchmark)
+	public static class QueryState {
+
+		@Param({"100000", "1000000"})
+		private int nObjects;
+
+		private PathObjectHierarchy hierarchy;
+		private List<ImageRegion> regions;
+
+		@Setup
+		public void setup() {
+			hierarchy = new PathObjectHierarchy();
+			hierarchy.addPathObjects(SyntheticObjects.createDetections(nObjects, WIDTH, HEIGHT, 42L));
+			regions = new ArrayList<>();
+			int size = 2048;
+			for (int y = 0; y + size <= HEIGHT; y += size * 5) {
+				for (int x = 0; x + size <= WIDTH; x += size * 5) {
+					regions.add(ImageRegion.createInstance(x, y, size, size, 0, 0));
+				}
+			}
+			// Make sure the spatial cache is built before timing queries
+			hierarchy.getObjectsForRegion(PathDetectionObject.class, regions.get(0), null);
+		}
+
+	}
+
+	/**
+	 * Insert all detections into a new hierarchy.
+	 * @param state
+	 * @return
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	public PathObjectHierarchy insertPathObjects(InsertState state) {
+		var hierarchy = new PathObjectHierarchy();
+		hierarchy.insertPathObjects(state.detections);
+		return hierarchy;
+	}
+
+	/**
+	 * Request detections for many regions.
+	 * @param state
+	 * @param bh
+	 */
+	@Benchmark
+	public void getObjectsForRegion(QueryState state, Blackhole bh) {
+		var list = new ArrayList<PathObject>();
+		for (var region : state.regions) {
+			list.clear();
+			state.hierarchy.getObjectsForRegion(PathDetectionObject.class, region, list);
+			bh.consume(list.size());
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.regions.RegionRequest;
+import qupath.opencv.ops.ImageDataOp;
+import qupath.opencv.ops.ImageOps;
+import qupath.opencv.tools.MultiscaleFeatures.MultiscaleFeature;
+
+/**
+ * Benchmark applying {@link ImageOps} pipelines, similar to those used for pixel classification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ImageOpsBenchmark {
+
+	@Param({"1024"})
+	private int regionSize;
+
+	private ImageData<BufferedImage> imageData;
+	private RegionRequest request;
+
+	private ImageDataOp opSmoothThreshold;
+	private ImageDataOp opFeatures;
+
+	@Setup
+	public void setup() throws IOException {
+		var server = new SyntheticImageServer(100_000, 80_000, 42L);
+		imageData = new ImageData<>(server);
+		request = RegionRequest.createInstance(server.getPath(), 1.0, 2000, 2000, regionSize, regionSize);
+		server.readBufferedImage(request);
+
+		opSmoothThreshold = ImageOps.buildImageDataOp(ColorTransforms.createChannelExtractor(0))
+				.appendOps(
+						ImageOps.Filters.gaussianBlur(2.0),
+						ImageOps.Normalize.percentile(1, 99),
+						ImageOps.Threshold.threshold(0.5)
+						);
+
+		opFeatures = ImageOps.buildImageDataOp(ColorTransforms.createChannelExtractor(0))
+				.appendOps(
+						ImageOps.Filters.features(
+								List.of(MultiscaleFeature.GAUSSIAN, MultiscaleFeature.LAPLACIAN, MultiscaleFeature.GRADIENT_MAGNITUDE),
+								2.0, 2.0),
+						ImageOps.Filters.median(2)
+						);
+	}
+
+	/**
+	 * Apply smoothing, normalization and thresholding.
+	 * @param bh
+	 * @throws IOException
+	 */
+	@Benchmark
+	public void smoothThreshold(Blackhole bh) throws IOException {
+		consume(opSmoothThreshold.apply(imageData, request), bh);
+	}
+
+	/**
+	 * Calculate multiscale features.
+	 * @param bh
+	 * @throws IOException
+	 */
+	@Benchmark
+	public void features(Blackhole bh) throws IOException {
+		consume(opFeatures.apply(imageData, request), bh);
+	}
+
+	private static void consume(Mat mat, Blackhole bh) {
+		bh.consume(mat.channels());
+		mat.close();
+	}
+
+}
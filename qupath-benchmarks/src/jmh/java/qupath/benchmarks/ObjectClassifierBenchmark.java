@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_ml.RTrees;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import qupath.lib.classifiers.object.ObjectClassifier;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectFilter;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.opencv.ml.OpenCVClassifiers;
+import qupath.opencv.ml.objects.OpenCVMLClassifier;
+import qupath.opencv.ml.objects.features.FeatureExtractors;
+
+/**
+ * Benchmark applying a random trees object classifier to detections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ObjectClassifierBenchmark {
+
+	@Param({"100000"})
+	private int nObjects;
+
+	private ImageData<BufferedImage> imageData;
+	private List<PathObject> detections;
+	private ObjectClassifier<BufferedImage> classifier;
+
+	@Setup
+	public void setup() {
+		var server = new SyntheticImageServer(100_000, 80_000, 42L);
+		detections = SyntheticObjects.createDetections(nObjects, server.getWidth(), server.getHeight(), 42L);
+		var hierarchy = new PathObjectHierarchy();
+		hierarchy.addPathObjects(detections);
+		imageData = new ImageData<>(server, hierarchy, ImageData.ImageType.FLUORESCENCE);
+
+		List<PathClass> pathClasses = List.of(
+				PathClassFactory.getPathClass("Tumor"),
+				PathClassFactory.getPathClass("Stroma"));
+		var measurements = SyntheticObjects.MEASUREMENT_NAMES;
+
+		// Train using random samples, where the label depends upon the first two features
+		int nSamples = 1000;
+		var rand = new Random(42L);
+		var samples = new Mat(nSamples, measurements.size(), opencv_core.CV_32FC1);
+		var targets = new Mat(nSamples, 1, opencv_core.CV_32SC1);
+		try (FloatIndexer idxSamples = samples.createIndexer();
+				IntIndexer idxTargets = targets.createIndexer()) {
+			for (int r = 0; r < nSamples; r++) {
+				for (int c = 0; c < measurements.size(); c++)
+					idxSamples.put(r, c, (float)(rand.nextGaussian() * 10 + 50));
+				idxTargets.put(r, 0, idxSamples.get(r, 0) + idxSamples.get(r, 1) > 100 ? 0 : 1);
+			}
+		}
+		var model = OpenCVClassifiers.createStatModel(RTrees.class);
+		model.train(model.createTrainData(samples, targets, null, false));
+		samples.close();
+		targets.close();
+
+		classifier = OpenCVMLClassifier.create(model, PathObjectFilter.DETECTIONS_ALL,
+				FeatureExtractors.createMeasurementListFeatureExtractor(measurements), pathClasses);
+	}
+
+	/**
+	 * Classify all detections.
+	 * @return
+	 */
+	@Benchmark
+	public int classifyObjects() {
+		return classifier.classifyObjects(imageData, detections, true);
+	}
+
+}
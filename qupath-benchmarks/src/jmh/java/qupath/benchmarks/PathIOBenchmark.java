@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.io.PathIO;
+import qupath.lib.io.PathIO.GeoJsonExportOptions;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Benchmark writing and reading .qpdata files, and reading GeoJSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PathIOBenchmark {
+
+	@Param({"100000"})
+	private int nObjects;
+
+	private ImageData<BufferedImage> imageData;
+	private byte[] dataBytes;
+	private byte[] geoJsonBytes;
+
+	@Setup
+	public void setup() throws IOException {
+		var server = new SyntheticImageServer(100_000, 80_000, 42L);
+		var detections = SyntheticObjects.createDetections(nObjects, server.getWidth(), server.getHeight(), 42L);
+		var hierarchy = new PathObjectHierarchy();
+		hierarchy.addPathObjects(detections);
+		imageData = new ImageData<>(server, hierarchy, ImageData.ImageType.FLUORESCENCE);
+		dataBytes = writeImageData().toByteArray();
+
+		var stream = new ByteArrayOutputStream();
+		PathIO.exportObjectsAsGeoJSON(stream, detections, GeoJsonExportOptions.FEATURE_COLLECTION);
+		geoJsonBytes = stream.toByteArray();
+	}
+
+	/**
+	 * Serialize the image data, including the hierarchy.
+	 * @return
+	 * @throws IOException
+	 */
+	@Benchmark
+	public ByteArrayOutputStream writeImageData() throws IOException {
+		var stream = new ByteArrayOutputStream();
+		PathIO.writeImageData(stream, imageData);
+		return stream;
+	}
+
+	/**
+	 * Read the hierarchy from serialized image data.
+	 * @return
+	 * @throws IOException
+	 */
+	@Benchmark
+	public PathObjectHierarchy readHierarchy() throws IOException {
+		return PathIO.readHierarchy(new ByteArrayInputStream(dataBytes));
+	}
+
+	/**
+	 * Read objects from a GeoJSON feature collection.
+	 * @return
+	 * @throws IOException
+	 */
+	@Benchmark
+	public List<PathObject> readObjectsFromGeoJSON() throws IOException {
+		return PathIO.readObjectsFromGeoJSON(new ByteArrayInputStream(geoJsonBytes));
+	}
+
+}
@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+
+/**
+ * Image server that generates a whole-slide-like fluorescence image on demand.
+ * <p>
+ * The image contains bright, roughly circular 'nuclei' on a jittered grid over a noisy background.
+ * Pixel values depend only upon the full-resolution coordinates and a seed, so that any tile can be generated
+ * independently and benchmarks are reproducible.
+ */
+public class SyntheticImageServer extends AbstractTileableImageServer {
+
+	/**
+	 * Spacing between nuclei, in full-resolution pixels.
+	 */
+	public static final int NUCLEUS_SPACING = 24;
+
+	private final ImageServerMetadata metadata;
+	private final long seed;
+
+	/**
+	 * Create a single-channel 8-bit image with a pyramid and 512 x 512 pixel tiles.
+	 * @param width full-resolution width
+	 * @param height full-resolution height
+	 * @param seed seed used to generate pixel values
+	 */
+	public SyntheticImageServer(int width, int height, long seed) {
+		super();
+		this.seed = seed;
+		metadata = new ImageServerMetadata.Builder()
+				.width(width)
+				.height(height)
+				.name("Synthetic " + width + "x" + height)
+				.preferredTileSize(512, 512)
+				.levelsFromDownsamples(1.0, 4.0, 16.0)
+				.pixelType(PixelType.UINT8)
+				.pixelSizeMicrons(0.5, 0.5)
+				.channels(ImageChannel.getDefaultChannelList(1))
+				.rgb(false)
+				.build();
+	}
+
+	@Override
+	public Collection<URI> getURIs() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	protected String createID() {
+		return getClass().getName() + ": " + UUID.randomUUID().toString();
+	}
+
+	@Override
+	public String getServerType() {
+		return "Synthetic image";
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * Returns null (does not support ServerBuilders).
+	 */
+	@Override
+	protected ServerBuilder<BufferedImage> createServerBuilder() {
+		return null;
+	}
+
+	@Override
+	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+		int w = tileRequest.getTileWidth();
+		int h = tileRequest.getTileHeight();
+		double downsample = tileRequest.getDownsample();
+		var img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] pixels = new byte[w * h];
+		for (int y = 0; y < h; y++) {
+			int yy = (int)((tileRequest.getTileY() + y) * downsample);
+			for (int x = 0; x < w; x++) {
+				int xx = (int)((tileRequest.getTileX() + x) * downsample);
+				pixels[y * w + x] = (byte)getValue(xx, yy);
+			}
+		}
+		img.getRaster().setDataElements(0, 0, w, h, pixels);
+		return img;
+	}
+
+	/**
+	 * Get the value of a full-resolution pixel.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	int getValue(int x, int y) {
+		int noise = (int)(hash(x, y, seed) & 0x0F);
+
+		// Find the nucleus in the current grid cell, if there is one
+		int gx = x / NUCLEUS_SPACING;
+		int gy = y / NUCLEUS_SPACING;
+		long h = hash(gx, gy, seed + 1);
+		// Leave some cells empty, so there are areas of background
+		if ((h & 0x7) == 0)
+			return 10 + noise;
+		double cx = gx * NUCLEUS_SPACING + NUCLEUS_SPACING / 2.0 + ((h >>> 8) & 0x7) - 3.5;
+		double cy = gy * NUCLEUS_SPACING + NUCLEUS_SPACING / 2.0 + ((h >>> 16) & 0x7) - 3.5;
+		double radius = 4.0 + ((h >>> 24) & 0x3);
+		double dx = x - cx;
+		double dy = y - cy;
+		if (dx*dx + dy*dy <= radius*radius)
+			return 120 + (int)((h >>> 32) & 0x3F) + noise;
+		return 10 + noise;
+	}
+
+	private static long hash(long x, long y, long seed) {
+		long h = seed * 0x9E3779B97F4A7C15L + x * 0xC2B2AE3D27D4EB4FL + y * 0x165667B19E3779F9L;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
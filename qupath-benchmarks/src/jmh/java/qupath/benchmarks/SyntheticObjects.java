@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import qupath.lib.measurements.MeasurementList.MeasurementListType;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Helper class to generate reproducible objects, similar to those created by cell detection on a whole slide image.
+ */
+public class SyntheticObjects {
+
+	/**
+	 * Names of the measurements added to each detection.
+	 */
+	public static final List<String> MEASUREMENT_NAMES = List.of(
+			"Nucleus: Area", "Nucleus: Perimeter", "Nucleus: Circularity",
+			"Nucleus: Mean", "Nucleus: Std.Dev.", "Nucleus: Max", "Nucleus: Min"
+			);
+
+	/**
+	 * Create detections with small polygon ROIs, scattered uniformly across an image.
+	 * @param n number of detections
+	 * @param width image width
+	 * @param height image height
+	 * @param seed random seed
+	 * @return
+	 */
+	public static List<PathObject> createDetections(int n, int width, int height, long seed) {
+		var rand = new Random(seed);
+		var plane = ImagePlane.getDefaultPlane();
+		var pathClasses = List.of(
+				PathClassFactory.getPathClass("Tumor"),
+				PathClassFactory.getPathClass("Stroma"),
+				PathClassFactory.getPathClass("Immune cells"));
+		var list = new ArrayList<PathObject>(n);
+		int nVertices = 12;
+		double[] x = new double[nVertices];
+		double[] y = new double[nVertices];
+		for (int i = 0; i < n; i++) {
+			double cx = rand.nextDouble() * (width - 20) + 10;
+			double cy = rand.nextDouble() * (height - 20) + 10;
+			double radius = 3 + rand.nextDouble() * 5;
+			for (int v = 0; v < nVertices; v++) {
+				double theta = 2 * Math.PI * v / nVertices;
+				double r = radius * (0.8 + rand.nextDouble() * 0.4);
+				x[v] = cx + Math.cos(theta) * r;
+				y[v] = cy + Math.sin(theta) * r;
+			}
+			var roi = ROIs.createPolygonROI(x, y, plane);
+			var measurements = MeasurementListFactory.createMeasurementList(MEASUREMENT_NAMES.size(), MeasurementListType.FLOAT);
+			for (var name : MEASUREMENT_NAMES)
+				measurements.putMeasurement(name, rand.nextGaussian() * 10 + 50);
+			measurements.close();
+			list.add(PathObjects.createDetectionObject(roi, pathClasses.get(rand.nextInt(pathClasses.size())), measurements));
+		}
+		return list;
+	}
+
+}
@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Benchmark reading regions from a tiled image, which requires tiles to be requested and stitched together.
+ * <p>
+ * A new server is created for each iteration, so that the first requests are not satisfied from the tile cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TileableImageServerBenchmark {
+
+	@Param({"1.0", "4.0"})
+	private double downsample;
+
+	@Param({"2048"})
+	private int regionSize;
+
+	private SyntheticImageServer server;
+	private int counter;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		server = new SyntheticImageServer(100_000, 80_000, 42L);
+		counter = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	/**
+	 * Read regions that move across the image, so that most tiles have not been read previously.
+	 * @return
+	 * @throws IOException
+	 */
+	@Benchmark
+	public BufferedImage readRegion() throws IOException {
+		int size = (int)(regionSize * downsample);
+		int nx = server.getWidth() / size;
+		int ny = server.getHeight() / size;
+		int ind = counter++ % (nx * ny);
+		// Use an offset that isn't aligned to the tile grid
+		int x = (ind % nx) * size + 17;
+		int y = (ind / nx) * size + 31;
+		var request = RegionRequest.createInstance(server.getPath(), downsample,
+				x, y, Math.min(size, server.getWidth() - x), Math.min(size, server.getHeight() - y));
+		return server.readBufferedImage(request);
+	}
+
+}
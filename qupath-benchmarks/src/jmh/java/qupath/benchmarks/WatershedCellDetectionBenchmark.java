@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.scripting.QP;
+
+/**
+ * Benchmark running cell detection within an annotation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WatershedCellDetectionBenchmark {
+
+	private static final String PLUGIN = "qupath.imagej.detect.cells.WatershedCellDetection";
+
+	private static final String ARGS = "{\"detectionImage\": \"Channel 1\", "
+			+ "\"requestedPixelSizeMicrons\": 0.5, "
+			+ "\"backgroundRadiusMicrons\": 8.0, "
+			+ "\"medianRadiusMicrons\": 0.0, "
+			+ "\"sigmaMicrons\": 1.0, "
+			+ "\"minAreaMicrons\": 5.0, "
+			+ "\"maxAreaMicrons\": 200.0, "
+			+ "\"threshold\": 50.0, "
+			+ "\"watershedPostProcess\": true, "
+			+ "\"cellExpansionMicrons\": 3.0, "
+			+ "\"includeNuclei\": true, "
+			+ "\"smoothBoundaries\": true, "
+			+ "\"makeMeasurements\": true}";
+
+	@Param({"4096"})
+	private int regionSize;
+
+	private ImageData<BufferedImage> imageData;
+	private PathObject annotation;
+
+	@Setup(Level.Invocation)
+	public void setup() {
+		var server = new SyntheticImageServer(100_000, 80_000, 42L);
+		imageData = new ImageData<>(server, ImageData.ImageType.FLUORESCENCE);
+		annotation = PathObjects.createAnnotationObject(
+				ROIs.createRectangleROI(5000, 5000, regionSize, regionSize, ImagePlane.getDefaultPlane()));
+		imageData.getHierarchy().addPathObject(annotation);
+		imageData.getHierarchy().getSelectionModel().setSelectedObject(annotation);
+	}
+
+	/**
+	 * Detect cells within the selected annotation.
+	 * @return number of cells detected
+	 * @throws InterruptedException
+	 */
+	@Benchmark
+	public int detectCells() throws InterruptedException {
+		if (!QP.runPlugin(PLUGIN, imageData, ARGS))
+			throw new RuntimeException("Cell detection failed");
+		return annotation.nChildObjects();
+	}
+
+}
@@ -35,6 +35,8 @@ import ij.process.ImageStatistics;
 import java.awt.Rectangle;
 import java.util.Arrays;
 
+import qupath.lib.analysis.algorithms.HierarchicalQueue;
+
 
 /**
  * Implementation of morphological reconstruction for ImageJ.
@@ -88,7 +90,7 @@ public class MorphologicalReconstruction {
 	
 	
 	
-	private static int dilateAndCompare(final ImageProcessor ipMarker, final ImageProcessor ipMask, final boolean reverse, final IntDequeue queue) {
+	private static int dilateAndCompare(final ImageProcessor ipMarker, final ImageProcessor ipMask, final boolean reverse, final HierarchicalQueue queue) {
 		int inc, hStart, vStart, hEnd, vEnd;
 		Rectangle rect = ipMarker.getRoi();
 		if (reverse) {
@@ -177,7 +179,7 @@ public class MorphologicalReconstruction {
 						}
 					}
 					if (addToQueue) {
-						queue.add(y*width + x);
+						queue.add(y*width + x, 0);
 					}
 				}
 				
@@ -192,20 +194,20 @@ public class MorphologicalReconstruction {
 		return changes;
 	}
 	
-	private static void processPoint(final ImageProcessor ipMarker, final ImageProcessor ipMask, final int ind, final float val, final IntDequeue queue) {
+	private static void processPoint(final ImageProcessor ipMarker, final ImageProcessor ipMask, final int ind, final float val, final HierarchicalQueue queue) {
 		final float valTempMarker = ipMarker.getf(ind);
 		if (valTempMarker < val) {
 			final float valTempMask = ipMask.getf(ind);
 			if (valTempMarker < valTempMask) {
 //				ipMarker.setf(x, y, Math.min(val, valTempMask));
 				ipMarker.setf(ind, valTempMask <= val ? valTempMask : val);
-				queue.add(ind);
+				queue.add(ind, 0);
 			}
 		}
 	}
 	
 	
-	private static boolean processQueue(final ImageProcessor ipMarker, final ImageProcessor ipMask, final IntDequeue queue) {
+	private static boolean processQueue(final ImageProcessor ipMarker, final ImageProcessor ipMask, final HierarchicalQueue queue) {
 		final Rectangle rect = ipMarker.getRoi();
 		final int x1 = rect.x;
 		final int y1 = rect.y;
@@ -288,17 +290,16 @@ public class MorphologicalReconstruction {
 		}
 //		System.out.println(String.format("Changes as propagation iteration %d: %.2f%%", counter++, 100.*nChanges/nPixels));
 		// Apply backwards propagation, filling the queue
-		final IntDequeue queue = new IntDequeue(nPixels/4);
-		dilateAndCompare(ipMarker, ipMask, true, queue);
-//		long endTime = System.currentTimeMillis();
-//		System.out.println("Queue setup time: " + (endTime - startTime)/1000.);
-		
-//		startTime = System.currentTimeMillis();
-		processQueue(ipMarker, ipMask, queue);
-//		endTime = System.currentTimeMillis();
-//		System.out.println("Queue process time: " + (endTime - startTime)/1000.);
-		// Process pixels in the queue (FIFO)
-		return processQueue(ipMarker, ipMask, queue);
+		// A single level is used, so that pixels are processed in FIFO order
+		final HierarchicalQueue queue = HierarchicalQueue.getThreadQueue();
+		queue.reset(1);
+		try {
+			dilateAndCompare(ipMarker, ipMask, true, queue);
+			// Process pixels in the queue (FIFO)
+			return processQueue(ipMarker, ipMask, queue);
+		} finally {
+			queue.release();
+		}
 	}
 	
 //	// More conventional approach...
@@ -511,66 +512,6 @@ public class MorphologicalReconstruction {
 
 	
 	
-	private static class IntDequeue {
-		
-		final private static int MAX_EXPANSION = 1024*10;
-		
-		private int[] array;
-		private int head = 0; // Points to location of first element in queue
-		private int tail = 0; // Points to location of *next* insert
-		
-		private IntDequeue(int capacity) {
-//			IJ.log("Using INT DEQUE!");
-			array = new int[capacity];
-			head = 0;
-			tail = 0;
-		}
-		
-		public boolean isEmpty() {
-			return tail == head;
-		}
-		
-		/**
-		 * Performs no check that the output will be valid (caller should use isEmpty first to check this)
-		 * @return
-		 */
-		private int remove() {
-//			return array[head++];
-			head++;
-			return array[head-1];
-		}
-		
-		private void add(int val) {
-			// Do a normal add if we can
-			if (tail < array.length) {
-				array[tail] = val;
-				tail++;
-				return;
-			}
-			// Shift everything back if that's an option
-			if (head != 0) {
-//				IJ.log("Shifting with head at " + head);
-				if (tail > head)
-					System.arraycopy(array, head, array, 0, tail-head);
-				tail -= head;
-				head = 0;
-				array[tail] = val;
-				tail++;
-				return;
-			}
-			// We need to expand the array
-			int[] array2 = new int[Math.max(array.length*2, MAX_EXPANSION)];
-			System.arraycopy(array, 0, array2, 0, array.length);
-			array = array2;
-			array[tail] = val;
-			tail++;
-//			IJ.log("Expanding IntDeque to length " + array.length);
-//			System.out.println("Expanding IntDeque to length " + array.length);
-		}
-		
-	}
-
-
 	/**
 	 * Replace all potential local maxima - as determined by effectively comparing the image with itself after
 	 * applying a 3x3 maximum filter - with the lowest possible value via {@code setf(x, y, Float.NEGATIVE_INFINITY)}.
@@ -23,14 +23,13 @@
 
 package qupath.imagej.processing;
 
-import java.util.ArrayDeque;
-import java.util.PriorityQueue;
-
 import ij.IJ;
 import ij.plugin.filter.EDM;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
+import qupath.lib.analysis.algorithms.HierarchicalQueue;
+
 /**
  * Implementation of 2D watershed transform for ImageJ.
  * 
@@ -83,25 +82,27 @@ public class Watershed {
 		final WatershedQueueWrapper queue = new WatershedQueueWrapper(ip, ipLabels, minThreshold);
 		
 		// Process the queue
-		while (!queue.isEmpty()) {
-			final PixelWithValue pwv = queue.poll();
-			final int x = pwv.x;
-			final int y = pwv.y;
-			queue.discard(pwv);
-			
-			float lastLabel;
-			if (conn8)
-				lastLabel = getNeighborLabels8(ipLabels, x, y, width, height);
-			else
-				lastLabel = getNeighborLabels4(ipLabels, x, y, width, height);
-			if (Float.isNaN(lastLabel))
-				continue;
-			ipLabels.setf(x, y, lastLabel);
-			if (conn8)
-				addNeighboursToQueue8(queue, x, y, width, height);
-			else
-				addNeighboursToQueue4(queue, x, y, width, height);
-			
+		try {
+			while (!queue.isEmpty()) {
+				final int ind = queue.poll();
+				final int x = ind % width;
+				final int y = ind / width;
+				
+				float lastLabel;
+				if (conn8)
+					lastLabel = getNeighborLabels8(ipLabels, x, y, width, height);
+				else
+					lastLabel = getNeighborLabels4(ipLabels, x, y, width, height);
+				if (Float.isNaN(lastLabel))
+					continue;
+				ipLabels.setf(x, y, lastLabel);
+				if (conn8)
+					addNeighboursToQueue8(queue, x, y, width, height);
+				else
+					addNeighboursToQueue4(queue, x, y, width, height);
+			}
+		} finally {
+			queue.release();
 		}
 		
 		final long endTime = System.currentTimeMillis();
@@ -199,86 +200,74 @@ public class Watershed {
 	
 	static class WatershedQueueWrapper {
 
-		final private PriorityQueue<PixelWithValue> queue = new PriorityQueue<>();
+		final private HierarchicalQueue queue = HierarchicalQueue.getThreadQueue();
 		final private boolean[] queued;
 		final private int width, height;
-		final private ImageProcessor ip;
-		
-		private long counter = 0;//Long.MIN_VALUE;
-		
-		// Keep a pool of objects so they can be reused... not normally worth the effort, but we are likely to have *a lot*
-		final private ArrayDeque<PixelWithValue> dequePool;
-		
 		
 		public WatershedQueueWrapper(final ImageProcessor ip, final ImageProcessor ipLabels, final double minThreshold) {
-			this.ip = ip;
 			this.width = ip.getWidth();
 			this.height = ip.getHeight();
+			final float[] values = getPixels(ip);
 			// Keep a record of already-queued pixels
 			queued = new boolean[width * height];
 			
-			// Loop through and populate the queue sensibly; background assumed to be zero
+			// Mark below-threshold pixels as queued (even if they aren't...) to indicate they shouldn't be added later,
+			// and mark already-labeled pixels as queued as well
 			for (int y = 0; y < height; y++) {
 				for (int x = 0; x < width; x++) {
-					float val = ip.getf(x, y);
-					// Mark below-threshold pixels as queued (even if they aren't...) to indicate they shouldn't be added later
-					if (val <= minThreshold) {
+					float val = values[y * width + x];
+					if (val <= minThreshold || ipLabels.getf(x, y) != 0)
 						queued[y * width + x] = true;
+				}
+			}
+			
+			// Every distinct value gets its own level, with FIFO order within a level; 
+			// this is necessary to produce reasonable-looking watershed results where there are plateaus (i.e. pixels with the same value)
+			queue.resetForValues(values, queued);
+			
+			// Add pixels immediately adjacent to a labeled pixel to the queue; background assumed to be zero
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (queued[y * width + x])
 						continue;
-					}
-					// Mark already-labeled pixels as queued as well,
-					// and add pixels immediately adjacent to a labeled pixel to the queue
-					if (ipLabels.getf(x, y) != 0) {
-						queued[y * width + x] = true;
-					}
-					else if (ipLabels.getPixelValue(x+1, y) != 0f || ipLabels.getPixelValue(x-1, y) != 0f || ipLabels.getPixelValue(x, y-1) != 0f || ipLabels.getPixelValue(x, y+1) != 0f) {
-						queued[y * width + x] = true;
-						queue.add(new PixelWithValue(x, y, val, ++counter));
-					}
+					if (ipLabels.getPixelValue(x+1, y) != 0f || ipLabels.getPixelValue(x-1, y) != 0f || ipLabels.getPixelValue(x, y-1) != 0f || ipLabels.getPixelValue(x, y+1) != 0f)
+						addWithoutCheck(x, y);
 				}			
 			}
-			
-			// Create a deque
-			dequePool = new ArrayDeque<>(ip.getWidth() * ip.getHeight());
+		}
+		
+		private static float[] getPixels(final ImageProcessor ip) {
+			if (ip instanceof FloatProcessor)
+				return (float[])ip.getPixels();
+			final float[] values = new float[ip.getWidth() * ip.getHeight()];
+			for (int i = 0; i < values.length; i++)
+				values[i] = ip.getf(i);
+			return values;
 		}
 		
 		public final void add(final int x, final int y) {
 			// Don't add to the queue twice
 			if (!mayAddToQueue(x, y))
 				return;
-			addWithoutCheck(x, y, ip.getf(x, y));
+			addWithoutCheck(x, y);
 		}
 		
-		protected final void addWithoutCheck(final int x, final int y, final float val) {
-			PixelWithValue pwv = dequePool.poll();
-			if (pwv == null)
-				pwv = new PixelWithValue(x, y, val, ++counter);
-			else {
-				pwv.x = x;
-				pwv.y = y;
-				pwv.value = val;
-				pwv.count = ++counter;
-			}
-			// Add, while storing a count variable, effectively turning the PriorityQueue into a FIFO queue whenever values are equal
-			// This is necessary to produce reasonable-looking watershed results where there are plateaus (i.e. pixels with the same value)
-			queue.add(pwv);
-			
-//			queue.add(new PixelWithValue(x, y, val, ++counter));
-
+		protected final void addWithoutCheck(final int x, final int y) {
+			queue.add(y * width + x);
 			// Keep track of the fact this has been queued - won't need it again
 			queued[y * width + x] = true;
 		}
 		
-//		public final boolean mayAddToQueue(int x, int y) {
-//			return !queued[y * width + x];
-//		}
-
 		public final boolean mayAddToQueue(final int x, final int y) {
 			return x >= 0 && x < width && y >= 0 && y < height && !queued[y * width + x];
 		}
 
-		public final PixelWithValue poll() {
-			return queue.poll();
+		/**
+		 * Get the index of the next pixel, with the highest value
+		 * @return
+		 */
+		public final int poll() {
+			return queue.remove();
 		}
 		
 		public final boolean isEmpty() {
@@ -286,58 +275,10 @@ public class Watershed {
 		}
 		
 		/**
-		 * Inform the queue it is free to reuse a PixelWithValue object if required
-		 * @param pwv
+		 * Release the queue, so that large arrays are not retained between uses
 		 */
-		public final void discard(PixelWithValue pwv) {
-			dequePool.add(pwv);
-		}
-		
-	}
-
-
-	static class PixelWithValue implements Comparable<PixelWithValue> {
-		
-		public int x, y;
-		public float value;
-		public long count;
-		
-//		final public int x, y;
-//		final public float value;
-//		final public long count;
-		
-		public PixelWithValue(final int x, final int y, final float value, final long count) {
-			this.x = x;
-			this.y = y;
-			this.value = value;
-			this.count = count;
-			
-//			System.out.println("My count: " + count);
-		}
-
-		@Override
-		public int compareTo(final PixelWithValue pwv) {
-//			// Profiling indicates that the many comparisons are the slowest part of the algorithm...
-//			if (value == pwv.value) 
-//				return count > pwv.count ? 1 : -1;
-//			else
-//				return value > pwv.value ? -1 : 1;
-					
-			// Profiling indicates that the many comparisons are the slowest part of the algorithm...
-			if (value < pwv.value) {
-				return 1;
-			}
-			else if (value > pwv.value) {
-				return -1;
-			}
-			return count > pwv.count ? 1 : -1;
-			
-//			// Profiling indicates that the many comparisons are the slowest part of the algorithm...
-//			if (value > pwv.value)
-//				return 1;
-//			else if (value < pwv.value)
-//				return -1;
-//			return count > pwv.count ? 1 : -1;
+		public final void release() {
+			queue.release();
 		}
 		
 	}
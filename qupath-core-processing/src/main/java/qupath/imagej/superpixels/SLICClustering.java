@@ -0,0 +1,371 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.imagej.superpixels;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Local k-means clustering used to compute SLIC superpixels.
+ * <p>
+ * Cluster centers are stored as primitive arrays (rather than one object per center), and pixels are assigned 
+ * to centers in parallel within horizontal bands. Each band owns its rows of the label and distance maps, 
+ * along with its own accumulators for the next center update, so that no synchronization or per-pixel 
+ * allocation is needed.
+ * <p>
+ * Iterations stop early whenever no cluster center moves by more than the tolerance.
+ * Buffers are retained and reused for subsequent calls, so an instance should not be shared between threads.
+ */
+class SLICClustering {
+	
+	/**
+	 * Default maximum shift of any cluster center (in pixels) for clustering to be considered converged.
+	 */
+	static final double DEFAULT_TOLERANCE = 0.1;
+	
+	/**
+	 * Value used to indicate that a pixel has not been assigned to any cluster.
+	 */
+	static final short NO_LABEL = -1;
+	
+	private double tolerance = DEFAULT_TOLERANCE;
+	
+	private float[][] features;
+	private int nFeatures;
+	private int width, height, spacing;
+	private boolean adaptRegularization;
+	
+	private int nClusters, nColumns;
+	private int nIterations;
+	
+	// Cluster centers
+	private double[] centerX = new double[0];
+	private double[] centerY = new double[0];
+	private double[] centerFeatures = new double[0];
+	private double[] mSquared = new double[0];
+	private int[] counts = new int[0];
+	
+	// Pixel maps
+	private short[] labels = new short[0];
+	private float[] distances = new float[0];
+	
+	// Per-band accumulators, with stride (3 + nFeatures) per cluster: count, x, y, features...
+	private int nBands, bandHeight;
+	private double[][] bandSums = new double[0][];
+	
+	/**
+	 * Set the maximum shift in any cluster center (in pixels) for clustering to be considered converged.
+	 * @param tolerance
+	 * @return this instance
+	 */
+	SLICClustering tolerance(double tolerance) {
+		this.tolerance = tolerance;
+		return this;
+	}
+	
+	/**
+	 * Compute superpixel labels.
+	 * @param features feature images, each of length width * height
+	 * @param width image width
+	 * @param height image height
+	 * @param spacing approximate spacing between superpixels
+	 * @param m regularization value, controlling the weight of the spatial distance relative to the feature distance
+	 * @param adaptRegularization if true, adapt the regularization for each cluster based upon its maximum feature distance
+	 * @param maxIterations maximum number of iterations
+	 * @return labels for each pixel, or null if the thread was interrupted. 
+	 *         The array may be longer than width * height, and is reused whenever this method is called again.
+	 */
+	short[] compute(float[][] features, int width, int height, int spacing, double m, boolean adaptRegularization, int maxIterations) {
+		initialize(features, width, height, spacing, m, adaptRegularization);
+		nIterations = 0;
+		while (nIterations < maxIterations) {
+			if (Thread.currentThread().isInterrupted())
+				return null;
+			IntStream.range(0, nBands).parallel().forEach(b -> assignBand(b));
+			double shift = updateCenters();
+			nIterations++;
+			if (shift <= tolerance)
+				break;
+		}
+		return labels;
+	}
+	
+	/**
+	 * Get the number of iterations used by the last call to {@link #compute(float[][], int, int, int, double, boolean, int)}.
+	 * @return
+	 */
+	int getIterations() {
+		return nIterations;
+	}
+	
+	/**
+	 * Get the number of clusters, including any that are empty.
+	 * @return
+	 */
+	int nClusters() {
+		return nClusters;
+	}
+	
+	/**
+	 * Merge neighboring clusters whose features are separated by no more than a specified Euclidean distance.
+	 * Labels returned by the last call to {@link #compute(float[][], int, int, int, double, boolean, int)} are updated in-place.
+	 * @param threshold
+	 */
+	void mergeSimilar(double threshold) {
+		short[] primary = new short[nClusters];
+		for (int k = 0; k < nClusters; k++)
+			primary[k] = (short)k;
+		for (int k = 0; k < nClusters; k++) {
+			int xc = k % nColumns;
+			// Check horizontal, vertical and diagonal links
+			if (xc < nColumns - 1)
+				maybeMerge(k, k+1, primary, threshold);
+			if (k < nClusters - nColumns) {
+				maybeMerge(k, k+nColumns, primary, threshold);
+				if (xc < nColumns - 1)
+					maybeMerge(k, k+nColumns+1, primary, threshold);
+				if (xc > 0)
+					maybeMerge(k, k+nColumns-1, primary, threshold);
+			}
+		}
+		int n = width * height;
+		for (int i = 0; i < n; i++) {
+			short label = labels[i];
+			if (label != NO_LABEL)
+				labels[i] = primary[label];
+		}
+	}
+	
+	private void maybeMerge(int k, int k2, short[] primary, double threshold) {
+		double dist = 0;
+		for (int f = 0; f < nFeatures; f++) {
+			double d = centerFeatures[k*nFeatures+f] - centerFeatures[k2*nFeatures+f];
+			dist += d*d;
+		}
+		if (Math.sqrt(dist) <= threshold)
+			primary[k2] = primary[k];
+	}
+	
+	
+	private void initialize(float[][] features, int width, int height, int spacing, double m, boolean adaptRegularization) {
+		this.features = features;
+		this.nFeatures = features.length;
+		this.width = width;
+		this.height = height;
+		this.spacing = spacing;
+		this.adaptRegularization = adaptRegularization;
+		
+		// Cluster centers start on a regular grid
+		nColumns = (width - spacing/2 + spacing - 1) / spacing;
+		int nRows = (height - spacing/2 + spacing - 1) / spacing;
+		nColumns = Math.max(nColumns, 0);
+		nClusters = nColumns * Math.max(nRows, 0);
+		if (nClusters > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Too many superpixels requested (" + nClusters + ") - maximum is " + Short.MAX_VALUE);
+		if (centerX.length < nClusters) {
+			centerX = new double[nClusters];
+			centerY = new double[nClusters];
+			mSquared = new double[nClusters];
+			counts = new int[nClusters];
+		}
+		if (centerFeatures.length < nClusters * nFeatures)
+			centerFeatures = new double[nClusters * nFeatures];
+		
+		int n = width * height;
+		if (labels.length < n) {
+			labels = new short[n];
+			distances = new float[n];
+		}
+		Arrays.fill(labels, 0, n, NO_LABEL);
+		
+		int k = 0;
+		for (int y = spacing/2; y < height; y += spacing) {
+			for (int x = spacing/2; x < width; x += spacing) {
+				int ind = y*width + x;
+				centerX[k] = x;
+				centerY[k] = y;
+				for (int f = 0; f < nFeatures; f++)
+					centerFeatures[k*nFeatures+f] = features[f][ind];
+				mSquared[k] = m*m;
+				counts[k] = 1;
+				labels[ind] = (short)k;
+				k++;
+			}
+		}
+		
+		// Bands should be large enough to be worthwhile, but numerous enough to balance the load
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		bandHeight = Math.max(spacing, (height + parallelism*4 - 1) / (parallelism*4));
+		nBands = Math.max(1, (height + bandHeight - 1) / bandHeight);
+		int stride = 3 + nFeatures;
+		if (bandSums.length < nBands)
+			bandSums = Arrays.copyOf(bandSums, nBands);
+		for (int b = 0; b < nBands; b++) {
+			if (bandSums[b] == null || bandSums[b].length < nClusters * stride)
+				bandSums[b] = new double[nClusters * stride];
+		}
+	}
+	
+	
+	/**
+	 * Assign the pixels within a band to their closest cluster center, and accumulate the values 
+	 * needed to update the centers.
+	 * @param band
+	 */
+	private void assignBand(int band) {
+		int y0 = band * bandHeight;
+		int y1 = Math.min(height, y0 + bandHeight);
+		Arrays.fill(distances, y0*width, y1*width, Float.POSITIVE_INFINITY);
+		
+		double s = spacing;
+		double invS2 = 1.0 / (s*s);
+		for (int k = 0; k < nClusters; k++) {
+			if (counts[k] == 0)
+				continue;
+			double xk = centerX[k];
+			double yk = centerY[k];
+			int yStart = Math.max(y0, (int)Math.max(0, yk - s));
+			int yEnd = Math.min(y1, (int)Math.min(height, yk + s));
+			if (yStart >= yEnd)
+				continue;
+			int xStart = (int)Math.max(0, xk - s);
+			int xEnd = (int)Math.min(width, xk + s);
+			double invM2 = 1.0 / mSquared[k];
+			int fOffset = k * nFeatures;
+			short label = (short)k;
+			for (int y = yStart; y < yEnd; y++) {
+				double dy = y - yk;
+				double dy2 = dy*dy;
+				int ind = y*width + xStart;
+				for (int x = xStart; x < xEnd; x++, ind++) {
+					double dx = x - xk;
+					double dc2 = 0;
+					for (int f = 0; f < nFeatures; f++) {
+						double d = features[f][ind] - centerFeatures[fOffset+f];
+						if (Double.isFinite(d))
+							dc2 += d*d;
+					}
+					double dist = dc2 * invM2 + (dx*dx + dy2) * invS2;
+					if (dist < distances[ind]) {
+						distances[ind] = (float)dist;
+						labels[ind] = label;
+					}
+				}
+			}
+		}
+		
+		// Accumulate sums for the next center update
+		int stride = 3 + nFeatures;
+		double[] sums = bandSums[band];
+		Arrays.fill(sums, 0, nClusters * stride, 0);
+		for (int y = y0; y < y1; y++) {
+			int ind = y*width;
+			for (int x = 0; x < width; x++, ind++) {
+				int label = labels[ind];
+				if (label == NO_LABEL)
+					continue;
+				int offset = label * stride;
+				sums[offset]++;
+				sums[offset+1] += x;
+				sums[offset+2] += y;
+				for (int f = 0; f < nFeatures; f++)
+					sums[offset+3+f] += features[f][ind];
+			}
+		}
+	}
+	
+	
+	/**
+	 * Update cluster centers from the band accumulators.
+	 * @return the maximum distance that any cluster center has moved
+	 */
+	private double updateCenters() {
+		int stride = 3 + nFeatures;
+		double maxShift = 0;
+		for (int k = 0; k < nClusters; k++) {
+			int offset = k * stride;
+			double count = 0, x = 0, y = 0;
+			for (int b = 0; b < nBands; b++) {
+				double[] sums = bandSums[b];
+				count += sums[offset];
+				x += sums[offset+1];
+				y += sums[offset+2];
+			}
+			counts[k] = (int)count;
+			if (count == 0)
+				continue;
+			x /= count;
+			y /= count;
+			double dx = x - centerX[k];
+			double dy = y - centerY[k];
+			maxShift = Math.max(maxShift, Math.sqrt(dx*dx + dy*dy));
+			centerX[k] = x;
+			centerY[k] = y;
+			for (int f = 0; f < nFeatures; f++) {
+				double sum = 0;
+				for (int b = 0; b < nBands; b++)
+					sum += bandSums[b][offset+3+f];
+				centerFeatures[k*nFeatures+f] = sum / count;
+			}
+		}
+		if (adaptRegularization)
+			updateRegularization();
+		return maxShift;
+	}
+	
+	
+	/**
+	 * Set the regularization for each cluster to the maximum squared feature distance of any of its pixels.
+	 */
+	private void updateRegularization() {
+		IntStream.range(0, nBands).parallel().forEach(b -> {
+			// Reuse the band accumulator, since the sums are no longer needed
+			double[] maxDistances = bandSums[b];
+			Arrays.fill(maxDistances, 0, nClusters, 0);
+			int start = b * bandHeight * width;
+			int end = Math.min(height, (b + 1) * bandHeight) * width;
+			for (int ind = start; ind < end; ind++) {
+				int label = labels[ind];
+				if (label == NO_LABEL)
+					continue;
+				double dc2 = 0;
+				for (int f = 0; f < nFeatures; f++) {
+					double d = features[f][ind] - centerFeatures[label*nFeatures+f];
+					if (Double.isFinite(d))
+						dc2 += d*d;
+				}
+				if (dc2 > maxDistances[label])
+					maxDistances[label] = dc2;
+			}
+		});
+		for (int k = 0; k < nClusters; k++) {
+			double max = 0;
+			for (int b = 0; b < nBands; b++)
+				max = Math.max(max, bandSums[b][k]);
+			if (max > 0)
+				mSquared[k] = max;
+		}
+	}
+
+}
@@ -34,7 +34,6 @@ import ij.process.ShortProcessor;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -160,6 +159,11 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 	
 	static class SLICSuperpixelDetector implements ObjectDetector<BufferedImage> {
 		
+		/**
+		 * Clustering buffers are reused for all tiles processed by the same thread.
+		 */
+		private static final ThreadLocal<SLICClustering> CLUSTERING = ThreadLocal.withInitial(() -> new SLICClustering());
+		
 		private PathImage<ImagePlus> pathImage = null;
 		private ROI pathROI = null;
 		
@@ -241,94 +245,27 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 					fp.blurGaussian(sigma);
 			}
 			
-			// Initialize centres and distances
-			// TODO: Consider that the use of short here places a limit upon the maximum number of labels
-			// (In practice should be ok because of enforced tiling for large regions?)
+			// Compute the superpixels
 			int w = imp.getWidth();
 			int h = imp.getHeight();
-			short[] labels = new short[w*h];
-			Arrays.fill(labels, (short)-1);
-			double[] distances = new double[w*h];
-			Arrays.fill(distances, Double.POSITIVE_INFINITY);
-			
 			int s = PREFERRED_PIXEL_SPACING;
-			List<ClusterCenter> centers = new ArrayList<>();
-			int widthClusters = 0; // Used to help figure out which clusters are side by side
-			for (int y = s/2; y < h; y += s) {
-				widthClusters = 0;
-			    for (int x = s/2; x < w; x += s) {
-			    	short label = (short)centers.size();
-			    	ClusterCenter center = new ClusterCenter(ipColor, label, s, m, adaptRegularization, w, h);
-			    	center.addLabel(y*w+x);
-			        labels[y*w+x] = label;	
-			        centers.add(center);
-			        widthClusters++;
-			    }
-			}
+			float[][] features = new float[ipColor.length][];
+			for (int i = 0; i < ipColor.length; i++)
+				features[i] = (float[])ipColor[i].convertToFloatProcessor().getPixels();
 			
-			if (Thread.currentThread().isInterrupted())
+			var clustering = CLUSTERING.get();
+			short[] labels = clustering.compute(features, w, h, s, m, adaptRegularization, maxIterations);
+			if (labels == null)
 				return Collections.emptyList();
-
-			
-			// Loop through and perform local k-means clustering
-			for (int i = 0; i < maxIterations; i++) {
-			    int centerLabel = 0;
-				if (Thread.currentThread().isInterrupted())
-					return Collections.emptyList();
-			    for (ClusterCenter center : centers) {
-			        center.updateFeatures();
-			        for (int label : center.getNearbyClusters()) {
-			            double distance = center.distanceSquared(label);
-			            if (distance < distances[label]) {
-			            	int currentLabel = labels[label];
-			            	if (currentLabel == centerLabel)
-			            		continue;
-			            	if (currentLabel != (short)-1)
-			            		centers.get(currentLabel).removeLabel(label);
-			            	center.addLabel(label);
-			            	distances[label] = distance;
-			            	labels[label] = (short)centerLabel;
-			            }
-			        }
-			        centerLabel++;
-			    }
-			}
+			logger.trace("SLIC completed after {} iterations", clustering.getIterations());
 			
 			// Merge clusters if required
-			if (params.containsKey("doMerge") && Boolean.TRUE.equals(params.getBooleanParameterValue("doMerge"))) {
-				for (int i = 0; i < centers.size(); i++) {
-					ClusterCenter center = centers.get(i);
-					center.updateFeatures();
-					
-					int xc = i % widthClusters;
-					// Check for horizontal link
-					if (xc < widthClusters - 1) {
-						ClusterCenter center2 = centers.get(i+1);
-						maybeMergeClusters(center, center2, labels, mergeThreshold);
-					}
-					// Check for vertical link
-					if (i < centers.size() - widthClusters) {
-						ClusterCenter center2 = centers.get(i+widthClusters);
-						maybeMergeClusters(center, center2, labels, mergeThreshold);
-						
-						// Check for diagonal forward link
-						if (xc < widthClusters - 1) {
-							center2 = centers.get(i+widthClusters+1);
-							maybeMergeClusters(center, center2, labels, mergeThreshold);
-						}
-						
-						// Check for backwards forward link
-						if (xc > 0) {
-							center2 = centers.get(i+widthClusters-1);
-							maybeMergeClusters(center, center2, labels, mergeThreshold);
-						}
-					}
-				}
-			}
+			if (params.containsKey("doMerge") && Boolean.TRUE.equals(params.getBooleanParameterValue("doMerge")))
+				clustering.mergeSimilar(mergeThreshold);
 			
 			
 			// Enforce connectivity and merge small objects
-			short[] newLabels = new short[labels.length];
+			short[] newLabels = new short[w*h];
 			int[] xyCurrent = new int[w*h];
 			short label = 1;
 			int minSize = s*s/4;
@@ -432,55 +369,6 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 		
 		
 		
-		static boolean maybeMergeClusters(final ClusterCenter center, final ClusterCenter center2, final short[] labels, final double mergeThreshold) {
-			// Check merge based on euclidean distance
-			double distanceThreshold = mergeThreshold;//0.02;
-			double dist = 0;
-			for (int i = 0; i < center.features.length; i++) {
-				double f1 = center.features[i];
-				double f2 = center2.features[i];
-				dist += (f1-f2)*(f1-f2);
-			}
-			dist = Math.sqrt(dist);
-//			System.err.println(dist);
-			boolean doMerge = dist <= distanceThreshold;
-						
-						
-//			// Check merge based on cosine distance
-//			double distanceThreshold = 0.9999;
-//			double dist = 0;
-//			double mag1 = 0;
-//			double mag2 = 0;
-//			for (int i = 0; i < center.features.length; i++) {
-//				double f1 = center.features[i];
-//				mag1 += f1*f1;
-//				double f2 = center2.features[i];
-//				mag2 += f2*f2;				
-//				dist += f1*f2;
-//			}
-//			dist = dist / (Math.sqrt(mag1) * Math.sqrt(mag2));
-////			dist = 1-2*Math.acos(dist)/Math.PI;
-//			boolean doMerge = dist >= distanceThreshold;
-						
-//			// Check merge based on distance standard deviations within each cluster
-//			double distanceThreshold = Math.min(center.getColorDistanceStdDev(), center2.getColorDistanceStdDev());
-//			double dist = center.colorDistance(center2.features);
-//			boolean doMerge = dist < distanceThreshold;
-			
-			// Perform the merge
-			if (doMerge) {
-				for (int label : center2.getLabels())
-					labels[label] = center.primaryLabel;
-				center2.primaryLabel = center.primaryLabel;
-//				center2.labels.addAll(center.labels);
-				return true;
-			}
-			return false;
-		}
-		
-		
-		
-		
 		static double getSigma(final PathImage<?> pathImage, final ParameterList params) {
 			double pixelSizeMicrons = pathImage.getPixelCalibration().getAveragedPixelSizeMicrons();
 			if (Double.isNaN(pixelSizeMicrons)) {
@@ -555,151 +443,5 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 		Collection<? extends PathObject> parents = super.getParentObjects(runner);
 		return parents;
 	}
-	
-
-	static class ClusterCenter {
-		
-		private ImageProcessor[] featuresImages;
-
-	    private List<Integer> labels = new ArrayList<>();
-	    private short primaryLabel;
-	    private double[] features = null;
-	    private double x;
-	    private double y;
-	    
-	    private boolean adaptRegularization;
-	    private double s, mSquared;
-	    
-	    private int width;
-	    private int height;
-	    
-	    ClusterCenter(final ImageProcessor[] featuresImages, final short primaryLabel, final double s, final double m, final boolean adaptRegularization, final int width, final int height) {
-	    	this.featuresImages = featuresImages;
-	    	this.primaryLabel = primaryLabel;
-	    	this.s = s;
-	    	this.adaptRegularization = adaptRegularization;
-	    	this.mSquared = m*m;
-	    	this.width = width;
-	    	this.height = height;
-	    }
-
-	    public List<Integer> getLabels() {
-	        return Collections.unmodifiableList(labels);
-	    }
-
-	    public void addLabel(final Integer label) {
-	        this.labels.add(label);
-	    }
-
-
-	    public void removeLabel(final Integer label) {
-	        this.labels.remove(label);
-	    }
-
 
-	    public List<Integer> getNearbyClusters() {
-	        if (labels.isEmpty())
-	            return Collections.emptyList();
-
-	        List<Integer> list = new ArrayList<>();
-	        for (int yy = (int)Math.max(0, y-s); yy < (int)Math.min(height, y+s); yy++) {
-	            for (int xx = (int)Math.max(0, x-s); xx < (int)Math.min(width, x+s); xx++) {
-	                list.add(yy*width + xx);
-	            }
-	        }
-	        return list;
-	    }
-
-
-	    public void updateFeatures() {
-	        if (labels.isEmpty()) {
-	            x = Double.NaN;
-	            y = Double.NaN;
-	            features = null;
-	        }
-	        int n = labels.size();
-	        x = 0;
-	        y = 0;
-	        features = new double[featuresImages.length];
-	        for (int label : labels) {
-	        	double xx = label % width;
-	        	double yy = label / width;
-	            x += xx/n;
-	            y += yy/n;
-	            for (int i = 0; i < features.length; i++)
-	                features[i] += featuresImages[i].getf(label)/n;
-	        }
-	        updateM();
-	    }
-	    
-	    private void updateM() {
-	    	if (!adaptRegularization)
-	    		return;
-	    	double maxDistanceSquared = 0;
-	    	for (int label : labels) {
-	    		double dist = colorDistanceSquared(label);
-	    		if (dist > maxDistanceSquared)
-	    			maxDistanceSquared = dist;
-	    	}
-	    	if (maxDistanceSquared > 0)
-	    		this.mSquared = maxDistanceSquared;
-	    }
-	    
-	    
-//	    private double getColorDistanceStdDev() {
-//	    	RunningStatistics stats = new RunningStatistics();
-//	    	for (int label : getLabels()) {
-//	    		stats.addValue(Math.sqrt(colorDistanceSquared(label)));
-//	    	}
-//	    	return stats.getStdDev();
-//	    }
-	    
-	    
-	    private double colorDistanceSquared(final int ind) {
-	    	double DC2 = 0;
-	        for (int i = 0; i < featuresImages.length; i++) {
-	            double d = featuresImages[i].getf(ind) - features[i];
-	            if (Double.isFinite(d))
-	                DC2 += d*d;
-	        }
-	        return DC2;
-	    }
-	    
-	    
-	    public double colorDistance(final double[] features) {
-	    	double distanceSquared = 0;
-	    	for (int i = 0; i < features.length; i++) {
-	    		double d = features[i] - this.features[i];
-	    		distanceSquared += d*d;
-	    	}
-	    	return Math.sqrt(distanceSquared);
-	    }
-	    
-
-	    public double distanceSquared(final int ind) {
-	        if (features == null)
-	            return Double.POSITIVE_INFINITY;
-
-	        // Get coordinates from label
-	        double xx = ind % width;
-        	double yy = ind / width;
-        	
-	        // Calculate spatial distance squared
-	        double dx = x - xx;
-	        double dy = y - yy;
-
-	        double DS2 = dx*dx + dy*dy;
-
-	        // Calculate feature distance squared
-	        double DC2 = colorDistanceSquared(ind);
-	        
-	        // Compute distance
-	        double distanceSquared = DC2/mSquared + DS2/(s*s);
-	        
-	        return distanceSquared;
-	    }
-
-	}
-	
-	
-}
\ No newline at end of file
+}
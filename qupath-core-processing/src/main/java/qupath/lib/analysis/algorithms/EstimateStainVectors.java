@@ -26,8 +26,13 @@ package qupath.lib.analysis.algorithms;
 import java.awt.image.BufferedImage;
 import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import org.apache.commons.math3.linear.EigenDecomposition;
 import org.apache.commons.math3.linear.MatrixUtils;
@@ -40,6 +45,8 @@ import qupath.lib.color.ColorDeconvolutionHelper;
 import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.color.StainVector;
 import qupath.lib.common.ColorTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
 
 /**
  * Code for estimating stain vectors automatically from an image, or to launch an editor for visually/interactively modifying stain vectors.
@@ -118,35 +125,15 @@ public class EstimateStainVectors {
 		float[] green = Arrays.copyOf(greenOD, n);
 		float[] blue = Arrays.copyOf(blueOD, n);
 		
-		// Check if we do color sanity test
-		boolean doColorTestForHE = checkColors && stainsOriginal.isH_E();
-//		boolean doColorTestForHDAB = checkColors && stainsOriginal.isH_DAB();
-		boolean doGrayTest = checkColors && (stainsOriginal.isH_E() || stainsOriginal.isH_DAB());
-		double sqrt3 = 1/Math.sqrt(3);
-		double grayThreshold = Math.cos(0.15);
-		
 		// Loop through and discard pixels that are too faintly or densely stained
+		var filter = new StainFilter(stainsOriginal, minStain, maxStain, checkColors);
 		int keepCount = 0;
-		double maxStainSq = maxStain*maxStain;
 		for (int i = 0; i < rgb.length; i++) {
 			float r = red[i];
 			float g = green[i];
 			float b = blue[i];
-			double magSquared = r*r + g*g + b*b;
-			if (magSquared > maxStainSq || r < minStain || g < minStain || b < minStain || magSquared <= 0)
+			if (!filter.accept(r, g, b))
 				continue;
-			// Check for consistency with H&E staining, if required (i.e. only keep red/pink/purple/blue pixels and the like)
-			if (doColorTestForHE && (r > g || b > g)) {
-				continue;
-			}
-//			// Check for consistency with H-DAB staining, if required (i.e. only keep red/pink/purple/blue pixels and the like)
-//			if (doColorTestForHDAB && (r > g)) {
-//				continue;
-//			}
-			// Exclude very 'gray' pixels
-			if (doGrayTest && (r*sqrt3 + g*sqrt3 + b*sqrt3) / Math.sqrt(magSquared) >= grayThreshold) {
-				continue;				
-			}
 			// Update the arrays
 			red[keepCount] = r;
 			green[keepCount] = g;
@@ -205,20 +192,328 @@ public class EstimateStainVectors {
 		 * This is effectively like a region selection, but where the region has
 		 * been chosen automatically.
 		 */
-		int[] inds = rank(phi);
-		int ind1 = inds[Math.max(0, (int)(alpha * keepCount + .5))];
-		int ind2 = inds[Math.min(inds.length-1, (int)((1 - alpha) * keepCount + .5))];
+		int[] inds = selectIndices(phi,
+				Math.max(0, (int)(alpha * keepCount + .5)),
+				Math.min(keepCount-1, (int)((1 - alpha) * keepCount + .5)));
+		int ind1 = inds[0];
+		int ind2 = inds[1];
+		
+		return createStains(stainsOriginal,
+				new double[] {red[ind1], green[ind1], blue[ind1]},
+				new double[] {red[ind2], green[ind2], blue[ind2]});
+	}
+	
+	
+	/**
+	 * Estimate two stains from an entire image, with default parameter settings.
+	 * <p>
+	 * The image is sampled at a resolution chosen so that no more than 4 million pixels are read.
+	 * 
+	 * @param server RGB image
+	 * @param stainsOriginal original stains, including the background (white) values for red, green and blue and stain names
+	 * @param checkColors if true, avoid colors far from H&amp;E
+	 * @return
+	 * @throws IOException if the image could not be read
+	 * @see #estimateStains(ImageServer, ColorDeconvolutionStains, double, double, double, double, boolean)
+	 */
+	public static ColorDeconvolutionStains estimateStains(final ImageServer<BufferedImage> server, final ColorDeconvolutionStains stainsOriginal, final boolean checkColors) throws IOException {
+		double downsample = Math.max(1.0, Math.sqrt((double)server.getWidth() * server.getHeight() / DEFAULT_MAX_SAMPLED_PIXELS));
+		double maxStain = 1;
+		double minStain = 0.05;
+		double ignorePercentage = 1;
+		return estimateStains(server, stainsOriginal, downsample, minStain, maxStain, ignorePercentage, checkColors);
+	}
+	
+	/**
+	 * Estimate two stains from an entire image, without the need to select a representative region.
+	 * <p>
+	 * Tiles are read in parallel at the requested downsample, and only pixels that pass the stain thresholds are retained - 
+	 * so that background is excluded automatically.
+	 * Rather than sorting all pixels to identify the angles at the specified percentiles, angles are accumulated in a histogram, 
+	 * and each stain vector is the mean optical density of the pixels within the corresponding histogram bin.
+	 * This means that the memory required is low and the estimate is robust to individual pixel values.
+	 * 
+	 * @param server RGB image
+	 * @param stainsOriginal original stains, including the background (white) values for red, green and blue and stain names
+	 * @param downsample downsample factor at which the image should be sampled
+	 * @param minStain minimum optical density to use
+	 * @param maxStain maximum optical density to use
+	 * @param ignorePercentage percentage of extrema pixels to ignore
+	 * @param checkColors if true, avoid colors far from H&amp;E
+	 * @return
+	 * @throws IOException if the image could not be read
+	 */
+	public static ColorDeconvolutionStains estimateStains(final ImageServer<BufferedImage> server, final ColorDeconvolutionStains stainsOriginal, final double downsample, final double minStain, final double maxStain, final double ignorePercentage, final boolean checkColors) throws IOException {
+		if (!server.isRGB())
+			throw new IllegalArgumentException("Stain vectors can only be estimated for RGB images!");
+		
+		long startTime = System.currentTimeMillis();
+		
+		// Read tiles in parallel, retaining only the optical densities of stained pixels
+		var filter = new StainFilter(stainsOriginal, minStain, maxStain, checkColors);
+		List<float[]> samples;
+		try {
+			samples = createSampleRequests(server, downsample).parallelStream()
+					.map(request -> readStainedPixels(server, request, stainsOriginal, filter))
+					.filter(s -> s.length > 0)
+					.collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		
+		// Calculate the covariance matrix from sums, so we only need a single pass
+		double[] sums = samples.parallelStream()
+				.map(EstimateStainVectors::calculateSums)
+				.reduce(new double[10], EstimateStainVectors::addSums);
+		long n = (long)sums[9];
+		if (n <= 1)
+			throw new IllegalArgumentException("Not enough pixels remain after applying stain thresholds!");
+		
+		double[][] cov = new double[3][3];
+		int k = 3;
+		for (int i = 0; i < 3; i++) {
+			for (int j = i; j < 3; j++) {
+				cov[i][j] = (sums[k] - sums[i] * sums[j] / n) / n;
+				cov[j][i] = cov[i][j];
+				k++;
+			}
+		}
+		
+		RealMatrix mat = MatrixUtils.createRealMatrix(cov);
+		logger.debug("Covariance matrix:\n {}", getMatrixAsString(mat.getData()));
+		
+		EigenDecomposition eigen = new EigenDecomposition(mat);
+		
+		double[] eigenValues = eigen.getRealEigenvalues();
+		int[] eigenOrder = rank(eigenValues);
+		double[] eigen1 = eigen.getEigenvector(eigenOrder[2]).toArray();
+		double[] eigen2 = eigen.getEigenvector(eigenOrder[1]).toArray();
+		logger.debug("First eigenvector: " + getVectorAsString(eigen1));
+		logger.debug("Second eigenvector: " + getVectorAsString(eigen2));
+		
+		AngleHistogram histogram = samples.parallelStream()
+				.collect(() -> new AngleHistogram(N_ANGLE_BINS),
+						(h, s) -> h.add(s, eigen1, eigen2),
+						AngleHistogram::add);
+		
+		double alpha = ignorePercentage / 100;
+		double[] od1 = histogram.getMeanOpticalDensities(histogram.getBinForRank(Math.max(0, (long)(alpha * n + .5))));
+		double[] od2 = histogram.getMeanOpticalDensities(histogram.getBinForRank(Math.min(n-1, (long)((1 - alpha) * n + .5))));
+		
+		var stains = createStains(stainsOriginal, od1, od2);
+		
+		long endTime = System.currentTimeMillis();
+		logger.debug("Stains estimated from {} pixels in {} ms (downsample={})", n, endTime - startTime, downsample);
+		return stains;
+	}
+	
+	
+	/**
+	 * Default maximum number of pixels to read when estimating stains from an entire image.
+	 */
+	private static final long DEFAULT_MAX_SAMPLED_PIXELS = 4_000_000L;
+	
+	/**
+	 * Width and height of each region to read, at the sampled resolution.
+	 */
+	private static final int SAMPLE_TILE_SIZE = 512;
+	
+	/**
+	 * Number of bins used to accumulate angles between -pi and pi.
+	 */
+	private static final int N_ANGLE_BINS = 8192;
+	
+	private static List<RegionRequest> createSampleRequests(ImageServer<BufferedImage> server, double downsample) {
+		int tileSize = (int)Math.round(SAMPLE_TILE_SIZE * downsample);
+		var requests = new ArrayList<RegionRequest>();
+		for (int y = 0; y < server.getHeight(); y += tileSize) {
+			int h = Math.min(tileSize, server.getHeight() - y);
+			for (int x = 0; x < server.getWidth(); x += tileSize) {
+				int w = Math.min(tileSize, server.getWidth() - x);
+				requests.add(RegionRequest.createInstance(server.getPath(), downsample, x, y, w, h));
+			}
+		}
+		return requests;
+	}
+	
+	/**
+	 * Read a region, and return the red, green and blue optical densities of all pixels accepted by the filter.
+	 * These are interleaved in a single array, to keep the memory required low.
+	 */
+	private static float[] readStainedPixels(ImageServer<BufferedImage> server, RegionRequest request, ColorDeconvolutionStains stains, StainFilter filter) {
+		BufferedImage img;
+		try {
+			img = server.readBufferedImage(request);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (img == null)
+			return new float[0];
+		int[] rgb = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+		float[] red = ColorDeconvolutionHelper.getRedOpticalDensities(rgb, stains.getMaxRed(), null);
+		float[] green = ColorDeconvolutionHelper.getGreenOpticalDensities(rgb, stains.getMaxGreen(), null);
+		float[] blue = ColorDeconvolutionHelper.getBlueOpticalDensities(rgb, stains.getMaxBlue(), null);
+		float[] od = new float[rgb.length * 3];
+		int k = 0;
+		for (int i = 0; i < rgb.length; i++) {
+			if (filter.accept(red[i], green[i], blue[i])) {
+				od[k++] = red[i];
+				od[k++] = green[i];
+				od[k++] = blue[i];
+			}
+		}
+		return Arrays.copyOf(od, k);
+	}
+	
+	/**
+	 * Calculate sums needed for the covariance matrix from interleaved optical densities.
+	 * @return an array containing the sums of r, g, b, rr, rg, rb, gg, gb, bb and the number of pixels
+	 */
+	private static double[] calculateSums(float[] od) {
+		double[] sums = new double[10];
+		for (int i = 0; i < od.length; i += 3) {
+			double r = od[i];
+			double g = od[i+1];
+			double b = od[i+2];
+			sums[0] += r;
+			sums[1] += g;
+			sums[2] += b;
+			sums[3] += r*r;
+			sums[4] += r*g;
+			sums[5] += r*b;
+			sums[6] += g*g;
+			sums[7] += g*b;
+			sums[8] += b*b;
+		}
+		sums[9] = od.length / 3;
+		return sums;
+	}
+	
+	private static double[] addSums(double[] sums1, double[] sums2) {
+		double[] result = new double[sums1.length];
+		for (int i = 0; i < result.length; i++)
+			result[i] = sums1[i] + sums2[i];
+		return result;
+	}
+	
+	
+	/**
+	 * Histogram of the angles of optical density vectors projected onto the plane defined by two eigenvectors.
+	 * As well as counts, the optical densities within each bin are summed so that a representative vector can be 
+	 * computed for any bin.
+	 */
+	private static class AngleHistogram {
+		
+		private final long[] counts;
+		private final double[] sumRed, sumGreen, sumBlue;
+		
+		AngleHistogram(int nBins) {
+			counts = new long[nBins];
+			sumRed = new double[nBins];
+			sumGreen = new double[nBins];
+			sumBlue = new double[nBins];
+		}
+		
+		void add(float[] od, double[] eigen1, double[] eigen2) {
+			int nBins = counts.length;
+			double scale = nBins / (2 * Math.PI);
+			for (int i = 0; i < od.length; i += 3) {
+				double r = od[i];
+				double g = od[i+1];
+				double b = od[i+2];
+				double phi = Math.atan2(
+						r*eigen1[0] + g*eigen1[1] + b*eigen1[2],
+						r*eigen2[0] + g*eigen2[1] + b*eigen2[2]);
+				int bin = Math.min(nBins-1, Math.max(0, (int)((phi + Math.PI) * scale)));
+				counts[bin]++;
+				sumRed[bin] += r;
+				sumGreen[bin] += g;
+				sumBlue[bin] += b;
+			}
+		}
+		
+		void add(AngleHistogram histogram) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += histogram.counts[i];
+				sumRed[i] += histogram.sumRed[i];
+				sumGreen[i] += histogram.sumGreen[i];
+				sumBlue[i] += histogram.sumBlue[i];
+			}
+		}
+		
+		/**
+		 * Get the bin containing the value with a specified rank, i.e. the index it would have if all values were sorted.
+		 */
+		int getBinForRank(long rank) {
+			long cumulative = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumulative += counts[i];
+				if (cumulative > rank)
+					return i;
+			}
+			return counts.length - 1;
+		}
 		
+		double[] getMeanOpticalDensities(int bin) {
+			long n = counts[bin];
+			return new double[] {sumRed[bin] / n, sumGreen[bin] / n, sumBlue[bin] / n};
+		}
+		
+	}
+	
+	
+	/**
+	 * Filter to identify pixels that are suitable for stain estimation, based upon their optical densities.
+	 */
+	private static class StainFilter {
+		
+		private final double minStain;
+		private final double maxStainSq;
+		
+		// Check if we do color sanity test
+		private final boolean doColorTestForHE;
+		private final boolean doGrayTest;
+		private final double sqrt3 = 1/Math.sqrt(3);
+		private final double grayThreshold = Math.cos(0.15);
+		
+		StainFilter(ColorDeconvolutionStains stainsOriginal, double minStain, double maxStain, boolean checkColors) {
+			this.minStain = minStain;
+			this.maxStainSq = maxStain*maxStain;
+			this.doColorTestForHE = checkColors && stainsOriginal.isH_E();
+			this.doGrayTest = checkColors && (stainsOriginal.isH_E() || stainsOriginal.isH_DAB());
+		}
+		
+		boolean accept(float r, float g, float b) {
+			double magSquared = r*r + g*g + b*b;
+			// Discard pixels that are too faintly or densely stained
+			if (magSquared > maxStainSq || r < minStain || g < minStain || b < minStain || magSquared <= 0)
+				return false;
+			// Check for consistency with H&E staining, if required (i.e. only keep red/pink/purple/blue pixels and the like)
+			if (doColorTestForHE && (r > g || b > g))
+				return false;
+			// Exclude very 'gray' pixels
+			if (doGrayTest && (r*sqrt3 + g*sqrt3 + b*sqrt3) / Math.sqrt(magSquared) >= grayThreshold)
+				return false;
+			return true;
+		}
+		
+	}
+	
+	
+	/**
+	 * Create stains from two optical density vectors, ordering these to best match the original stains.
+	 */
+	private static ColorDeconvolutionStains createStains(ColorDeconvolutionStains stainsOriginal, double[] od1, double[] od2) {
 		// Create new stain vectors
-		StainVector s1 = StainVector.createStainVector(stainsOriginal.getStain(1).getName(), red[ind1], green[ind1], blue[ind1]);
-		StainVector s2 = StainVector.createStainVector(stainsOriginal.getStain(2).getName(), red[ind2], green[ind2], blue[ind2]);
+		StainVector s1 = StainVector.createStainVector(stainsOriginal.getStain(1).getName(), od1[0], od1[1], od1[2]);
+		StainVector s2 = StainVector.createStainVector(stainsOriginal.getStain(2).getName(), od2[0], od2[1], od2[2]);
 		
 		// If working with H&E, we can use the simple heuristic of comparing the red values
 		if (stainsOriginal.isH_E()) {
 			// Need to check within the stain vectors (*not* original indexed values) because normalisation is important (I think... there were errors before)
 			if (s1.getRed() < s2.getRed()) {
-				s1 = StainVector.createStainVector(stainsOriginal.getStain(1).getName(), red[ind2], green[ind2], blue[ind2]);
-				s2 = StainVector.createStainVector(stainsOriginal.getStain(2).getName(), red[ind1], green[ind1], blue[ind1]);
+				s1 = StainVector.createStainVector(stainsOriginal.getStain(1).getName(), od2[0], od2[1], od2[2]);
+				s2 = StainVector.createStainVector(stainsOriginal.getStain(2).getName(), od1[0], od1[1], od1[2]);
 			}
 		} else {
 			// Check we've got the closest match - if not, switch the order
@@ -227,16 +522,47 @@ public class EstimateStainVectors {
 			double angle21 = StainVector.computeAngle(s2, stainsOriginal.getStain(1));
 			double angle22 = StainVector.computeAngle(s2, stainsOriginal.getStain(2));
 			if (Math.min(angle12, angle21) < Math.min(angle11, angle22)) {
-				s1 = StainVector.createStainVector(stainsOriginal.getStain(1).getName(), red[ind2], green[ind2], blue[ind2]);
-				s2 = StainVector.createStainVector(stainsOriginal.getStain(2).getName(), red[ind1], green[ind1], blue[ind1]);
+				s1 = StainVector.createStainVector(stainsOriginal.getStain(1).getName(), od2[0], od2[1], od2[2]);
+				s2 = StainVector.createStainVector(stainsOriginal.getStain(2).getName(), od1[0], od1[1], od1[2]);
 			}			
 		}
 		
-		ColorDeconvolutionStains stains = new ColorDeconvolutionStains(stainsOriginal.getName(), s1, s2, stainsOriginal.getMaxRed(), stainsOriginal.getMaxGreen(), stainsOriginal.getMaxBlue());
-		
-		
-		return stains;
-		
+		return new ColorDeconvolutionStains(stainsOriginal.getName(), s1, s2, stainsOriginal.getMaxRed(), stainsOriginal.getMaxGreen(), stainsOriginal.getMaxBlue());
+	}
+	
+	
+	/**
+	 * Get the indices of the values that would be at positions ks if the values were sorted.
+	 * <p>
+	 * This gives the same result as looking up each k in {@code rank(values)}, including the handling of ties, 
+	 * but sorts a primitive copy of the values once rather than boxing and sorting indices.
+	 */
+	static int[] selectIndices(double[] values, int... ks) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int[] indices = new int[ks.length];
+		for (int j = 0; j < ks.length; j++) {
+			int k = ks[j];
+			double value = sorted[k];
+			// Find the first position of the value in the sorted array; equal values are ordered by index
+			int first = k;
+			while (first > 0 && Double.compare(sorted[first-1], value) == 0)
+				first--;
+			int count = k - first;
+			indices[j] = -1;
+			for (int i = 0; i < values.length; i++) {
+				if (Double.compare(values[i], value) == 0) {
+					if (count == 0) {
+						indices[j] = i;
+						break;
+					}
+					count--;
+				}
+			}
+			if (indices[j] < 0)
+				throw new IllegalStateException("Unable to find value " + value);
+		}
+		return indices;
 	}
 	
 	
@@ -0,0 +1,361 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical (bucketed) queue of pixel indices, as used by watershed and morphological reconstruction algorithms.
+ * <p>
+ * Each index is added at an integer level; the index returned by {@link #remove()} is always from the highest
+ * non-empty level, and indices at the same level are returned in the order in which they were added (FIFO).
+ * <p>
+ * Levels can be assigned directly, or derived from pixel values using {@link #resetForValues(float[], boolean[])}.
+ * In the latter case, each distinct value is given its own level, so that the order in which pixels are returned is
+ * exactly the same as for a priority queue sorted by descending value, with ties broken by insertion order.
+ * <p>
+ * All storage uses primitive arrays that are retained between calls to {@code reset}, so that a single queue
+ * can be reused for many images without further allocation. Use {@link #getThreadQueue()} to obtain a queue that
+ * is reused for all calls on the current thread.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class HierarchicalQueue {
+
+	/**
+	 * Maximum length of any array that will be retained for reuse by {@link #getThreadQueue()}.
+	 */
+	private static final int MAX_RETAINED_LENGTH = 1 << 22;
+
+	/**
+	 * Maximum range of integer values for which levels are computed directly, rather than by sorting.
+	 */
+	private static final int MAX_INTEGER_RANGE = 1 << 20;
+
+	private static final ThreadLocal<HierarchicalQueue> localQueue = ThreadLocal.withInitial(HierarchicalQueue::new);
+
+	private int nLevels = 0;
+
+	// Linked list of nodes for each level
+	private int[] head = new int[0];
+	private int[] tail = new int[0];
+
+	// Pool of nodes, storing the index & the next node at the same level
+	private int[] nodeIndex = new int[1024];
+	private int[] nodeNext = new int[1024];
+	private int nNodes = 0;
+	private int freeNode = -1;
+
+	// Bitmaps of non-empty levels; occupied[0] has one bit per level, occupied[1] one bit per word of occupied[0] etc.
+	private long[][] occupied = new long[0][];
+
+	private int top = -1;
+	private int size = 0;
+
+	// Levels derived from values by resetForValues
+	private int[] indexLevels = new int[0];
+	private float[] sortedValues = new float[0];
+
+	/**
+	 * Create a new, empty queue with a single level.
+	 */
+	public HierarchicalQueue() {
+		reset(1);
+	}
+
+	/**
+	 * Get a queue that may be reused for all calls from the current thread.
+	 * <p>
+	 * The queue must be reset before use, and must not be used by more than one algorithm at the same time.
+	 * Call {@link #release()} once the queue is no longer required, so that very large arrays are not retained.
+	 * @return
+	 */
+	public static HierarchicalQueue getThreadQueue() {
+		return localQueue.get();
+	}
+
+	/**
+	 * Empty the queue, and ensure it can store indices at levels from 0 (inclusive) to nLevels (exclusive).
+	 * @param nLevels
+	 */
+	public void reset(int nLevels) {
+		if (nLevels <= 0)
+			throw new IllegalArgumentException("Number of levels must be > 0");
+		if (head.length < nLevels) {
+			head = new int[nLevels];
+			tail = new int[nLevels];
+		}
+		// Bitmaps should already be clear, unless the queue was abandoned while non-empty
+		if (size > 0 || this.nLevels != nLevels) {
+			occupied = createBitmaps(nLevels, occupied);
+		}
+		this.nLevels = nLevels;
+		nNodes = 0;
+		freeNode = -1;
+		top = -1;
+		size = 0;
+	}
+
+	private static long[][] createBitmaps(int nLevels, long[][] previous) {
+		int depth = 1;
+		int n = nLevels;
+		while (n > 64) {
+			n = (n + 63) >>> 6;
+			depth++;
+		}
+		var bitmaps = new long[depth][];
+		n = nLevels;
+		for (int d = 0; d < depth; d++) {
+			int nWords = (n + 63) >>> 6;
+			if (d < previous.length && previous[d].length >= nWords) {
+				bitmaps[d] = previous[d];
+				Arrays.fill(bitmaps[d], 0L);
+			} else
+				bitmaps[d] = new long[nWords];
+			n = nWords;
+		}
+		return bitmaps;
+	}
+
+	/**
+	 * Empty the queue, and assign a level to each index according to its value, so that higher values
+	 * are returned first by {@link #remove()}.
+	 * <p>
+	 * Each distinct value is assigned a distinct level, so that ordering is exact.
+	 * {@code -0.0} and {@code 0.0} are considered equal, while {@code NaN} is assigned to the lowest level.
+	 *
+	 * @param values values for each index
+	 * @param exclude optional array indicating indices that will never be added to the queue;
+	 *                these do not need to be assigned levels
+	 * @see #add(int)
+	 */
+	public void resetForValues(float[] values, boolean[] exclude) {
+		int n = values.length;
+		if (indexLevels.length < n)
+			indexLevels = new int[n];
+
+		// Check whether we have integer values within a limited range
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		boolean allIntegers = true;
+		int nValues = 0;
+		for (int i = 0; i < n; i++) {
+			if (exclude != null && exclude[i])
+				continue;
+			float v = values[i];
+			if (Float.isNaN(v))
+				continue;
+			if (v < min)
+				min = v;
+			if (v > max)
+				max = v;
+			if (allIntegers && v != Math.rint(v))
+				allIntegers = false;
+			nValues++;
+		}
+
+		if (nValues == 0) {
+			Arrays.fill(indexLevels, 0, n, 0);
+			reset(1);
+			return;
+		}
+
+		// Level 0 is reserved for NaNs
+		if (allIntegers && max - min < MAX_INTEGER_RANGE) {
+			for (int i = 0; i < n; i++) {
+				if (exclude != null && exclude[i])
+					continue;
+				float v = values[i];
+				indexLevels[i] = Float.isNaN(v) ? 0 : (int)(v - min) + 1;
+			}
+			reset((int)(max - min) + 2);
+			return;
+		}
+
+		// Sort the values & remove duplicates, then use the position in the sorted array as the level
+		if (sortedValues.length < nValues)
+			sortedValues = new float[nValues];
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			if (exclude != null && exclude[i])
+				continue;
+			float v = values[i];
+			if (!Float.isNaN(v))
+				sortedValues[k++] = v + 0.0f; // Convert -0.0 to 0.0
+		}
+		Arrays.sort(sortedValues, 0, k);
+		int nUnique = 1;
+		for (int i = 1; i < k; i++) {
+			if (sortedValues[i] != sortedValues[nUnique-1])
+				sortedValues[nUnique++] = sortedValues[i];
+		}
+		for (int i = 0; i < n; i++) {
+			if (exclude != null && exclude[i])
+				continue;
+			float v = values[i];
+			indexLevels[i] = Float.isNaN(v) ? 0 : Arrays.binarySearch(sortedValues, 0, nUnique, v + 0.0f) + 1;
+		}
+		reset(nUnique + 1);
+	}
+
+	/**
+	 * Add an index at the level assigned by the last call to {@link #resetForValues(float[], boolean[])}.
+	 * @param index
+	 */
+	public void add(int index) {
+		add(index, indexLevels[index]);
+	}
+
+	/**
+	 * Add an index at the specified level.
+	 * @param index
+	 * @param level
+	 */
+	public void add(int index, int level) {
+		int node = createNode(index);
+		if (isLevelEmpty(level)) {
+			head[level] = node;
+			setOccupied(level);
+			if (level > top)
+				top = level;
+		} else
+			nodeNext[tail[level]] = node;
+		tail[level] = node;
+		size++;
+	}
+
+	/**
+	 * Remove the first index from the highest non-empty level.
+	 * No check is made whether the queue is empty; callers should use {@link #isEmpty()} first.
+	 * @return
+	 */
+	public int remove() {
+		int level = top;
+		int node = head[level];
+		int index = nodeIndex[node];
+		int next = nodeNext[node];
+		nodeNext[node] = freeNode;
+		freeNode = node;
+		size--;
+		if (next < 0) {
+			clearOccupied(level);
+			top = findTop();
+		} else
+			head[level] = next;
+		return index;
+	}
+
+	/**
+	 * Query if the queue is empty.
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get the number of indices currently in the queue.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empty the queue, and discard any large arrays so that they are not retained for reuse.
+	 */
+	public void release() {
+		if (indexLevels.length > MAX_RETAINED_LENGTH)
+			indexLevels = new int[0];
+		if (sortedValues.length > MAX_RETAINED_LENGTH)
+			sortedValues = new float[0];
+		if (nodeIndex.length > MAX_RETAINED_LENGTH) {
+			nodeIndex = new int[1024];
+			nodeNext = new int[1024];
+		}
+		if (head.length > MAX_RETAINED_LENGTH) {
+			head = new int[0];
+			tail = new int[0];
+			occupied = new long[0][];
+		}
+		// Ensure the bitmaps are recreated
+		nLevels = 0;
+		reset(1);
+	}
+
+	private int createNode(int index) {
+		int node = freeNode;
+		if (node >= 0)
+			freeNode = nodeNext[node];
+		else {
+			if (nNodes == nodeIndex.length) {
+				int newLength = Math.max(nNodes * 2, 1024);
+				nodeIndex = Arrays.copyOf(nodeIndex, newLength);
+				nodeNext = Arrays.copyOf(nodeNext, newLength);
+			}
+			node = nNodes++;
+		}
+		nodeIndex[node] = index;
+		nodeNext[node] = -1;
+		return node;
+	}
+
+	private boolean isLevelEmpty(int level) {
+		return (occupied[0][level >>> 6] & (1L << level)) == 0L;
+	}
+
+	private void setOccupied(int level) {
+		for (long[] bitmap : occupied) {
+			int word = level >>> 6;
+			long previous = bitmap[word];
+			bitmap[word] = previous | (1L << level);
+			if (previous != 0L)
+				return;
+			level = word;
+		}
+	}
+
+	private void clearOccupied(int level) {
+		for (long[] bitmap : occupied) {
+			int word = level >>> 6;
+			long current = bitmap[word] & ~(1L << level);
+			bitmap[word] = current;
+			if (current != 0L)
+				return;
+			level = word;
+		}
+	}
+
+	private int findTop() {
+		int d = occupied.length - 1;
+		long word = occupied[d][0];
+		if (word == 0L)
+			return -1;
+		int ind = 63 - Long.numberOfLeadingZeros(word);
+		while (--d >= 0) {
+			word = occupied[d][ind];
+			ind = (ind << 6) + 63 - Long.numberOfLeadingZeros(word);
+		}
+		return ind;
+	}
+
+}
@@ -48,7 +48,7 @@ public class MorphologicalReconstruction {
 	 */
 	
 	
-	private static int dilateAndCompare(SimpleModifiableImage ipMarker, SimpleImage ipMask, boolean reverse, IntDequeue queue) {
+	private static int dilateAndCompare(SimpleModifiableImage ipMarker, SimpleImage ipMask, boolean reverse, HierarchicalQueue queue) {
 		int inc, hStart, vStart, hEnd, vEnd;
 		if (reverse) {
 			inc = -1;
@@ -136,7 +136,7 @@ public class MorphologicalReconstruction {
 						}
 					}
 					if (addToQueue) {
-						queue.add(y*width + x);
+						queue.add(y*width + x, 0);
 					}
 				}
 				
@@ -151,20 +151,20 @@ public class MorphologicalReconstruction {
 		return changes;
 	}
 	
-	private static void processPoint(final SimpleModifiableImage ipMarker, final SimpleImage ipMask, final int x, final int y, final float val, final IntDequeue queue, int width) {
+	private static void processPoint(final SimpleModifiableImage ipMarker, final SimpleImage ipMask, final int x, final int y, final float val, final HierarchicalQueue queue, int width) {
 		float valTempMarker = ipMarker.getValue(x, y);
 		if (valTempMarker < val) {
 			float valTempMask = ipMask.getValue(x, y);
 			if (valTempMarker < valTempMask) {
 //				ipMarker.setf(x, y, Math.min(val, valTempMask));
 				ipMarker.setValue(x, y, valTempMask <= val ? valTempMask : val);
-				queue.add(y * width + x);
+				queue.add(y * width + x, 0);
 			}
 		}
 	}
 	
 	
-	private static boolean processQueue(final SimpleModifiableImage ipMarker, final SimpleImage ipMask, final IntDequeue queue) {
+	private static boolean processQueue(final SimpleModifiableImage ipMarker, final SimpleImage ipMask, final HierarchicalQueue queue) {
 		int x1 = 0;
 		int y1 = 0;
 		int x2 = ipMarker.getWidth();
@@ -224,68 +224,18 @@ public class MorphologicalReconstruction {
 		// Apply forward propagation
 		dilateAndCompare(imMarker, imMask, false, null);
 		// Apply backwards propagation, filling the queue
-		IntDequeue queue = new IntDequeue(1024*1024);
-		dilateAndCompare(imMarker, imMask, true, queue);
-		// Process pixels in the queue (FIFO)
-		return processQueue(imMarker, imMask, queue);
-	}
-
-	
-	static class IntDequeue {
-		
-		private int[] array;
-		private int head = 0; // Points to location of first element in queue
-		private int tail = 0; // Points to location of *next* insert
-		private static int MAX_EXPANSION = 1024*10;
-		
-		public IntDequeue(int capacity) {
-//			IJ.log("Using INT DEQUE!");
-			array = new int[capacity];
-			head = 0;
-			tail = 0;
-		}
-		
-		public boolean isEmpty() {
-			return tail == head;
+		// A single level is used, so that pixels are processed in FIFO order
+		HierarchicalQueue queue = HierarchicalQueue.getThreadQueue();
+		queue.reset(1);
+		try {
+			dilateAndCompare(imMarker, imMask, true, queue);
+			// Process pixels in the queue (FIFO)
+			return processQueue(imMarker, imMask, queue);
+		} finally {
+			queue.release();
 		}
-		
-		/**
-		 * Performs no check that the output will be valid (caller should use isEmpty first to check this)
-		 * @return
-		 */
-		public int remove() {
-			head++;
-			return array[head-1];
-		}
-		
-		public void add(int val) {
-			// Do a normal add if we can
-			if (tail < array.length) {
-				array[tail] = val;
-				tail++;
-				return;
-			}
-			// Shift everything back if that's an option
-			if (head != 0) {
-//				IJ.log("Shifting with head at " + head);
-				if (tail > head)
-					System.arraycopy(array, head, array, 0, tail-head);
-				tail -= head;
-				head = 0;
-				array[tail] = val;
-				tail++;
-				return;
-			}
-			// We need to expand the array
-			int[] array2 = new int[Math.max(array.length*2, MAX_EXPANSION)];
-			System.arraycopy(array, 0, array2, 0, array.length);
-			array = array2;
-			array[tail] = val;
-			tail++;
-//			IJ.log("Expanding IntDeque to length " + array.length);
-		}
-		
 	}
+
 	
 }
 
@@ -23,12 +23,11 @@
 
 package qupath.lib.analysis.algorithms;
 
-import java.util.PriorityQueue;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.analysis.images.SimpleImage;
+import qupath.lib.analysis.images.SimpleImages;
 import qupath.lib.analysis.images.SimpleModifiableImage;
 
 /**
@@ -73,20 +72,26 @@ public class Watershed {
 		WatershedQueueWrapper queue = new WatershedQueueWrapper(ip, ipLabels, minThreshold);
 		
 		// Process the queue
-		while (!queue.isEmpty()) {
-			PixelWithValue pwv = queue.poll();
-			float lastLabel;
-			if (conn8)
-				lastLabel = getNeighborLabels8(ipLabels, pwv.x, pwv.y, width, height);
-			else
-				lastLabel = getNeighborLabels4(ipLabels, pwv.x, pwv.y, width, height);
-			if (Float.isNaN(lastLabel))
-				continue;
-			ipLabels.setValue(pwv.x, pwv.y, lastLabel);
-			if (conn8)
-				addNeighboursToQueue8(queue, pwv.x, pwv.y, width, height);
-			else
-				addNeighboursToQueue4(queue, pwv.x, pwv.y, width, height);
+		try {
+			while (!queue.isEmpty()) {
+				int ind = queue.poll();
+				int x = ind % width;
+				int y = ind / width;
+				float lastLabel;
+				if (conn8)
+					lastLabel = getNeighborLabels8(ipLabels, x, y, width, height);
+				else
+					lastLabel = getNeighborLabels4(ipLabels, x, y, width, height);
+				if (Float.isNaN(lastLabel))
+					continue;
+				ipLabels.setValue(x, y, lastLabel);
+				if (conn8)
+					addNeighboursToQueue8(queue, x, y, width, height);
+				else
+					addNeighboursToQueue4(queue, x, y, width, height);
+			}
+		} finally {
+			queue.release();
 		}
 		
 		long endTime = System.currentTimeMillis();
@@ -179,41 +184,39 @@ public class Watershed {
 	
 	private final static class WatershedQueueWrapper {
 
-		private PriorityQueue<PixelWithValue> queue = new PriorityQueue<>();
+		private HierarchicalQueue queue = HierarchicalQueue.getThreadQueue();
 		private boolean[] queued = null;
-		private long counter = 0;//Long.MIN_VALUE;
 		private int width, height;
-		private SimpleImage ip;
 		
 		public WatershedQueueWrapper(SimpleImage ip, SimpleImage ipLabels, double minThreshold) {
-			this.ip = ip;
 			this.width = ip.getWidth();
 			this.height = ip.getHeight();
+			float[] values = SimpleImages.getPixels(ip, true);
 			// Keep a record of already-queued pixels
 			queued = new boolean[width * height];
-			// Loop through and populate the queue sensibly; background assumed to be zero
+			// Mark below-threshold pixels as queued (even if they aren't...) to indicate they shouldn't be added later,
+			// and mark already-labeled pixels as queued as well
 			for (int y = 0; y < height; y++) {
 				for (int x = 0; x < width; x++) {
-					float val = ip.getValue(x, y);
-					// Mark below-threshold pixels as queued (even if they aren't...) to indicate they shouldn't be added later
-					if (val <= minThreshold) {
+					float val = values[y * width + x];
+					if (val <= minThreshold || ipLabels.getValue(x, y) != 0)
 						queued[y * width + x] = true;
+				}
+			}
+			// Every distinct value gets its own level, with FIFO order within a level; 
+			// this is necessary to produce reasonable-looking watershed results where there are plateaus (i.e. pixels with the same value)
+			queue.resetForValues(values, queued);
+			// Add pixels immediately adjacent to a labeled pixel to the queue; background assumed to be zero
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (queued[y * width + x])
 						continue;
-					}
-					// Mark already-labeled pixels as queued as well,
-					// and add pixels immediately adjacent to a labeled pixel to the queue
-					if (ipLabels.getValue(x, y) != 0)
-						queued[y * width + x] = true;
-					else {
-						boolean front = (x > 0 && ipLabels.getValue(x-1, y) != 0) ||
-								(y > 0 && ipLabels.getValue(x, y-1) != 0) ||
-								(x < width-1 && ipLabels.getValue(x+1, y) != 0) ||
-								(y > height-1 && ipLabels.getValue(x, y+1) != 0);
-						if (front) {
-							queued[y * width + x] = true;
-							queue.add(new PixelWithValue(x, y, val, ++counter));
-						}
-					}
+					boolean front = (x > 0 && ipLabels.getValue(x-1, y) != 0) ||
+							(y > 0 && ipLabels.getValue(x, y-1) != 0) ||
+							(x < width-1 && ipLabels.getValue(x+1, y) != 0) ||
+							(y > height-1 && ipLabels.getValue(x, y+1) != 0);
+					if (front)
+						addWithoutCheck(x, y);
 				}			
 			}
 		}
@@ -222,70 +225,38 @@ public class Watershed {
 			// Don't add to the queue twice
 			if (!mayAddToQueue(x, y))
 				return;
-			addWithoutCheck(x, y, ip.getValue(x, y));
+			addWithoutCheck(x, y);
 		}
 		
-		protected final void addWithoutCheck(int x, int y, float val) {
-			// Add, while storing a count variable, effectively turning the PriorityQueue into a FIFO queue whenever values are equal
-			// This is necessary to produce reasonable-looking watershed results where there are plateaus (i.e. pixels with the same value)
-			queue.add(new PixelWithValue(x, y, val, ++counter));
+		protected final void addWithoutCheck(int x, int y) {
+			queue.add(y * width + x);
 			// Keep track of the fact this has been queued - won't need it again
 			queued[y * width + x] = true;
 		}
 		
-//		public final boolean mayAddToQueue(int x, int y) {
-//			return !queued[y * width + x];
-//		}
-
 		public final boolean mayAddToQueue(int x, int y) {
 			return x >= 0 && x < width && y >= 0 && y < height && !queued[y * width + x];
 		}
 
-		public final PixelWithValue poll() {
-			return queue.poll();
+		/**
+		 * Get the index of the next pixel, with the highest value
+		 * @return
+		 */
+		public final int poll() {
+			return queue.remove();
 		}
 		
 		public final boolean isEmpty() {
 			return queue.isEmpty();
 		}
 		
-	}
-
-
-	private final static class PixelWithValue implements Comparable<PixelWithValue> {
-		
-		public int x, y;
-		public float value;
-		private long count;
-		
-		public PixelWithValue(final int x, final int y, final float value, final long count) {
-			this.x = x;
-			this.y = y;
-			this.value = value;
-			this.count = count;
-//			System.out.println("My count: " + count);
-		}
-
-		@Override
-		public int compareTo(final PixelWithValue pwv) {
-			// Profiling indicates that the many comparisons are the slowest part of the algorithm...
-			if (value < pwv.value) {
-				return 1;
-			}
-			else if (value > pwv.value) {
-				return -1;
-			}
-			return count > pwv.count ? 1 : -1;
-			
-//			// Profiling indicates that the many comparisons are the slowest part of the algorithm...
-//			if (value > pwv.value)
-//				return 1;
-//			else if (value < pwv.value)
-//				return -1;
-//			return count > pwv.count ? 1 : -1;
+		/**
+		 * Release the queue, so that large arrays are not retained between uses
+		 */
+		public final void release() {
+			queue.release();
 		}
 		
 	}
 	
-	
 }
\ No newline at end of file
@@ -24,7 +24,6 @@
 package qupath.lib.plugins.objects;
 
 import java.awt.geom.Area;
-import java.awt.geom.Path2D;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -34,6 +33,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.locationtech.jts.geom.Geometry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,6 +55,7 @@ import qupath.lib.plugins.PathTask;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.PolygonROI;
 import qupath.lib.roi.interfaces.ROI;
@@ -195,24 +196,18 @@ public class TileClassificationsToAnnotationsPlugin<T> extends AbstractDetection
 				PathObject pathSingleAnnotation = null;
 				List<PathObject> tiles = new ArrayList<>();
 				if (pathClass != null && !PathClassTools.isIgnoredClass(pathClass)) {
-					Path2D path = null;
+					List<Geometry> geometries = new ArrayList<>();
 					for (PathObject pathObject : parentObject.getChildObjectsAsArray()) {
 						if ((pathObject instanceof PathTileObject) && (RoiTools.isShapeROI(pathObject.getROI())) && pathClass.equals(pathObject.getPathClass())) {
-							ROI pathShape = pathObject.getROI();
-							if (path == null)
-								path = new Path2D.Float(RoiTools.getShape(pathShape));
-							else
-								path.append(RoiTools.getShape(pathShape), false);
+							geometries.add(pathObject.getROI().getGeometry());
 							tiles.add(pathObject);
 						}
 					}
 					if (!tiles.isEmpty()) {
-						ROI pathROINew = null;
 						ROI parentROI = parentObject.getROI();
-						if (parentROI != null)
-							pathROINew = RoiTools.getShapeROI(new Area(path), parentROI.getImagePlane());
-						else
-							pathROINew = RoiTools.getShapeROI(new Area(path), ImagePlane.getDefaultPlane());
+						ImagePlane plane = parentROI == null ? ImagePlane.getDefaultPlane() : parentROI.getImagePlane();
+						// Tiles are not expected to overlap - but if they do, the union will be recomputed
+						ROI pathROINew = GeometryTools.geometryToROI(GeometryTools.union(geometries, true), plane);
 						pathSingleAnnotation = PathObjects.createAnnotationObject(pathROINew, pathClass);
 						if (!deleteTiles)
 							pathSingleAnnotation.addPathObjects(tiles);
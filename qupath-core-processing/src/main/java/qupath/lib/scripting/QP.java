@@ -63,6 +63,7 @@ import com.google.common.collect.ObjectArrays;
 import qupath.imagej.tools.IJTools;
 import qupath.lib.analysis.DelaunayTools;
 import qupath.lib.analysis.DistanceTools;
+import qupath.lib.analysis.algorithms.EstimateStainVectors;
 import qupath.lib.analysis.features.ObjectMeasurements;
 import qupath.lib.analysis.features.ObjectMeasurements.ShapeFeatures;
 import qupath.lib.analysis.images.ContourTracing;
@@ -86,6 +87,7 @@ import qupath.lib.images.servers.ImageServers;
 import qupath.lib.images.servers.ServerTools;
 import qupath.lib.images.writers.ImageWriterTools;
 import qupath.lib.images.writers.TileExporter;
+import qupath.lib.io.ColumnarMeasurementWriter;
 import qupath.lib.io.GsonTools;
 import qupath.lib.io.PathIO;
 import qupath.lib.io.PathIO.GeoJsonExportOptions;
@@ -1371,6 +1373,41 @@ public class QP {
 		return true;
 	}
 	
+	/**
+	 * Estimate color deconvolution stains for the current image data from the entire image, and set these as the current stains.
+	 * This avoids the need to select a representative region, and may be used for batch processing.
+	 * 
+	 * @return true if stains were estimated and set, false if there is no current image with color deconvolution stains
+	 * @throws IOException if the image could not be read
+	 * @see #estimateColorDeconvolutionStains(ImageData)
+	 */
+	public static boolean estimateColorDeconvolutionStains() throws IOException {
+		ImageData<BufferedImage> imageData = getCurrentImageData();
+		if (imageData == null)
+			return false;
+		return estimateColorDeconvolutionStains(imageData);
+	}
+	
+	/**
+	 * Estimate color deconvolution stains for the specified image data from the entire image, and set these as the current stains.
+	 * The background values of the existing stains are retained.
+	 * 
+	 * @param imageData
+	 * @return true if stains were estimated and set, false if the image does not have color deconvolution stains
+	 * @throws IOException if the image could not be read
+	 * @see EstimateStainVectors#estimateStains(ImageServer, ColorDeconvolutionStains, boolean)
+	 */
+	public static boolean estimateColorDeconvolutionStains(final ImageData<BufferedImage> imageData) throws IOException {
+		ColorDeconvolutionStains stains = imageData.getColorDeconvolutionStains();
+		if (stains == null || !imageData.getServer().isRGB()) {
+			logger.warn("Cannot estimate stains - please set the image type to brightfield for an RGB image first");
+			return false;
+		}
+		stains = EstimateStainVectors.estimateStains(imageData.getServer(), stains, true);
+		imageData.setColorDeconvolutionStains(stains);
+		return true;
+	}
+	
 	
 	/**
 	 * Run an detection object classifier for the specified image data
@@ -2152,6 +2189,41 @@ public class QP {
 	public static void exportObjectsToGeoJson(Collection<? extends PathObject> pathObjects, String path, GeoJsonExportOptions... options) throws IOException {
 		PathIO.exportObjectsAsGeoJSON(new File(path), pathObjects, options);
 	}
+	
+	/**
+	 * Export the measurements for objects of a specified type in all images of a project, using a compressed columnar format.
+	 * This is suitable for very large numbers of objects, since measurements are streamed one image at a time.
+	 * 
+	 * @param project the project
+	 * @param cls the type of object to export, e.g. {@code PathDetectionObject.class}
+	 * @param path path to the output file (usually ending with .zip)
+	 * @throws IOException
+	 * @see ColumnarMeasurementWriter
+	 */
+	public static void exportColumnarMeasurements(Project<?> project, Class<? extends PathObject> cls, String path) throws IOException {
+		try (var writer = new ColumnarMeasurementWriter(Paths.get(path))) {
+			writer.writeProject(project, cls);
+		}
+	}
+	
+	/**
+	 * Export the measurements for objects of a specified type in the current image, using a compressed columnar format.
+	 * 
+	 * @param cls the type of object to export, e.g. {@code PathDetectionObject.class}
+	 * @param path path to the output file (usually ending with .zip)
+	 * @throws IOException
+	 * @throws IllegalStateException if there is no current image
+	 * @see ColumnarMeasurementWriter
+	 */
+	public static void exportColumnarMeasurements(Class<? extends PathObject> cls, String path) throws IOException {
+		var imageData = getCurrentImageData();
+		if (imageData == null)
+			throw new IllegalStateException("Cannot export measurements - no current image available");
+		String name = ServerTools.getDisplayableImageName(imageData.getServer());
+		try (var writer = new ColumnarMeasurementWriter(Paths.get(path))) {
+			writer.writeObjects(name, imageData.getHierarchy().getObjects(null, cls));
+		}
+	}
 
 	/**
 	 * Import all {@link PathObject}s from the given file. <p>
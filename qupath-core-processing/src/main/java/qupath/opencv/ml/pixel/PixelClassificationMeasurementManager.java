@@ -30,17 +30,20 @@ import java.awt.image.DataBuffer;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,6 +62,7 @@ import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassTools;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.ROIs;
 import qupath.lib.roi.interfaces.ROI;
@@ -74,9 +78,17 @@ public class PixelClassificationMeasurementManager {
 	
 	private static Map<ImageServer<BufferedImage>, Map<ROI, MeasurementList>> measuredROIs = new WeakHashMap<>();
 	
+	/**
+	 * Counts for complete tiles, so that these don't need to be recalculated for every ROI that contains the tile.
+	 */
+	private static Map<ImageServer<BufferedImage>, Map<TileRequest, long[]>> tileHistograms = new WeakHashMap<>();
+	
 	private ImageServer<BufferedImage> classifierServer;
 	private List<String> measurementNames = null;
 	
+	private Map<ROI, MeasurementList> measurements;
+	private Map<TileRequest, long[]> fullTileCounts;
+	
 	private ROI rootROI = null; // ROI for the Root object, if required
 		
 	private ThreadLocal<BufferedImage> imgTileMask = new ThreadLocal<>();
@@ -94,8 +106,8 @@ public class PixelClassificationMeasurementManager {
 	public PixelClassificationMeasurementManager(ImageServer<BufferedImage> classifierServer) {
 		this.classifierServer = classifierServer;
 		synchronized (measuredROIs) {
-			if (!measuredROIs.containsKey(classifierServer))
-				measuredROIs.put(classifierServer, new HashMap<>());
+			measurements = measuredROIs.computeIfAbsent(classifierServer, s -> new ConcurrentHashMap<>());
+			fullTileCounts = tileHistograms.computeIfAbsent(classifierServer, s -> new ConcurrentHashMap<>());
 		}
 		
         // Calculate area of a pixel
@@ -159,16 +171,15 @@ public class PixelClassificationMeasurementManager {
 	 * @return
 	 */
 	public Number getMeasurementValue(ROI roi, String name, boolean cachedOnly) {
-		var map = measuredROIs.get(classifierServer);
-		if (map == null || roi == null)
+		if (roi == null)
 			return null;
 		
-		var ml = map.get(roi);
+		var ml = measurements.get(roi);
 		if (ml == null) {
 			ml = calculateMeasurements(roi, cachedOnly);
 			if (ml == null)
 				return null;
-			map.put(roi, ml);
+			measurements.put(roi, ml);
 		}
 		return ml.getMeasurementValue(name);
 	}
@@ -184,138 +195,198 @@ public class PixelClassificationMeasurementManager {
 		    
 	/**
 	 * Calculate measurements for a specified ROI if possible.
+	 * <p>
+	 * Tiles are processed in parallel. For tiles that are entirely inside an area ROI, a cached histogram 
+	 * for the whole tile is used, so that pixels only need to be counted for tiles that overlap the ROI boundary.
 	 * 
 	 * @param roi
 	 * @param cachedOnly abort the mission if required tiles are not cached
 	 * @return
 	 */
-	synchronized MeasurementList calculateMeasurements(final ROI roi, final boolean cachedOnly) {
-    	
-        Map<Integer, PathClass> classificationLabels = classifierServer.getMetadata().getClassificationLabels();
-        long[] counts = null;
-
-        ImageServer<BufferedImage> server = classifierServer;//imageData.getServer();
-        
-        // Check we have a suitable output type
-        ImageServerMetadata.ChannelType type = classifierServer.getMetadata().getChannelType();
-        if (type == ImageServerMetadata.ChannelType.FEATURE)
-  			return null;
-        
-        Shape shape = null;
-        if (!roi.isPoint())
-        	shape = RoiTools.getShape(roi);
-        
-        // Get the regions we need
-        Collection<TileRequest> requests;
-        // For the root, we want all tile requests
-        if (roi == rootROI) {
-	        requests = server.getTileRequestManager().getAllTileRequests();
-        } else if (!roi.isEmpty()) {
-	        var regionRequest = RegionRequest.createInstance(server.getPath(), requestedDownsample, roi);
-	        requests = server.getTileRequestManager().getTileRequests(regionRequest);
-        } else
-        	requests = Collections.emptyList();
-        
-        if (requests.isEmpty()) {
-        	logger.debug("Request empty for {}", roi);
-  			return null;
-        }
-        
-
-        // Try to get all cached tiles - if this fails, return quickly (can't calculate measurement)
-        Map<TileRequest, BufferedImage> localCache = new HashMap<>();
-        for (TileRequest request : requests) {
-        	BufferedImage tile = null;
-			try {
-				tile = cachedOnly ? classifierServer.getCachedTile(request) : classifierServer.readBufferedImage(request.getRegionRequest());
-			} catch (IOException e) {
-				logger.error("Error requesting tile " + request, e);
+	MeasurementList calculateMeasurements(final ROI roi, final boolean cachedOnly) {
+		
+		Map<Integer, PathClass> classificationLabels = classifierServer.getMetadata().getClassificationLabels();
+		
+		ImageServer<BufferedImage> server = classifierServer;//imageData.getServer();
+		
+		// Check we have a suitable output type
+		ImageServerMetadata.ChannelType type = classifierServer.getMetadata().getChannelType();
+		switch (type) {
+		case CLASSIFICATION:
+		case PROBABILITY:
+		case MULTICLASS_PROBABILITY:
+			break;
+		case FEATURE:
+			return null;
+		case DEFAULT:
+		default:
+			// TODO: Consider handling other OutputTypes?
+			return updateMeasurements(classificationLabels, null, pixelArea, pixelAreaUnits);
+		}
+		
+		// Get the regions we need
+		Collection<TileRequest> requests;
+		// For the root, we want all tile requests
+		if (roi == rootROI) {
+			requests = server.getTileRequestManager().getAllTileRequests();
+		} else if (!roi.isEmpty()) {
+			var regionRequest = RegionRequest.createInstance(server.getPath(), requestedDownsample, roi);
+			requests = server.getTileRequestManager().getTileRequests(regionRequest);
+		} else
+			requests = Collections.emptyList();
+		
+		if (requests.isEmpty()) {
+			logger.debug("Request empty for {}", roi);
+			return null;
+		}
+		
+		// Tile coverage can be determined from the geometry for areas
+		PreparedGeometry geometry = null;
+		if (roi != rootROI && roi.isArea())
+			geometry = PreparedGeometryFactory.prepare(roi.getGeometry());
+		Shape shape = roi.isPoint() ? null : RoiTools.getShape(roi);
+		
+		var tileGeometry = geometry;
+		var tileCounts = requests.parallelStream()
+				.map(r -> calculateTileCounts(r, roi, shape, tileGeometry, type, cachedOnly))
+				.collect(Collectors.toList());
+		
+		// Sum the counts, or return quickly if any tile was unavailable (can't calculate measurement)
+		long[] counts = new long[0];
+		for (var temp : tileCounts) {
+			if (temp == null)
+				return null;
+			if (temp.length > counts.length)
+				counts = Arrays.copyOf(counts, temp.length);
+			for (int i = 0; i < temp.length; i++)
+				counts[i] += temp[i];
+		}
+		return updateMeasurements(classificationLabels, counts, pixelArea, pixelAreaUnits);
+	}
+	
+	
+	/**
+	 * Calculate the counts for the part of a single tile that falls within a ROI.
+	 * 
+	 * @param request the tile
+	 * @param roi the ROI
+	 * @param shape shape for the ROI, used to create a mask (may be null for points)
+	 * @param geometry prepared geometry for an area ROI, or null if the ROI is not an area or is the root ROI
+	 * @param type the channel type for the classifier server
+	 * @param cachedOnly if true, return null if the tile is not cached
+	 * @return the counts, or null if the tile could not be read
+	 */
+	private long[] calculateTileCounts(TileRequest request, ROI roi, Shape shape, PreparedGeometry geometry, ChannelType type, boolean cachedOnly) {
+		
+		// Check if the whole tile is needed, or if we can skip it completely
+		boolean isFullTile = roi == rootROI;
+		if (geometry != null) {
+			var tileRect = GeometryTools.createRectangle(request.getImageX(), request.getImageY(), request.getImageWidth(), request.getImageHeight());
+			if (!geometry.intersects(tileRect))
+				return new long[0];
+			isFullTile = geometry.contains(tileRect);
+		}
+		if (isFullTile) {
+			var counts = fullTileCounts.get(request);
+			if (counts != null)
+				return counts;
+		}
+		
+		BufferedImage tile = null;
+		try {
+			tile = cachedOnly ? classifierServer.getCachedTile(request) : classifierServer.readBufferedImage(request.getRegionRequest());
+		} catch (IOException e) {
+			logger.error("Error requesting tile " + request, e);
+		}
+		if (tile == null)
+			return null;
+		
+		if (isFullTile) {
+			var counts = calculateCounts(tile, type, null);
+			fullTileCounts.put(request, counts);
+			return counts;
+		}
+		
+		// Create a binary mask corresponding to the current tile
+		BufferedImage imgMask = imgTileMask.get();
+		if (imgMask == null || imgMask.getWidth() < tile.getWidth() || imgMask.getHeight() < tile.getHeight() || imgMask.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+			imgMask = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+			imgTileMask.set(imgMask);
+		}
+		
+		// Get the tile, which is needed for sub-pixel accuracy
+		if (roi.isLine() || roi.isArea()) {
+			Graphics2D g2d = imgMask.createGraphics();
+			g2d.setColor(Color.BLACK);
+			g2d.fillRect(0, 0, tile.getWidth(), tile.getHeight());
+			g2d.setColor(Color.WHITE);
+			g2d.scale(1.0/request.getDownsample(), 1.0/request.getDownsample());
+			g2d.translate(-request.getTileX() * request.getDownsample(), -request.getTileY() * request.getDownsample());
+			if (roi.isLine()) {
+				g2d.setStroke(new BasicStroke((float)request.getDownsample()));
+				g2d.draw(shape);
+			} else if (roi.isArea())
+				g2d.fill(shape);
+			g2d.dispose();
+		} else if (roi.isPoint()) {
+			var raster = imgMask.getRaster();
+			raster.setSamples(0, 0, tile.getWidth(), tile.getHeight(), 0, new int[tile.getWidth() * tile.getHeight()]);
+			for (var p : roi.getAllPoints()) {
+				int x = (int)((p.getX() - request.getImageX()) / request.getDownsample());
+				int y = (int)((p.getY() - request.getImageY()) / request.getDownsample());
+				if (x >= 0 && y >= 0 && x < tile.getWidth() && y < tile.getHeight())
+					raster.setSample(x, y, 0, 255);
 			}
-        	if (tile == null)
-	  			return null;
-        	localCache.put(request, tile);
-        }
-        
-        // Calculate stained proportions
-        BasicStroke stroke = null;
-        byte[] mask = null;
-    	BufferedImage imgMask = imgTileMask.get();
-        for (Map.Entry<TileRequest, BufferedImage> entry : localCache.entrySet()) {
-        	TileRequest region = entry.getKey();
-        	BufferedImage tile = entry.getValue();
-        	// Create a binary mask corresponding to the current tile        	
-        	if (imgMask == null || imgMask.getWidth() < tile.getWidth() || imgMask.getHeight() < tile.getHeight() || imgMask.getType() != BufferedImage.TYPE_BYTE_GRAY) {
-        		imgMask = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
-        		imgTileMask.set(imgMask);
-        	}
-        	
-        	// Get the tile, which is needed for sub-pixel accuracy
-        	if (roi.isLine() || roi.isArea()) {
-	        	Graphics2D g2d = imgMask.createGraphics();
-	        	g2d.setColor(Color.BLACK);
-	        	g2d.fillRect(0, 0, tile.getWidth(), tile.getHeight());
-	        	g2d.setColor(Color.WHITE);
-	        	g2d.scale(1.0/region.getDownsample(), 1.0/region.getDownsample());
-	        	g2d.translate(-region.getTileX() * region.getDownsample(), -region.getTileY() * region.getDownsample());
-	        	if (roi.isLine()) {
-	        		float fDownsample = (float)region.getDownsample();
-	        		if (stroke == null || stroke.getLineWidth() != fDownsample)
-	        			stroke = new BasicStroke((float)fDownsample);
-	        		g2d.setStroke(stroke);
-	        		g2d.draw(shape);
-	        	} else if (roi.isArea())
-	        		g2d.fill(shape);
-	        	g2d.dispose();
-        	} else if (roi.isPoint()) {
-        		for (var p : roi.getAllPoints()) {
-        			int x = (int)((p.getX() - region.getImageX()) / region.getDownsample());
-        			int y = (int)((p.getY() - region.getImageY()) / region.getDownsample());
-        			if (x >= 0 && y >= 0 && x < imgMask.getWidth() && y < imgMask.getHeight())
-        				imgMask.getRaster().setSample(x, y, 0, 255);
-        		}
-        	}
-        	
-			int h = tile.getHeight();
-			int w = tile.getWidth();
-			if (mask == null || mask.length != h*w)
-				mask = new byte[w * h];
-        	
-			int nChannels = tile.getSampleModel().getNumBands();
-			
-			try {
-				switch (type) {
-					case CLASSIFICATION:
-						// Calculate histogram to get labelled image counts
-						counts = BufferedImageTools.computeUnsignedIntHistogram(tile.getRaster(), counts, imgMask.getRaster());
+		}
+		return calculateCounts(tile, type, imgMask.getRaster());
+	}
+	
+	
+	/**
+	 * Calculate the counts (histogram) for a tile.
+	 * 
+	 * @param tile the classified tile
+	 * @param type the channel type for the classifier server
+	 * @param rasterMask optional mask; if not null, pixels with 0 values in the mask will be skipped
+	 * @return the counts, where trailing zeros are removed to reduce the memory required to cache them
+	 */
+	private static long[] calculateCounts(BufferedImage tile, ChannelType type, WritableRaster rasterMask) {
+		int nChannels = tile.getSampleModel().getNumBands();
+		long[] counts = null;
+		try {
+			switch (type) {
+				case CLASSIFICATION:
+					// Calculate histogram to get labelled image counts
+					counts = BufferedImageTools.computeUnsignedIntHistogram(tile.getRaster(), null, rasterMask);
+					break;
+				case PROBABILITY:
+					// Take classification from the channel with the highest value
+					if (nChannels > 1) {
+						counts = BufferedImageTools.computeArgMaxHistogram(tile.getRaster(), null, rasterMask);
 						break;
-					case PROBABILITY:
-						// Take classification from the channel with the highest value
-						if (nChannels > 1) {
-							counts = BufferedImageTools.computeArgMaxHistogram(tile.getRaster(), counts, imgMask.getRaster());
-							break;
-						}
-						// For one channel, fall through & treat as multiclass
-					case MULTICLASS_PROBABILITY:
-						// For multiclass, count
-						if (counts == null)
-							counts = new long[nChannels];
-						double threshold = getProbabilityThreshold(tile.getRaster());
-						for (int c = 0; c < nChannels; c++)
-							counts[c] += BufferedImageTools.computeAboveThresholdCounts(tile.getRaster(), c, threshold, imgMask.getRaster());
-					case DEFAULT:
-					case FEATURE:
-					default:
-						// TODO: Consider handling other OutputTypes?
-						return updateMeasurements(classificationLabels, counts, pixelArea, pixelAreaUnits);
-				}
-			} catch (Exception e) {
-				logger.error("Error calculating classification areas", e);
-				if (nChannels > 1 && type == ChannelType.CLASSIFICATION)
-					logger.error("There are {} channels - are you sure this is really a classification image?", nChannels);
+					}
+					// For one channel, fall through & treat as multiclass
+				case MULTICLASS_PROBABILITY:
+					// For multiclass, count
+					counts = new long[nChannels];
+					double threshold = getProbabilityThreshold(tile.getRaster());
+					for (int c = 0; c < nChannels; c++)
+						counts[c] = BufferedImageTools.computeAboveThresholdCounts(tile.getRaster(), c, threshold, rasterMask);
+					break;
+				default:
+					return new long[0];
 			}
-        }
-    	return updateMeasurements(classificationLabels, counts, pixelArea, pixelAreaUnits);
-    }
+		} catch (Exception e) {
+			logger.error("Error calculating classification areas", e);
+			if (nChannels > 1 && type == ChannelType.CLASSIFICATION)
+				logger.error("There are {} channels - are you sure this is really a classification image?", nChannels);
+			return new long[0];
+		}
+		int n = counts.length;
+		while (n > 0 && counts[n-1] == 0L)
+			n--;
+		return n == counts.length ? counts : Arrays.copyOf(counts, n);
+	}
 	
 	/**
 	 * Get a suitable threshold assuming a raster contains probability values.
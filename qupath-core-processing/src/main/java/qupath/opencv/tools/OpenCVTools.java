@@ -26,8 +26,16 @@ package qupath.opencv.tools;
 import java.awt.image.BandedSampleModel;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -46,6 +54,11 @@ import java.util.function.Function;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.global.opencv_imgproc;
 import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.ShortPointer;
 import org.bytedeco.javacpp.indexer.ByteIndexer;
 import org.bytedeco.javacpp.indexer.DoubleIndexer;
 import org.bytedeco.javacpp.indexer.FloatIndexer;
@@ -160,8 +173,13 @@ public class OpenCVTools {
 				typeCV = opencv_core.CV_64FC(nChannels); // Assume 64-bit is as flexible as we can manage
 		}
 		
+		// Copy whole bands at once where possible, otherwise fall back to copying pixel by pixel
+		Mat mat = imageToMatBulk(raster, typeCV);
+		if (mat != null)
+			return mat;
+		
 		// Create a new Mat & put the pixels
-		Mat mat = new Mat(height, width, typeCV, Scalar.ZERO);
+		mat = new Mat(height, width, typeCV, Scalar.ZERO);
 		putPixels(raster, mat);
 		return mat;
 	}
@@ -531,6 +549,200 @@ public class OpenCVTools {
 		indexer.release();
 	}
 	
+	/**
+	 * Get the {@link DataBuffer} type that directly corresponds to an OpenCV depth, or
+	 * {@link DataBuffer#TYPE_UNDEFINED} if there is no direct correspondence.
+	 * @param depth
+	 * @return
+	 */
+	private static int getDataBufferTypeOrUndefined(int depth) {
+		switch (depth) {
+		case opencv_core.CV_8U:
+			return DataBuffer.TYPE_BYTE;
+		case opencv_core.CV_16U:
+			return DataBuffer.TYPE_USHORT;
+		case opencv_core.CV_16S:
+			return DataBuffer.TYPE_SHORT;
+		case opencv_core.CV_32S:
+			return DataBuffer.TYPE_INT;
+		case opencv_core.CV_32F:
+			return DataBuffer.TYPE_FLOAT;
+		case opencv_core.CV_64F:
+			return DataBuffer.TYPE_DOUBLE;
+		default:
+			return DataBuffer.TYPE_UNDEFINED;
+		}
+	}
+	
+	/**
+	 * Try to create a Mat containing the pixels of a raster using bulk copies of whole bands 
+	 * (or the whole buffer, if the layout is already interleaved), rather than copying pixel by pixel.
+	 * 
+	 * @param raster
+	 * @param typeCV
+	 * @return the Mat, or null if the raster layout is not supported
+	 */
+	private static Mat imageToMatBulk(WritableRaster raster, int typeCV) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		int nBands = raster.getNumBands();
+		var layout = ComponentLayout.create(raster, opencv_core.CV_MAT_DEPTH(typeCV));
+		if (layout == null)
+			return null;
+		
+		var db = raster.getDataBuffer();
+		if (layout.isInterleaved()) {
+			var mat = new Mat(height, width, typeCV);
+			if (!copyToMat(db, layout.bankIndices[0], layout.bandOffsets[0], width * height * nBands, mat))
+				return null;
+			return mat;
+		}
+		int depth = opencv_core.CV_MAT_DEPTH(typeCV);
+		var channels = new ArrayList<Mat>();
+		for (int b = 0; b < nBands; b++) {
+			var matBand = new Mat(height, width, opencv_core.CV_MAKETYPE(depth, 1));
+			if (!copyToMat(db, layout.bankIndices[b], layout.bandOffsets[b], width * height, matBand))
+				return null;
+			channels.add(matBand);
+		}
+		if (nBands == 1)
+			return channels.get(0);
+		return mergeChannels(channels, null);
+	}
+	
+	/**
+	 * Try to copy the pixels of a Mat into a raster using bulk copies of whole bands 
+	 * (or the whole buffer, if the layout is interleaved), rather than copying pixel by pixel.
+	 * 
+	 * @param mat
+	 * @param raster
+	 * @return true if the pixels were copied, false if the raster layout is not supported
+	 */
+	private static boolean putPixelsBulk(Mat mat, WritableRaster raster) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		int nBands = raster.getNumBands();
+		if (mat.cols() != width || mat.rows() != height || mat.channels() != nBands)
+			return false;
+		var layout = ComponentLayout.create(raster, mat.depth());
+		if (layout == null)
+			return false;
+		var db = raster.getDataBuffer();
+		if (layout.isInterleaved()) {
+			var matContinuous = ensureContinuous(mat, false);
+			return copyFromMat(matContinuous, db, layout.bankIndices[0], layout.bandOffsets[0], width * height * nBands);
+		}
+		if (nBands == 1) {
+			var matContinuous = ensureContinuous(mat, false);
+			return copyFromMat(matContinuous, db, layout.bankIndices[0], layout.bandOffsets[0], width * height);
+		}
+		var channels = splitChannels(mat);
+		for (int b = 0; b < nBands; b++) {
+			if (!copyFromMat(channels.get(b), db, layout.bankIndices[b], layout.bandOffsets[b], width * height))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Copy elements from a bank of a DataBuffer into the (continuous) memory of a Mat with a single memcpy.
+	 */
+	private static boolean copyToMat(DataBuffer db, int bank, int offset, int length, Mat mat) {
+		offset += db.getOffsets()[bank];
+		if (db instanceof DataBufferByte)
+			new BytePointer(mat.data()).put(((DataBufferByte)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferUShort)
+			new ShortPointer(mat.data()).put(((DataBufferUShort)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferShort)
+			new ShortPointer(mat.data()).put(((DataBufferShort)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferInt)
+			new IntPointer(mat.data()).put(((DataBufferInt)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferFloat)
+			new FloatPointer(mat.data()).put(((DataBufferFloat)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferDouble)
+			new DoublePointer(mat.data()).put(((DataBufferDouble)db).getData(bank), offset, length);
+		else
+			return false;
+		return true;
+	}
+	
+	/**
+	 * Copy elements from the (continuous) memory of a Mat into a bank of a DataBuffer with a single memcpy.
+	 */
+	private static boolean copyFromMat(Mat mat, DataBuffer db, int bank, int offset, int length) {
+		offset += db.getOffsets()[bank];
+		if (db instanceof DataBufferByte)
+			new BytePointer(mat.data()).get(((DataBufferByte)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferUShort)
+			new ShortPointer(mat.data()).get(((DataBufferUShort)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferShort)
+			new ShortPointer(mat.data()).get(((DataBufferShort)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferInt)
+			new IntPointer(mat.data()).get(((DataBufferInt)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferFloat)
+			new FloatPointer(mat.data()).get(((DataBufferFloat)db).getData(bank), offset, length);
+		else if (db instanceof DataBufferDouble)
+			new DoublePointer(mat.data()).get(((DataBufferDouble)db).getData(bank), offset, length);
+		else
+			return false;
+		return true;
+	}
+	
+	/**
+	 * Description of a raster where each band is stored contiguously (i.e. banded or planar), 
+	 * or all bands are stored together in the interleaved order used by OpenCV.
+	 */
+	private static class ComponentLayout {
+		
+		private final int[] bankIndices;
+		private final int[] bandOffsets;
+		private final boolean interleaved;
+		
+		private ComponentLayout(int[] bankIndices, int[] bandOffsets, boolean interleaved) {
+			this.bankIndices = bankIndices;
+			this.bandOffsets = bandOffsets;
+			this.interleaved = interleaved;
+		}
+		
+		boolean isInterleaved() {
+			return interleaved;
+		}
+		
+		/**
+		 * Get the layout of a raster, if it is suitable for bulk copying to/from a Mat with the specified depth.
+		 * @return the layout, or null if bulk copying is not possible
+		 */
+		static ComponentLayout create(Raster raster, int depth) {
+			if (!(raster.getSampleModel() instanceof ComponentSampleModel))
+				return null;
+			var sampleModel = (ComponentSampleModel)raster.getSampleModel();
+			// Require that the raster covers the full sample model, i.e. it isn't a child raster
+			if (raster.getMinX() != raster.getSampleModelTranslateX() || raster.getMinY() != raster.getSampleModelTranslateY() ||
+					sampleModel.getWidth() != raster.getWidth() || sampleModel.getHeight() != raster.getHeight())
+				return null;
+			var db = raster.getDataBuffer();
+			if (db.getDataType() != getDataBufferTypeOrUndefined(depth))
+				return null;
+			int width = raster.getWidth();
+			int nBands = raster.getNumBands();
+			int[] bankIndices = sampleModel.getBankIndices();
+			int[] bandOffsets = sampleModel.getBandOffsets();
+			int pixelStride = sampleModel.getPixelStride();
+			int scanlineStride = sampleModel.getScanlineStride();
+			if (pixelStride == 1 && scanlineStride == width)
+				return new ComponentLayout(bankIndices, bandOffsets, nBands == 1);
+			if (pixelStride == nBands && scanlineStride == width * nBands) {
+				for (int b = 0; b < nBands; b++) {
+					if (bankIndices[b] != bankIndices[0] || bandOffsets[b] != bandOffsets[0] + b)
+						return null;
+				}
+				return new ComponentLayout(bankIndices, bandOffsets, true);
+			}
+			return null;
+		}
+		
+	}
+
 	
 	/**
 	 * Convert a Mat to a BufferedImage.
@@ -635,6 +847,11 @@ public class OpenCVTools {
 			colorModel = ColorModelFactory.getDummyColorModel(bpp * channels);
 			img = new BufferedImage(colorModel, raster, false, null);
 		}
+		
+		// Copy whole bands at once where possible
+		if (putPixelsBulk(mat, raster))
+			return img;
+		
 		MatVector matvector = new MatVector();
 		opencv_core.split(mat, matvector);
 		// We don't know which of the 3 supported array types will be needed yet...
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.imagej.superpixels;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestSLICClustering {
+	
+	private static final int SPACING = 10;
+	
+	@Test
+	public void testLabelCoverage() {
+		int width = 83, height = 57;
+		var features = createTexture(width, height);
+		var slic = new SLICClustering();
+		var labels = slic.compute(features, width, height, SPACING, 10, false, 10);
+		
+		// Centers start on a grid, at half the spacing from the origin
+		assertEquals(((width - SPACING/2 + SPACING - 1) / SPACING) * ((height - SPACING/2 + SPACING - 1) / SPACING), slic.nClusters());
+		assertTrue(labels.length >= width * height);
+		for (int i = 0; i < width * height; i++) {
+			assertNotEquals(SLICClustering.NO_LABEL, labels[i]);
+			assertTrue(labels[i] >= 0 && labels[i] < slic.nClusters());
+		}
+	}
+	
+	@Test
+	public void testConvergence() {
+		int width = 80, height = 60;
+		var features = createHalves(width, height);
+		
+		// A huge tolerance means we always stop after the first iteration
+		var slic = new SLICClustering().tolerance(Double.POSITIVE_INFINITY);
+		slic.compute(features, width, height, SPACING, 10, false, 20);
+		assertEquals(1, slic.getIterations());
+		
+		// A negative tolerance can't be met, so all iterations should be used
+		slic.tolerance(-1);
+		slic.compute(features, width, height, SPACING, 10, false, 20);
+		assertEquals(20, slic.getIterations());
+		
+		// With the default tolerance, this simple image should converge early
+		slic.tolerance(SLICClustering.DEFAULT_TOLERANCE);
+		slic.compute(features, width, height, SPACING, 10, false, 20);
+		assertTrue(slic.getIterations() >= 1 && slic.getIterations() < 20);
+		
+		// Running more iterations than needed for convergence should give the same result
+		var labelsConverged = Arrays.copyOf(slic.compute(features, width, height, SPACING, 10, false, 20), width * height);
+		int nIterations = slic.getIterations();
+		var labelsMore = Arrays.copyOf(slic.compute(features, width, height, SPACING, 10, false, nIterations + 10), width * height);
+		assertEquals(nIterations, slic.getIterations());
+		assertArrayEquals(labelsConverged, labelsMore);
+	}
+	
+	@Test
+	public void testBufferReuse() {
+		// Reusing an instance for tiles of different sizes should give the same labels as a new instance
+		var slic = new SLICClustering();
+		int[][] sizes = {{96, 96}, {40, 30}, {120, 50}, {17, 23}};
+		for (var size : sizes) {
+			int width = size[0], height = size[1];
+			var features = createTexture(width, height);
+			var expected = Arrays.copyOf(new SLICClustering().compute(features, width, height, SPACING, 10, true, 10), width * height);
+			var actual = Arrays.copyOf(slic.compute(features, width, height, SPACING, 10, true, 10), width * height);
+			assertArrayEquals(expected, actual);
+		}
+	}
+	
+	@Test
+	public void testMergeSimilar() {
+		int width = 80, height = 40;
+		var features = createHalves(width, height);
+		var slic = new SLICClustering();
+		var labels = slic.compute(features, width, height, SPACING, 10, false, 10);
+		assertEquals(32, countLabels(labels, width, height));
+		
+		// A small threshold shouldn't merge across the boundary between halves
+		slic.mergeSimilar(1.0);
+		assertEquals(2, countLabels(labels, width, height));
+		short labelLeft = labels[0];
+		short labelRight = labels[width - 1];
+		assertNotEquals(labelLeft, labelRight);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				assertEquals(x < width/2 ? labelLeft : labelRight, labels[y*width + x]);
+		}
+		
+		// A large threshold should merge everything
+		slic.mergeSimilar(1000.0);
+		assertEquals(1, countLabels(labels, width, height));
+	}
+	
+	
+	private static int countLabels(short[] labels, int width, int height) {
+		Set<Short> set = new HashSet<>();
+		for (int i = 0; i < width * height; i++)
+			set.add(labels[i]);
+		return set.size();
+	}
+	
+	/**
+	 * Create a single feature image, with values of 0 on the left and 100 on the right.
+	 */
+	private static float[][] createHalves(int width, int height) {
+		var features = new float[1][width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = width/2; x < width; x++)
+				features[0][y*width + x] = 100f;
+		}
+		return features;
+	}
+	
+	/**
+	 * Create two feature images with a deterministic texture.
+	 */
+	private static float[][] createTexture(int width, int height) {
+		var features = new float[2][width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				features[0][y*width + x] = (float)(50 * Math.sin(x / 7.0) * Math.cos(y / 5.0));
+				features[1][y*width + x] = ((x * 31 + y * 17) % 13) * 2f;
+			}
+		}
+		return features;
+	}
+
+}
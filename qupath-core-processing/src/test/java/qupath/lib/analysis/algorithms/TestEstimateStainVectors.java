@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.algorithms;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorDeconvolutionStains.DefaultColorDeconvolutionStains;
+import qupath.lib.color.StainVector;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+
+@SuppressWarnings("javadoc")
+public class TestEstimateStainVectors {
+	
+	@Test
+	public void test_selectIndices() {
+		var rand = new Random(100L);
+		for (int t = 0; t < 1000; t++) {
+			int n = 1 + rand.nextInt(50);
+			double[] values = new double[n];
+			// Use few distinct values, so there are many ties
+			for (int i = 0; i < n; i++)
+				values[i] = rand.nextInt(8) - 4;
+			int[] ranks = EstimateStainVectors.rank(values);
+			for (int k = 0; k < n; k++)
+				assertEquals(ranks[k], EstimateStainVectors.selectIndices(values, k)[0]);
+			// Select several indices at once
+			int k1 = rand.nextInt(n);
+			int k2 = rand.nextInt(n);
+			assertArrayEquals(new int[] {ranks[k1], ranks[k2]}, EstimateStainVectors.selectIndices(values, k1, k2));
+		}
+	}
+	
+	@Test
+	public void test_estimateFromServer() throws IOException {
+		var stainsDefault = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DefaultColorDeconvolutionStains.H_E);
+		var stainH = StainVector.createStainVector("Hematoxylin", 0.6, 0.75, 0.28);
+		var stainE = StainVector.createStainVector("Eosin", 0.15, 0.96, 0.2);
+		var img = createImage(stainH, stainE, 1024, 768, 101L);
+		
+		var stainsImage = EstimateStainVectors.estimateStains(img, stainsDefault, 0.05, 1.0, 1.0, true);
+		var server = new WrappedBufferedImageServer("Stains", img);
+		var stainsServer = EstimateStainVectors.estimateStains(server, stainsDefault, 1.0, 0.05, 1.0, 1.0, true);
+		var stainsDownsampled = EstimateStainVectors.estimateStains(server, stainsDefault, true);
+		
+		for (var stains : new ColorDeconvolutionStains[] {stainsImage, stainsServer, stainsDownsampled}) {
+			assertTrue(StainVector.computeAngle(stainH, stains.getStain(1)) < 2.0);
+			assertTrue(StainVector.computeAngle(stainE, stains.getStain(2)) < 2.0);
+		}
+		assertTrue(StainVector.computeAngle(stainsImage.getStain(1), stainsServer.getStain(1)) < 1.0);
+		assertTrue(StainVector.computeAngle(stainsImage.getStain(2), stainsServer.getStain(2)) < 1.0);
+		
+		var gray = new BufferedImage(64, 64, BufferedImage.TYPE_BYTE_GRAY);
+		assertThrows(IllegalArgumentException.class, () -> EstimateStainVectors.estimateStains(new WrappedBufferedImageServer("Gray", gray), stainsDefault, true));
+	}
+	
+	/**
+	 * Create an RGB image containing a mixture of two stains, with some unstained background.
+	 */
+	private static BufferedImage createImage(StainVector stain1, StainVector stain2, int width, int height, long seed) {
+		var rand = new Random(seed);
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double c1 = rand.nextDouble() * 0.8;
+				double c2 = rand.nextDouble() * 0.8;
+				double p = rand.nextDouble();
+				if (p < 0.2)
+					c1 = 0;
+				else if (p < 0.4)
+					c2 = 0;
+				else if (p < 0.5)
+					c1 = c2 = 0;
+				int r = toValue(c1 * stain1.getRed() + c2 * stain2.getRed());
+				int g = toValue(c1 * stain1.getGreen() + c2 * stain2.getGreen());
+				int b = toValue(c1 * stain1.getBlue() + c2 * stain2.getBlue());
+				img.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		return img;
+	}
+	
+	private static int toValue(double od) {
+		return (int)Math.round(255 * Math.pow(10, -od));
+	}
+
+}
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis.algorithms;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestHierarchicalQueue {
+
+	/**
+	 * The queue should give exactly the same order as a priority queue sorted by descending value,
+	 * with ties broken by insertion order.
+	 */
+	@Test
+	public void testSameOrderAsPriorityQueue() {
+		var rand = new Random(100L);
+		var queue = new HierarchicalQueue();
+		for (int trial = 0; trial < 40; trial++) {
+			int n = 1 + rand.nextInt(5000);
+			float[] values = new float[n];
+			boolean[] exclude = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				switch (trial % 4) {
+				case 0:
+					// Integer values
+					values[i] = rand.nextInt(50);
+					break;
+				case 1:
+					// Continuous values
+					values[i] = (float)rand.nextGaussian();
+					break;
+				case 2:
+					// Many duplicates, similar to a distance transform
+					values[i] = -(float)Math.sqrt(rand.nextInt(500));
+					break;
+				default:
+					// Large integer range
+					values[i] = rand.nextInt(3) * 1e7f;
+				}
+				exclude[i] = rand.nextInt(5) == 0;
+			}
+			queue.resetForValues(values, exclude);
+
+			var expected = new PriorityQueue<long[]>((p1, p2) -> {
+				float v1 = values[(int)p1[0]];
+				float v2 = values[(int)p2[0]];
+				if (v1 != v2)
+					return -Float.compare(v1, v2);
+				return Long.compare(p1[1], p2[1]);
+			});
+			var candidates = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++) {
+				if (!exclude[i])
+					candidates.add(i);
+			}
+			Collections.shuffle(candidates, rand);
+
+			// Interleave adding & removing
+			long count = 0;
+			int pos = 0;
+			while (pos < candidates.size() || !expected.isEmpty()) {
+				int nAdd = rand.nextInt(4);
+				for (int k = 0; k < nAdd && pos < candidates.size(); k++) {
+					int ind = candidates.get(pos++);
+					queue.add(ind);
+					expected.add(new long[] {ind, count++});
+				}
+				if (!expected.isEmpty() && rand.nextBoolean())
+					assertEquals(expected.poll()[0], queue.remove());
+				assertEquals(expected.size(), queue.size());
+			}
+			assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	public void testLevels() {
+		var queue = new HierarchicalQueue();
+		int nLevels = 100_000;
+		queue.reset(nLevels);
+		queue.add(1, 10);
+		queue.add(2, 99_999);
+		queue.add(3, 10);
+		queue.add(4, 5000);
+		assertEquals(2, queue.remove());
+		assertEquals(4, queue.remove());
+		queue.add(5, 20_000);
+		assertEquals(5, queue.remove());
+		assertEquals(1, queue.remove());
+		assertEquals(3, queue.remove());
+		assertTrue(queue.isEmpty());
+
+		// With a single level, the queue should be FIFO
+		queue.reset(1);
+		for (int i = 0; i < 5000; i++)
+			queue.add(i, 0);
+		for (int i = 0; i < 5000; i++)
+			assertEquals(i, queue.remove());
+		assertTrue(queue.isEmpty());
+	}
+
+}
@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml.pixel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.ImageServerMetadata.ChannelType;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+@SuppressWarnings("javadoc")
+public class TestPixelClassificationMeasurementManager {
+	
+	private static final double EPSILON = 1e-6;
+	
+	private static final String OTHER = "Other";
+	private static final String TUMOR = "Tumor";
+	private static final String STROMA = "Stroma";
+	
+	@Test
+	public void test_wrappedServer() throws Exception {
+		try (var server = createClassifierServer()) {
+			checkMeasurements(server);
+		}
+	}
+	
+	@Test
+	public void test_tiledServer() throws Exception {
+		// Use small tiles, so that measurements combine cached full tiles and masked partial tiles
+		try (var server = createClassifierServer();
+				var serverTiled = ImageServers.pyramidalizeTiled(server, 16, 16, 1.0)) {
+			checkMeasurements(serverTiled);
+		}
+	}
+	
+	private static void checkMeasurements(ImageServer<BufferedImage> server) {
+		var manager = new PixelClassificationMeasurementManager(server);
+		var units = server.getPixelCalibration().getPixelWidthUnit() + "^2";
+		double pixelArea = 0.5 * 0.5;
+		
+		var names = manager.getMeasurementNames();
+		for (var name : new String[] {OTHER, TUMOR, STROMA}) {
+			assertTrue(names.contains(name + " %"));
+			assertTrue(names.contains(name + " area " + units));
+		}
+		
+		// Whole image (via the root object)
+		var root = new PathObjectHierarchy().getRootObject();
+		checkValue(manager.getMeasurementValue(root, OTHER + " area " + units, false), 256 * pixelArea);
+		checkValue(manager.getMeasurementValue(root, TUMOR + " area " + units, false), 1792 * pixelArea);
+		checkValue(manager.getMeasurementValue(root, STROMA + " area " + units, false), 2048 * pixelArea);
+		checkValue(manager.getMeasurementValue(root, OTHER + " %", false), 256.0 / 4096 * 100);
+		checkValue(manager.getMeasurementValue(root, TUMOR + " %", false), 1792.0 / 4096 * 100);
+		checkValue(manager.getMeasurementValue(root, STROMA + " %", false), 2048.0 / 4096 * 100);
+		checkValue(manager.getMeasurementValue(root, "Total annotated area " + units, false), 4096 * pixelArea);
+		
+		// Rectangle partly covering all three classes
+		ROI roi = ROIs.createRectangleROI(8, 8, 40, 40, ImagePlane.getDefaultPlane());
+		checkValue(manager.getMeasurementValue(roi, OTHER + " area " + units, false), 64 * pixelArea);
+		checkValue(manager.getMeasurementValue(roi, TUMOR + " area " + units, false), 896 * pixelArea);
+		checkValue(manager.getMeasurementValue(roi, STROMA + " area " + units, false), 640 * pixelArea);
+		checkValue(manager.getMeasurementValue(roi, OTHER + " %", false), 4.0);
+		checkValue(manager.getMeasurementValue(roi, TUMOR + " %", false), 56.0);
+		checkValue(manager.getMeasurementValue(roi, STROMA + " %", false), 40.0);
+		checkValue(manager.getMeasurementValue(roi, "Total annotated area " + units, false), 1600 * pixelArea);
+		
+		// Rectangle containing only one class
+		roi = ROIs.createRectangleROI(40, 10, 20, 30, ImagePlane.getDefaultPlane());
+		checkValue(manager.getMeasurementValue(roi, OTHER + " area " + units, false), 0);
+		checkValue(manager.getMeasurementValue(roi, TUMOR + " area " + units, false), 0);
+		checkValue(manager.getMeasurementValue(roi, STROMA + " area " + units, false), 600 * pixelArea);
+		checkValue(manager.getMeasurementValue(roi, STROMA + " %", false), 100.0);
+	}
+	
+	private static void checkValue(Number value, double expected) {
+		assertNotNull(value);
+		assertEquals(expected, value.doubleValue(), EPSILON);
+	}
+	
+	/**
+	 * Create a 64x64 classification image with 0.5 µm pixels.
+	 * The left half is 'Tumor' and the right half 'Stroma', except for the top left 16x16 pixels ('Other').
+	 */
+	private static ImageServer<BufferedImage> createClassifierServer() {
+		var img = new BufferedImage(64, 64, BufferedImage.TYPE_BYTE_GRAY);
+		var raster = img.getRaster();
+		for (int y = 0; y < 64; y++) {
+			for (int x = 0; x < 64; x++) {
+				int label;
+				if (x < 16 && y < 16)
+					label = 0;
+				else if (x < 32)
+					label = 1;
+				else
+					label = 2;
+				raster.setSample(x, y, 0, label);
+			}
+		}
+		Map<Integer, PathClass> labels = new LinkedHashMap<>();
+		labels.put(0, PathClassFactory.getPathClass(OTHER));
+		labels.put(1, PathClassFactory.getPathClass(TUMOR));
+		labels.put(2, PathClassFactory.getPathClass(STROMA));
+		
+		ImageServer<BufferedImage> server = new WrappedBufferedImageServer(UUID.randomUUID().toString(), img);
+		server.setMetadata(
+				new ImageServerMetadata.Builder(server.getOriginalMetadata())
+				.channelType(ChannelType.CLASSIFICATION)
+				.classificationLabels(labels)
+				.pixelSizeMicrons(0.5, 0.5)
+				.build()
+				);
+		return server;
+	}
+
+}
@@ -28,6 +28,9 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Map;
@@ -510,6 +513,46 @@ public class TestOpenCVTools {
 	}
 	
 	
+	/**
+	 * Test that bulk copies between Mats and BufferedImages give the same result as pixel-by-pixel access, 
+	 * for both banded and interleaved rasters.
+	 */
+	@Test
+	public void testBufferedImageRoundTrip() {
+		int width = 31;
+		int height = 17;
+		int nChannels = 3;
+		int[] depths = {opencv_core.CV_8U, opencv_core.CV_16U, opencv_core.CV_16S, opencv_core.CV_32S, opencv_core.CV_32F, opencv_core.CV_64F};
+		int[] dataTypes = {DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT, DataBuffer.TYPE_SHORT, DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE};
+		try (var scope = new PointerScope()) {
+			for (int i = 0; i < depths.length; i++) {
+				int depth = depths[i];
+				var mat = new Mat(height, width, opencv_core.CV_MAKETYPE(depth, nChannels));
+				opencv_core.randu(mat, new Mat(1, 1, opencv_core.CV_64F, Scalar.all(0)), new Mat(1, 1, opencv_core.CV_64F, Scalar.all(100)));
+				var expected = OpenCVTools.extractPixels(mat, (double[])null);
+				
+				// Mat -> BufferedImage (banded raster)
+				var img = OpenCVTools.matToBufferedImage(mat, null);
+				assertArrayEquals(expected, interleavedSamples(img.getRaster()), 0.0);
+				
+				// Interleaved raster with the same pixels
+				var sampleModel = new PixelInterleavedSampleModel(dataTypes[i], width, height, nChannels, width * nChannels, new int[] {0, 1, 2});
+				var raster = WritableRaster.createWritableRaster(sampleModel, null);
+				raster.setPixels(0, 0, width, height, expected);
+				var imgInterleaved = new BufferedImage(ColorModelFactory.getDummyColorModel(DataBuffer.getDataTypeSize(dataTypes[i]) * nChannels), raster, false, null);
+				
+				// BufferedImage -> Mat, from both layouts
+				assertArrayEquals(expected, OpenCVTools.extractPixels(OpenCVTools.imageToMat(img), (double[])null), 0.0);
+				assertArrayEquals(expected, OpenCVTools.extractPixels(OpenCVTools.imageToMat(imgInterleaved), (double[])null), 0.0);
+			}
+		}
+	}
+	
+	private static double[] interleavedSamples(WritableRaster raster) {
+		return raster.getPixels(0, 0, raster.getWidth(), raster.getHeight(), (double[])null);
+	}
+	
+	
 	
 	
 	@ParameterizedTest
@@ -33,9 +33,11 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.locationtech.jts.densify.Densifier;
 import org.locationtech.jts.geom.Coordinate;
@@ -190,6 +192,9 @@ public class DelaunayTools {
 		
 		private double erosion = 1.0;
 		
+		private boolean tiled = false;
+		private double tileSize = Double.NaN;
+		
 		private ImagePlane plane = ImagePlane.getDefaultPlane();
 		private Collection<PathObject> pathObjects = new ArrayList<>();
 		
@@ -274,6 +279,35 @@ public class DelaunayTools {
 			return this;
 		}
 		
+		/**
+		 * Specify whether the triangulation should be computed in parallel for overlapping tiles.
+		 * This can be much faster (and use less memory) for a large number of objects, but requires that only 
+		 * a single coordinate is extracted per object (e.g. when using centroids).
+		 * Otherwise, a single triangulation will be computed.
+		 * <p>
+		 * The tile size is chosen automatically, unless specified by {@link #tileSize(double)}.
+		 * 
+		 * @param doTiled if true, compute the triangulation using tiles
+		 * @return this builder
+		 */
+		public Builder tiled(boolean doTiled) {
+			this.tiled = doTiled;
+			return this;
+		}
+		
+		/**
+		 * Request that the triangulation is computed in parallel for tiles of a specified size.
+		 * @param tileSize width and height of each tile, in the same units as the coordinates (i.e. calibrated units, 
+		 *                 if a pixel calibration is set). If this is not finite and positive, a suitable size will be chosen automatically.
+		 * @return this builder
+		 * @see #tiled(boolean)
+		 */
+		public Builder tileSize(double tileSize) {
+			this.tiled = true;
+			this.tileSize = tileSize;
+			return this;
+		}
+		
 		/**
 		 * Build the {@link Subdivision} with the current parameters.
 		 * @return
@@ -282,7 +316,7 @@ public class DelaunayTools {
 			
 			logger.debug("Creating subdivision for {} objects", pathObjects.size());
 			
-			var coords = new HashMap<Coordinate, PathObject>();
+			var coords = new LinkedHashMap<Coordinate, PathObject>();
 			
 			double densify = densifyFactor;
 			if (!Double.isFinite(densify))
@@ -301,16 +335,41 @@ public class DelaunayTools {
 				break;
 			}
 			
+			boolean singleCoordinates = true;
 			for (var pathObject : pathObjects) {
-				for (var c : extractor.apply(pathObject)) {
+				var objectCoords = extractor.apply(pathObject);
+				if (objectCoords.size() > 1)
+					singleCoordinates = false;
+				for (var c : objectCoords) {
 					coords.put(c, pathObject);
 				}
 			}
 			
 			double tolerance = cal.getAveragedPixelSize().doubleValue() / 1000.0;
+			if (tiled) {
+				if (singleCoordinates)
+					return createTiledSubdivision(coords, tolerance);
+				logger.debug("Tiled triangulation requires a single coordinate per object - will compute a single triangulation instead");
+			}
 			return new Subdivision(createSubdivision(coords.keySet(), tolerance), pathObjects, coords, plane);
 		}
 		
+		private Subdivision createTiledSubdivision(Map<Coordinate, PathObject> coords, double tolerance) {
+			int n = coords.size();
+			var graphObjects = new PathObject[n];
+			double[] x = new double[n];
+			double[] y = new double[n];
+			int i = 0;
+			for (var entry : coords.entrySet()) {
+				x[i] = entry.getKey().x;
+				y[i] = entry.getKey().y;
+				graphObjects[i] = entry.getValue();
+				i++;
+			}
+			var graph = TiledDelaunay.build(x, y, tileSize, tolerance);
+			return new Subdivision(graph, graphObjects, pathObjects, coords, plane);
+		}
+		
 	}
 	
 	
@@ -406,7 +465,7 @@ public class DelaunayTools {
 	}
 	
 	
-	private static QuadEdgeSubdivision createSubdivision(Collection<Coordinate> coords, double tolerance) {
+	static QuadEdgeSubdivision createSubdivision(Collection<Coordinate> coords, double tolerance) {
 		var envelope = DelaunayTriangulationBuilder.envelope(coords);
 		var subdiv = new QuadEdgeSubdivision(envelope, tolerance);
 		var triangulator = new IncrementalDelaunayTriangulator(subdiv);
@@ -588,8 +647,14 @@ public class DelaunayTools {
 		
 		private ImagePlane plane;
 		
+		// Neighbor graph, used instead of a QuadEdgeSubdivision if the triangulation was tiled
+		private TiledDelaunay graph;
+		private PathObject[] graphObjects;
+		private Map<PathObject, Integer> graphIndices;
+		
 		private transient Map<PathObject, List<PathObject>> neighbors;
 		private transient Map<PathObject, Geometry> voronoiFaces;
+		private transient Map<PathObject, Geometry> voronoiFaceCache = new ConcurrentHashMap<>();
 		
 		
 		private Subdivision(QuadEdgeSubdivision subdivision, Collection<PathObject> pathObjects, Map<Coordinate, PathObject> coordinateMap, ImagePlane plane) {
@@ -601,6 +666,15 @@ public class DelaunayTools {
 			this.coordinateMap = Collections.unmodifiableMap(this.coordinateMap);
 		}
 		
+		private Subdivision(TiledDelaunay graph, PathObject[] graphObjects, Collection<PathObject> pathObjects, Map<Coordinate, PathObject> coordinateMap, ImagePlane plane) {
+			this(null, pathObjects, coordinateMap, plane);
+			this.graph = graph;
+			this.graphObjects = graphObjects;
+			this.graphIndices = new HashMap<>();
+			for (int i = 0; i < graphObjects.length; i++)
+				graphIndices.put(graphObjects[i], i);
+		}
+		
 		/**
 		 * Get the {@link ImagePlane} for this subdivision.
 		 * Because the subdivision is 2D, all object ROIs are expected to belong to the same plane.
@@ -625,6 +699,43 @@ public class DelaunayTools {
 			return voronoiFaces;
 		}
 		
+		/**
+		 * Get the Voronoi face for a single object.
+		 * <p>
+		 * If the subdivision was computed using tiles, faces are computed lazily as they are requested. 
+		 * This means that it is much more efficient to call this method for only the objects in a region of interest 
+		 * than to request all faces with {@link #getVoronoiFaces()}.
+		 * 
+		 * @param pathObject the object
+		 * @return the Voronoi face, or null if no face is available for the object
+		 */
+		public Geometry getVoronoiFace(PathObject pathObject) {
+			if (graph == null)
+				return getVoronoiFaces().get(pathObject);
+			var ind = graphIndices.get(pathObject);
+			if (ind == null)
+				return null;
+			return voronoiFaceCache.computeIfAbsent(pathObject, p -> createVoronoiFace(ind));
+		}
+		
+		/**
+		 * Create a Voronoi face from the neighbor graph.
+		 * Faces for objects on the convex hull are clipped to the bounds of the graph, expanded by its width or height.
+		 */
+		private Geometry createVoronoiFace(int ind) {
+			double pad = Math.max(1.0, Math.max(graph.getMaxX() - graph.getMinX(), graph.getMaxY() - graph.getMinY()));
+			double[] cell = graph.getVoronoiCell(ind, graph.getMinX() - pad, graph.getMinY() - pad, graph.getMaxX() + pad, graph.getMaxY() + pad);
+			var factory = GeometryTools.getDefaultFactory();
+			int n = cell.length / 2;
+			if (n < 3)
+				return factory.createPolygon();
+			var coords = new Coordinate[n + 1];
+			for (int i = 0; i < n; i++)
+				coords[i] = new Coordinate(cell[i*2], cell[i*2+1]);
+			coords[n] = coords[0];
+			return factory.createPolygon(coords);
+		}
+		
 		/**
 		 * Get a map of Voronoi faces, convered to {@link ROI} objects.
 		 * @param clip optional region used to clip the total extent of the ROIs
@@ -686,11 +797,17 @@ public class DelaunayTools {
 		 * @return list of neighbors
 		 */
 		public List<PathObject> getFilteredNeighbors(PathObject pathObject, BiPredicate<PathObject, PathObject> predicate) {
-			var allNeighbors = getAllNeighbors();
+			List<PathObject> list;
+			if (graph != null && neighbors == null) {
+				// Avoid computing neighbors for all objects
+				var ind = graphIndices.get(pathObject);
+				list = ind == null ? Collections.emptyList() : getGraphNeighbors(ind);
+			} else
+				list = getAllNeighbors().getOrDefault(pathObject, Collections.emptyList());
 			if (predicate != null) {
-				return filterByPredicate(pathObject, allNeighbors.getOrDefault(pathObject, Collections.emptyList()), predicate);
+				return filterByPredicate(pathObject, list, predicate);
 			} else
-				return allNeighbors.getOrDefault(pathObject, Collections.emptyList());
+				return list;
 		}
 		
 		/**
@@ -745,6 +862,13 @@ public class DelaunayTools {
 			
 			logger.debug("Calculating all neighbors for {} objects", getPathObjects().size());
 			
+			if (graph != null) {
+				Map<PathObject, List<PathObject>> map = new HashMap<>();
+				for (int i = 0; i < graphObjects.length; i++)
+					map.put(graphObjects[i], getGraphNeighbors(i));
+				return map;
+			}
+			
 			@SuppressWarnings("unchecked")
 			var edges = (List<QuadEdge>)subdivision.getVertexUniqueEdges(false);
 			Map<PathObject, List<PathObject>> map = new HashMap<>();
@@ -790,6 +914,14 @@ public class DelaunayTools {
 			return coordinateMap.get(vertex.getCoordinate());
 		}
 		
+		private List<PathObject> getGraphNeighbors(int ind) {
+			var inds = graph.getNeighbors(ind);
+			var list = new ArrayList<PathObject>(inds.length);
+			for (int i : inds)
+				list.add(graphObjects[i]);
+			return Collections.unmodifiableList(list);
+		}
+		
 		
 		/*
 		 * This was an attempt to improve the robustness whenever coordinates are based upon geometry boundaries. 
@@ -875,6 +1007,15 @@ public class DelaunayTools {
 		
 		private synchronized Map<PathObject, Geometry> calculateVoronoiFaces() {
 			
+			if (graph != null) {
+				logger.debug("Calculating Voronoi faces for {} objects from neighbor graph", graphObjects.length);
+				IntStream.range(0, graphObjects.length).parallel().forEach(i -> getVoronoiFace(graphObjects[i]));
+				var map = new HashMap<PathObject, Geometry>();
+				for (var pathObject : graphObjects)
+					map.put(pathObject, voronoiFaceCache.get(pathObject));
+				return map;
+			}
+			
 			if (pathObjects.size() < coordinateMap.size()) {
 				return calculateVoronoiFacesByLocations();
 			}
@@ -0,0 +1,615 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.triangulate.quadedge.QuadEdge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper class to compute the Delaunay neighbors of a large number of points in parallel.
+ * <p>
+ * Points are binned into square tiles. Each tile is triangulated independently, along with a 'halo' of surrounding tiles.
+ * The neighbors of a vertex inside the tile are accepted only if they cannot be affected by any point outside the halo, 
+ * i.e. if the circumcircle of every triangle around the vertex lies within the halo, and every edge on the convex hull 
+ * of the tile triangulation is also on the convex hull of all points.
+ * Tiles containing any vertex that fails this test are triangulated again with a larger halo.
+ * <p>
+ * Neighbors are stored in compressed sparse row format, sorted by distance.
+ */
+class TiledDelaunay {
+	
+	private static final Logger logger = LoggerFactory.getLogger(TiledDelaunay.class);
+	
+	/**
+	 * Default target number of points per tile, used whenever a tile size is not specified.
+	 */
+	static final int DEFAULT_POINTS_PER_TILE = 4096;
+	
+	private final double[] x;
+	private final double[] y;
+	private final double minX, minY, maxX, maxY;
+	
+	private final int[] offsets;
+	private final int[] neighbors;
+	
+	private TiledDelaunay(double[] x, double[] y, double[] bounds, int[] offsets, int[] neighbors) {
+		this.x = x;
+		this.y = y;
+		this.minX = bounds[0];
+		this.minY = bounds[1];
+		this.maxX = bounds[2];
+		this.maxY = bounds[3];
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+	}
+	
+	/**
+	 * Number of vertices.
+	 * @return
+	 */
+	int size() {
+		return x.length;
+	}
+	
+	/**
+	 * Get the indices of all neighbors of a vertex, sorted by distance.
+	 * @param ind index of the vertex
+	 * @return
+	 */
+	int[] getNeighbors(int ind) {
+		return Arrays.copyOfRange(neighbors, offsets[ind], offsets[ind+1]);
+	}
+	
+	/**
+	 * Get the number of neighbors of a vertex.
+	 * @param ind index of the vertex
+	 * @return
+	 */
+	int nNeighbors(int ind) {
+		return offsets[ind+1] - offsets[ind];
+	}
+	
+	double getMinX() {
+		return minX;
+	}
+
+	double getMinY() {
+		return minY;
+	}
+
+	double getMaxX() {
+		return maxX;
+	}
+
+	double getMaxY() {
+		return maxY;
+	}
+	
+	/**
+	 * Compute the Voronoi cell for a vertex, clipped to a rectangle.
+	 * Only the neighbors of the vertex are needed for this, so cells can be computed independently.
+	 * @param ind index of the vertex
+	 * @param x0 minimum x coordinate of the clip rectangle
+	 * @param y0 minimum y coordinate of the clip rectangle
+	 * @param x1 maximum x coordinate of the clip rectangle
+	 * @param y1 maximum y coordinate of the clip rectangle
+	 * @return the vertices of the (convex) cell as [x0, y0, x1, y1, ...], without repeating the first vertex. 
+	 *         This may be empty if the vertex is outside the clip rectangle.
+	 */
+	double[] getVoronoiCell(int ind, double x0, double y0, double x1, double y1) {
+		double[] polygon = new double[] {x0, y0, x1, y0, x1, y1, x0, y1};
+		double xi = x[ind];
+		double yi = y[ind];
+		for (int k = offsets[ind]; k < offsets[ind+1]; k++) {
+			int j = neighbors[k];
+			// Keep the half-plane closer to this vertex than to its neighbor
+			double nx = x[j] - xi;
+			double ny = y[j] - yi;
+			double c = nx * (x[j] + xi) / 2.0 + ny * (y[j] + yi) / 2.0;
+			polygon = clip(polygon, nx, ny, c);
+			if (polygon.length == 0)
+				break;
+		}
+		return polygon;
+	}
+	
+	
+	/**
+	 * Compute a tile size that should give approximately the requested number of points per tile, 
+	 * assuming the points are uniformly distributed.
+	 * @param x
+	 * @param y
+	 * @param pointsPerTile
+	 * @return
+	 */
+	static double defaultTileSize(double[] x, double[] y, int pointsPerTile) {
+		var bounds = getBounds(x, y);
+		double width = bounds[2] - bounds[0];
+		double height = bounds[3] - bounds[1];
+		if (x.length <= pointsPerTile)
+			return Math.max(width, height) + 1.0;
+		double area = Math.max(width * height, 1e-6);
+		return Math.sqrt(area * pointsPerTile / x.length);
+	}
+	
+	/**
+	 * Compute the Delaunay neighbors for the specified points.
+	 * Points should be distinct.
+	 * @param x x coordinates
+	 * @param y y coordinates
+	 * @param tileSize width and height of each tile; if not finite and positive, a default will be used
+	 * @param tolerance tolerance used by the triangulation
+	 * @return
+	 */
+	static TiledDelaunay build(double[] x, double[] y, double tileSize, double tolerance) {
+		long startTime = System.currentTimeMillis();
+		
+		int n = x.length;
+		var bounds = getBounds(x, y);
+		if (!(tileSize > 0 && Double.isFinite(tileSize)))
+			tileSize = defaultTileSize(x, y, DEFAULT_POINTS_PER_TILE);
+		
+		// Avoid creating an excessive number of tiles
+		double width = bounds[2] - bounds[0];
+		double height = bounds[3] - bounds[1];
+		while (tileCount(width, tileSize) * tileCount(height, tileSize) > 4L * n + 16)
+			tileSize *= 2;
+		
+		var tiling = new Tiling(x, y, bounds, tileSize, tolerance, convexHullEdges(x, y));
+		int[][] adjacency = new int[n][];
+		
+		if (n == 1) {
+			adjacency[0] = new int[0];
+		} else if (n == 2) {
+			adjacency[0] = new int[] {1};
+			adjacency[1] = new int[] {0};
+		} else if (n > 2) {
+			List<int[]> pending = new ArrayList<>();
+			for (int ty = 0; ty < tiling.ny; ty++) {
+				for (int tx = 0; tx < tiling.nx; tx++) {
+					if (tiling.countPoints(tx, ty) > 0)
+						pending.add(new int[] {tx, ty});
+				}
+			}
+			int nTiles = pending.size();
+			int halo = 1;
+			while (!pending.isEmpty()) {
+				int currentHalo = halo;
+				pending = pending.parallelStream()
+						.filter(t -> !tiling.resolve(t[0], t[1], currentHalo, adjacency))
+						.collect(Collectors.toList());
+				if (!pending.isEmpty())
+					logger.debug("{}/{} tiles need to be triangulated with a larger halo", pending.size(), nTiles);
+				halo *= 2;
+			}
+		}
+		
+		var result = createGraph(x, y, bounds, adjacency);
+		long endTime = System.currentTimeMillis();
+		logger.debug("Tiled triangulation of {} points ({} x {} tiles) computed in {} ms", n, tiling.nx, tiling.ny, endTime - startTime);
+		return result;
+	}
+	
+	
+	/**
+	 * Get the edges of the convex hull, including any collinear points along the hull.
+	 * Edges are encoded as {@code i * n + j}, where {@code i < j}.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	static Set<Long> convexHullEdges(double[] x, double[] y) {
+		int n = x.length;
+		var sorted = IntStream.range(0, n).boxed()
+				.sorted(Comparator.<Integer>comparingDouble(i -> x[i]).thenComparingDouble(i -> y[i]))
+				.mapToInt(Integer::intValue)
+				.toArray();
+		var edges = new HashSet<Long>();
+		// Monotone chain, computing the lower hull and then the upper hull
+		int[] hull = new int[n + 1];
+		for (int pass = 0; pass < 2; pass++) {
+			int count = 0;
+			for (int k = 0; k < n; k++) {
+				int p = sorted[pass == 0 ? k : n - 1 - k];
+				// Retain collinear points, since these will be connected by hull edges in the triangulation
+				while (count >= 2 && cross(x, y, hull[count-2], hull[count-1], p) < 0)
+					count--;
+				hull[count++] = p;
+			}
+			for (int k = 1; k < count; k++)
+				edges.add(edgeKey(hull[k-1], hull[k], n));
+		}
+		return edges;
+	}
+	
+	private static double cross(double[] x, double[] y, int a, int b, int c) {
+		return (x[b] - x[a]) * (y[c] - y[a]) - (y[b] - y[a]) * (x[c] - x[a]);
+	}
+	
+	private static long edgeKey(int i, int j, int n) {
+		return i < j ? (long)i * n + j : (long)j * n + i;
+	}
+	
+	private static long tileCount(double length, double tileSize) {
+		return Math.max(1L, (long)Math.ceil(length / tileSize));
+	}
+	
+	private static double[] getBounds(double[] x, double[] y) {
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < x.length; i++) {
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		if (x.length == 0)
+			return new double[4];
+		return new double[] {minX, minY, maxX, maxY};
+	}
+	
+	
+	/**
+	 * Create a symmetric graph in compressed sparse row format, with neighbors sorted by distance.
+	 * Neighbors are made symmetric because degenerate cases (e.g. co-circular points) can be triangulated differently
+	 * in different tiles.
+	 */
+	private static TiledDelaunay createGraph(double[] x, double[] y, double[] bounds, int[][] adjacency) {
+		int n = adjacency.length;
+		int[] reverseOffsets = new int[n+1];
+		for (var list : adjacency) {
+			for (int j : list)
+				reverseOffsets[j+1]++;
+		}
+		for (int i = 0; i < n; i++)
+			reverseOffsets[i+1] += reverseOffsets[i];
+		int[] reverse = new int[reverseOffsets[n]];
+		int[] cursor = Arrays.copyOf(reverseOffsets, n);
+		for (int i = 0; i < n; i++) {
+			for (int j : adjacency[i])
+				reverse[cursor[j]++] = i;
+		}
+		
+		int[][] merged = new int[n][];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			var list = adjacency[i];
+			int[] all = Arrays.copyOf(list, list.length + reverseOffsets[i+1] - reverseOffsets[i]);
+			System.arraycopy(reverse, reverseOffsets[i], all, list.length, all.length - list.length);
+			Arrays.sort(all);
+			int count = 0;
+			for (int k = 0; k < all.length; k++) {
+				if (k == 0 || all[k] != all[k-1])
+					all[count++] = all[k];
+			}
+			merged[i] = sortByDistance(x, y, i, Arrays.copyOf(all, count));
+		});
+		
+		int[] offsets = new int[n+1];
+		for (int i = 0; i < n; i++)
+			offsets[i+1] = offsets[i] + merged[i].length;
+		int[] neighbors = new int[offsets[n]];
+		for (int i = 0; i < n; i++)
+			System.arraycopy(merged[i], 0, neighbors, offsets[i], merged[i].length);
+		return new TiledDelaunay(x, y, bounds, offsets, neighbors);
+	}
+	
+	private static int[] sortByDistance(double[] x, double[] y, int ind, int[] list) {
+		double[] dist = new double[list.length];
+		for (int k = 0; k < list.length; k++) {
+			double dx = x[list[k]] - x[ind];
+			double dy = y[list[k]] - y[ind];
+			dist[k] = dx*dx + dy*dy;
+		}
+		// Insertion sort, since lists are short
+		for (int k = 1; k < list.length; k++) {
+			double d = dist[k];
+			int v = list[k];
+			int j = k - 1;
+			while (j >= 0 && dist[j] > d) {
+				dist[j+1] = dist[j];
+				list[j+1] = list[j];
+				j--;
+			}
+			dist[j+1] = d;
+			list[j+1] = v;
+		}
+		return list;
+	}
+	
+	/**
+	 * Clip a convex polygon to retain only the half-plane where {@code nx*x + ny*y <= c}.
+	 * @param polygon vertices as [x0, y0, x1, y1, ...]
+	 * @param nx
+	 * @param ny
+	 * @param c
+	 * @return the vertices of the clipped polygon
+	 */
+	static double[] clip(double[] polygon, double nx, double ny, double c) {
+		int n = polygon.length / 2;
+		double[] output = new double[polygon.length + 4];
+		int count = 0;
+		for (int k = 0; k < n; k++) {
+			double x1 = polygon[k*2];
+			double y1 = polygon[k*2+1];
+			double x2 = polygon[((k+1) % n)*2];
+			double y2 = polygon[((k+1) % n)*2+1];
+			double d1 = nx * x1 + ny * y1 - c;
+			double d2 = nx * x2 + ny * y2 - c;
+			if (d1 <= 0) {
+				output[count++] = x1;
+				output[count++] = y1;
+			}
+			if ((d1 < 0 && d2 > 0) || (d1 > 0 && d2 < 0)) {
+				double t = d1 / (d1 - d2);
+				output[count++] = x1 + t * (x2 - x1);
+				output[count++] = y1 + t * (y2 - y1);
+			}
+		}
+		return Arrays.copyOf(output, count);
+	}
+	
+	
+	/**
+	 * Points binned into tiles.
+	 */
+	private static class Tiling {
+		
+		private final double[] x, y;
+		private final double minX, minY, maxX, maxY;
+		private final double tileSize;
+		private final double tolerance;
+		private final int nx, ny;
+		
+		private final int[] binOffsets;
+		private final int[] binPoints;
+		
+		private final Set<Long> hullEdges;
+		
+		Tiling(double[] x, double[] y, double[] bounds, double tileSize, double tolerance, Set<Long> hullEdges) {
+			this.x = x;
+			this.y = y;
+			this.minX = bounds[0];
+			this.minY = bounds[1];
+			this.maxX = bounds[2];
+			this.maxY = bounds[3];
+			this.tileSize = tileSize;
+			this.tolerance = tolerance;
+			this.hullEdges = hullEdges;
+			this.nx = (int)tileCount(maxX - minX, tileSize);
+			this.ny = (int)tileCount(maxY - minY, tileSize);
+			
+			int n = x.length;
+			int[] bins = new int[n];
+			binOffsets = new int[nx*ny + 1];
+			for (int i = 0; i < n; i++) {
+				int tx = Math.min(nx - 1, (int)((x[i] - minX) / tileSize));
+				int ty = Math.min(ny - 1, (int)((y[i] - minY) / tileSize));
+				bins[i] = ty * nx + tx;
+				binOffsets[bins[i]+1]++;
+			}
+			for (int b = 0; b < nx*ny; b++)
+				binOffsets[b+1] += binOffsets[b];
+			binPoints = new int[n];
+			int[] cursor = Arrays.copyOf(binOffsets, nx*ny);
+			for (int i = 0; i < n; i++)
+				binPoints[cursor[bins[i]]++] = i;
+		}
+		
+		int countPoints(int tx, int ty) {
+			int b = ty * nx + tx;
+			return binOffsets[b+1] - binOffsets[b];
+		}
+		
+		/**
+		 * Triangulate the points within a tile and its halo, and store the neighbors of all points within the tile 
+		 * that are not affected by points outside the halo.
+		 * @param tx tile x index
+		 * @param ty tile y index
+		 * @param halo number of surrounding tiles to include
+		 * @param adjacency array used to store the neighbors for each point
+		 * @return true if the neighbors of all points within the tile could be determined, false if a larger halo is required
+		 */
+		boolean resolve(int tx, int ty, int halo, int[][] adjacency) {
+			int tx0 = Math.max(0, tx - halo);
+			int tx1 = Math.min(nx - 1, tx + halo);
+			int ty0 = Math.max(0, ty - halo);
+			int ty1 = Math.min(ny - 1, ty + halo);
+			
+			// Region containing all the triangulated points - this is unbounded if there are no points beyond it
+			double[] region = new double[] {
+					tx0 == 0 ? Double.NEGATIVE_INFINITY : minX + tx0 * tileSize,
+					ty0 == 0 ? Double.NEGATIVE_INFINITY : minY + ty0 * tileSize,
+					tx1 == nx - 1 ? Double.POSITIVE_INFINITY : minX + (tx1 + 1) * tileSize,
+					ty1 == ny - 1 ? Double.POSITIVE_INFINITY : minY + (ty1 + 1) * tileSize
+			};
+			
+			int count = 0;
+			for (int by = ty0; by <= ty1; by++) {
+				int b0 = by * nx;
+				count += binOffsets[b0 + tx1 + 1] - binOffsets[b0 + tx0];
+			}
+			int[] local = new int[count];
+			int coreStart = -1;
+			count = 0;
+			for (int by = ty0; by <= ty1; by++) {
+				for (int bx = tx0; bx <= tx1; bx++) {
+					int b = by * nx + bx;
+					if (bx == tx && by == ty)
+						coreStart = count;
+					for (int k = binOffsets[b]; k < binOffsets[b+1]; k++)
+						local[count++] = binPoints[k];
+				}
+			}
+			
+			var rings = triangulate(x, y, local, tolerance);
+			
+			// If all points were triangulated, then the result must be correct
+			boolean unbounded = Double.isInfinite(region[0]) && Double.isInfinite(region[1]) && Double.isInfinite(region[2]) && Double.isInfinite(region[3]);
+			boolean resolved = true;
+			int coreEnd = coreStart + countPoints(tx, ty);
+			for (int li = coreStart; li < coreEnd; li++) {
+				int i = local[li];
+				if (adjacency[i] != null)
+					continue;
+				var ring = rings[li];
+				if (ring == null) {
+					// Vertex missing from the triangulation (e.g. because it is within the tolerance of another vertex)
+					adjacency[i] = new int[0];
+				} else if (unbounded || isComplete(li, ring, local, region)) {
+					int nNeighbors = 0;
+					int[] list = new int[ring.length];
+					for (int r : ring) {
+						if (r >= 0)
+							list[nNeighbors++] = local[r];
+					}
+					adjacency[i] = Arrays.copyOf(list, nNeighbors);
+				} else
+					resolved = false;
+			}
+			return resolved;
+		}
+		
+		/**
+		 * Check whether the neighbors of a vertex are fully determined by the points within a region.
+		 * @param li local index of the vertex
+		 * @param ring local indices of neighbors, ordered counter-clockwise, with -1 indicating a vertex outside the triangulation
+		 * @param local global indices for each local index
+		 * @param region bounds of the region containing all points in the triangulation
+		 * @return
+		 */
+		private boolean isComplete(int li, int[] ring, int[] local, double[] region) {
+			double ax = x[local[li]];
+			double ay = y[local[li]];
+			int m = ring.length;
+			boolean hasNeighbor = false;
+			for (int k = 0; k < m; k++) {
+				int r1 = ring[k];
+				int r2 = ring[(k + 1) % m];
+				if (r1 >= 0 && r2 >= 0) {
+					if (r1 == r2 || !circleWithinRegion(ax, ay, x[local[r1]], y[local[r1]], x[local[r2]], y[local[r2]], region))
+						return false;
+				} else if (r1 >= 0 || r2 >= 0) {
+					// Edge on the convex hull of the triangulation, which is only correct if there are no points beyond it
+					if (!hullEdges.contains(edgeKey(local[li], local[Math.max(r1, r2)], x.length)))
+						return false;
+				}
+				if (r1 >= 0)
+					hasNeighbor = true;
+			}
+			// An isolated point could be connected to anything outside the region
+			return hasNeighbor;
+		}
+		
+		/**
+		 * Check whether the circumcircle of a triangle lies within the region (considering only the bounds of all points).
+		 */
+		private boolean circleWithinRegion(double ax, double ay, double bx, double by, double cx, double cy, double[] region) {
+			bx -= ax;
+			by -= ay;
+			cx -= ax;
+			cy -= ay;
+			double d = 2 * (bx * cy - by * cx);
+			if (d == 0)
+				return false;
+			double b2 = bx*bx + by*by;
+			double c2 = cx*cx + cy*cy;
+			double ux = (cy * b2 - by * c2) / d;
+			double uy = (bx * c2 - cx * b2) / d;
+			// Pad the radius slightly to be conservative
+			double r = Math.sqrt(ux*ux + uy*uy) * (1 + 1e-9) + tolerance;
+			ux += ax;
+			uy += ay;
+			if (!Double.isFinite(r))
+				return false;
+			return Math.max(ux - r, minX) > region[0] && Math.min(ux + r, maxX) < region[2] &&
+					Math.max(uy - r, minY) > region[1] && Math.min(uy + r, maxY) < region[3];
+		}
+		
+	}
+	
+	
+	/**
+	 * Compute a Delaunay triangulation and return the neighbors of each vertex.
+	 * @param x x coordinates of all points
+	 * @param y y coordinates of all points
+	 * @param local indices of the points to triangulate
+	 * @param tolerance triangulation tolerance
+	 * @return an array containing the local indices of the neighbors of each point, ordered counter-clockwise. 
+	 *         Any neighbor outside the convex hull is represented by -1. Entries are null for any point missing from the triangulation.
+	 */
+	private static int[][] triangulate(double[] x, double[] y, int[] local, double tolerance) {
+		int n = local.length;
+		int[][] rings = new int[n][];
+		if (n == 1) {
+			rings[0] = new int[0];
+			return rings;
+		} else if (n == 2) {
+			rings[0] = new int[] {1, -1};
+			rings[1] = new int[] {0, -1};
+			return rings;
+		}
+		
+		var coords = new ArrayList<Coordinate>(n);
+		var indices = new HashMap<Coordinate, Integer>();
+		for (int li = 0; li < n; li++) {
+			var c = new Coordinate(x[local[li]], y[local[li]]);
+			coords.add(c);
+			indices.put(c, li);
+		}
+		var subdiv = DelaunayTools.createSubdivision(coords, tolerance);
+		@SuppressWarnings("unchecked")
+		var edges = (List<QuadEdge>)subdiv.getVertexUniqueEdges(false);
+		var ring = new int[16];
+		for (var edge : edges) {
+			var ind = indices.get(edge.orig().getCoordinate());
+			if (ind == null)
+				continue;
+			int count = 0;
+			var next = edge;
+			do {
+				var dest = next.dest();
+				Integer destInd = subdiv.isFrameVertex(dest) ? null : indices.get(dest.getCoordinate());
+				if (count == ring.length)
+					ring = Arrays.copyOf(ring, count * 2);
+				ring[count++] = destInd == null ? -1 : destInd;
+			} while ((next = next.oNext()) != edge);
+			rings[ind] = Arrays.copyOf(ring, count);
+		}
+		return rings;
+	}
+
+}
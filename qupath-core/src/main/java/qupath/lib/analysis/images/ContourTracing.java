@@ -25,33 +25,36 @@ package qupath.lib.analysis.images;
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import javax.imageio.ImageIO;
 
+import org.locationtech.jts.algorithm.RayCrossingCounter;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Location;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.util.AffineTransformation;
 import org.locationtech.jts.geom.util.PolygonExtracter;
@@ -884,9 +887,61 @@ public class ContourTracing {
 	 * @param clipArea optional clip region, intersected with the created geometries (may be null)
 	 * @param thresholds min/max thresholds (inclusive) to apply to each channel to generate objects
 	 * @return
+	 * @see #traceGeometriesStreaming(ImageServer, RegionRequest, Geometry, BiConsumer, ChannelThreshold...)
 	 */
 	public static Map<Integer, Geometry> traceGeometries(ImageServer<BufferedImage> server, RegionRequest regionRequest, Geometry clipArea, ChannelThreshold... thresholds) {
 		
+		Map<Integer, List<Geometry>> geometryMap = new LinkedHashMap<>();
+		try {
+			traceGeometriesStreaming(server, regionRequest, clipArea,
+					(label, geometry) -> geometryMap.computeIfAbsent(label, l -> new ArrayList<>()).add(geometry),
+					thresholds);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		Map<Integer, Geometry> output = new LinkedHashMap<>();
+		for (var entry : geometryMap.entrySet()) {
+			var list = entry.getValue();
+			Geometry geometry;
+			if (list.size() == 1)
+				geometry = list.get(0);
+			else {
+				// Polygons from the streaming tracer are already disjoint, so don't need to be unioned
+				var allPolygons = new ArrayList<Polygon>();
+				for (var temp : list)
+					PolygonExtracter.getPolygons(temp, allPolygons);
+				geometry = GeometryTools.getDefaultFactory().buildGeometry(allPolygons);
+				geometry.normalize();
+			}
+			output.put(entry.getKey(), geometry);
+		}
+		return output;
+	}
+	
+	
+	/**
+	 * Trace one or more geometries in an image, passing each polygon to a consumer as soon as it is complete.
+	 * <p>
+	 * Tiles are read one row at a time (with the tiles within a row read in parallel), and the contours are traced across 
+	 * the full width of the region. Contours that cross tile boundaries are therefore joined directly as they are traced, 
+	 * without any need to compute a union of the polygons from different tiles.
+	 * Each polygon (including its holes) is passed to the consumer once the last row it touches has been traced, 
+	 * which means that the geometries for a whole slide image never need to be held in memory at the same time.
+	 * <p>
+	 * The consumer is always called from the calling thread, with the label (i.e. channel or classification) 
+	 * for the threshold and a polygonal geometry. Different polygons may share boundary vertices, but their interiors never overlap.
+	 * 
+	 * @param server
+	 * @param regionRequest optional region defining the area within which geometries should be traced
+	 * @param clipArea optional clip region, intersected with the created geometries (may be null)
+	 * @param consumer consumer for each completed polygon, along with its label
+	 * @param thresholds min/max thresholds (inclusive) to apply to each channel to generate objects
+	 * @throws IOException if there is an error reading the image tiles
+	 */
+	public static void traceGeometriesStreaming(ImageServer<BufferedImage> server, RegionRequest regionRequest, Geometry clipArea, 
+			BiConsumer<Integer, Geometry> consumer, ChannelThreshold... thresholds) throws IOException {
+		
 		RegionRequest region = regionRequest;
 		if (region == null) {
 			if (clipArea == null) {
@@ -904,7 +959,7 @@ public class ContourTracing {
 		Collection<TileRequest> tiles = server.getTileRequestManager().getTileRequests(region);
 
 		if (thresholds.length == 0 || tiles.isEmpty())
-			return Collections.emptyMap();
+			return;
 
 		// If the region downsample doesn't match the tile requests, the scaling may be off
 		// One way to resolve that (without requiring the region to be read in one go) is to generate new tile requests for a pyramidalized server at the correct resolution
@@ -914,229 +969,212 @@ public class ContourTracing {
 			tiles = server.getTileRequestManager().getTileRequests(region);
 		}
 		
-		return traceGeometriesImpl(server, tiles, clipArea, thresholds);
-		
-		// TODO: Consider restricting parallelization
-//		int nThreads = Math.min(Math.max(1, Math.max(thresholds.length, tiles.size())), Runtime.getRuntime().availableProcessors());
-//		var pool = new ForkJoinPool(nThreads);
-//		var task = pool.submit(() -> traceGeometriesImpl(server, tiles, clipArea, thresholds));
-//		pool.shutdown();
-//		try {
-//			return task.get();
-//		} catch (InterruptedException e) {
-//			// TODO Auto-generated catch block
-//			e.printStackTrace();
-//		} catch (ExecutionException e) {
-//			// TODO Auto-generated catch block
-//			e.printStackTrace();
-//		}
+		new StreamingTracer(server, tiles, clipArea, consumer, thresholds).trace();
 	}
 	
 	
-	@SuppressWarnings("unchecked")
-	private static Map<Integer, Geometry> traceGeometriesImpl(ImageServer<BufferedImage> server, Collection<TileRequest> tiles, Geometry clipArea, ChannelThreshold... thresholds) {
-		
-		if (thresholds.length == 0)
-			return Collections.emptyMap();
-		
-		Map<Integer, List<GeometryWrapper>> geometryMap = tiles.parallelStream()
-				.map(t -> traceGeometries(server, t, clipArea, thresholds))
-				.flatMap(p -> p.stream())
-				.collect(Collectors.groupingBy(g -> g.label));
+	/**
+	 * Helper class to trace geometries across a tiled region, one row of tiles at a time.
+	 * All coordinates used during tracing are in pixel units at the resolution of the tiles.
+	 */
+	private static class StreamingTracer {
 		
-		Map<Integer, Geometry> output = new LinkedHashMap<>();
-	
-		// Determine 'inter-tile boundaries' - union operations can be very slow, so we want to restrict them 
-		// only to geometries that really require them.
-		var xBoundsSet = new TreeSet<Integer>();
-		var yBoundsSet = new TreeSet<Integer>();
-		for (var t : tiles) {
-			xBoundsSet.add(t.getImageX());
-			xBoundsSet.add(t.getImageX() + t.getImageWidth());
-			yBoundsSet.add(t.getImageY());
-			yBoundsSet.add(t.getImageY() + t.getImageHeight());
-		}
-		int[] xBounds = xBoundsSet.stream().mapToInt(x -> x).toArray(); 
-		int[] yBounds = yBoundsSet.stream().mapToInt(y -> y).toArray(); 
+		private final ImageServer<BufferedImage> server;
+		private final ChannelThreshold[] thresholds;
+		private final Geometry clipArea;
+		private final BiConsumer<Integer, Geometry> consumer;
+		private final double downsample;
+
+		// Tiles grouped by their y coordinate, sorted by x
+		private final TreeMap<Integer, List<TileRequest>> tileRows = new TreeMap<>();
+		private final int xOrigin, yOrigin, width;
 		
+		private final ScanlineTracer[] tracers;
+		private final StreamingGeometryManager[] managers;
 		
-		// Merge objects with the same classification
-		for (var entry : geometryMap.entrySet()) {
-			var list = entry.getValue();
+		StreamingTracer(ImageServer<BufferedImage> server, Collection<TileRequest> tiles, Geometry clipArea,
+				BiConsumer<Integer, Geometry> consumer, ChannelThreshold... thresholds) {
+			this.server = server;
+			this.thresholds = thresholds;
+			this.clipArea = clipArea;
+			this.consumer = consumer;
+			this.downsample = tiles.iterator().next().getDownsample();
 			
-			// If we just have one tile, that's what we need
-			Geometry geometry = null;
+			int xMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE;
+			for (var tile : tiles) {
+				tileRows.computeIfAbsent(tile.getTileY(), y -> new ArrayList<>()).add(tile);
+				xMin = Math.min(xMin, tile.getTileX());
+				xMax = Math.max(xMax, tile.getTileX() + tile.getTileWidth());
+			}
+			for (var row : tileRows.values())
+				row.sort((t1, t2) -> Integer.compare(t1.getTileX(), t2.getTileX()));
+			xOrigin = xMin;
+			yOrigin = tileRows.firstKey();
+			width = xMax - xMin;
 			
-			if (list.isEmpty())
-				continue;
-			if (list.size() == 1) {
-				geometry = list.get(0).geometry;
-			} else {
-				logger.debug("Merging geometries from {} tiles for {}", list.size(), entry.getKey());
-				
-				var factory = list.get(0).geometry.getFactory();
-				
-				// Merge everything quickly into a single geometry
-				var allPolygons = new ArrayList<Polygon>();
-				for (var temp : list)
-					PolygonExtracter.getPolygons(temp.geometry, allPolygons);
-				
-				// TODO: Explore where buffering is faster than union; if we can get rules for this it can be used instead
-				boolean onlyBuffer = false;
+			var factory = GeometryTools.getDefaultFactory();
+			tracers = new ScanlineTracer[thresholds.length];
+			managers = new StreamingGeometryManager[thresholds.length];
+			for (int i = 0; i < thresholds.length; i++) {
+				managers[i] = new StreamingGeometryManager(factory);
+				tracers[i] = new ScanlineTracer(width, xOrigin, yOrigin, managers[i]);
+			}
+		}
+		
+		void trace() throws IOException {
+			int y = yOrigin;
+			for (var entry : tileRows.entrySet()) {
+				var row = entry.getValue();
+				// Trace empty rows for any gap (not expected for a regular tile grid)
+				while (y < entry.getKey()) {
+					for (var tracer : tracers)
+						tracer.processRow(null);
+					y++;
+				}
+				var masks = readMasks(row);
+				int rowHeight = row.stream().mapToInt(t -> t.getTileHeight()).max().orElse(0);
 				
-				if (onlyBuffer) {
-					var singleGeometry = factory.buildGeometry(allPolygons);
-					geometry = singleGeometry.buffer(0);
-				} else {
-					
-					// Unioning is expensive, so we just want to do it where really needed
-					var tree = new Quadtree();
-					for (var p : allPolygons) {
-						tree.insert(p.getEnvelopeInternal(), p);
-					}
-					var env = new Envelope();
-					
-					var toMerge = new HashSet<Polygon>();
-					for (int yi = 1; yi < yBounds.length-1; yi++) {
-						env.init(xBounds[0]-1, xBounds[xBounds.length-1]+1, yBounds[yi]-1, yBounds[yi]+1);
-						var items = tree.query(env);
-						if (items.size() > 1)
-							toMerge.addAll(items);
-					}
-					for (int xi = 1; xi < xBounds.length-1; xi++) {
-						env.init(xBounds[xi]-1, xBounds[xi]+1, yBounds[0]-1, yBounds[yBounds.length-1]+1);
-						var items = tree.query(env);
-						if (items.size() > 1)
-							toMerge.addAll(items);
-					}
-					if (!toMerge.isEmpty()) {
-						logger.debug("Computing union for {}/{} polygons", toMerge.size(), allPolygons.size());
-						var mergedGeometry = GeometryTools.union(toMerge);
-//						System.err.println("To merge: " + toMerge.size());
-//						var mergedGeometry = factory.buildGeometry(toMerge).buffer(0);
-						var iter = allPolygons.iterator();
-						while (iter.hasNext()) {
-							if (toMerge.contains(iter.next()))
-								iter.remove();
+				// Labels can be traced independently
+				IntStream.range(0, thresholds.length).parallel().forEach(i -> {
+					var tracer = tracers[i];
+					boolean[] pixels = new boolean[width];
+					for (int yy = 0; yy < rowHeight; yy++) {
+						Arrays.fill(pixels, false);
+						for (int t = 0; t < row.size(); t++) {
+							var tile = row.get(t);
+							var mask = masks[t];
+							if (yy >= mask.height)
+								continue;
+							int xStart = tile.getTileX() - xOrigin;
+							int n = Math.min(mask.width, width - xStart);
+							System.arraycopy(mask.masks[i], yy * mask.width, pixels, xStart, n);
 						}
-						allPolygons.removeAll(toMerge);
-						var newPolygons = new ArrayList<Polygon>();
-						PolygonExtracter.getPolygons(mergedGeometry, newPolygons);
-						allPolygons.addAll(newPolygons);
+						tracer.processRow(pixels);
 					}
-					geometry = factory.buildGeometry(allPolygons);				
-					geometry.normalize();
-				}
-				
+				});
+				y += rowHeight;
+				emitCompleted();
 			}
+			for (var tracer : tracers)
+				tracer.finish();
+			emitCompleted();
 			
-			output.put(entry.getKey(), geometry);
+			for (int i = 0; i < managers.length; i++) {
+				int nPending = managers[i].getPendingHoleCount();
+				if (nPending > 0)
+					logger.warn("{} traced holes could not be assigned to any polygon for label {}", nPending, thresholds[i].getChannel());
+			}
 		}
-		return output;
-	}
-	
-
-	private static List<GeometryWrapper> traceGeometries(ImageServer<BufferedImage> server, TileRequest tile, Geometry clipArea, ChannelThreshold... thresholds) {
-		try {
-			return traceGeometriesImpl(server, tile, clipArea, thresholds);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+		
+		private void emitCompleted() {
+			for (int i = 0; i < thresholds.length; i++) {
+				int label = thresholds[i].getChannel();
+				for (var geometry : managers[i].drainCompleted()) {
+					if (downsample != 1)
+						geometry = AffineTransformation.scaleInstance(downsample, downsample).transform(geometry);
+					if (clipArea != null) {
+						geometry = GeometryTools.attemptOperation(geometry, g -> g.intersection(clipArea));
+						geometry = GeometryTools.homogenizeGeometryCollection(geometry);
+					}
+					// Exclude lines/points that can sometimes arise
+					if (!geometry.isEmpty() && geometry.getArea() > 0)
+						consumer.accept(label, geometry);
+				}
+			}
 		}
-	}
-	
-	
-	private static List<GeometryWrapper> traceGeometriesImpl(ImageServer<BufferedImage> server, TileRequest tile, Geometry clipArea, ChannelThreshold... thresholds) throws IOException {
-		if (thresholds.length == 0)
-			return Collections.emptyList();
 		
-		var request = tile.getRegionRequest();
-		var list = new ArrayList<GeometryWrapper>();
-
-		var img = server.readBufferedImage(request);
-		// Get an image to threshold
-		var channelType = server.getMetadata().getChannelType();
-		int h = img.getHeight();
-		int w = img.getWidth();
-		
-		// If we have probabilities, then the 'true' classification is the one with the highest values.
-		// If we have classifications, then the 'true' classification is the value of the pixel (which is expected to have a single band).
-		boolean doClassification = channelType == ImageServerMetadata.ChannelType.PROBABILITY || channelType == ImageServerMetadata.ChannelType.CLASSIFICATION;
-		if (doClassification) {
-			SimpleImage image;
-			if (channelType == ImageServerMetadata.ChannelType.PROBABILITY) {
-				// Convert probabilities to classifications
-				var raster = img.getRaster();
-				var nChannels = server.nChannels();
-				float[] output = new float[w * h];
-				for (int y = 0; y < h; y++) {
-					for (int x = 0; x < w; x++) {
+		private TileMask[] readMasks(List<TileRequest> row) throws IOException {
+			try {
+				return row.parallelStream().map(t -> {
+					try {
+						return readMask(t);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}).toArray(TileMask[]::new);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+		
+		/**
+		 * Read a tile and apply all thresholds to it.
+		 * @param tile
+		 * @return
+		 * @throws IOException
+		 */
+		private TileMask readMask(TileRequest tile) throws IOException {
+			var img = server.readBufferedImage(tile.getRegionRequest());
+			// Image size should match the tile size, but be cautious in case of rounding differences
+			int w = Math.min(img.getWidth(), tile.getTileWidth());
+			int h = Math.min(img.getHeight(), tile.getTileHeight());
+			var raster = img.getRaster();
+			var mask = new TileMask(w, h, thresholds.length);
+			
+			// If we have probabilities, then the 'true' classification is the one with the highest values.
+			// If we have classifications, then the 'true' classification is the value of the pixel (which is expected to have a single band).
+			var channelType = server.getMetadata().getChannelType();
+			if (channelType == ImageServerMetadata.ChannelType.PROBABILITY || channelType == ImageServerMetadata.ChannelType.CLASSIFICATION) {
+				float[] classification;
+				if (channelType == ImageServerMetadata.ChannelType.PROBABILITY) {
+					// Convert probabilities to classifications
+					int nChannels = server.nChannels();
+					classification = new float[w * h];
+					float[][] probabilities = new float[nChannels][];
+					for (int c = 0; c < nChannels; c++)
+						probabilities[c] = raster.getSamples(0, 0, w, h, c, (float[])null);
+					for (int i = 0; i < w * h; i++) {
 						int maxInd = 0;
-						float maxVal = raster.getSampleFloat(x, y, 0);
+						float maxVal = probabilities[0][i];
 						for (int c = 1; c < nChannels; c++) {
-							float val = raster.getSampleFloat(x, y, c);						
+							float val = probabilities[c][i];
 							if (val > maxVal) {
 								maxInd = c;
 								maxVal = val;
 							}
-							output[y*w+x] = (float)maxInd;
 						}
+						classification[i] = maxInd;
 					}
+				} else {
+					// Handle classifications
+					classification = raster.getSamples(0, 0, w, h, 0, (float[])null);
 				}
-				image = SimpleImages.createFloatImage(output, w, h);
-			} else {
-				// Handle classifications
-				var raster = img.getRaster();
-				var pixels = raster.getSamples(0, 0, w, h, 0, (float[])null);
-				image = SimpleImages.createFloatImage(pixels, w, h);
-			}
-			for (var threshold : thresholds) {
-				int c = threshold.getChannel();
-				Geometry geometry = ContourTracing.createTracedGeometry(image, c, c, request);
-				if (geometry != null && !geometry.isEmpty()) {
-					if (clipArea != null) {
-						geometry = GeometryTools.attemptOperation(geometry, g -> g.intersection(clipArea));
-						geometry = GeometryTools.homogenizeGeometryCollection(geometry);
-					}
-					if (!geometry.isEmpty() && geometry.getArea() > 0) {
-						// Exclude lines/points that can sometimes arise
-						list.add(new GeometryWrapper(geometry, c));
-					}
+				for (int t = 0; t < thresholds.length; t++) {
+					float c = thresholds[t].getChannel();
+					var selected = mask.masks[t];
+					for (int i = 0; i < classification.length; i++)
+						selected[i] = classification[i] == c;
 				}
-			}
-		} else {
-			// Apply the provided threshold to all channels
-			var raster = img.getRaster();
-			for (var threshold : thresholds) {
-				Geometry geometry = ContourTracing.createTracedGeometry(
-						raster, threshold.getMinThreshold(), threshold.getMaxThreshold(), threshold.getChannel(), request);
-				if (geometry != null) {
-					if (clipArea != null) {
-						geometry = GeometryTools.attemptOperation(geometry, g -> g.intersection(clipArea));
-						geometry = GeometryTools.homogenizeGeometryCollection(geometry);
-					}
-					if (!geometry.isEmpty() && geometry.getArea() > 0) {
-						// Exclude lines/points that can sometimes arise
-						list.add(new GeometryWrapper(geometry, threshold.getChannel()));
-					}
+			} else {
+				// Apply the provided threshold to all channels
+				for (int t = 0; t < thresholds.length; t++) {
+					var threshold = thresholds[t];
+					float[] pixels = raster.getSamples(0, 0, w, h, threshold.getChannel(), (float[])null);
+					float min = threshold.getMinThreshold();
+					float max = threshold.getMaxThreshold();
+					var selected = mask.masks[t];
+					for (int i = 0; i < pixels.length; i++)
+						selected[i] = selected(pixels[i], min, max);
 				}
 			}
-			
+			return mask;
 		}
-		return list;
+		
 	}
 	
-
+	
 	/**
-	 * Simple wrapper for a geometry and an label (usually a channel number of classification).
+	 * Thresholded pixels for a single tile, with one mask per threshold.
 	 */
-	private static class GeometryWrapper {
+	private static class TileMask {
 		
-		final Geometry geometry;
-		final int label;
+		final int width, height;
+		final boolean[][] masks;
 		
-		private GeometryWrapper(Geometry geometry, int label) {
-			this.geometry = geometry;
-			this.label = label;
+		TileMask(int width, int height, int nThresholds) {
+			this.width = width;
+			this.height = height;
+			this.masks = new boolean[nThresholds][width * height];
 		}
 		
 	}
@@ -1144,6 +1182,7 @@ public class ContourTracing {
 	
 	
 	
+	
 	private static boolean selected(float v, float min, float max) {
 		return v >= min && v <= max;
 	}
@@ -1170,40 +1209,97 @@ public class ContourTracing {
 		int w = image.getWidth();
 		int h = image.getHeight();
 		
-		boolean[] prevRow, thisRow;
 		var manager = new GeometryManager(GeometryTools.getDefaultFactory());
+		var tracer = new ScanlineTracer(w, xOffset, yOffset, manager);
+		
+		boolean[] row = new boolean[w];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++)
+				row[x] = selected(image.getValue(x, y), min, max);
+			tracer.processRow(row);
+		}
+		tracer.finish();
+		
+		var geom = manager.getFinalGeometry();
+		if (geom == null)
+			return null;
+		
+		var area = geom.getArea();
+		long pixelCount = tracer.getPixelCount();
+		if (pixelCount != area) {
+			logger.warn("Pixel count {} is not equal to geometry area {}", pixelCount, area);
+		}
+		
+		return geom;
 
+	}
+	
+	
+	/**
+	 * Scanline contour tracer, which is fed one thresholded row of pixels at a time.
+	 * <p>
+	 * Because only the current and previous rows are needed, the image can be supplied in strips 
+	 * (e.g. from a row of tiles) and outlines are continued seamlessly from one strip to the next.
+	 * Completed shells and holes are passed to an {@link OutlineHandler} as soon as they are closed.
+	 */
+	private static class ScanlineTracer {
+		
+		private final int w;
+		private final double xOffset, yOffset;
+		private final OutlineHandler manager;
+		
 		// Cache for the current and previous thresholded rows
-		prevRow = new boolean[w + 2];
-		thisRow = new boolean[w + 2];
+		private boolean[] prevRow, thisRow;
 		
 		// Current outlines
-		Outline[] movingDown = new Outline[w + 1];
-		Outline movingRight = null;
+		private final Outline[] movingDown;
+		private Outline movingRight = null;
 		
-		int pixelCount = 0;
+		private int y = 0;
+		private long pixelCount = 0;
 		
-		for (int y = 0; y <= h; y++) {
+		ScanlineTracer(int width, double xOffset, double yOffset, OutlineHandler manager) {
+			this.w = width;
+			this.xOffset = xOffset;
+			this.yOffset = yOffset;
+			this.manager = manager;
+			prevRow = new boolean[w + 2];
+			thisRow = new boolean[w + 2];
+			movingDown = new Outline[w + 1];
+		}
+		
+		long getPixelCount() {
+			return pixelCount;
+		}
+		
+		/**
+		 * Close all outlines by tracing an empty row below the last row of the image.
+		 */
+		void finish() {
+			processRow(null);
+		}
+		
+		/**
+		 * Trace the next row of the image.
+		 * @param row selected pixels for the row, of length equal to the image width; if null, no pixels are selected
+		 */
+		void processRow(boolean[] row) {
 			
-			// Swap this and previous rows (this row data will be overwritten as we go)
+			// Swap this and previous rows
 			boolean[] tempSwap = prevRow;
 			prevRow = thisRow;
 			thisRow = tempSwap;
 			
-//			thisRow[1] = y < h ? selected(raster, 0, y, min, max) : false;
-			thisRow[1] = y < h ? selected(image.getValue(0, y), min, max) : false;
+			// Pad with unselected pixels on either side
+			if (row == null)
+				Arrays.fill(thisRow, false);
+			else
+				System.arraycopy(row, 0, thisRow, 1, w);
 			
 			for (int x = 0; x <= w; x++) {
 				
 				int left = x;
 				int center = x + 1;
-				int right = x + 2;
-				
-				if (y < h && x < w - 1)
-					thisRow[right] = selected(image.getValue(x+1, y), min, max);  //we need to read one pixel ahead
-//					thisRow[right] = selected(raster, center, y, min, max);  //we need to read one pixel ahead
-				else if (x < w - 1)
-					thisRow[right] = false;
 				
 				if (thisRow[center])
 					pixelCount++;
@@ -1239,13 +1335,9 @@ public class ContourTracing {
 				switch (pattern) {
 				case 0: 
 					// Nothing selected
-//					assert movingDown[x] == null;
-//					assert movingRight == null;
 					break;
 				case 1: 
 					// Selected D
-//					assert movingDown[x] == null;
-//					assert movingRight == null;
 					// Create new shell
 					movingRight = new Outline(xOffset, yOffset);
 					movingRight.append(x, y);
@@ -1253,32 +1345,24 @@ public class ContourTracing {
 					break;
 				case 2: 
 					// Selected C
-//					assert movingDown[x] == null;
 					movingRight.prepend(x, y);
 					movingDown[x] = movingRight;
 					movingRight = null;
 					break;
 				case 3: 
 					// Selected C, D
-//					assert movingDown[x] == null;
-//					assert movingRight != null;
 					break;
 				case 4: 
 					// Selected B
-//					assert movingRight == null;
 					movingDown[x].append(x, y);
 					movingRight = movingDown[x];
 					movingDown[x] = null;
 					break;
 				case 5: 
 					// Selected B, D
-//					assert movingRight == null;
-//					assert movingDown[x] != null;
 					break;
 				case 6: 
 					// Selected B, C
-//					assert movingDown[x] != null;
-//					assert movingRight != null;
 					movingRight.prepend(x, y);
 					if (Objects.equals(movingRight, movingDown[x])) {
 						// Hole completed!
@@ -1295,8 +1379,6 @@ public class ContourTracing {
 					break;
 				case 7: 
 					// Selected B, C, D
-//					assert movingDown[x] != null;
-//					assert movingRight != null;
 					movingDown[x].append(x, y);
 					if (Objects.equals(movingRight, movingDown[x])) {
 						// Hole completed!
@@ -1310,8 +1392,6 @@ public class ContourTracing {
 					break;
 				case 8: 
 					// Selected A
-//					assert movingDown[x] != null;
-//					assert movingRight != null;
 					movingRight.append(x, y);
 					if (Objects.equals(movingRight, movingDown[x])) {
 						// Shell completed!
@@ -1325,8 +1405,6 @@ public class ContourTracing {
 					break;
 				case 9: 
 					// Selected A, D
-//					assert movingDown[x] != null;
-//					assert movingRight != null;
 					movingRight.append(x, y);
 					if (Objects.equals(movingRight, movingDown[x])) {
 						// Shell completed!
@@ -1343,34 +1421,24 @@ public class ContourTracing {
 					break;
 				case 10: 
 					// Selected A, C
-//					assert movingRight == null;
-//					assert movingDown[x] != null;
 					break;
 				case 11: 
 					// Selected A, C, D
-//					assert movingRight == null;
-//					assert movingDown[x] != null;
 					movingDown[x].prepend(x, y);
 					movingRight = movingDown[x];
 					movingDown[x] = null;
 					break;
 				case 12: 
 					// Selected A, B
-//					assert movingDown[x] == null;
-//					assert movingRight != null;
 					break;
 				case 13: 
 					// Selected A, B, D
-//					assert movingDown[x] == null;
-//					assert movingRight != null;
 					movingRight.append(x, y);
 					movingDown[x] = movingRight;
 					movingRight = null;
 					break;
 				case 14: 
 					// Selected A, B, C
-//					assert movingRight == null;
-//					assert movingDown[x] == null;
 					// Create new hole
 					movingRight = new Outline(xOffset, yOffset);
 					movingRight.append(x, y);
@@ -1378,24 +1446,12 @@ public class ContourTracing {
 					break;
 				case 15: 
 					// Selected A, B, C, D
-//					assert movingDown[x] == null;
-//					assert movingRight == null;
 					break;
 				}
 			}
+			y++;
 		}
 		
-		var geom = manager.getFinalGeometry();
-		if (geom == null)
-			return null;
-		
-		var area = geom.getArea();
-		if (pixelCount != area) {
-			logger.warn("Pixel count {} is not equal to geometry area {}", pixelCount, area);
-		}
-		
-		return geom;
-
 	}
 	
 	
@@ -1407,7 +1463,19 @@ public class ContourTracing {
 	}
 	
 	
-	private static class GeometryManager {
+	/**
+	 * Handler for outlines completed by a {@link ScanlineTracer}.
+	 */
+	private static interface OutlineHandler {
+		
+		void addHole(Outline outline);
+		
+		void addShell(Outline outline);
+		
+	}
+	
+	
+	private static class GeometryManager implements OutlineHandler {
 
 		private Polygonizer polygonizer = new Polygonizer(true);
 		private GeometryFactory factory;
@@ -1418,10 +1486,12 @@ public class ContourTracing {
 			this.factory = factory;
 		}
 
+		@Override
 		public void addHole(Outline outline) {
 			addOutline(outline, true);
 		}
 
+		@Override
 		public void addShell(Outline outline) {
 			addOutline(outline, false);
 		}
@@ -1439,6 +1509,93 @@ public class ContourTracing {
 		}
 
 	}
+	
+	
+	/**
+	 * Create polygons incrementally, as soon as their shells are completed.
+	 * <p>
+	 * When tracing row by row, a hole is always completed before the shell that contains it 
+	 * (since the shell must extend at least one row further down). Holes are therefore retained until 
+	 * the shell that contains them is completed, and then only the lines for that shell and its holes 
+	 * need to be polygonized.
+	 */
+	private static class StreamingGeometryManager implements OutlineHandler {
+		
+		private final GeometryFactory factory;
+		
+		private final Quadtree pendingHoles = new Quadtree();
+		private List<Geometry> completed = new ArrayList<>();
+		
+		StreamingGeometryManager(GeometryFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public void addHole(Outline outline) {
+			var hole = new PendingHole(outline.getRing());
+			pendingHoles.insert(hole.envelope, hole);
+		}
+
+		@Override
+		public void addShell(Outline outline) {
+			var ring = outline.getRing();
+			var envelope = new Envelope();
+			for (var c : ring)
+				envelope.expandToInclude(c);
+			
+			var lines = new ArrayList<LineString>();
+			lines.add(factory.createLineString(ring));
+			for (var item : pendingHoles.query(envelope)) {
+				var hole = (PendingHole)item;
+				if (envelope.contains(hole.envelope) && 
+						RayCrossingCounter.locatePointInRing(hole.testPoint, ring) == Location.INTERIOR) {
+					lines.add(factory.createLineString(hole.ring));
+					pendingHoles.remove(hole.envelope, hole);
+				}
+			}
+			var polygonizer = new Polygonizer(true);
+			polygonizer.add(factory.buildGeometry(lines).union());
+			completed.add(polygonizer.getGeometry());
+		}
+		
+		/**
+		 * Get all geometries completed since the last call to this method.
+		 * @return
+		 */
+		List<Geometry> drainCompleted() {
+			if (completed.isEmpty())
+				return Collections.emptyList();
+			var list = completed;
+			completed = new ArrayList<>();
+			return list;
+		}
+		
+		int getPendingHoleCount() {
+			return pendingHoles.size();
+		}
+		
+	}
+	
+	
+	private static class PendingHole {
+		
+		private final Coordinate[] ring;
+		private final Envelope envelope;
+		private final Coordinate testPoint;
+		
+		PendingHole(Coordinate[] ring) {
+			this.ring = ring;
+			this.envelope = new Envelope();
+			for (var c : ring)
+				envelope.expandToInclude(c);
+			// The midpoint of a boundary segment must be either inside or outside any other ring, never on it,
+			// because rings from the tracer only ever meet at vertices
+			this.testPoint = new Coordinate((ring[0].x + ring[1].x)/2.0, (ring[0].y + ring[1].y)/2.0);
+		}
+		
+	}
+
+	
 
 	
 	
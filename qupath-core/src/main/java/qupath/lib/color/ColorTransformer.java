@@ -29,6 +29,7 @@ import java.awt.image.IndexColorModel;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.IntStream;
 
 import qupath.lib.color.ColorDeconvolutionStains.DefaultColorDeconvolutionStains;
 import qupath.lib.common.ColorTools;
@@ -314,6 +315,8 @@ public class ColorTransformer {
 
 	/**
 	 * Apply a color transform to all pixels in a packed (A)RGB array.
+	 * <p>
+	 * Very large arrays are split into chunks that are transformed in parallel.
 	 * 
 	 * @param buf the input pixel buffer to be transformed
 	 * @param method the transfor method to apply
@@ -325,247 +328,338 @@ public class ColorTransformer {
 		if (pixels == null || pixels.length != buf.length)
 			pixels = new float[buf.length];
 		
-		double[] od_lut, od_lut_red, od_lut_green, od_lut_blue;
-		double[][] inverse;
+		// Output array, as an effectively final variable for use in kernels
+		final float[] px = pixels;
+		
+		float[] lut;
+		double[][] luts;
+		RangeKernel kernel;
 		
 		switch (method) {
 		case Red:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTools.red(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = (buf[i] >> 16) & 0xff;
+			};
 			break;
 		case Green:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTools.green(buf[i]);
-			}			break;
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = (buf[i] >> 8) & 0xff;
+			};
+			break;
 		case Blue:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTools.blue(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = buf[i] & 0xff;
+			};
 			break;
 		case Red_OD:
-			od_lut = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = (float)od_lut[ColorTools.red(buf[i])];
-			}
+			lut = makeFloatODLUT(stains.getMaxRed());
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = lut[(buf[i] >> 16) & 0xff];
+			};
 			break;
 		case Green_OD:
-			od_lut = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = (float)od_lut[ColorTools.green(buf[i])];
-			}
+			lut = makeFloatODLUT(stains.getMaxGreen());
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = lut[(buf[i] >> 8) & 0xff];
+			};
 			break;
 		case Blue_OD:
-			od_lut = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = (float)od_lut[ColorTools.blue(buf[i])];
-			}
+			lut = makeFloatODLUT(stains.getMaxBlue());
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = lut[buf[i] & 0xff];
+			};
 			break;
 		case RGB_mean:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.rgbMean(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = ColorTransformer.rgbMean(buf[i]);
+			};
 			break;
 		case Red_chromaticity:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.redChromaticity(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = ColorTransformer.redChromaticity(buf[i]);
+			};
 			break;
 		case Green_chromaticity:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.greenChromaticity(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = ColorTransformer.greenChromaticity(buf[i]);
+			};
 			break;
 		case Blue_chromaticity:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.blueChromaticity(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = ColorTransformer.blueChromaticity(buf[i]);
+			};
 			break;
 		case Green_divided_by_blue:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.greenOverBlue(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = ColorTransformer.greenOverBlue(buf[i]);
+			};
 			break;
 		case Brown:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.brown(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = ColorTransformer.brown(buf[i]);
+			};
 			break;
 		case Hematoxylin_H_E:
 			if (stains == null || !stains.isH_E()) {
 				throw new IllegalArgumentException("No valid H&E stains supplied!");
 			}
 		case Stain_1:
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 1);
-			}
+			kernel = createDeconvolutionKernel(buf, px, makeStainLUTs(stains, 1), false);
 			break;
 		case Eosin_H_E:
 			if (stains == null || !stains.isH_E()) {
 				throw new IllegalArgumentException("No valid H&E stains supplied!");
 			}
 		case Stain_2:
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 2);
-			}
+			kernel = createDeconvolutionKernel(buf, px, makeStainLUTs(stains, 2), false);
 			break;
 		case Stain_3:
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 3);
-			}
+			kernel = createDeconvolutionKernel(buf, px, makeStainLUTs(stains, 3), false);
 			break;
 		case Hematoxylin_H_DAB:
 			if (stains == null || !stains.isH_DAB()) {
 				throw new IllegalArgumentException("No valid H-DAB stains supplied!");
 			}
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 1);
-			}
+			kernel = createDeconvolutionKernel(buf, px, makeStainLUTs(stains, 1), false);
 			break;
 		case DAB_H_DAB:
 			if (stains == null || !stains.isH_DAB()) {
 				throw new IllegalArgumentException("No valid H-DAB stains supplied!");
 			}
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 2);
-			}
+			kernel = createDeconvolutionKernel(buf, px, makeStainLUTs(stains, 2), false);
 			break;
 			
 		case Hematoxylin_H_E_8_bit:
 			if (stains == null || !stains.isH_E()) {
 				throw new IllegalArgumentException("No valid H&E stains supplied!");
 			}
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve8bit(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 1);
-			}
+			kernel = createDeconvolutionKernel(buf, px, makeStainLUTs(stains, 1), true);
 			break;
 		case Eosin_H_E_8_bit:
 			if (stains == null || !stains.isH_E()) {
 				throw new IllegalArgumentException("No valid H&E stains supplied!");
 			}
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve8bit(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 2);
-			}
+			kernel = createDeconvolutionKernel(buf, px, makeStainLUTs(stains, 2), true);
 			break;
 		case Hematoxylin_H_DAB_8_bit:
 			if (stains == null || !stains.isH_DAB()) {
 				throw new IllegalArgumentException("No valid H-DAB stains supplied!");
 			}
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve8bit(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 1);
-			}
+			kernel = createDeconvolutionKernel(buf, px, makeStainLUTs(stains, 1), true);
 			break;
 		case DAB_H_DAB_8_bit:
 			if (stains == null || !stains.isH_DAB()) {
 				throw new IllegalArgumentException("No valid H-DAB stains supplied!");
 			}
-			od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-			od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-			od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-			inverse = stains.getMatrixInverse();
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.deconvolve8bit(buf[i], inverse, od_lut_red, od_lut_green, od_lut_blue, 2);
-			}
+			kernel = createDeconvolutionKernel(buf, px, makeStainLUTs(stains, 2), true);
 			break;
 			
 		case Hue:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.hue(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = ColorTransformer.hue(buf[i]);
+			};
 			break;
 		case Saturation:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.saturation(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = ColorTransformer.saturation(buf[i]);
+			};
 			break;
 		case Brightness:
-			for (int i = 0; i < buf.length; i++) {
-				pixels[i] = ColorTransformer.brightness(buf[i]);
-			}
+			kernel = (start, end) -> {
+				for (int i = start; i < end; i++)
+					px[i] = ColorTransformer.brightness(buf[i]);
+			};
 			break;
-
-			
-//		case Hematoxylin_H_E_8_bit:
-//			for (int i = 0; i < buf.length; i++) {
-//				pixels[i] = ColorTransformer.deconvolve8bit(buf[i], ColorTransformer.inv_H_E, od_lut, 1);
-//			}
-//			break;
-//		case Eosin_H_E_8_bit:
-//			for (int i = 0; i < buf.length; i++) {
-//				pixels[i] = ColorTransformer.deconvolve8bit(buf[i], ColorTransformer.inv_H_E, od_lut, 2);
-//			}
-//			break;
-//		case Hematoxylin_H_DAB_8_bit:
-//			for (int i = 0; i < buf.length; i++) {
-//				pixels[i] = ColorTransformer.deconvolve8bit(buf[i], ColorTransformer.inv_H_DAB, od_lut, 1);
-//			}
-//			break;
-//		case DAB_H_DAB_8_bit:
-//			for (int i = 0; i < buf.length; i++) {
-//				pixels[i] = ColorTransformer.deconvolve8bit(buf[i], ColorTransformer.inv_H_DAB, od_lut, 2);
-//			}
-//			break;
 			
 		case White:
 			Arrays.fill(pixels, 255);
-			break;
+			return pixels;
 		case Black:
 			Arrays.fill(pixels, 0);
-			break;
+			return pixels;
 		case Optical_density_sum:
 			if (stains != null) {
-				od_lut_red = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed());
-				od_lut_green = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen());
-				od_lut_blue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue());
-				for (int i = 0; i < buf.length; i++) {
-					pixels[i] = ColorTransformer.opticalDensitySum(buf[i], od_lut_red, od_lut_green, od_lut_blue);
-				}			
+				luts = new double[][] {
+					ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed()),
+					ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen()),
+					ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue())
+				};
 			} else {
-				od_lut = ColorDeconvolutionHelper.makeODLUT(255.0);
-				for (int i = 0; i < buf.length; i++) {
-					pixels[i] = ColorTransformer.opticalDensitySum(buf[i], od_lut);
-				}			
+				double[] odLUT = ColorDeconvolutionHelper.makeODLUT(255.0);
+				luts = new double[][] {odLUT, odLUT, odLUT};
 			}
+			kernel = createDeconvolutionKernel(buf, px, luts, false);
 			break;
 		case Original:
 			return null;
+		default:
+			return pixels;
 		}
+		applyKernel(buf.length, kernel);
 		return pixels;
 	}
 	
 	
+	/**
+	 * Apply color deconvolution to all pixels in a packed (A)RGB array, calculating all three stains in a single pass.
+	 * <p>
+	 * This gives the same result as calling {@link #getTransformedPixels(int[], ColorTransformMethod, float[], ColorDeconvolutionStains)} 
+	 * with {@link ColorTransformMethod#Stain_1}, {@link ColorTransformMethod#Stain_2} and {@link ColorTransformMethod#Stain_3}, 
+	 * but is faster because each pixel is only unpacked once.
+	 * 
+	 * @param buf the input pixel buffer to be transformed
+	 * @param stains the stains to use for color deconvolution
+	 * @param output optional output arrays to store the results; if null or of the wrong length, new arrays will be created
+	 * @return either the input array {@code output}, or a new array if required, containing three arrays for the stains
+	 */
+	public static float[][] colorDeconvolveRGBArray(final int[] buf, final ColorDeconvolutionStains stains, float[][] output) {
+		if (output == null || output.length != 3)
+			output = new float[3][];
+		for (int s = 0; s < 3; s++) {
+			if (output[s] == null || output[s].length != buf.length)
+				output[s] = new float[buf.length];
+		}
+		double[][] luts1 = makeStainLUTs(stains, 1);
+		double[][] luts2 = makeStainLUTs(stains, 2);
+		double[][] luts3 = makeStainLUTs(stains, 3);
+		
+		// Unpack the lookup tables so that there are no 2D array accesses within the loop
+		double[] r1 = luts1[0], g1 = luts1[1], b1 = luts1[2];
+		double[] r2 = luts2[0], g2 = luts2[1], b2 = luts2[2];
+		double[] r3 = luts3[0], g3 = luts3[1], b3 = luts3[2];
+		float[] px1 = output[0], px2 = output[1], px3 = output[2];
+		
+		applyKernel(buf.length, (start, end) -> {
+			for (int i = start; i < end; i++) {
+				int c = buf[i];
+				int r = (c >> 16) & 0xff;
+				int g = (c >> 8) & 0xff;
+				int b = c & 0xff;
+				px1[i] = (float)(r1[r] + g1[g] + b1[b]);
+				px2[i] = (float)(r2[r] + g2[g] + b2[b]);
+				px3[i] = (float)(r3[r] + g3[g] + b3[b]);
+			}
+		});
+		return output;
+	}
+	
+	
+	/**
+	 * Minimum number of pixels for which transforms are applied in parallel.
+	 */
+	private static final int MIN_PARALLEL_PIXELS = 1 << 20;
+	
+	/**
+	 * Number of pixels processed by each task when transforms are applied in parallel.
+	 */
+	private static final int PARALLEL_CHUNK_SIZE = 1 << 16;
+	
+	/**
+	 * Kernel that applies a transform to all pixels within a range of indices.
+	 */
+	@FunctionalInterface
+	private static interface RangeKernel {
+		
+		void apply(int start, int end);
+		
+	}
+	
+	/**
+	 * Apply a kernel to all pixels, splitting large arrays into chunks that are processed in parallel.
+	 * @param n
+	 * @param kernel
+	 */
+	private static void applyKernel(int n, RangeKernel kernel) {
+		if (n < MIN_PARALLEL_PIXELS) {
+			kernel.apply(0, n);
+			return;
+		}
+		int nChunks = (n + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+		IntStream.range(0, nChunks).parallel().forEach(c -> {
+			int start = c * PARALLEL_CHUNK_SIZE;
+			kernel.apply(start, Math.min(n, start + PARALLEL_CHUNK_SIZE));
+		});
+	}
+	
+	/**
+	 * Create a kernel that computes the sum of lookup table values for the red, green and blue channels.
+	 * <p>
+	 * When the lookup tables contain optical densities premultiplied by a column of the inverse stain matrix, 
+	 * this gives color deconvolution. The result is identical to that of {@link #deconvolve(int, double[][], double[], double[], double[], int)} 
+	 * because the same products are summed in the same order, but avoids all multiplications within the loop.
+	 * 
+	 * @param buf input packed RGB values
+	 * @param pixels output array
+	 * @param luts lookup tables for red, green and blue
+	 * @param convertTo8Bit if true, convert the result to an 8-bit value (as for brightfield display)
+	 * @return
+	 */
+	private static RangeKernel createDeconvolutionKernel(int[] buf, float[] pixels, double[][] luts, boolean convertTo8Bit) {
+		double[] lutRed = luts[0];
+		double[] lutGreen = luts[1];
+		double[] lutBlue = luts[2];
+		if (convertTo8Bit) {
+			return (start, end) -> {
+				for (int i = start; i < end; i++) {
+					int c = buf[i];
+					float v = (float)(lutRed[(c >> 16) & 0xff] + lutGreen[(c >> 8) & 0xff] + lutBlue[c & 0xff]);
+					pixels[i] = ColorTools.do8BitRangeCheck(Math.exp(-v) * 255);
+				}
+			};
+		}
+		return (start, end) -> {
+			for (int i = start; i < end; i++) {
+				int c = buf[i];
+				pixels[i] = (float)(lutRed[(c >> 16) & 0xff] + lutGreen[(c >> 8) & 0xff] + lutBlue[c & 0xff]);
+			}
+		};
+	}
+	
+	/**
+	 * Create lookup tables for the red, green and blue channels, containing optical densities multiplied by 
+	 * the values of the inverse stain matrix for a specified stain.
+	 * @param stains
+	 * @param stain stain number (1, 2 or 3)
+	 * @return
+	 */
+	private static double[][] makeStainLUTs(ColorDeconvolutionStains stains, int stain) {
+		double[][] inverse = stains.getMatrixInverse();
+		double[] maxValues = {stains.getMaxRed(), stains.getMaxGreen(), stains.getMaxBlue()};
+		double[][] luts = new double[3][];
+		for (int c = 0; c < 3; c++) {
+			double[] lut = ColorDeconvolutionHelper.makeODLUT(maxValues[c]);
+			double scale = inverse[c][stain-1];
+			for (int i = 0; i < lut.length; i++)
+				lut[i] = lut[i] * scale;
+			luts[c] = lut;
+		}
+		return luts;
+	}
+	
+	private static float[] makeFloatODLUT(double maxValue) {
+		double[] od = ColorDeconvolutionHelper.makeODLUT(maxValue);
+		float[] lut = new float[od.length];
+		for (int i = 0; i < od.length; i++)
+			lut[i] = (float)od[i];
+		return lut;
+	}
+
+	
+	
 	/**
 	 * Calculate magnitude of rejection of pixel OD onto stain OD.
 	 * 
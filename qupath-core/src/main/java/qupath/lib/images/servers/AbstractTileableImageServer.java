@@ -41,6 +41,9 @@ import org.slf4j.LoggerFactory;
 import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.color.ColorModelFactory;
 import qupath.lib.images.servers.ImageServerMetadata.ChannelType;
+import qupath.lib.metrics.LatencyHistogram;
+import qupath.lib.metrics.MetricCounter;
+import qupath.lib.metrics.Metrics;
 import qupath.lib.regions.RegionRequest;
 
 /**
@@ -64,6 +67,12 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	
 	private final static Long ZERO = Long.valueOf(0L);
 	
+	private static final MetricCounter cacheHits = Metrics.counter("tiles.cache.hits");
+	private static final MetricCounter cacheMisses = Metrics.counter("tiles.cache.misses");
+	
+	// Tile read latency is recorded separately for each server class
+	private final LatencyHistogram tileReadTime = Metrics.histogram("tiles.read." + getMetricsName(getClass()));
+	
 	// Maintain a record of tiles that could not be cached, so we warn for each only once
 	private transient Set<RegionRequest> failedCacheTiles = new HashSet<>();
 		
@@ -71,6 +80,11 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 		super(BufferedImage.class);
 	}
 	
+	private static String getMetricsName(Class<?> cls) {
+		String name = cls.getSimpleName();
+		return name.isEmpty() ? cls.getName() : name;
+	}
+	
 	protected BufferedImage getEmptyTile(int width, int height) throws IOException {
 		return getEmptyTile(width, height, true);
 //		return getEmptyTile(width, height,
@@ -176,12 +190,16 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 			var imgCached = cache.get(request);
 			if (imgCached != null) { 
 				logger.trace("Returning cached tile: {}", request);
+				cacheHits.increment();
 				return imgCached;
 			}
+			cacheMisses.increment();
 		}
 		logger.trace("Reading tile: {}", request);
 		
+		long startTime = System.nanoTime();
 		var imgCached = readTile(tileRequest);
+		tileReadTime.recordSince(startTime);
 		
 		// Put the tile in the appropriate cache
 		if (imgCached != null) {
@@ -219,8 +237,10 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 		// Make a defensive copy, since the cache is critical
 		var cache = getCache();
 		BufferedImage img = request.getPath().equals(getPath()) && cache != null ? cache.get(request) : null;
-		if (img != null)
+		if (img != null) {
+			cacheHits.increment();
 			return BufferedImageTools.duplicate(img);
+		}
 		
 		// Figure out which tiles we need
 		Collection<TileRequest> tiles = getTileRequestManager().getTileRequests(request);
@@ -175,12 +175,11 @@ class ColorDeconvolutionImageServer extends TransformingImageServer<BufferedImag
 		WritableRaster raster = Raster.createWritableRaster(model, buffer, null);
 		
 		int[] rgb = img.getRGB(0, 0, w, h, null, 0, img.getWidth());
-		float[] pixels = new float[w * h];
+		// Write directly into the banks of the buffer, since the sample model has one bank per band
 		for (int b = 0; b < methods.size(); b++) {
-			ColorTransformer.getTransformedPixels(rgb, methods.get(b), pixels, stains);			
-			raster.setSamples(0, 0, img.getWidth(), img.getHeight(), b, pixels);
+			ColorTransformer.getTransformedPixels(rgb, methods.get(b), bytes[b], stains);
 		}
-		return new BufferedImage(getColorModel(), Raster.createWritableRaster(model, buffer, null), false, null);
+		return new BufferedImage(getColorModel(), raster, false, null);
 		
 //		WritableRaster raster = WritableRaster.createInterleavedRaster(DataBuffer.TYPE_FLOAT, img.getWidth(), img.getHeight(), 1, null);
 //		ColorTransformer.getTransformedPixels(rgb, method, pixels, stains);
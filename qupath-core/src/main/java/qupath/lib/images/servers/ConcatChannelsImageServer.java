@@ -26,13 +26,19 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
 
 import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
 import qupath.lib.images.servers.ImageServers.ConcatChannelsImageServerBuilder;
 import qupath.lib.regions.RegionRequest;
@@ -45,6 +51,13 @@ import qupath.lib.regions.RegionRequest;
  */
 class ConcatChannelsImageServer extends TransformingImageServer<BufferedImage> {
 	
+	/**
+	 * Maximum number of threads used to read from the concatenated servers concurrently.
+	 */
+	private static final int MAX_THREADS = 16;
+	
+	private static volatile ExecutorService pool;
+	
 	private ImageServerMetadata originalMetadata;
 	private List<ImageServer<BufferedImage>> allServers = new ArrayList<>();
 
@@ -113,14 +126,15 @@ class ConcatChannelsImageServer extends TransformingImageServer<BufferedImage> {
 	@Override
 	public BufferedImage readBufferedImage(RegionRequest request) throws IOException {
 		
+		List<BufferedImage> images = readImages(request);
 		List<WritableRaster> rasters = new ArrayList<>();
 		boolean premultiplied = false;
 		int nBands = 0;
-		for (var server : allServers) {
-			var img = server.readBufferedImage(request);
+		for (int i = 0; i < images.size(); i++) {
+			var img = images.get(i);
 			if (img == null) {
 				rasters.add(null);
-				nBands += server.nChannels();
+				nBands += allServers.get(i).nChannels();
 			} else {
 				premultiplied = img.isAlphaPremultiplied();
 				nBands += img.getRaster().getNumBands();
@@ -160,6 +174,65 @@ class ConcatChannelsImageServer extends TransformingImageServer<BufferedImage> {
 				raster, premultiplied, null);
 	}
 	
+	/**
+	 * Read the requested region from all servers, in order.
+	 * <p>
+	 * Where there is more than one server, reads are submitted to a shared bounded pool. 
+	 * The calling thread also runs any read that hasn't started yet, which ensures progress 
+	 * even if the pool is saturated (e.g. because concatenated servers are themselves nested).
+	 * 
+	 * @param request
+	 * @return a list containing the image for each server (which may be null)
+	 * @throws IOException if any read fails; remaining reads are cancelled
+	 */
+	private List<BufferedImage> readImages(RegionRequest request) throws IOException {
+		int n = allServers.size();
+		var tasks = new ArrayList<FutureTask<BufferedImage>>(n);
+		for (var server : allServers)
+			tasks.add(new FutureTask<>(() -> server.readBufferedImage(request)));
+		if (n > 1) {
+			var pool = getPool();
+			for (int i = 1; i < n; i++)
+				pool.execute(tasks.get(i));
+		}
+		var images = new ArrayList<BufferedImage>(n);
+		try {
+			for (var task : tasks) {
+				// Does nothing if the task has already started
+				task.run();
+				images.add(task.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading " + request);
+		} catch (ExecutionException e) {
+			var cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		} finally {
+			for (var task : tasks)
+				task.cancel(false);
+		}
+		return images;
+	}
+	
+	private static ExecutorService getPool() {
+		if (pool == null) {
+			synchronized (ConcatChannelsImageServer.class) {
+				if (pool == null) {
+					int nThreads = Math.max(4, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() * 2));
+					pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("concat-channels-", true));
+				}
+			}
+		}
+		return pool;
+	}
+	
 	
 	@Override
 	protected ServerBuilder<BufferedImage> createServerBuilder() {
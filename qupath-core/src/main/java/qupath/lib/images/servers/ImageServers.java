@@ -25,6 +25,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -184,11 +185,59 @@ public class ImageServers {
 		
 	}
 	
+	private static Path pyramidCacheDirectory;
+	private static long pyramidCacheMaxBytes = 4L * 1024L * 1024L * 1024L;
+	
+	/**
+	 * Set a directory used to persist tiles generated by servers created with {@link #pyramidalize(ImageServer, double...)} 
+	 * or {@link #pyramidalizeTiled(ImageServer, int, int, double...)}.
+	 * <p>
+	 * Generated tiles are written to a sidecar file for each image, identified by the image path and last modified time, 
+	 * so that they can be read directly (rather than generated again) when the same image is opened later.
+	 * This applies only to images stored as local files, and only to servers created after the directory has been set.
+	 * 
+	 * @param directory the cache directory, or null if generated tiles should not be persisted (the default)
+	 */
+	public static synchronized void setPyramidCacheDirectory(Path directory) {
+		pyramidCacheDirectory = directory;
+	}
+	
+	/**
+	 * Get the directory used to persist generated pyramid tiles.
+	 * @return the cache directory, or null if generated tiles are not persisted
+	 * @see #setPyramidCacheDirectory(Path)
+	 */
+	public static synchronized Path getPyramidCacheDirectory() {
+		return pyramidCacheDirectory;
+	}
+	
+	/**
+	 * Set the maximum total size of the files within the pyramid cache directory.
+	 * Whenever a new file is opened, the least recently used files are deleted until the total size is within this limit.
+	 * 
+	 * @param maxBytes the maximum size in bytes, or &le; 0 if the size should not be limited
+	 * @see #setPyramidCacheDirectory(Path)
+	 */
+	public static synchronized void setPyramidCacheMaxBytes(long maxBytes) {
+		pyramidCacheMaxBytes = maxBytes;
+	}
+	
+	/**
+	 * Get the maximum total size of the files within the pyramid cache directory.
+	 * The default is 4 GB.
+	 * @return the maximum size in bytes, or &le; 0 if the size is not limited
+	 * @see #setPyramidCacheMaxBytes(long)
+	 */
+	public static synchronized long getPyramidCacheMaxBytes() {
+		return pyramidCacheMaxBytes;
+	}
+	
 	/**
 	 * Wrap an ImageServer to dynamically generate a pyramid. This does not involve writing any new image, 
 	 * and may be rather processor and memory-intensive as high-resolution tiles must be accessed to fulfil 
 	 * low-resolution requests. However, tile caching means that after tiles have been accessed once perceived 
 	 * performance can be considerably improved.
+	 * If a pyramid cache directory has been set, generated tiles are also persisted for future use.
 	 * 
 	 * @param server the server to wrap (typically having only one resolution level)
 	 * @param downsamples optional array giving the downsamples of the new pyramid. If not provided, 
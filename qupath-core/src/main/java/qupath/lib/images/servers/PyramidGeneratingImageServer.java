@@ -27,6 +27,9 @@ import java.net.URI;
 import java.util.Collection;
 import java.util.Collections;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
 import qupath.lib.objects.PathObject;
@@ -37,14 +40,23 @@ import qupath.lib.regions.RegionRequest;
  * Helper class intended to make a single-resolution image act more like an image pyramid.
  * This does not avoid the fact that pixels must still be requested at the resolution of the original server, 
  * but enables tile caching at other resolutions - which may substantially improve performance in some cases.
+ * <p>
+ * If a pyramid cache directory has been set with {@link ImageServers#setPyramidCacheDirectory(java.nio.file.Path)}, 
+ * generated tiles are also written to a sidecar file so that they can be read directly whenever the same image 
+ * is opened again.
  * 
  * @author Pete Bankhead
  */
 class PyramidGeneratingImageServer extends AbstractTileableImageServer implements PathObjectReader {
 	
+	private static final Logger logger = LoggerFactory.getLogger(PyramidGeneratingImageServer.class);
+	
 	private ImageServer<BufferedImage> server;
 	private ImageServerMetadata metadata;
 	
+	private PyramidTileStore tileStore;
+	private boolean tileStoreRequested = false;
+	
 	PyramidGeneratingImageServer(ImageServer<BufferedImage> server, int tileWidth, int tileHeight, double... downsamples) {
 		this(server, createDefaultMetadata(server, tileWidth, tileHeight, downsamples));
 	}
@@ -86,6 +98,14 @@ class PyramidGeneratingImageServer extends AbstractTileableImageServer implement
 		if (level == 0 || closestOriginalDownsample >= getDownsampleForResolution(level - 1))
 			return server.readBufferedImage(request.updatePath(server.getPath()));
 		
+		// Check if we have already generated the tile in a previous session
+		var store = getTileStore();
+		if (store != null) {
+			var imgStored = store.read(tileRequest, getDefaultColorModel(), getEmptyTile(tileRequest.getTileWidth(), tileRequest.getTileHeight()));
+			if (imgStored != null)
+				return imgStored;
+		}
+		
 		// Read image from the 'previous' resolution
 		RegionRequest request2 = request.updateDownsample(getDownsampleForResolution(level - 1));
 		
@@ -93,14 +113,53 @@ class PyramidGeneratingImageServer extends AbstractTileableImageServer implement
 		BufferedImage img = readBufferedImage(request2);
 //		if (img == null)
 //			return null;
-		if (img == null || isEmptyTile(img))
-			return getEmptyTile(tileRequest.getTileWidth(), tileRequest.getTileHeight());
+		if (img == null || isEmptyTile(img)) {
+			var imgEmpty = getEmptyTile(tileRequest.getTileWidth(), tileRequest.getTileHeight());
+			if (store != null && img != null)
+				store.write(tileRequest, imgEmpty, true, isRGB());
+			return imgEmpty;
+		}
 		
 //		if (img == null || isEmptyTile(img))
 //			return getEmptyTile(tileRequest.getTileWidth(), tileRequest.getTileHeight());
 		
 		// Resize to the required size
-		return BufferedImageTools.resize(img, tileRequest.getTileWidth(), tileRequest.getTileHeight(), allowSmoothInterpolation());
+		var imgResized = BufferedImageTools.resize(img, tileRequest.getTileWidth(), tileRequest.getTileHeight(), allowSmoothInterpolation());
+		if (store != null)
+			store.write(tileRequest, imgResized, false, isRGB());
+		return imgResized;
+	}
+	
+	/**
+	 * Get the store used to persist generated tiles, opening it if necessary.
+	 * @return the store, or null if tiles should not be persisted
+	 */
+	private synchronized PyramidTileStore getTileStore() {
+		if (tileStoreRequested)
+			return tileStore;
+		tileStoreRequested = true;
+		var directory = ImageServers.getPyramidCacheDirectory();
+		if (directory == null)
+			return null;
+		try {
+			tileStore = PyramidTileStore.open(directory, ImageServers.getPyramidCacheMaxBytes(), server, getMetadata());
+			if (tileStore == null)
+				logger.debug("Generated tiles cannot be persisted for {}", server.getPath());
+		} catch (IOException e) {
+			logger.warn("Unable to open pyramid cache for {}: {}", server.getPath(), e.getLocalizedMessage());
+			logger.debug(e.getLocalizedMessage(), e);
+		}
+		return tileStore;
+	}
+	
+	@Override
+	public void close() throws Exception {
+		synchronized (this) {
+			if (tileStore != null)
+				tileStore.close();
+			tileStore = null;
+		}
+		super.close();
 	}
 	
 	/**
@@ -0,0 +1,621 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sidecar file used to persist tiles generated by a {@link PyramidGeneratingImageServer}, 
+ * so that they do not need to be generated again whenever the same image is opened.
+ * <p>
+ * The file begins with a key identifying the image (including the path and last modified time of the original 
+ * image, and the pyramid levels), followed by a sequence of tile records that are only ever appended.
+ * The file name depends upon the path and pyramid levels but not the last modified time, so that the file is 
+ * reset (rather than replaced) if the image is modified.
+ * Each record stores the raw pixel values along with a checksum; if the file was not closed properly, 
+ * any incomplete record at the end is discarded when the file is next opened.
+ * <p>
+ * The same file is shared between all servers within this JVM that use it, and locked to prevent 
+ * it being modified by any other process.
+ * <p>
+ * The total size of the files within the directory may be limited; whenever a new file is opened, 
+ * the least recently used files that are not currently open are deleted until the total size is within the limit.
+ */
+class PyramidTileStore implements AutoCloseable {
+	
+	private static final Logger logger = LoggerFactory.getLogger(PyramidTileStore.class);
+	
+	private static final String EXTENSION = ".qptiles";
+	
+	private static final int FILE_MAGIC = 0x51505459; // QPTY
+	private static final int RECORD_MAGIC = 0x54494C45; // TILE
+	private static final int VERSION = 1;
+	
+	private static final byte ENCODING_EMPTY = 0;
+	private static final byte ENCODING_SAMPLES = 1;
+	private static final byte ENCODING_RGB = 2;
+	private static final byte ENCODING_ARGB = 3;
+	
+	// magic, level, x, y, width, height, z, t, encoding, nBands, length, checksum
+	private static final int RECORD_HEADER_BYTES = 4 * 8 + 1 + 4 * 3;
+	
+	private static final Map<Path, PyramidTileStore> openStores = new HashMap<>();
+	
+	private final Path path;
+	private final String key;
+	private final PixelType pixelType;
+	private final FileChannel channel;
+	private final FileLock lock;
+	private final Map<TileKey, Long> index = new ConcurrentHashMap<>();
+	private int references = 0;
+	
+	private PyramidTileStore(Path path, String key, PixelType pixelType) throws IOException {
+		this.path = path;
+		this.key = key;
+		this.pixelType = pixelType;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			this.lock = channel.tryLock();
+			if (lock == null)
+				throw new IOException("Pyramid cache file " + path + " is in use by another process");
+			readIndex(key);
+			// Update the last modified time, since this is used to identify the least recently used files
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Open (or create) the tile store for a server, incrementing its reference count.
+	 * @param directory directory containing tile stores
+	 * @param maxBytes maximum total size of the files in the directory, or &le; 0 if there is no limit
+	 * @param server the original server, used to determine the image path and last modified time
+	 * @param metadata metadata of the pyramid, used to determine the levels and tile sizes
+	 * @return the store, or null if the server cannot be uniquely identified (e.g. it is not backed by a local file), 
+	 *         or if the file is already open for a different version of the image
+	 * @throws IOException if the store could not be opened
+	 */
+	static PyramidTileStore open(Path directory, long maxBytes, ImageServer<BufferedImage> server, ImageServerMetadata metadata) throws IOException {
+		long lastModified = getLastModified(server);
+		if (lastModified == Long.MIN_VALUE)
+			return null;
+		String identity = createIdentity(server, metadata);
+		String key = identity + lastModified + '\n';
+		Files.createDirectories(directory);
+		var path = directory.resolve(hash(identity) + EXTENSION).toAbsolutePath().normalize();
+		synchronized (openStores) {
+			var store = openStores.get(path);
+			if (store == null) {
+				prune(directory, maxBytes, path);
+				store = new PyramidTileStore(path, key, metadata.getPixelType());
+				openStores.put(path, store);
+			} else if (!store.key.equals(key)) {
+				// The image has been modified while the file was open - it can't be reset until it has been closed
+				logger.debug("Pyramid cache file {} is already open for a different version of {}", path, server.getPath());
+				return null;
+			}
+			store.references++;
+			return store;
+		}
+	}
+	
+	/**
+	 * Get the last modified time of the files used by a server.
+	 * @param server
+	 * @return the most recent last modified time, or {@link Long#MIN_VALUE} if the server is not backed by local files
+	 * @throws IOException
+	 */
+	static long getLastModified(ImageServer<BufferedImage> server) throws IOException {
+		var uris = server.getURIs();
+		if (uris.isEmpty())
+			return Long.MIN_VALUE;
+		long lastModified = Long.MIN_VALUE;
+		for (var uri : uris) {
+			if (!"file".equals(uri.getScheme()))
+				return Long.MIN_VALUE;
+			var file = Path.of(uri);
+			if (!Files.isRegularFile(file))
+				return Long.MIN_VALUE;
+			lastModified = Math.max(lastModified, Files.getLastModifiedTime(file).toMillis());
+		}
+		return lastModified;
+	}
+	
+	/**
+	 * Create a String that identifies the original image and generated pyramid, but not the version of the image.
+	 * @param server
+	 * @param metadata
+	 * @return
+	 */
+	static String createIdentity(ImageServer<BufferedImage> server, ImageServerMetadata metadata) {
+		var sb = new StringBuilder();
+		sb.append(server.getPath()).append('\n');
+		sb.append(metadata.getWidth()).append('x').append(metadata.getHeight()).append('\n');
+		sb.append(metadata.getPixelType()).append(' ').append(metadata.getSizeC()).append(metadata.isRGB() ? " RGB" : "").append('\n');
+		sb.append(metadata.getPreferredTileWidth()).append('x').append(metadata.getPreferredTileHeight()).append('\n');
+		for (double d : metadata.getPreferredDownsamplesArray())
+			sb.append(d).append(' ');
+		sb.append('\n');
+		return sb.toString();
+	}
+	
+	/**
+	 * Delete the least recently used files in a directory until their total size is no more than a specified limit.
+	 * Files that are currently open (either in this JVM or by another process) are never deleted.
+	 * @param directory the directory containing tile stores
+	 * @param maxBytes the maximum total size, or &le; 0 if there is no limit
+	 * @param keep a file that should not be deleted (because it is about to be opened)
+	 */
+	private static void prune(Path directory, long maxBytes, Path keep) {
+		if (maxBytes <= 0)
+			return;
+		Map<Path, BasicFileAttributes> files = new HashMap<>();
+		try (var stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+			for (var file : stream) {
+				var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				if (attributes.isRegularFile())
+					files.put(file.toAbsolutePath().normalize(), attributes);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to check size of pyramid cache directory {}: {}", directory, e.getLocalizedMessage());
+			return;
+		}
+		long total = files.values().stream().mapToLong(a -> a.size()).sum();
+		if (total <= maxBytes)
+			return;
+		var sorted = new ArrayList<>(files.keySet());
+		sorted.sort(Comparator.comparing(f -> files.get(f).lastModifiedTime()));
+		for (var file : sorted) {
+			if (total <= maxBytes)
+				break;
+			if (file.equals(keep) || openStores.containsKey(file))
+				continue;
+			if (deleteIfUnused(file)) {
+				logger.debug("Deleted pyramid cache file {}", file);
+				total -= files.get(file).size();
+			}
+		}
+	}
+	
+	/**
+	 * Delete a file, unless it is locked by another process.
+	 * @param file
+	 * @return true if the file was deleted, false otherwise
+	 */
+	private static boolean deleteIfUnused(Path file) {
+		try {
+			try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				var lock = channel.tryLock();
+				if (lock == null)
+					return false;
+				lock.release();
+			}
+			return Files.deleteIfExists(file);
+		} catch (IOException | OverlappingFileLockException e) {
+			logger.debug("Unable to delete {}: {}", file, e.getLocalizedMessage());
+			return false;
+		}
+	}
+	
+	private static String hash(String key) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			var sb = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+				sb.append(String.format("%02x", digest[i]));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is required for all Java platforms
+			throw new RuntimeException(e);
+		}
+	}
+	
+	
+	/**
+	 * Read the key and tile index from the file, resetting the file if the key does not match.
+	 * @param key
+	 * @throws IOException
+	 */
+	private void readIndex(String key) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		long size = channel.size();
+		long pos = 0;
+		if (size > 0) {
+			try {
+				var header = readFully(0, 12);
+				if (header.getInt() == FILE_MAGIC && header.getInt() == VERSION && header.getInt() == keyBytes.length) {
+					var storedKey = readFully(12, keyBytes.length);
+					if (storedKey.equals(ByteBuffer.wrap(keyBytes)))
+						pos = 12 + keyBytes.length;
+				}
+			} catch (EOFException e) {
+				pos = 0;
+			}
+		}
+		if (pos == 0) {
+			// Create a new file
+			if (size > 0)
+				logger.debug("Resetting pyramid cache file {}", path);
+			channel.truncate(0);
+			var header = ByteBuffer.allocate(12 + keyBytes.length);
+			header.putInt(FILE_MAGIC).putInt(VERSION).putInt(keyBytes.length).put(keyBytes).flip();
+			writeFully(header, 0);
+			return;
+		}
+		// Read all complete records
+		while (pos + RECORD_HEADER_BYTES <= size) {
+			var header = readFully(pos, RECORD_HEADER_BYTES);
+			if (header.getInt() != RECORD_MAGIC)
+				break;
+			var tileKey = new TileKey(header.getInt(), header.getInt(), header.getInt(), header.getInt(), header.getInt(), header.getInt(), header.getInt());
+			header.get();
+			header.getInt();
+			int length = header.getInt();
+			if (length < 0 || pos + RECORD_HEADER_BYTES + length > size)
+				break;
+			index.put(tileKey, pos);
+			pos += RECORD_HEADER_BYTES + length;
+		}
+		if (pos < size) {
+			logger.debug("Discarding {} bytes from the end of {}", size - pos, path);
+			channel.truncate(pos);
+		}
+		logger.debug("Opened pyramid cache file {} with {} tiles", path, index.size());
+	}
+	
+	/**
+	 * Get the number of tiles in the store.
+	 * @return
+	 */
+	int size() {
+		return index.size();
+	}
+	
+	/**
+	 * Get the path to the file used by this store.
+	 * @return
+	 */
+	Path getPath() {
+		return path;
+	}
+	
+	/**
+	 * Check whether a tile is available in the store.
+	 * @param tileRequest
+	 * @return
+	 */
+	boolean contains(TileRequest tileRequest) {
+		return index.containsKey(TileKey.create(tileRequest));
+	}
+	
+	/**
+	 * Read a tile from the store.
+	 * @param tileRequest the tile to read
+	 * @param colorModel color model to use for the tile, if it is not RGB
+	 * @param emptyTile image to return if the tile is known to be empty
+	 * @return the tile, or null if it is not in the store (or could not be read)
+	 */
+	BufferedImage read(TileRequest tileRequest, ColorModel colorModel, BufferedImage emptyTile) {
+		var pos = index.get(TileKey.create(tileRequest));
+		if (pos == null)
+			return null;
+		try {
+			var header = readFully(pos, RECORD_HEADER_BYTES);
+			header.position(RECORD_HEADER_BYTES - 13);
+			byte encoding = header.get();
+			int nBands = header.getInt();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if (encoding == ENCODING_EMPTY)
+				return emptyTile;
+			var buffer = readFully(pos + RECORD_HEADER_BYTES, length);
+			var crc = new CRC32();
+			crc.update(buffer.duplicate());
+			if ((int)crc.getValue() != checksum) {
+				logger.warn("Checksum failed for {} in {}", tileRequest, path);
+				index.remove(TileKey.create(tileRequest));
+				return null;
+			}
+			return decode(buffer, encoding, nBands, tileRequest.getTileWidth(), tileRequest.getTileHeight(), colorModel);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Unable to read {} from {}: {}", tileRequest, path, e.getLocalizedMessage());
+			logger.debug(e.getLocalizedMessage(), e);
+			index.remove(TileKey.create(tileRequest));
+			return null;
+		}
+	}
+	
+	/**
+	 * Write a tile to the store, if it is not already present.
+	 * @param tileRequest
+	 * @param img the tile; this is only stored if it has the width and height of the tile request
+	 * @param isEmpty true if the tile is empty, in which case the pixels are not written
+	 * @param isRGB true if the image is RGB, and should be stored as packed RGB values
+	 */
+	void write(TileRequest tileRequest, BufferedImage img, boolean isEmpty, boolean isRGB) {
+		var tileKey = TileKey.create(tileRequest);
+		if (index.containsKey(tileKey))
+			return;
+		if (!isEmpty && (img.getWidth() != tileRequest.getTileWidth() || img.getHeight() != tileRequest.getTileHeight())) {
+			logger.debug("Tile size does not match request {} - will not be stored", tileRequest);
+			return;
+		}
+		byte encoding;
+		int nBands;
+		ByteBuffer payload;
+		if (isEmpty) {
+			encoding = ENCODING_EMPTY;
+			nBands = 0;
+			payload = ByteBuffer.allocate(0);
+		} else if (isRGB) {
+			encoding = img.getColorModel().hasAlpha() ? ENCODING_ARGB : ENCODING_RGB;
+			nBands = 1;
+			int[] rgb = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+			payload = ByteBuffer.allocate(rgb.length * 4);
+			payload.asIntBuffer().put(rgb);
+		} else {
+			encoding = ENCODING_SAMPLES;
+			nBands = img.getRaster().getNumBands();
+			payload = encodeSamples(img);
+		}
+		var crc = new CRC32();
+		crc.update(payload.duplicate());
+		var header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		header.putInt(RECORD_MAGIC)
+			.putInt(tileKey.level)
+			.putInt(tileKey.x)
+			.putInt(tileKey.y)
+			.putInt(tileKey.width)
+			.putInt(tileKey.height)
+			.putInt(tileKey.z)
+			.putInt(tileKey.t)
+			.put(encoding)
+			.putInt(nBands)
+			.putInt(payload.capacity())
+			.putInt((int)crc.getValue())
+			.flip();
+		try {
+			synchronized (this) {
+				if (!channel.isOpen() || index.containsKey(tileKey))
+					return;
+				long pos = channel.size();
+				writeFully(header, pos);
+				writeFully(payload, pos + RECORD_HEADER_BYTES);
+				index.put(tileKey, pos);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to write {} to {}: {}", tileRequest, path, e.getLocalizedMessage());
+		}
+	}
+	
+	
+	private ByteBuffer encodeSamples(BufferedImage img) {
+		var raster = img.getRaster();
+		int w = raster.getWidth();
+		int h = raster.getHeight();
+		int nBands = raster.getNumBands();
+		int n = w * h;
+		var buffer = ByteBuffer.allocate(n * nBands * pixelType.getBytesPerPixel());
+		int[] ints = null;
+		float[] floats = null;
+		double[] doubles = null;
+		for (int b = 0; b < nBands; b++) {
+			switch (pixelType) {
+			case FLOAT32:
+				floats = raster.getSamples(0, 0, w, h, b, floats);
+				buffer.asFloatBuffer().put(floats);
+				break;
+			case FLOAT64:
+				doubles = raster.getSamples(0, 0, w, h, b, doubles);
+				buffer.asDoubleBuffer().put(doubles);
+				break;
+			case INT8:
+			case UINT8:
+				ints = raster.getSamples(0, 0, w, h, b, ints);
+				for (int v : ints)
+					buffer.put((byte)v);
+				break;
+			case INT16:
+			case UINT16:
+				ints = raster.getSamples(0, 0, w, h, b, ints);
+				var shorts = buffer.asShortBuffer();
+				for (int v : ints)
+					shorts.put((short)v);
+				break;
+			case INT32:
+			case UINT32:
+			default:
+				ints = raster.getSamples(0, 0, w, h, b, ints);
+				buffer.asIntBuffer().put(ints);
+				break;
+			}
+			buffer.position((b + 1) * n * pixelType.getBytesPerPixel());
+		}
+		return buffer.flip();
+	}
+	
+	
+	private BufferedImage decode(ByteBuffer buffer, byte encoding, int nBands, int w, int h, ColorModel colorModel) throws IOException {
+		int n = w * h;
+		if (encoding == ENCODING_RGB || encoding == ENCODING_ARGB) {
+			int[] rgb = new int[n];
+			buffer.asIntBuffer().get(rgb);
+			var img = new BufferedImage(w, h, encoding == ENCODING_ARGB ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+			img.setRGB(0, 0, w, h, rgb, 0, w);
+			return img;
+		}
+		if (encoding != ENCODING_SAMPLES)
+			throw new IOException("Unknown tile encoding " + encoding);
+		var raster = colorModel.createCompatibleWritableRaster(w, h);
+		if (raster.getNumBands() != nBands)
+			throw new IOException("Expected " + raster.getNumBands() + " bands but found " + nBands);
+		int bytesPerPixel = pixelType.getBytesPerPixel();
+		if (buffer.remaining() != n * nBands * bytesPerPixel)
+			throw new IOException("Unexpected tile length " + buffer.remaining());
+		int[] ints = null;
+		for (int b = 0; b < nBands; b++) {
+			buffer.position(b * n * bytesPerPixel);
+			switch (pixelType) {
+			case FLOAT32:
+				float[] floats = new float[n];
+				buffer.asFloatBuffer().get(floats);
+				raster.setSamples(0, 0, w, h, b, floats);
+				continue;
+			case FLOAT64:
+				double[] doubles = new double[n];
+				buffer.asDoubleBuffer().get(doubles);
+				raster.setSamples(0, 0, w, h, b, doubles);
+				continue;
+			default:
+				break;
+			}
+			if (ints == null)
+				ints = new int[n];
+			switch (pixelType) {
+			case INT8:
+				for (int i = 0; i < n; i++)
+					ints[i] = buffer.get();
+				break;
+			case UINT8:
+				for (int i = 0; i < n; i++)
+					ints[i] = buffer.get() & 0xFF;
+				break;
+			case INT16:
+				var shorts = buffer.asShortBuffer();
+				for (int i = 0; i < n; i++)
+					ints[i] = shorts.get();
+				break;
+			case UINT16:
+				var ushorts = buffer.asShortBuffer();
+				for (int i = 0; i < n; i++)
+					ints[i] = ushorts.get() & 0xFFFF;
+				break;
+			default:
+				buffer.asIntBuffer().get(ints);
+				break;
+			}
+			raster.setSamples(0, 0, w, h, b, ints);
+		}
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+	
+	
+	private ByteBuffer readFully(long pos, int length) throws IOException {
+		var buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, pos + buffer.position());
+			if (n < 0)
+				throw new EOFException("Unexpected end of file " + path);
+		}
+		return buffer.flip();
+	}
+	
+	private void writeFully(ByteBuffer buffer, long pos) throws IOException {
+		while (buffer.hasRemaining())
+			pos += channel.write(buffer, pos);
+	}
+
+	/**
+	 * Decrement the reference count for this store, closing the file if it is no longer used.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (openStores) {
+			references--;
+			if (references > 0)
+				return;
+			openStores.remove(path);
+		}
+		synchronized (this) {
+			if (lock.isValid())
+				lock.release();
+			channel.close();
+		}
+	}
+	
+	
+	private static class TileKey {
+		
+		private final int level, x, y, width, height, z, t;
+		
+		private TileKey(int level, int x, int y, int width, int height, int z, int t) {
+			this.level = level;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.z = z;
+			this.t = t;
+		}
+		
+		static TileKey create(TileRequest request) {
+			return new TileKey(request.getLevel(), request.getTileX(), request.getTileY(), 
+					request.getTileWidth(), request.getTileHeight(), request.getZ(), request.getT());
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(level, x, y, width, height, z, t);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TileKey))
+				return false;
+			var other = (TileKey)obj;
+			return level == other.level && x == other.x && y == other.y && 
+					width == other.width && height == other.height && z == other.z && t == other.t;
+		}
+		
+	}
+
+}
@@ -22,35 +22,56 @@
 package qupath.lib.images.writers;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
 import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
 import qupath.lib.images.servers.LabeledImageServer;
 import qupath.lib.images.servers.ImageServerMetadata.ChannelType;
 import qupath.lib.images.servers.TransformedServerBuilder;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
 import qupath.lib.io.GsonTools;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathObject;
@@ -95,6 +116,12 @@ public class TileExporter  {
 	private String labelId = null;
 
 	private ImageServer<BufferedImage> serverLabeled;
+	
+	private int readThreads = -1, encodeThreads = -1;
+	private int maxPendingTiles = -1;
+	
+	private ArchiveFormat archiveFormat = ArchiveFormat.NONE;
+	private int archiveShardSize = -1;
 
 	/**
 	 * Create a builder to export tiles.
@@ -411,6 +438,80 @@ public class TileExporter  {
 	}
 	
 
+	/**
+	 * Specify the number of threads used to read tiles from the image server, and the number 
+	 * used to encode tiles in the output format.
+	 * <p>
+	 * Reading and encoding run as separate stages, so that slow pixel access and CPU-bound 
+	 * compression can overlap. Values &leq; 0 indicate that a default should be used.
+	 * @param readThreads number of threads requesting pixels
+	 * @param encodeThreads number of threads encoding and writing tiles
+	 * @return this exporter
+	 */
+	public TileExporter parallelism(int readThreads, int encodeThreads) {
+		this.readThreads = readThreads;
+		this.encodeThreads = encodeThreads;
+		return this;
+	}
+	
+	/**
+	 * Specify the maximum number of tiles that may be in flight (read but not yet written) at any time.
+	 * This bounds the memory required during export, since tile reading is paused whenever 
+	 * the limit is reached. Values &leq; 0 indicate that a default should be used.
+	 * @param maxPendingTiles
+	 * @return this exporter
+	 */
+	public TileExporter maxPendingTiles(int maxPendingTiles) {
+		this.maxPendingTiles = maxPendingTiles;
+		return this;
+	}
+	
+	/**
+	 * Optionally write tiles into archive files, rather than as individual files within the output directory.
+	 * This can be considerably more efficient when exporting very large numbers of small tiles.
+	 * <p>
+	 * Default is {@link ArchiveFormat#NONE}.
+	 * @param format
+	 * @return this exporter
+	 * @see #archiveShardSize(int)
+	 */
+	public TileExporter archiveFormat(ArchiveFormat format) {
+		this.archiveFormat = format == null ? ArchiveFormat.NONE : format;
+		return this;
+	}
+	
+	/**
+	 * Specify the maximum number of files to write to a single archive, if {@link #archiveFormat(ArchiveFormat)} is used.
+	 * If the limit is exceeded, additional numbered archives will be created.
+	 * Values &leq; 0 indicate that all files should be written to a single archive (the default).
+	 * @param maxFiles
+	 * @return this exporter
+	 */
+	public TileExporter archiveShardSize(int maxFiles) {
+		this.archiveShardSize = maxFiles;
+		return this;
+	}
+	
+	/**
+	 * Archive formats supported for tile export.
+	 * @see TileExporter#archiveFormat(ArchiveFormat)
+	 */
+	public static enum ArchiveFormat {
+		/**
+		 * Write each tile as a separate file
+		 */
+		NONE,
+		/**
+		 * Write tiles to uncompressed zip archives
+		 */
+		ZIP,
+		/**
+		 * Write tiles to tar archives
+		 */
+		TAR
+	}
+	
+
 	/**
 	 * Export the image tiles to the specified directory.
 	 * @param dirOutput full path to the export directory
@@ -421,42 +522,46 @@ public class TileExporter  {
 		if (!new File(dirOutput).isDirectory())
 			throw new IOException("Output directory " + dirOutput + " does not exist!");
 		
+		if (parentObjects == null && (overlapX >= tileWidth || overlapY >= tileHeight))
+			throw new IllegalArgumentException("Tile overlap must be smaller than the tile size!");
+		
 		// Make sure we have any required subdirectories
-		if (imageSubDir != null)
-			new File(dirOutput, imageSubDir).mkdirs();
-		if (labelSubDir != null)
-			new File(dirOutput, labelSubDir).mkdirs();
+		if (archiveFormat == ArchiveFormat.NONE) {
+			if (imageSubDir != null)
+				new File(dirOutput, imageSubDir).mkdirs();
+			if (labelSubDir != null)
+				new File(dirOutput, labelSubDir).mkdirs();
+		}
 
 		if (serverLabeled != null) {
 			if (extLabeled == null)
 				extLabeled = serverLabeled.getMetadata().getChannelType() == ChannelType.CLASSIFICATION ? ".png" : ".tif";
 		}
 
-		var pool = Executors.newWorkStealingPool(4);
-
 		var server = this.server;
 		var labeledServer = serverLabeled;
-		Collection<RegionRequest> requests;
+		Iterator<RegionRequest> requests;
 		
-		// Work out which RegionRequests to use
+		// Work out which RegionRequests to use - for tiles, these are generated lazily
 		if (parentObjects == null) {
 			requests = getTiledRegionRequests(server,
 					downsample, tileWidth, tileHeight, overlapX, overlapY, includePartialTiles);			
 		} else {
-			requests = new ArrayList<>();
+			var parentRequests = new ArrayList<RegionRequest>();
 			for (var parent : parentObjects) {
 				if (parent.isRootObject()) {
 					for (int t = 0; t < server.nTimepoints(); t++) {
 						for (int z = 0; z < server.nZSlices(); z++) {
-							requests.add(RegionRequest.createInstance(server.getPath(), downsample, 0, 0, server.getWidth(), server.getHeight(), z, t));
+							parentRequests.add(RegionRequest.createInstance(server.getPath(), downsample, 0, 0, server.getWidth(), server.getHeight(), z, t));
 						}						
 					}
 				} else if (parent.hasROI()) {
-					requests.add(RegionRequest.createInstance(server.getPath(), downsample, parent.getROI()));
+					parentRequests.add(RegionRequest.createInstance(server.getPath(), downsample, parent.getROI()));
 				}
 			}
+			requests = parentRequests.iterator();
 		}
-		if (requests.isEmpty()) {
+		if (!requests.hasNext()) {
 			logger.warn("No regions to export!");
 			return;
 		}
@@ -474,145 +579,213 @@ public class TileExporter  {
 			imagePathName = uris.iterator().next().toString();
 		else
 			imagePathName = "[" + uris.stream().map(u -> u.toString()).collect(Collectors.joining("|")) + "]";
-
-//		// If we have pixel calibration information, use it in the export
-//		PixelCalibration pixelSize = server.getPixelCalibration();
-//		if (pixelSize.equals(PixelCalibration.getDefaultInstance()))
-//			pixelSize = null;
-//		else
-//			pixelSize = pixelSize.createScaledInstance(downsample, downsample);
-		
 		
 		int tileWidth = includePartialTiles || parentObjects != null ? -1 : this.tileWidth;
 		int tileHeight = includePartialTiles || parentObjects != null ? -1 : this.tileHeight;
 		
-		// Maintain a record of what we exported
-		List<TileExportEntry> exportImages = new ArrayList<>();
-
-		for (var r : requests) {
-			String baseName = String.format("%s [%s]", imageName, getRegionString(r));
-			
-			String exportImageName = baseName + ext;
-			if (imageSubDir != null)
-				exportImageName = Paths.get(imageSubDir, exportImageName).toString();
-			String pathImageOutput = Paths.get(dirOutput, exportImageName).toAbsolutePath().toString();
+		int nProcessors = Runtime.getRuntime().availableProcessors();
+		int nRead = readThreads > 0 ? readThreads : Math.min(4, nProcessors);
+		int nEncode = encodeThreads > 0 ? encodeThreads : nProcessors;
+		int maxPending = maxPendingTiles > 0 ? maxPendingTiles : 4 * (nRead + nEncode);
+		
+		// Permits are acquired before a tile is read & released after it has been written, 
+		// so that reading can never get too far ahead of writing
+		var permits = new Semaphore(maxPending);
+		var poolRead = Executors.newFixedThreadPool(nRead, ThreadTools.createThreadFactory("tile-export-read-", true));
+		var poolEncode = Executors.newFixedThreadPool(nEncode, ThreadTools.createThreadFactory("tile-export-encode-", true));
+		
+		var sink = createTileSink(dirOutput, imageName);
+		TileIndexWriter index = null;
+		try {
+			index = exportJson ? createTileIndex(dirOutput, imageName, labeledServer) : null;
 			
-			// If we want only annotated tiles, skip regions that lack them
-			if (annotatedCentroidTilesOnly) {
-				double cx = (r.getMinX() + r.getMaxX()) / 2.0;
-				double cy = (r.getMinY() + r.getMaxY()) / 2.0;
-				if (labeledServer != null && (labeledServer instanceof LabeledImageServer)) {
-					if (!((LabeledImageServer)labeledServer).getObjectsForRegion(r)
-							.stream()
-							.anyMatch(p -> p.getROI().contains(cx, cy))) {
-						logger.trace("Skipping empty labelled region based on centroid test {}", r);
-						continue;
-					}
-				} else if (imageData != null) {
-					if (PathObjectTools.getObjectsForLocation(imageData.getHierarchy(),
-							cx, cy, r.getZ(), r.getT(), 0).isEmpty())
-						continue;
-				}
-			} else if (annotatedTilesOnly) {
-				if (labeledServer != null) {
-					if (labeledServer.isEmptyRegion(r)) {
-						logger.trace("Skipping empty labelled region {}", r);
-						continue;
-					}
-				} else if (imageData != null) {
-					if (!imageData.getHierarchy().getObjectsForRegion(PathAnnotationObject.class, r, null)
-							.stream().anyMatch(p -> RoiTools.intersectsRegion(p.getROI(), r)))
-						continue;
+			int nTiles = 0;
+			long startTime = System.currentTimeMillis();
+			while (requests.hasNext()) {
+				var r = requests.next();
+				permits.acquire();
+				try {
+					poolRead.execute(new ExportTask(
+							server, labeledServer, r, dirOutput, imageName, imagePathName,
+							tileWidth, tileHeight, poolEncode, sink, index, permits));
+				} catch (RejectedExecutionException e) {
+					permits.release();
+					throw e;
 				}
+				nTiles++;
 			}
 			
-			ExportTask taskImage = new ExportTask(server, r, pathImageOutput, tileWidth, tileHeight);
-
-			String exportLabelName = null;
-			ExportTask taskLabels = null;
-			if (labeledServer != null) {
-				String labelName = baseName;
-				if ((labelSubDir == null || labelSubDir.equals(imageSubDir)) && labelId == null && ext.equals(extLabeled)) {
-					labelName = baseName + "-labelled";
-				} else if (labelId != null)
-					labelName = baseName + labelId;
-				exportLabelName = labelName + extLabeled;
-				if (labelSubDir != null)
-					exportLabelName = Paths.get(labelSubDir, exportLabelName).toString();
-				String pathLabelsOutput = Paths.get(dirOutput, exportLabelName).toAbsolutePath().toString();
-
-				taskLabels = new ExportTask(labeledServer, r.updatePath(labeledServer.getPath()),
-						pathLabelsOutput, tileWidth, tileHeight);
+			// All encoding tasks are submitted by read tasks, so wait for reading to finish first
+			poolRead.shutdown();
+			if (!poolRead.awaitTermination(24, TimeUnit.HOURS))
+				throw new IOException("Timed out waiting for tiles to be read");
+			poolEncode.shutdown();
+			if (!poolEncode.awaitTermination(24, TimeUnit.HOURS))
+				throw new IOException("Timed out waiting for tiles to be written");
+			logger.debug("Processed {} tile requests for {} in {} ms", nTiles, imageName, System.currentTimeMillis() - startTime);
+		} catch (InterruptedException e) {
+			logger.error("Tile export interrupted: {}", e);
+			logger.error("", e);
+			Thread.currentThread().interrupt();
+		} finally {
+			// Make sure no tasks are still running before closing the outputs
+			poolRead.shutdownNow();
+			poolEncode.shutdownNow();
+			awaitTermination(poolRead);
+			awaitTermination(poolEncode);
+			try {
+				if (index != null)
+					index.close();
+			} finally {
+				sink.close();
 			}
-			exportImages.add(new TileExportEntry(
-					r.updatePath(imagePathName),
-//					pixelSize,
-					exportImageName,
-					exportLabelName));
-
-			if (taskImage != null)
-				pool.submit(taskImage);
-			if (taskLabels != null) {
-				pool.submit(taskLabels);
+		}
+	}
+	
+	/**
+	 * Wait for a pool to terminate after it has been shut down, without responding to interrupts.
+	 * Tasks will already have been interrupted, so this should be quick.
+	 */
+	private static void awaitTermination(ExecutorService pool) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					if (!pool.awaitTermination(1, TimeUnit.MINUTES))
+						logger.warn("Timed out waiting for tile export tasks to stop");
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
 			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
 		}
-		
-		// Write JSON, if we need to
-		if (exportJson) {
-			var gson = GsonTools.getInstance(true)
-					.newBuilder()
-					.disableHtmlEscaping() // Required to support = in filenames
-					.create();
-			var data = new TileExportData(dirOutput, exportImages);
-			if (labeledServer instanceof LabeledImageServer) {
-				var labels = ((LabeledImageServer) labeledServer).getLabels();
-				var boundaryLabels = ((LabeledImageServer) labeledServer).getBoundaryLabels();
-				List<TileExportLabel> labelList = new ArrayList<>();
-				Set<PathClass> existingLabels = new HashSet<>();
-				for (var entry : labels.entrySet()) {
-					var pathClass = entry.getKey();
-					var label = new TileExportLabel(pathClass.toString(), entry.getValue(), boundaryLabels.getOrDefault(pathClass, null));
-					labelList.add(label);
+	}
+	
+	
+	/**
+	 * Check whether a region should be skipped without reading any pixels, based upon annotation filters.
+	 * @param r
+	 * @param labeledServer
+	 * @return
+	 */
+	private boolean skipRegion(RegionRequest r, ImageServer<BufferedImage> labeledServer) {
+		// If we want only annotated tiles, skip regions that lack them
+		if (annotatedCentroidTilesOnly) {
+			double cx = (r.getMinX() + r.getMaxX()) / 2.0;
+			double cy = (r.getMinY() + r.getMaxY()) / 2.0;
+			if (labeledServer != null && (labeledServer instanceof LabeledImageServer)) {
+				if (!((LabeledImageServer)labeledServer).getObjectsForRegion(r)
+						.stream()
+						.anyMatch(p -> p.getROI().contains(cx, cy))) {
+					logger.trace("Skipping empty labelled region based on centroid test {}", r);
+					return true;
 				}
-				for (var entry : boundaryLabels.entrySet()) {
-					var pathClass = entry.getKey();
-					if (!existingLabels.contains(pathClass)) {
-						var label = new TileExportLabel(pathClass.toString(), null, boundaryLabels.getOrDefault(pathClass, null));
-						labelList.add(label);
-					}
+			} else if (imageData != null) {
+				if (PathObjectTools.getObjectsForLocation(imageData.getHierarchy(),
+						cx, cy, r.getZ(), r.getT(), 0).isEmpty())
+					return true;
+			}
+		} else if (annotatedTilesOnly) {
+			if (labeledServer != null) {
+				if (labeledServer.isEmptyRegion(r)) {
+					logger.trace("Skipping empty labelled region {}", r);
+					return true;
 				}
-				data.labels = labelList;
+			} else if (imageData != null) {
+				if (!imageData.getHierarchy().getObjectsForRegion(PathAnnotationObject.class, r, null)
+						.stream().anyMatch(p -> RoiTools.intersectsRegion(p.getROI(), r)))
+					return true;
 			}
-			var pathJson = Paths.get(dirOutput, imageName + "-tiles.json");
-			if (Files.exists(pathJson)) {
-				logger.warn("Overwriting existing JSON file {}", pathJson);
+		}
+		return false;
+	}
+	
+	private TileSink createTileSink(String dirOutput, String imageName) {
+		switch (archiveFormat) {
+		case TAR:
+			return new TarTileSink(dirOutput, imageName + "-tiles", archiveShardSize);
+		case ZIP:
+			return new ZipTileSink(dirOutput, imageName + "-tiles", archiveShardSize);
+		case NONE:
+		default:
+			return new DirectoryTileSink(dirOutput);
+		}
+	}
+	
+	private TileIndexWriter createTileIndex(String dirOutput, String imageName, ImageServer<BufferedImage> labeledServer) throws IOException {
+		var gson = GsonTools.getInstance(true)
+				.newBuilder()
+				.disableHtmlEscaping() // Required to support = in filenames
+				.create();
+		List<TileExportLabel> labelList = null;
+		if (labeledServer instanceof LabeledImageServer) {
+			var labels = ((LabeledImageServer) labeledServer).getLabels();
+			var boundaryLabels = ((LabeledImageServer) labeledServer).getBoundaryLabels();
+			labelList = new ArrayList<>();
+			Set<PathClass> existingLabels = new HashSet<>();
+			for (var entry : labels.entrySet()) {
+				var pathClass = entry.getKey();
+				existingLabels.add(pathClass);
+				var label = new TileExportLabel(pathClass.toString(), entry.getValue(), boundaryLabels.getOrDefault(pathClass, null));
+				labelList.add(label);
 			}
-			try (var writer = Files.newBufferedWriter(pathJson, StandardCharsets.UTF_8)) {
-				gson.toJson(data, writer);
+			for (var entry : boundaryLabels.entrySet()) {
+				var pathClass = entry.getKey();
+				if (!existingLabels.contains(pathClass)) {
+					var label = new TileExportLabel(pathClass.toString(), null, boundaryLabels.getOrDefault(pathClass, null));
+					labelList.add(label);
+				}
 			}
 		}
-
-		pool.shutdown();
-		try {
-			pool.awaitTermination(24, TimeUnit.HOURS);
-		} catch (InterruptedException e) {
-			pool.shutdownNow();
-			logger.error("Tile export interrupted: {}", e);
-			logger.error("", e);
+		var pathJson = Paths.get(dirOutput, imageName + "-tiles.json");
+		if (Files.exists(pathJson)) {
+			logger.warn("Overwriting existing JSON file {}", pathJson);
 		}
+		return new TileIndexWriter(gson, pathJson, dirOutput, labelList);
 	}
 	
 	
-	private static class TileExportData {
+	/**
+	 * Write the JSON index incrementally as tiles are written, so that entries never need to be 
+	 * accumulated in memory.
+	 */
+	private static class TileIndexWriter implements AutoCloseable {
 		
-		private String qupath_version = GeneralTools.getVersion();
-		private String base_directory;
-		private List<TileExportLabel> labels;
-		private List<TileExportEntry> tiles;
+		private Gson gson;
+		private JsonWriter writer;
+		private boolean closed = false;
 		
-		TileExportData(String path, List<TileExportEntry> images) {
-			this.base_directory = path;
-			this.tiles = images;
+		TileIndexWriter(Gson gson, Path path, String baseDirectory, List<TileExportLabel> labels) throws IOException {
+			this.gson = gson;
+			this.writer = gson.newJsonWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8));
+			writer.beginObject();
+			writer.name("qupath_version").value(GeneralTools.getVersion());
+			writer.name("base_directory").value(baseDirectory);
+			if (labels != null) {
+				writer.name("labels");
+				gson.toJson(gson.toJsonTree(labels), writer);
+			}
+			writer.name("tiles");
+			writer.beginArray();
+		}
+		
+		synchronized void add(TileExportEntry entry) throws IOException {
+			if (closed)
+				throw new IOException("Tile index has already been closed");
+			gson.toJson(entry, TileExportEntry.class, writer);
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			writer.endArray();
+			writer.endObject();
+			writer.close();
 		}
 		
 	}
@@ -634,57 +807,379 @@ public class TileExporter  {
 	private static class TileExportEntry {
 		
 		private RegionRequest region;
-//		private PixelCalibration pixel_size;
 		private String image;
 		private String labels;
+		private String archive;
 		
-		TileExportEntry (RegionRequest region, String image, String labels) {
+		TileExportEntry (RegionRequest region, String image, String labels, String archive) {
 			this.region = region;
-//			this.pixel_size = pixelSize;
 			this.image = image;
 			this.labels = labels;
+			this.archive = archive;
+		}
+		
+	}
+	
+	
+	/**
+	 * Destination for encoded tiles.
+	 */
+	private static interface TileSink extends AutoCloseable {
+		
+		/**
+		 * Write the bytes for a single file.
+		 * @param name relative file name, possibly including a subdirectory
+		 * @param bytes
+		 * @return the name of the archive containing the file, or null if the file is written directly
+		 * @throws IOException
+		 */
+		String write(String name, byte[] bytes) throws IOException;
+		
+		@Override
+		void close() throws IOException;
+		
+	}
+	
+	private static class DirectoryTileSink implements TileSink {
+		
+		private String dirOutput;
+		
+		DirectoryTileSink(String dirOutput) {
+			this.dirOutput = dirOutput;
+		}
+
+		@Override
+		public String write(String name, byte[] bytes) throws IOException {
+			Files.write(Paths.get(dirOutput, name), bytes);
+			return null;
+		}
+
+		@Override
+		public void close() {}
+		
+	}
+	
+	/**
+	 * Base class for sinks writing to (possibly sharded) archives.
+	 * Writing is synchronized, so that each archive is written sequentially.
+	 */
+	private static abstract class ArchiveTileSink implements TileSink {
+		
+		private String dirOutput;
+		private String baseName;
+		private String ext;
+		private int shardSize;
+		
+		private OutputStream stream;
+		private String currentName;
+		private int shardIndex = 0;
+		private int nFilesInShard = 0;
+		private boolean closed = false;
+		
+		ArchiveTileSink(String dirOutput, String baseName, String ext, int shardSize) {
+			this.dirOutput = dirOutput;
+			this.baseName = baseName;
+			this.ext = ext;
+			this.shardSize = shardSize;
+		}
+		
+		@Override
+		public synchronized String write(String name, byte[] bytes) throws IOException {
+			if (closed)
+				throw new IOException("Cannot write " + name + " - archive has already been closed");
+			if (stream == null || (shardSize > 0 && nFilesInShard >= shardSize)) {
+				closeArchive();
+				currentName = shardSize > 0 ? String.format("%s-%05d%s", baseName, shardIndex, ext) : baseName + ext;
+				shardIndex++;
+				var path = Paths.get(dirOutput, currentName);
+				if (Files.exists(path))
+					logger.warn("Overwriting existing archive {}", path);
+				stream = openArchive(new BufferedOutputStream(Files.newOutputStream(path)));
+			}
+			// Archives always use '/' as the separator
+			writeEntry(stream, name.replace(File.separatorChar, '/'), bytes);
+			nFilesInShard++;
+			return currentName;
+		}
+		
+		private void closeArchive() throws IOException {
+			if (stream != null) {
+				finishArchive(stream);
+				stream.close();
+				stream = null;
+			}
+			nFilesInShard = 0;
+		}
+		
+		abstract OutputStream openArchive(OutputStream stream) throws IOException;
+		
+		abstract void writeEntry(OutputStream stream, String name, byte[] bytes) throws IOException;
+		
+		abstract void finishArchive(OutputStream stream) throws IOException;
+
+		@Override
+		public synchronized void close() throws IOException {
+			closed = true;
+			closeArchive();
+		}
+		
+	}
+	
+	/**
+	 * Write tiles to zip archives without compression, since tiles are usually encoded in a compressed format already.
+	 */
+	private static class ZipTileSink extends ArchiveTileSink {
+		
+		ZipTileSink(String dirOutput, String baseName, int shardSize) {
+			super(dirOutput, baseName, ".zip", shardSize);
+		}
+
+		@Override
+		OutputStream openArchive(OutputStream stream) {
+			return new ZipOutputStream(stream);
+		}
+
+		@Override
+		void writeEntry(OutputStream stream, String name, byte[] bytes) throws IOException {
+			var zip = (ZipOutputStream)stream;
+			var crc = new CRC32();
+			crc.update(bytes);
+			var entry = new ZipEntry(name);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(bytes.length);
+			entry.setCompressedSize(bytes.length);
+			entry.setCrc(crc.getValue());
+			zip.putNextEntry(entry);
+			zip.write(bytes);
+			zip.closeEntry();
+		}
+
+		@Override
+		void finishArchive(OutputStream stream) throws IOException {
+			((ZipOutputStream)stream).finish();
+		}
+		
+	}
+	
+	/**
+	 * Write tiles to ustar archives, using GNU long name entries where necessary.
+	 */
+	private static class TarTileSink extends ArchiveTileSink {
+		
+		private static final int BLOCK_SIZE = 512;
+		
+		TarTileSink(String dirOutput, String baseName, int shardSize) {
+			super(dirOutput, baseName, ".tar", shardSize);
+		}
+
+		@Override
+		OutputStream openArchive(OutputStream stream) {
+			return stream;
+		}
+
+		@Override
+		void writeEntry(OutputStream stream, String name, byte[] bytes) throws IOException {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			long mtime = System.currentTimeMillis() / 1000L;
+			if (nameBytes.length > 100) {
+				byte[] longName = Arrays.copyOf(nameBytes, nameBytes.length + 1);
+				stream.write(createHeader("././@LongLink".getBytes(StandardCharsets.US_ASCII), longName.length, 0L, (byte)'L'));
+				writePadded(stream, longName);
+				nameBytes = Arrays.copyOf(nameBytes, 100);
+			}
+			stream.write(createHeader(nameBytes, bytes.length, mtime, (byte)'0'));
+			writePadded(stream, bytes);
+		}
+		
+		private static void writePadded(OutputStream stream, byte[] bytes) throws IOException {
+			stream.write(bytes);
+			int remainder = bytes.length % BLOCK_SIZE;
+			if (remainder != 0)
+				stream.write(new byte[BLOCK_SIZE - remainder]);
+		}
+		
+		private static byte[] createHeader(byte[] name, long size, long mtime, byte type) {
+			byte[] header = new byte[BLOCK_SIZE];
+			System.arraycopy(name, 0, header, 0, Math.min(100, name.length));
+			putOctal(header, 100, 8, 0644);
+			putOctal(header, 108, 8, 0);
+			putOctal(header, 116, 8, 0);
+			putOctal(header, 124, 12, size);
+			putOctal(header, 136, 12, mtime);
+			Arrays.fill(header, 148, 156, (byte)' ');
+			header[156] = type;
+			System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+			long checksum = 0;
+			for (byte b : header)
+				checksum += b & 0xFF;
+			putOctal(header, 148, 7, checksum);
+			return header;
+		}
+		
+		/**
+		 * Write a zero-padded, null-terminated octal value.
+		 */
+		private static void putOctal(byte[] header, int offset, int length, long value) {
+			String s = Long.toOctalString(value);
+			int nDigits = length - 1;
+			if (s.length() > nDigits)
+				throw new IllegalArgumentException("Value " + value + " too large for tar header field");
+			for (int i = 0; i < nDigits; i++) {
+				int ind = i - (nDigits - s.length());
+				header[offset + i] = ind < 0 ? (byte)'0' : (byte)s.charAt(ind);
+			}
+			header[offset + nDigits] = 0;
+		}
+
+		@Override
+		void finishArchive(OutputStream stream) throws IOException {
+			stream.write(new byte[BLOCK_SIZE * 2]);
 		}
 		
 	}
 	
 
 
-	static class ExportTask implements Runnable {
+	/**
+	 * Task to read the pixels for a single region (and its labels, if required) and pass them on to be encoded.
+	 * Filters requiring only object information are applied before any pixels are read.
+	 */
+	private class ExportTask implements Runnable {
 
 		private ImageServer<BufferedImage> server;
+		private ImageServer<BufferedImage> labeledServer;
 		private RegionRequest request;
-		private String path;
+		private String dirOutput;
+		private String imageName;
+		private String imagePathName;
 		private int tileWidth, tileHeight;
+		
+		private ExecutorService poolEncode;
+		private TileSink sink;
+		private TileIndexWriter index;
+		private Semaphore permits;
 
-		private ExportTask(ImageServer<BufferedImage> server, RegionRequest request, String path, int tileWidth, int tileHeight) {
+		private ExportTask(ImageServer<BufferedImage> server, ImageServer<BufferedImage> labeledServer,
+				RegionRequest request, String dirOutput, String imageName, String imagePathName,
+				int tileWidth, int tileHeight,
+				ExecutorService poolEncode, TileSink sink, TileIndexWriter index, Semaphore permits) {
 			this.server = server;
+			this.labeledServer = labeledServer;
 			this.request = request;
-			this.path = path;
+			this.dirOutput = dirOutput;
+			this.imageName = imageName;
+			this.imagePathName = imagePathName;
 			this.tileWidth = tileWidth;
 			this.tileHeight = tileHeight;
+			this.poolEncode = poolEncode;
+			this.sink = sink;
+			this.index = index;
+			this.permits = permits;
 		}
 
 		@Override
 		public void run() {
+			boolean handedOff = false;
 			try {
-				var img = server.readBufferedImage(request);
-				if ((tileWidth > 0 && tileHeight > 0) && (img.getWidth() != tileWidth || img.getHeight() != tileHeight)) {
-					logger.warn("Resizing tile from {}x{} to {}x{}", img.getWidth(), img.getHeight(), tileWidth, tileHeight);
-					img = BufferedImageTools.resize(img, tileWidth, tileHeight, false);
+				if (Thread.currentThread().isInterrupted() || skipRegion(request, labeledServer))
+					return;
+				
+				String baseName = String.format("%s [%s]", imageName, getRegionString(request));
+				String exportImageName = baseName + ext;
+				if (imageSubDir != null)
+					exportImageName = Paths.get(imageSubDir, exportImageName).toString();
+				
+				var img = readTile(server, request);
+				
+				String exportLabelName = null;
+				BufferedImage imgLabels = null;
+				if (labeledServer != null) {
+					String labelName = baseName;
+					if ((labelSubDir == null || labelSubDir.equals(imageSubDir)) && labelId == null && ext.equals(extLabeled)) {
+						labelName = baseName + "-labelled";
+					} else if (labelId != null)
+						labelName = baseName + labelId;
+					exportLabelName = labelName + extLabeled;
+					if (labelSubDir != null)
+						exportLabelName = Paths.get(labelSubDir, exportLabelName).toString();
+					imgLabels = readTile(labeledServer, request.updatePath(labeledServer.getPath()));
+				}
+				
+				if (Thread.currentThread().isInterrupted()) {
+					logger.debug("Interrupted! Will not write image to {}", exportImageName);
+					return;
 				}
-				if (!Thread.currentThread().isInterrupted())
-					ImageWriterTools.writeImageRegion(server, request, path);
-				else
-					logger.debug("Interrupted! Will not write image to {}", path);
-				//				ImageWriterTools.writeImage(img, path);
+				
+				var finalImg = img;
+				var finalLabels = imgLabels;
+				var finalImageName = exportImageName;
+				var finalLabelName = exportLabelName;
+				poolEncode.execute(() -> {
+					try {
+						String archive = sink.write(finalImageName, encodeTile(server, finalImg, ext));
+						if (finalLabels != null)
+							sink.write(finalLabelName, encodeTile(labeledServer, finalLabels, extLabeled));
+						if (index != null)
+							index.add(new TileExportEntry(request.updatePath(imagePathName), finalImageName, finalLabelName, archive));
+					} catch (Exception e) {
+						logger.error("Error writing tile: " + e.getLocalizedMessage(), e);
+					} finally {
+						permits.release();
+					}
+				});
+				handedOff = true;
 			} catch (Exception e) {
-				logger.error("Error writing tile: " + e.getLocalizedMessage(), e);
+				logger.error("Error reading tile: " + e.getLocalizedMessage(), e);
+			} finally {
+				if (!handedOff)
+					permits.release();
+			}
+		}
+		
+		private BufferedImage readTile(ImageServer<BufferedImage> server, RegionRequest request) throws IOException {
+			var img = server.readBufferedImage(request);
+			if ((tileWidth > 0 && tileHeight > 0) && (img.getWidth() != tileWidth || img.getHeight() != tileHeight)) {
+				logger.warn("Resizing tile from {}x{} to {}x{}", img.getWidth(), img.getHeight(), tileWidth, tileHeight);
+				img = BufferedImageTools.resize(img, tileWidth, tileHeight, false);
+			}
+			return img;
+		}
+		
+		/**
+		 * Encode an image that has already been read, retaining the channels, channel type and 
+		 * pixel size (at the export resolution) of the server from which it was read.
+		 */
+		private byte[] encodeTile(ImageServer<BufferedImage> server, BufferedImage img, String ext) throws IOException {
+			var metadata = server.getMetadata();
+			var wrapped = new WrappedBufferedImageServer(metadata.getName(), img, metadata.getChannels());
+			var builder = new ImageServerMetadata.Builder(wrapped.getMetadata())
+					.channelType(metadata.getChannelType());
+			if (metadata.getChannelType() == ChannelType.CLASSIFICATION)
+				builder.classificationLabels(metadata.getClassificationLabels());
+			var cal = server.getPixelCalibration();
+			if (cal.hasPixelSizeMicrons()) {
+				builder.pixelSizeMicrons(
+						cal.getPixelWidthMicrons() * request.getWidth() / img.getWidth(),
+						cal.getPixelHeightMicrons() * request.getHeight() / img.getHeight());
+			}
+			wrapped.setMetadata(builder.build());
+			
+			var stream = new ByteArrayOutputStream();
+			for (var writer : ImageWriterTools.getCompatibleWriters(wrapped, ext)) {
+				try {
+					writer.writeImage(wrapped, stream);
+					return stream.toByteArray();
+				} catch (Exception e) {
+					logger.warn("Unable to write image", e);
+					stream.reset();
+				}
 			}
+			throw new IOException("Unable to write " + ext + " tile!  No compatible writer found.");
 		}
 
 	}
-	
-	
+
+
 	private static ThreadLocal<NumberFormat> formatter = ThreadLocal.withInitial(() -> createDefaultNumberFormat(5));
 
 	private static NumberFormat createDefaultNumberFormat(int maxFractionDigits) {
@@ -718,10 +1213,14 @@ public class TileExporter  {
 
 
 
-	Collection<RegionRequest> getTiledRegionRequests(
+	/**
+	 * Get the tiled region requests for all the required z-slices and timepoints.
+	 * Requests are generated lazily, one row of tiles at a time, so that this remains 
+	 * cheap even for very large images.
+	 */
+	Iterator<RegionRequest> getTiledRegionRequests(
 			ImageServer<?> server, double downsample, 
 			int tileWidth, int tileHeight, int xOverlap, int yOverlap, boolean includePartialTiles) {
-		List<RegionRequest> requests = new ArrayList<>();
 		
 		if (downsample == 0)
 			throw new IllegalArgumentException("No downsample was specified!");
@@ -739,16 +1238,15 @@ public class TileExporter  {
 
 		// Create another region to account for ImageRegion and RegionRequest params simultaneously
 		var region2 = RegionRequest.createInstance(server.getPath(), downsample, region);
+		List<RegionRequest> planes = new ArrayList<>();
 		for (int t = minT; t < maxT; t++) {
-			region2 = region2.updateT(t);
 			for (int z = minZ; z < maxZ; z++) {
-				region2 = region2.updateZ(z);
-				requests.addAll(
-						splitRegionRequests(region2, tileWidth, tileHeight, xOverlap, yOverlap, includePartialTiles)
-						);
+				planes.add(region2.updateT(t).updateZ(z));
 			}
 		}
-		return requests;
+		return planes.stream()
+				.flatMap(r -> streamRegionRequests(r, tileWidth, tileHeight, xOverlap, yOverlap, includePartialTiles))
+				.iterator();
 	}
 
 	/**
@@ -765,63 +1263,96 @@ public class TileExporter  {
 	 * @param yOverlap
 	 * @param includePartialTiles
 	 * @return
+	 * @see #streamRegionRequests(RegionRequest, int, int, int, int, boolean)
 	 */
 	static Collection<RegionRequest> splitRegionRequests(
 			RegionRequest request,
 			int tileWidth, int tileHeight,
 			int xOverlap, int yOverlap,
 			boolean includePartialTiles) {
+		return streamRegionRequests(request, tileWidth, tileHeight, xOverlap, yOverlap, includePartialTiles)
+				.collect(Collectors.toCollection(LinkedHashSet::new));
+	}
+	
+	/**
+	 * Lazily split a single RegionRequest into multiple requests, in the same order as 
+	 * {@link #splitRegionRequests(RegionRequest, int, int, int, int, boolean)}.
+	 * Only a single row of requests is held in memory at any time.
+	 * 
+	 * @param request
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param xOverlap
+	 * @param yOverlap
+	 * @param includePartialTiles
+	 * @return
+	 */
+	static Stream<RegionRequest> streamRegionRequests(
+			RegionRequest request,
+			int tileWidth, int tileHeight,
+			int xOverlap, int yOverlap,
+			boolean includePartialTiles) {
 
-		var set = new LinkedHashSet<RegionRequest>();
+		double downsample = request.getDownsample();
 
+		int minY = (int)(request.getMinY() / downsample);
+		int maxY = (int)(request.getMaxY() / downsample);
+
+		// Rows can only contain duplicate tiles if they have identical y bounds - 
+		// and, since y is increasing, these can only occur consecutively
+		int[] lastRow = {-1, -1};
+		return IntStream.iterate(minY, y -> y < maxY, y -> y + tileHeight - yOverlap)
+				.mapToObj(y -> {
+					int yi = (int)Math.round(y * downsample);
+					int y2i = (int)Math.round((y + tileHeight) * downsample);
+
+					if (y2i > maxY) {
+						if (!includePartialTiles)
+							return null;
+						y2i = maxY;
+					} else if (y2i == yi)
+						return null;
+					
+					if (lastRow[0] == yi && lastRow[1] == y2i)
+						return null;
+					lastRow[0] = yi;
+					lastRow[1] = y2i;
+					return splitRow(request, yi, y2i, tileWidth, xOverlap, includePartialTiles);
+				})
+				.filter(Objects::nonNull)
+				.flatMap(Collection::stream);
+	}
+	
+	private static Collection<RegionRequest> splitRow(RegionRequest request, int yi, int y2i,
+			int tileWidth, int xOverlap, boolean includePartialTiles) {
+		
+		var set = new LinkedHashSet<RegionRequest>();
+		
 		double downsample = request.getDownsample();
 		String path = request.getPath();
 
 		int minX = (int)(request.getMinX() / downsample);
-		int minY = (int)(request.getMinY() / downsample);
 		int maxX = (int)(request.getMaxX() / downsample);
-		int maxY = (int)(request.getMaxY() / downsample);
 
 		int z = request.getZ();
 		int t = request.getT();
 
-		for (int y = minY; y < maxY; y += tileHeight-yOverlap) {
-			int th = tileHeight;
-			if (y + th > maxY)
-				th = maxY - y;
-
-			int yi = (int)Math.round(y * downsample);
-			int y2i = (int)Math.round((y + tileHeight) * downsample);
+		for (int x = minX; x < maxX; x += tileWidth-xOverlap) {
+			int xi = (int)Math.round(x * downsample);
+			int x2i = (int)Math.round((x + tileWidth) * downsample);
 
-			if (y2i > maxY) {
+			if (x2i > maxX) {
 				if (!includePartialTiles)
 					continue;
-				y2i = maxY;
-			} else if (y2i == yi)
+				x2i = maxX;
+			} else if (x2i == xi)
 				continue;
 
-			for (int x = minX; x < maxX; x += tileWidth-xOverlap) {
-				int tw = tileWidth;
-				if (x + tw > maxX)
-					tw = maxX - x;
-
-				int xi = (int)Math.round(x * downsample);
-				int x2i = (int)Math.round((x + tileWidth) * downsample);
-
-				if (x2i > maxX) {
-					if (!includePartialTiles)
-						continue;
-					x2i = maxX;
-				} else if (x2i == xi)
-					continue;
-
-				var tile = RegionRequest.createInstance(path, downsample,
-						xi, yi, x2i-xi, y2i-yi, z, t
-						);
-				set.add(tile);
-			}
-		}					
-
+			var tile = RegionRequest.createInstance(path, downsample,
+					xi, yi, x2i-xi, y2i-yi, z, t
+					);
+			set.add(tile);
+		}
 		return set;
 	}
 
@@ -0,0 +1,493 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+
+/**
+ * Write object measurements in a compressed, columnar binary format suitable for analysis with other software.
+ * <p>
+ * Rows are buffered in memory until a 'row group' is complete, and then each column is written as a separate 
+ * compressed entry within a zip file. This means that the memory required depends upon the row group size, 
+ * not the total number of objects, so that measurements for very large numbers of objects can be exported 
+ * one image at a time.
+ * <p>
+ * Each entry is stored in NumPy's {@code .npy} format, so that the file can be read directly with {@code numpy.load}:
+ * <ul>
+ *   <li>{@code schema.json} lists the columns, their types and the number of rows in each row group</li>
+ *   <li>{@code rowgroup-000000/column-0000.npy} contains the values of the first column in the first row group</li>
+ *   <li>{@code dictionary/column-0000.npy} contains the dictionary for a dictionary-encoded column</li>
+ * </ul>
+ * Numeric columns are stored as 32-bit or 64-bit floating point values, with NaN for missing values.
+ * String columns (i.e. image, name, classification and parent) are dictionary-encoded as 32-bit integer codes, 
+ * with -1 for missing values.
+ * Columns first encountered after the first row group are absent from the earlier row groups.
+ * If a measurement has the same name as one of the fixed columns (e.g. 'Centroid X px'), it is given a suffix 
+ * to make the column name unique.
+ * <p>
+ * For example, a file may be read as a pandas DataFrame in Python with
+ * <pre>
+ * import json, numpy as np, pandas as pd
+ * npz = np.load(path)
+ * schema = json.loads(npz['schema.json'])
+ * groups = []
+ * for g, n in enumerate(schema['rowGroups']):
+ *     data = {}
+ *     for c in schema['columns']:
+ *         key = 'rowgroup-%06d/%s' % (g, c['file'])
+ *         if key not in npz:
+ *             data[c['name']] = np.full(n, np.nan)
+ *         elif c['type'] == 'dictionary':
+ *             data[c['name']] = pd.Categorical.from_codes(npz[key], npz['dictionary/' + c['file']])
+ *         else:
+ *             data[c['name']] = npz[key]
+ *     groups.append(pd.DataFrame(data))
+ * df = pd.concat(groups, ignore_index=True)
+ * </pre>
+ */
+public class ColumnarMeasurementWriter implements Closeable {
+	
+	final private static Logger logger = LoggerFactory.getLogger(ColumnarMeasurementWriter.class);
+	
+	/**
+	 * Default number of rows in each row group.
+	 */
+	public static final int DEFAULT_ROW_GROUP_SIZE = 65536;
+	
+	/**
+	 * Name of the zip entry containing the schema.
+	 */
+	public static final String SCHEMA_ENTRY = "schema.json";
+	
+	private final ZipOutputStream zip;
+	
+	private int rowGroupSize = DEFAULT_ROW_GROUP_SIZE;
+	private boolean doublePrecision = false;
+	
+	private final List<Column> columns = new ArrayList<>();
+	private final Set<String> columnNames = new HashSet<>();
+	private final Map<String, NumericColumn> measurementColumns = new HashMap<>();
+	private final DictionaryColumn colImage, colName, colClass, colParent;
+	private final NumericColumn colCentroidX, colCentroidY;
+	
+	private final List<Integer> rowGroups = new ArrayList<>();
+	private int nRows = 0;
+	private long totalRows = 0;
+	private boolean closed = false;
+	
+	/**
+	 * Create a writer to write measurements to an output stream.
+	 * The stream will be closed when the writer is closed.
+	 * @param stream
+	 */
+	public ColumnarMeasurementWriter(OutputStream stream) {
+		this.zip = new ZipOutputStream(new BufferedOutputStream(stream));
+		this.zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+		colImage = addColumn(new DictionaryColumn("Image"));
+		colName = addColumn(new DictionaryColumn("Name"));
+		colClass = addColumn(new DictionaryColumn("Class"));
+		colParent = addColumn(new DictionaryColumn("Parent"));
+		colCentroidX = addColumn(new NumericColumn("Centroid X px", true));
+		colCentroidY = addColumn(new NumericColumn("Centroid Y px", true));
+	}
+	
+	/**
+	 * Create a writer to write measurements to a file.
+	 * @param path
+	 * @throws IOException
+	 */
+	public ColumnarMeasurementWriter(Path path) throws IOException {
+		this(Files.newOutputStream(path));
+	}
+	
+	/**
+	 * Set the maximum number of rows in each row group. Larger row groups may compress better, but require more memory.
+	 * This must be called before any objects are written.
+	 * @param rowGroupSize
+	 * @return this writer
+	 */
+	public ColumnarMeasurementWriter rowGroupSize(int rowGroupSize) {
+		checkNotStarted();
+		if (rowGroupSize <= 0)
+			throw new IllegalArgumentException("Row group size must be > 0");
+		// Each column is written from a single byte array, with up to 8 bytes per value
+		if ((long)rowGroupSize * 8L > Integer.MAX_VALUE - 64)
+			throw new IllegalArgumentException("Row group size must be <= " + ((Integer.MAX_VALUE - 64) / 8));
+		this.rowGroupSize = rowGroupSize;
+		return this;
+	}
+	
+	/**
+	 * Request that measurements are written as 64-bit floating point values, rather than 32-bit.
+	 * Centroids are always written with 64-bit precision.
+	 * This must be called before any objects are written.
+	 * @param doublePrecision
+	 * @return this writer
+	 */
+	public ColumnarMeasurementWriter doublePrecision(boolean doublePrecision) {
+		checkNotStarted();
+		this.doublePrecision = doublePrecision;
+		return this;
+	}
+	
+	/**
+	 * Set the compression level, from 0 (no compression) to 9 (maximum compression).
+	 * @param level
+	 * @return this writer
+	 */
+	public ColumnarMeasurementWriter compressionLevel(int level) {
+		zip.setLevel(level);
+		return this;
+	}
+	
+	private void checkNotStarted() {
+		if (totalRows > 0 || nRows > 0)
+			throw new IllegalStateException("Options cannot be changed after objects have been written!");
+	}
+	
+	/**
+	 * Write the measurements for objects within all images in a project.
+	 * Only the object hierarchy is read for each image, not the image itself.
+	 * @param project the project
+	 * @param cls the type of object to export, e.g. {@code PathDetectionObject.class}
+	 * @throws IOException
+	 */
+	public void writeProject(Project<?> project, Class<? extends PathObject> cls) throws IOException {
+		for (var entry : project.getImageList()) {
+			if (!entry.hasImageData())
+				continue;
+			long startTime = System.currentTimeMillis();
+			var pathObjects = entry.readHierarchy().getObjects(null, cls);
+			writeObjects(entry.getImageName(), pathObjects);
+			long endTime = System.currentTimeMillis();
+			logger.info("Exported {} objects for {} ({} ms)", pathObjects.size(), entry.getImageName(), endTime - startTime);
+		}
+	}
+	
+	/**
+	 * Write the measurements for a collection of objects.
+	 * @param imageName name of the image containing the objects, used to populate the 'Image' column
+	 * @param pathObjects the objects to write
+	 * @throws IOException
+	 */
+	public void writeObjects(String imageName, Collection<? extends PathObject> pathObjects) throws IOException {
+		if (closed)
+			throw new IOException("Writer has been closed!");
+		for (var pathObject : pathObjects) {
+			int row = nRows;
+			colImage.set(row, imageName);
+			colName.set(row, pathObject.getName());
+			colClass.set(row, pathObject.getPathClass() == null ? null : pathObject.getPathClass().toString());
+			colParent.set(row, pathObject.getParent() == null ? null : pathObject.getParent().getDisplayedName());
+			var roi = pathObject.getROI();
+			if (roi != null) {
+				colCentroidX.set(row, roi.getCentroidX());
+				colCentroidY.set(row, roi.getCentroidY());
+			}
+			var measurements = pathObject.getMeasurementList();
+			for (int i = 0; i < measurements.size(); i++)
+				getMeasurementColumn(measurements.getMeasurementName(i)).set(row, measurements.getMeasurementValue(i));
+			endRow();
+		}
+	}
+	
+	/**
+	 * Get the total number of rows written so far.
+	 * @return
+	 */
+	public long getRowCount() {
+		return totalRows + nRows;
+	}
+	
+	NumericColumn getMeasurementColumn(String name) {
+		var column = measurementColumns.get(name);
+		if (column == null) {
+			// Avoid duplicating the names of fixed columns (or other renamed measurements)
+			String columnName = name;
+			int count = 1;
+			while (columnNames.contains(columnName)) {
+				columnName = name + " (measurement" + (count == 1 ? "" : " " + count) + ")";
+				count++;
+			}
+			if (!columnName.equals(name))
+				logger.warn("Measurement '{}' will be exported as '{}' to avoid a duplicate column name", name, columnName);
+			column = addColumn(new NumericColumn(columnName, doublePrecision));
+			measurementColumns.put(name, column);
+		}
+		return column;
+	}
+	
+	private <T extends Column> T addColumn(T column) {
+		column.index = columns.size();
+		column.firstRowGroup = rowGroups.size();
+		column.reset(rowGroupSize);
+		columns.add(column);
+		columnNames.add(column.name);
+		return column;
+	}
+	
+	void endRow() throws IOException {
+		nRows++;
+		if (nRows == rowGroupSize)
+			writeRowGroup();
+	}
+	
+	private void writeRowGroup() throws IOException {
+		if (nRows == 0)
+			return;
+		int group = rowGroups.size();
+		for (var column : columns) {
+			zip.putNextEntry(new ZipEntry(String.format("rowgroup-%06d/%s.npy", group, column.getFileName())));
+			column.write(zip, nRows);
+			zip.closeEntry();
+			column.reset(rowGroupSize);
+		}
+		rowGroups.add(nRows);
+		totalRows += nRows;
+		nRows = 0;
+	}
+	
+	/**
+	 * Write any remaining rows, along with the dictionaries and schema, and close the output stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			writeRowGroup();
+			
+			var schemaColumns = new ArrayList<Map<String, Object>>();
+			for (var column : columns) {
+				if (column instanceof DictionaryColumn) {
+					zip.putNextEntry(new ZipEntry("dictionary/" + column.getFileName() + ".npy"));
+					((DictionaryColumn)column).writeDictionary(zip);
+					zip.closeEntry();
+				}
+				var map = new LinkedHashMap<String, Object>();
+				map.put("name", column.name);
+				map.put("file", column.getFileName());
+				map.put("type", column.getType());
+				map.put("firstRowGroup", column.firstRowGroup);
+				schemaColumns.add(map);
+			}
+			
+			var schema = new LinkedHashMap<String, Object>();
+			schema.put("format", "qupath-columnar-measurements");
+			schema.put("version", 1);
+			schema.put("rows", totalRows);
+			schema.put("rowGroups", rowGroups);
+			schema.put("columns", schemaColumns);
+			zip.putNextEntry(new ZipEntry(SCHEMA_ENTRY));
+			zip.write(GsonTools.getInstance(true).toJson(schema).getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+			logger.debug("Wrote {} rows and {} columns in {} row groups", totalRows, columns.size(), rowGroups.size());
+		} finally {
+			zip.close();
+		}
+	}
+	
+	
+	/**
+	 * Write a header for a 1D array in .npy format (version 1.0).
+	 */
+	static void writeNpyHeader(OutputStream stream, String descr, int length) throws IOException {
+		String dict = "{'descr': '" + descr + "', 'fortran_order': False, 'shape': (" + length + ",), }";
+		// Pad so that the data is aligned to 64 bytes (magic string + version + header length = 10 bytes)
+		int headerLength = dict.length() + 1;
+		headerLength += (64 - (10 + headerLength) % 64) % 64;
+		var sb = new StringBuilder(dict);
+		while (sb.length() < headerLength - 1)
+			sb.append(' ');
+		sb.append('\n');
+		stream.write(new byte[] {(byte)0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0});
+		stream.write(headerLength & 0xFF);
+		stream.write((headerLength >> 8) & 0xFF);
+		stream.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	
+	abstract static class Column {
+		
+		final String name;
+		int index;
+		int firstRowGroup;
+		
+		Column(String name) {
+			this.name = name;
+		}
+		
+		String getFileName() {
+			return String.format("column-%04d", index);
+		}
+		
+		abstract String getType();
+		
+		/**
+		 * Reset the column for a new row group, so that all values are missing.
+		 */
+		abstract void reset(int rowGroupSize);
+		
+		abstract void write(OutputStream stream, int nRows) throws IOException;
+		
+	}
+	
+	
+	static class NumericColumn extends Column {
+		
+		private final boolean doublePrecision;
+		private float[] floatValues;
+		private double[] doubleValues;
+		
+		NumericColumn(String name, boolean doublePrecision) {
+			super(name);
+			this.doublePrecision = doublePrecision;
+		}
+		
+		void set(int row, double value) {
+			if (doublePrecision)
+				doubleValues[row] = value;
+			else
+				floatValues[row] = (float)value;
+		}
+
+		@Override
+		String getType() {
+			return doublePrecision ? "float64" : "float32";
+		}
+
+		@Override
+		void reset(int rowGroupSize) {
+			if (doublePrecision) {
+				if (doubleValues == null)
+					doubleValues = new double[rowGroupSize];
+				Arrays.fill(doubleValues, Double.NaN);
+			} else {
+				if (floatValues == null)
+					floatValues = new float[rowGroupSize];
+				Arrays.fill(floatValues, Float.NaN);
+			}
+		}
+
+		@Override
+		void write(OutputStream stream, int nRows) throws IOException {
+			writeNpyHeader(stream, doublePrecision ? "<f8" : "<f4", nRows);
+			var buffer = ByteBuffer.allocate(Math.toIntExact((long)nRows * (doublePrecision ? 8 : 4))).order(ByteOrder.LITTLE_ENDIAN);
+			if (doublePrecision)
+				buffer.asDoubleBuffer().put(doubleValues, 0, nRows);
+			else
+				buffer.asFloatBuffer().put(floatValues, 0, nRows);
+			stream.write(buffer.array());
+		}
+		
+	}
+	
+	
+	static class DictionaryColumn extends Column {
+		
+		private final Map<String, Integer> dictionary = new HashMap<>();
+		private final List<String> values = new ArrayList<>();
+		private int[] codes;
+		
+		DictionaryColumn(String name) {
+			super(name);
+		}
+		
+		void set(int row, String value) {
+			if (value == null) {
+				codes[row] = -1;
+				return;
+			}
+			Integer code = dictionary.get(value);
+			if (code == null) {
+				code = values.size();
+				dictionary.put(value, code);
+				values.add(value);
+			}
+			codes[row] = code;
+		}
+
+		@Override
+		String getType() {
+			return "dictionary";
+		}
+
+		@Override
+		void reset(int rowGroupSize) {
+			if (codes == null)
+				codes = new int[rowGroupSize];
+			Arrays.fill(codes, -1);
+		}
+
+		@Override
+		void write(OutputStream stream, int nRows) throws IOException {
+			writeNpyHeader(stream, "<i4", nRows);
+			var buffer = ByteBuffer.allocate(Math.toIntExact(nRows * 4L)).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.asIntBuffer().put(codes, 0, nRows);
+			stream.write(buffer.array());
+		}
+		
+		/**
+		 * Write the dictionary values as fixed-length unicode strings (UTF-32).
+		 */
+		void writeDictionary(OutputStream stream) throws IOException {
+			int maxLength = Math.max(1, values.stream().mapToInt(v -> v.codePointCount(0, v.length())).max().orElse(1));
+			writeNpyHeader(stream, "<U" + maxLength, values.size());
+			var buffer = ByteBuffer.allocate(Math.toIntExact((long)values.size() * maxLength * 4L)).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < values.size(); i++) {
+				buffer.position(i * maxLength * 4);
+				values.get(i).codePoints().forEach(c -> buffer.putInt(c));
+			}
+			stream.write(buffer.array());
+		}
+		
+	}
+
+}
@@ -0,0 +1,219 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of durations, recorded in nanoseconds.
+ * <p>
+ * Values are binned using a log-linear scheme similar to an HDR histogram: each power of two is split into 
+ * 32 equal sub-buckets, giving a relative error of around 3% for all values while using a fixed amount of memory.
+ * Recording a value requires only a few atomic increments and no allocation, so that it can be used on performance-critical code paths.
+ * <p>
+ * Histograms should be obtained from {@link Metrics#histogram(String)}.
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_COUNT = SUB_BUCKET_COUNT * 2;
+	private static final int N_BUCKETS = getBucketIndex(Long.MAX_VALUE) + 1;
+
+	private final String name;
+
+	private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+	LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the name of the histogram.
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Record a duration.
+	 * @param nanos duration in nanoseconds; negative values are treated as zero
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(getBucketIndex(nanos));
+		count.increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Record the time elapsed since a start time, obtained from {@link System#nanoTime()}.
+	 * @param startNanos
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Get the mean recorded duration, in nanoseconds.
+	 * @return the mean, or NaN if no values have been recorded
+	 */
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? Double.NaN : total.sum() / (double)n;
+	}
+
+	/**
+	 * Get the maximum recorded duration, in nanoseconds.
+	 * @return
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get the sum of all recorded durations, in nanoseconds.
+	 * @return
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/**
+	 * Get an estimate of a percentile of the recorded durations, in nanoseconds.
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the estimated percentile, or NaN if no values have been recorded
+	 */
+	public double getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile must be between 0 and 100, but was " + percentile);
+		// Take a snapshot, so that counts are consistent
+		long[] snapshot = new long[N_BUCKETS];
+		long n = 0;
+		for (int i = 0; i < N_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0)
+			return Double.NaN;
+		long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+		long cumulative = 0;
+		for (int i = 0; i < N_BUCKETS; i++) {
+			cumulative += snapshot[i];
+			if (cumulative >= target) {
+				// Use the middle of the bucket, but never exceed the true maximum
+				double value = (getBucketLowerBound(i) + getBucketUpperBound(i)) / 2.0;
+				return Math.min(value, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return getMean() / 1e6;
+	}
+
+	@Override
+	public double getMedianMillis() {
+		return getPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getPercentile90Millis() {
+		return getPercentile(90) / 1e6;
+	}
+
+	@Override
+	public double getPercentile99Millis() {
+		return getPercentile(99) / 1e6;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return getMax() / 1e6;
+	}
+
+	@Override
+	public double getTotalMillis() {
+		return getTotal() / 1e6;
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < N_BUCKETS; i++)
+			counts.set(i, 0L);
+		count.reset();
+		total.reset();
+		max.reset();
+	}
+
+	/**
+	 * Get the index of the bucket for a non-negative value.
+	 * Small values are stored exactly; larger values use the top bits only.
+	 */
+	static int getBucketIndex(long value) {
+		if (value < LINEAR_COUNT)
+			return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKET_COUNT + (int)(value >>> shift);
+	}
+
+	static long getBucketLowerBound(int index) {
+		if (index < LINEAR_COUNT)
+			return index;
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long mantissa = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		return mantissa << shift;
+	}
+
+	static long getBucketUpperBound(int index) {
+		if (index < LINEAR_COUNT)
+			return index;
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long mantissa = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		// Avoid overflow for the last bucket
+		long upper = ((mantissa + 1) << shift) - 1;
+		return upper < 0 ? Long.MAX_VALUE : upper;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: n=%d, mean=%.3f ms, median=%.3f ms, p99=%.3f ms, max=%.3f ms",
+				name, getCount(), getMeanMillis(), getMedianMillis(), getPercentile99Millis(), getMaxMillis());
+	}
+
+}
@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.metrics;
+
+/**
+ * JMX interface for a {@link LatencyHistogram}.
+ * All times are given in milliseconds.
+ */
+public interface LatencyHistogramMXBean {
+
+	/**
+	 * Get the number of recorded values.
+	 * @return
+	 */
+	long getCount();
+
+	/**
+	 * Get the mean recorded time.
+	 * @return
+	 */
+	double getMeanMillis();
+
+	/**
+	 * Get the median recorded time.
+	 * @return
+	 */
+	double getMedianMillis();
+
+	/**
+	 * Get the 90th percentile of recorded times.
+	 * @return
+	 */
+	double getPercentile90Millis();
+
+	/**
+	 * Get the 99th percentile of recorded times.
+	 * @return
+	 */
+	double getPercentile99Millis();
+
+	/**
+	 * Get the maximum recorded time.
+	 * @return
+	 */
+	double getMaxMillis();
+
+	/**
+	 * Get the sum of all recorded times.
+	 * @return
+	 */
+	double getTotalMillis();
+
+	/**
+	 * Remove all recorded values.
+	 */
+	void reset();
+
+}
@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe counter, which can be incremented from many threads with low contention.
+ * <p>
+ * Counters should be obtained from {@link Metrics#counter(String)}.
+ */
+public class MetricCounter implements MetricCounterMXBean {
+
+	private final String name;
+	private final LongAdder count = new LongAdder();
+
+	MetricCounter(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the name of the counter.
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Increment the counter by one.
+	 */
+	public void increment() {
+		count.increment();
+	}
+
+	/**
+	 * Increment the counter by a specified amount.
+	 * @param n
+	 */
+	public void add(long n) {
+		count.add(n);
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public void reset() {
+		count.reset();
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + getCount();
+	}
+
+}
@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.io.GsonTools;
+
+/**
+ * Static registry for runtime performance metrics.
+ * <p>
+ * Metrics are identified by name, using dot-separated names such as {@code "tiles.cache.hits"}.
+ * They are created on first request and then reused, so it is reasonable to request a metric whenever it is needed; 
+ * however, performance-critical code should keep a reference to avoid the lookup.
+ * <p>
+ * Metrics can optionally be exposed through JMX (see {@link #registerMBeans()}), logged periodically 
+ * (see {@link #startPeriodicLogging(long, TimeUnit)}) or written as JSON (see {@link #writeJson(Path)}).
+ */
+public final class Metrics {
+
+	private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+	/**
+	 * Domain used for all JMX object names.
+	 */
+	public static final String JMX_DOMAIN = "qupath.metrics";
+
+	private static final Map<String, MetricCounter> counters = new ConcurrentHashMap<>();
+	private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	private static volatile boolean registerMBeans = false;
+
+	private static ScheduledExecutorService logExecutor;
+	private static ScheduledFuture<?> logFuture;
+	private static long lastLoggedCount = -1;
+
+	// Suppress default constructor for non-instantiability
+	private Metrics() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Get a counter, creating it if necessary.
+	 * @param name
+	 * @return
+	 */
+	public static MetricCounter counter(String name) {
+		var counter = counters.get(name);
+		if (counter != null)
+			return counter;
+		return counters.computeIfAbsent(name, n -> register(new MetricCounter(n), "Counter", n));
+	}
+
+	/**
+	 * Get a latency histogram, creating it if necessary.
+	 * @param name
+	 * @return
+	 */
+	public static LatencyHistogram histogram(String name) {
+		var histogram = histograms.get(name);
+		if (histogram != null)
+			return histogram;
+		return histograms.computeIfAbsent(name, n -> register(new LatencyHistogram(n), "Histogram", n));
+	}
+
+	/**
+	 * Get all counters that have been created, sorted by name.
+	 * @return
+	 */
+	public static List<MetricCounter> getCounters() {
+		return counters.values().stream()
+				.sorted(Comparator.comparing(MetricCounter::getName))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Get all histograms that have been created, sorted by name.
+	 * @return
+	 */
+	public static List<LatencyHistogram> getHistograms() {
+		return histograms.values().stream()
+				.sorted(Comparator.comparing(LatencyHistogram::getName))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Reset all counters and histograms.
+	 */
+	public static void reset() {
+		counters.values().forEach(MetricCounter::reset);
+		histograms.values().forEach(LatencyHistogram::reset);
+	}
+
+	/**
+	 * Register all metrics as MBeans with the platform MBean server, so that they can be viewed with 
+	 * tools such as JConsole or VisualVM. Any metrics created later will also be registered.
+	 */
+	public static synchronized void registerMBeans() {
+		if (registerMBeans)
+			return;
+		registerMBeans = true;
+		counters.values().forEach(c -> register(c, "Counter", c.getName()));
+		histograms.values().forEach(h -> register(h, "Histogram", h.getName()));
+	}
+
+	private static <T> T register(T metric, String type, String name) {
+		if (!registerMBeans)
+			return metric;
+		try {
+			var objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			var server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(objectName))
+				server.registerMBean(metric, objectName);
+		} catch (JMException e) {
+			logger.warn("Unable to register MBean for {}: {}", name, e.getLocalizedMessage());
+		}
+		return metric;
+	}
+
+	/**
+	 * Start logging a summary of all metrics at regular intervals.
+	 * A summary is only logged if new values have been recorded since the last summary.
+	 * @param interval
+	 * @param unit
+	 * @see #stopPeriodicLogging()
+	 */
+	public static synchronized void startPeriodicLogging(long interval, TimeUnit unit) {
+		stopPeriodicLogging();
+		if (logExecutor == null)
+			logExecutor = Executors.newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("metrics-log", true));
+		logFuture = logExecutor.scheduleAtFixedRate(Metrics::logSummaryIfChanged, interval, interval, unit);
+	}
+
+	/**
+	 * Stop logging metrics at regular intervals.
+	 * @see #startPeriodicLogging(long, TimeUnit)
+	 */
+	public static synchronized void stopPeriodicLogging() {
+		if (logFuture != null) {
+			logFuture.cancel(false);
+			logFuture = null;
+		}
+	}
+
+	private static synchronized void logSummaryIfChanged() {
+		long n = counters.values().stream().mapToLong(MetricCounter::getCount).sum() + 
+				histograms.values().stream().mapToLong(LatencyHistogram::getCount).sum();
+		if (n == lastLoggedCount)
+			return;
+		lastLoggedCount = n;
+		logSummary();
+	}
+
+	/**
+	 * Log a summary of all metrics that have recorded at least one value.
+	 */
+	public static void logSummary() {
+		var sb = new StringBuilder("Performance metrics summary");
+		for (var counter : getCounters()) {
+			if (counter.getCount() > 0)
+				sb.append("\n  ").append(counter);
+		}
+		for (var histogram : getHistograms()) {
+			if (histogram.getCount() > 0)
+				sb.append("\n  ").append(histogram);
+		}
+		logger.info(sb.toString());
+	}
+
+	/**
+	 * Get a snapshot of all metrics as a JSON string.
+	 * Durations are given in milliseconds.
+	 * @return
+	 */
+	public static String toJson() {
+		var counterMap = new LinkedHashMap<String, Long>();
+		for (var counter : getCounters())
+			counterMap.put(counter.getName(), counter.getCount());
+
+		var histogramMap = new LinkedHashMap<String, Map<String, Object>>();
+		for (var histogram : getHistograms()) {
+			var map = new LinkedHashMap<String, Object>();
+			long n = histogram.getCount();
+			map.put("count", n);
+			if (n > 0) {
+				map.put("meanMillis", histogram.getMeanMillis());
+				map.put("medianMillis", histogram.getMedianMillis());
+				map.put("p90Millis", histogram.getPercentile90Millis());
+				map.put("p99Millis", histogram.getPercentile99Millis());
+				map.put("maxMillis", histogram.getMaxMillis());
+				map.put("totalMillis", histogram.getTotalMillis());
+			}
+			histogramMap.put(histogram.getName(), map);
+		}
+
+		var json = new LinkedHashMap<String, Object>();
+		json.put("timestamp", System.currentTimeMillis());
+		json.put("counters", counterMap);
+		json.put("histograms", histogramMap);
+		return GsonTools.getInstance(true).toJson(json);
+	}
+
+	/**
+	 * Write a snapshot of all metrics to a JSON file.
+	 * @param path
+	 * @throws IOException
+	 * @see #toJson()
+	 */
+	public static void writeJson(Path path) throws IOException {
+		Files.writeString(path, toJson(), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,4 @@
+/**
+ * Lightweight runtime metrics (counters and latency histograms), which can be exposed via JMX or written as JSON.
+ */
+package qupath.lib.metrics;
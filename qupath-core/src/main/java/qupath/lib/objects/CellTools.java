@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.locationtech.jts.algorithm.Centroid;
@@ -51,6 +52,11 @@ public class CellTools {
 	
 	private static final Logger logger = LoggerFactory.getLogger(CellTools.class);
 	
+	/**
+	 * Default block size used when creating cells block by block.
+	 */
+	private static final double DEFAULT_BLOCK_SIZE = 2048;
+	
 	
 	/**
 	 * Constrain a cell boundary to fall within a maximum region, determined by scaling the nucleus ROI by a fixed scale factor 
@@ -124,6 +130,112 @@ public class CellTools {
 		return detectionsToCells(map);
 	}
 	
+	/**
+	 * Create cell objects by expanding the (nucleus) ROIs from existing detections, processing the image in square blocks.
+	 * <p>
+	 * This gives the same kind of result as {@link #detectionsToCells(Collection, double, double)}, but the boundary estimates and 
+	 * Voronoi constraint are only ever computed for one block at a time. 
+	 * Each block is processed along with a margin containing any detections that could influence its cells, 
+	 * and blocks are processed in parallel. This makes it possible to handle very large numbers of detections without 
+	 * holding all the boundary estimates in memory.
+	 * <p>
+	 * Each detection is assigned to the block containing the centroid of its nucleus ROI, so that every cell is created 
+	 * exactly once, independently of the order in which blocks are processed.
+	 * <p>
+	 * The consumer is called once for each block that contains detections. Calls are synchronized, but may be made from 
+	 * different threads and in any order.
+	 * <p>
+	 * If cells cannot be created for some detections (e.g. because of an error when processing a block), 
+	 * these detections are returned so that the caller can tell that the output is incomplete.
+	 * 
+	 * @param detections the detection objects from which to create the cells; these define the nuclei
+	 * @param distance the maximum distance (in pixels) to expand each nucleus
+	 * @param nucleusScale the maximum size of the cell relative to the nucleus (ignored if &le; 1).
+	 * @param blockSize width and height of each block, in pixels; if not finite and positive, a default will be used
+	 * @param consumer consumer to receive the cells created for each block
+	 * @return the detections for which no cell could be created; this is empty if all detections were converted successfully
+	 * @see #detectionsToCells(Collection, double, double)
+	 */
+	public static List<PathObject> detectionsToCells(Collection<? extends PathObject> detections, double distance, double nucleusScale, double blockSize, Consumer<? super List<PathObject>> consumer) {
+		double size = blockSize > 0 && Double.isFinite(blockSize) ? blockSize : DEFAULT_BLOCK_SIZE;
+		
+		// Bin the detections according to their nucleus centroids
+		var blocks = new HashMap<Long, List<PathObject>>();
+		var skipped = Collections.synchronizedList(new ArrayList<PathObject>());
+		double maxRadius = 0;
+		for (var detection : detections) {
+			var roi = PathObjectTools.getROI(detection, true);
+			if (roi == null) {
+				logger.warn("{} has no ROI - will be skipped!", detection);
+				skipped.add(detection);
+				continue;
+			}
+			maxRadius = Math.max(maxRadius, Math.hypot(roi.getBoundsWidth(), roi.getBoundsHeight()) / 2.0);
+			long key = blockKey((long)Math.floor(roi.getCentroidX() / size), (long)Math.floor(roi.getCentroidY() / size));
+			blocks.computeIfAbsent(key, k -> new ArrayList<>()).add(detection);
+		}
+		if (blocks.isEmpty())
+			return skipped;
+		
+		// A point within a cell is at most 'distance' from its own nucleus - 
+		// so only nuclei with centroids within this margin can claim any part of it in the Voronoi constraint 
+		// (allowing a little extra for the spacing of the densified nucleus boundaries)
+		double margin = 2 * (Math.max(distance, 0) + maxRadius) + 2.0;
+		int nMargin = (int)Math.ceil(margin / size);
+		
+		var keys = new ArrayList<>(blocks.keySet());
+		Collections.sort(keys);
+		logger.debug("Converting {} detections to cells in {} blocks", detections.size(), keys.size());
+		keys.parallelStream().forEach(key -> {
+			int bx = (int)(key >> 32);
+			int by = (int)key.longValue();
+			var owned = blocks.get(key);
+			var env = new Envelope(bx * size, (bx + 1) * size, by * size, (by + 1) * size);
+			env.expandBy(margin);
+			var allDetections = new ArrayList<PathObject>(owned);
+			for (int y = by - nMargin; y <= by + nMargin; y++) {
+				for (int x = bx - nMargin; x <= bx + nMargin; x++) {
+					if (x == bx && y == by)
+						continue;
+					var neighbors = blocks.get(blockKey(x, y));
+					if (neighbors == null)
+						continue;
+					for (var detection : neighbors) {
+						var roi = PathObjectTools.getROI(detection, true);
+						if (env.contains(roi.getCentroidX(), roi.getCentroidY()))
+							allDetections.add(detection);
+					}
+				}
+			}
+			List<PathObject> cells;
+			var blockSkipped = new ArrayList<PathObject>();
+			try {
+				var transform = new AffineTransformation();
+				var map = new HashMap<PathObject, Geometry>();
+				for (var detection : owned) {
+					var geomNucleus = PathObjectTools.getROI(detection, true).getGeometry();
+					map.put(detection, estimateCellBoundary(geomNucleus, distance, nucleusScale, transform));
+				}
+				cells = detectionsToCells(owned, allDetections, map, blockSkipped);
+			} catch (Exception e) {
+				logger.error("Error converting " + owned.size() + " detections to cells: " + e.getLocalizedMessage(), e);
+				skipped.addAll(owned);
+				return;
+			}
+			skipped.addAll(blockSkipped);
+			synchronized (consumer) {
+				consumer.accept(cells);
+			}
+		});
+		if (!skipped.isEmpty())
+			logger.warn("Unable to create cells for {}/{} detections", skipped.size(), detections.size());
+		return skipped;
+	}
+	
+	private static long blockKey(long x, long y) {
+		return (x << 32) | (y & 0xFFFFFFFFL);
+	}
+	
 	/**
 	 * Estimate a cell boundary using {@link Geometry} objects.
 	 * This avoids the need to create {@link ROI} or {@link PathObject} first.
@@ -188,7 +300,7 @@ public class CellTools {
 			var items = cache.itemsTree();
 			return detectionsToCellsSubtree(cache, items, cellBoundaryMap, envelopes);
 		} else
-			return detectionsToCells(cellBoundaryMap.keySet(), cellBoundaryMap.keySet(), cellBoundaryMap);
+			return detectionsToCells(cellBoundaryMap.keySet(), cellBoundaryMap.keySet(), cellBoundaryMap, null);
 	}
 	
 	
@@ -207,7 +319,7 @@ public class CellTools {
 				env.expandToInclude(envelopes.get(pathObject));
 			var allObjects = (List<PathObject>)tree.query(env);
 			try {
-				return detectionsToCells(pathObjects, allObjects, cellBoundaryMap);
+				return detectionsToCells(pathObjects, allObjects, cellBoundaryMap, null);
 			} catch (Exception e) {
 				logger.error("Error converting detections to cells: " + e.getLocalizedMessage(), e);
 				return Collections.emptyList();
@@ -229,7 +341,7 @@ public class CellTools {
 	}
 	
 	
-	private static List<PathObject> detectionsToCells(Collection<PathObject> detections, Collection<PathObject> allDetections, Map<PathObject, Geometry> cellBoundaryMap) {
+	private static List<PathObject> detectionsToCells(Collection<PathObject> detections, Collection<PathObject> allDetections, Map<PathObject, Geometry> cellBoundaryMap, Collection<PathObject> skipped) {
 		
 		var subdivision = DelaunayTools.newBuilder(allDetections)
 			.preferNucleus(true)
@@ -243,6 +355,8 @@ public class CellTools {
 			var bounds = cellBoundaryMap.get(detection);
 			if (face == null || bounds == null) {
 				logger.warn("Missing boundary information for {} - will skip", detection);
+				if (skipped != null)
+					skipped.add(detection);
 				continue;
 			}
 			var geomCell = face;
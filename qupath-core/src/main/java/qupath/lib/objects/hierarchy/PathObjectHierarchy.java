@@ -40,6 +40,9 @@ import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.metrics.LatencyHistogram;
+import qupath.lib.metrics.MetricCounter;
+import qupath.lib.metrics.Metrics;
 import qupath.lib.objects.DefaultPathObjectComparator;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathCellObject;
@@ -76,6 +79,10 @@ public final class PathObjectHierarchy implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	final private static Logger logger = LoggerFactory.getLogger(PathObjectHierarchy.class);
+	
+	// Time taken to notify all listeners of an event, and the total number of listener notifications
+	final private static LatencyHistogram eventFanoutTime = Metrics.histogram("hierarchy.events.fanout");
+	final private static MetricCounter listenerNotifications = Metrics.counter("hierarchy.events.notifications");
 			
 	// TODO: Make this a choice - currently a cell object is considered 'inside' if its nucleus is fully contained (as cell boundaries themselves are a little more questionable)
 	/*
@@ -894,10 +901,13 @@ public final class PathObjectHierarchy implements Serializable {
 	
 	
 	synchronized void fireEvent(PathObjectHierarchyEvent event) {
+		long startTime = System.nanoTime();
 		synchronized(listeners) {
 			for (PathObjectHierarchyListener listener : listeners)
 				listener.hierarchyChanged(event);
+			listenerNotifications.add(listeners.size());
 		}
+		eventFanoutTime.recordSince(startTime);
 	}
 	
 	
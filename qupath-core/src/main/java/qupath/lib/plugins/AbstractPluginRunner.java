@@ -39,6 +39,8 @@ import org.slf4j.LoggerFactory;
 
 import qupath.lib.common.ThreadTools;
 import qupath.lib.images.ImageData;
+import qupath.lib.metrics.LatencyHistogram;
+import qupath.lib.metrics.Metrics;
 
 
 /**
@@ -54,6 +56,8 @@ import qupath.lib.images.ImageData;
 public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	
 	final private static Logger logger = LoggerFactory.getLogger(AbstractPluginRunner.class);
+	
+	final private static LatencyHistogram runTasksTime = Metrics.histogram("plugins.runTasks");
 
 	private static int numThreadsRequested = Runtime.getRuntime().availableProcessors();
 	private static int counter = 0;
@@ -146,10 +150,19 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 		} else if (service == null)
 			service = new ExecutorCompletionService<>(pool);
 		
+		long startTime = System.nanoTime();
 		monitor = makeProgressMonitor();
 		monitor.startMonitoring(null, tasks.size(), true);
 		for (Runnable task : tasks) {
-			Future<Runnable> future = service.submit(task, task);
+			var taskTime = Metrics.histogram("plugins.task." + getMetricsName(task));
+			Future<Runnable> future = service.submit(() -> {
+				long taskStartTime = System.nanoTime();
+				try {
+					task.run();
+				} finally {
+					taskTime.recordSince(taskStartTime);
+				}
+			}, task);
 			pendingTasks.put(future, task);
 		}
 		// TODO: See if this needs to be shutdown here, or there's a better way..?
@@ -161,6 +174,23 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 		postProcess(tasks.stream().filter(t -> t instanceof PathTask).map(t -> (PathTask)t).collect(Collectors.toList()));
 		
 		getImageData().getHierarchy().fireHierarchyChangedEvent(this);
+		
+		runTasksTime.recordSince(startTime);
+	}
+	
+	/**
+	 * Get a name for a task to use with {@link Metrics}, based upon its class.
+	 * Lambdas are named according to the class in which they were defined.
+	 */
+	private static String getMetricsName(Runnable task) {
+		String name = task.getClass().getName();
+		int ind = name.indexOf("$$Lambda");
+		if (ind > 0)
+			name = name.substring(0, ind);
+		ind = name.lastIndexOf('.');
+		if (ind >= 0)
+			name = name.substring(ind + 1);
+		return name;
 	}
 	
 	
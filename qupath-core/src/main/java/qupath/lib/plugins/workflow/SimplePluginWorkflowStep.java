@@ -96,6 +96,25 @@ public class SimplePluginWorkflowStep implements ScriptableWorkflowStep, Externa
 	public String getPluginClass() {
 		return pluginClass;
 	}
+	
+	/**
+	 * Get the argument string passed to the plugin.
+	 * 
+	 * @return
+	 */
+	public String getArg() {
+		return arg;
+	}
+	
+	/**
+	 * Returns true if the script for this step includes additional lines before or after the plugin is called, 
+	 * and so the step cannot be applied simply by running the plugin.
+	 * 
+	 * @return
+	 */
+	boolean hasAdditionalScript() {
+		return (scriptBefore != null && !scriptBefore.isBlank()) || (scriptAfter != null && !scriptAfter.isBlank());
+	}
 
 
 	@Override
@@ -0,0 +1,444 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.plugins.workflow;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.ImageData.ImageType;
+import qupath.lib.images.servers.TransformedServerBuilder;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.CommandLinePluginRunner;
+import qupath.lib.plugins.PathPlugin;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RoiTools;
+import qupath.lib.roi.RoiTools.CombineOp;
+
+/**
+ * Helper class to apply the steps of a {@link Workflow} to an image, caching the result of each step 
+ * so that only the steps that have changed need to be applied again.
+ * <p>
+ * The state of the image when the runner is created (or when {@link #resetInput()} is called) is used as the input 
+ * for every run. Each step is identified by a fingerprint, derived from the input, the step parameters (or script) 
+ * and the fingerprints of all preceding steps. After a step has been applied, the resulting state of the image 
+ * (i.e. its object hierarchy, image type and stains) is cached using this fingerprint. 
+ * When a workflow is run again, the state is restored from the last step that can be found in the cache, 
+ * and only the remaining steps are applied.
+ * <p>
+ * Workflows can also be applied to a single region, to get a quick preview without changing the image. 
+ * In this case the steps are applied to a cropped copy of the image, and the results are cached separately.
+ * <p>
+ * By default, only {@link SimplePluginWorkflowStep SimplePluginWorkflowSteps} can be applied, because other steps require 
+ * a script engine. Use {@link #setStepExecutor(StepExecutor)} to support other steps.
+ */
+public class WorkflowRunner {
+	
+	private static final Logger logger = LoggerFactory.getLogger(WorkflowRunner.class);
+	
+	/**
+	 * Default maximum number of image states to cache.
+	 */
+	public static final int DEFAULT_MAX_CACHED_STATES = 32;
+	
+	/**
+	 * Interface for applying a single step of a workflow to an image.
+	 */
+	@FunctionalInterface
+	public static interface StepExecutor {
+		
+		/**
+		 * Apply a step to the specified image.
+		 * @param imageData the image to which the step should be applied
+		 * @param step the step to apply
+		 * @throws Exception if the step could not be applied
+		 */
+		public void execute(ImageData<BufferedImage> imageData, WorkflowStep step) throws Exception;
+		
+	}
+	
+	private final ImageData<BufferedImage> imageData;
+	
+	private StepExecutor executor = WorkflowRunner::runPluginStep;
+	
+	private int maxCachedStates = DEFAULT_MAX_CACHED_STATES;
+	
+	private final Map<String, State> cache = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+			return size() > maxCachedStates;
+		}
+	};
+	
+	private State input;
+	private String inputFingerprint;
+	
+	private int lastStepsApplied = 0;
+	
+	/**
+	 * Create a runner to apply workflows to the specified image.
+	 * The current state of the image is used as the input.
+	 * @param imageData
+	 * @throws IOException if the state of the image could not be stored
+	 */
+	public WorkflowRunner(ImageData<BufferedImage> imageData) throws IOException {
+		this.imageData = imageData;
+		resetInput();
+	}
+	
+	/**
+	 * Use the current state of the image as the input for future runs.
+	 * Cached results are discarded if the input has changed.
+	 * @throws IOException if the state of the image could not be stored
+	 */
+	public synchronized void resetInput() throws IOException {
+		var state = State.capture(imageData);
+		var fingerprint = fingerprint(null, imageData.getServerPath(), state.fingerprint());
+		if (!fingerprint.equals(inputFingerprint)) {
+			cache.clear();
+			inputFingerprint = fingerprint;
+		}
+		input = state;
+	}
+	
+	/**
+	 * Set the executor used to apply each step.
+	 * <p>
+	 * The default executor runs plugins directly, and so supports only {@link SimplePluginWorkflowStep SimplePluginWorkflowSteps} 
+	 * without additional scripts. To replay workflows containing script steps (as most recorded workflows do), 
+	 * an executor that can run scripts must be set here, e.g. one that uses the GUI's script engine.
+	 * @param executor the executor; if null, only {@link SimplePluginWorkflowStep SimplePluginWorkflowSteps} will be supported
+	 */
+	public synchronized void setStepExecutor(StepExecutor executor) {
+		this.executor = executor == null ? WorkflowRunner::runPluginStep : executor;
+	}
+	
+	/**
+	 * Set the maximum number of image states to cache.
+	 * Each state includes a compressed copy of the object hierarchy, so this may need to be reduced for images with 
+	 * very large numbers of objects.
+	 * @param maxCachedStates
+	 */
+	public synchronized void setMaxCachedStates(int maxCachedStates) {
+		this.maxCachedStates = Math.max(0, maxCachedStates);
+		// Evict the least recently used states until we're within the limit
+		var iter = cache.values().iterator();
+		while (cache.size() > this.maxCachedStates && iter.hasNext()) {
+			iter.next();
+			iter.remove();
+		}
+	}
+	
+	/**
+	 * Discard all cached results.
+	 */
+	public synchronized void clearCache() {
+		cache.clear();
+	}
+	
+	/**
+	 * Get the number of steps that were actually applied during the last run, i.e. excluding steps for which 
+	 * cached results were used.
+	 * @return
+	 */
+	public synchronized int getLastStepsApplied() {
+		return lastStepsApplied;
+	}
+	
+	/**
+	 * Apply a workflow to the image, reusing cached results wherever possible.
+	 * After this method returns, the image will be in the state produced by the last step.
+	 * <p>
+	 * Note that, unless a {@link StepExecutor} has been set, only {@link SimplePluginWorkflowStep SimplePluginWorkflowSteps} 
+	 * can be applied.
+	 * @param workflow
+	 * @throws IOException if a step could not be applied
+	 * @throws InterruptedException if the thread was interrupted
+	 * @throws UnsupportedOperationException if a step needs to be applied that isn't supported by the current {@link StepExecutor}
+	 * @see #setStepExecutor(StepExecutor)
+	 */
+	public synchronized void run(Workflow workflow) throws IOException, InterruptedException {
+		var history = imageData.getHistoryWorkflow();
+		var historySteps = history == null ? null : new ArrayList<>(history.getSteps());
+		try {
+			run(imageData, workflow.getSteps(), inputFingerprint, input);
+		} finally {
+			// Steps may log themselves when applied - but they've already been logged once
+			if (historySteps != null && history.size() > historySteps.size()) {
+				var newSteps = new ArrayList<>(history.getSteps().subList(historySteps.size(), history.size()));
+				history.removeSteps(newSteps);
+			}
+		}
+	}
+	
+	/**
+	 * Apply a workflow to a region of the image, reusing cached results wherever possible.
+	 * <p>
+	 * The image itself is not changed. Rather, the steps are applied to a cropped copy of the image 
+	 * containing only the input objects that intersect the region (with annotations clipped to the region bounds).
+	 * 
+	 * @param workflow
+	 * @param region
+	 * @return the top-level objects resulting from applying the workflow, translated to the coordinates of the full image
+	 * @throws IOException if a step could not be applied
+	 * @throws InterruptedException if the thread was interrupted
+	 * @throws UnsupportedOperationException if a step needs to be applied that isn't supported by the current {@link StepExecutor}
+	 * @see #setStepExecutor(StepExecutor)
+	 */
+	public synchronized List<PathObject> runRegion(Workflow workflow, ImageRegion region) throws IOException, InterruptedException {
+		var server = new TransformedServerBuilder(imageData.getServer())
+				.crop(region)
+				.build();
+		var regionData = new ImageData<>(server, new PathObjectHierarchy(), input.type);
+		var fingerprint = fingerprint(inputFingerprint, "Region", region.toString());
+		var regionInput = cache.get(fingerprint);
+		if (regionInput == null) {
+			regionInput = cropState(input, region);
+			cache.put(fingerprint, regionInput);
+		}
+		run(regionData, workflow.getSteps(), fingerprint, regionInput);
+		
+		var transform = AffineTransform.getTranslateInstance(region.getX(), region.getY());
+		var pathObjects = new ArrayList<PathObject>();
+		for (var pathObject : regionData.getHierarchy().getRootObject().getChildObjects()) {
+			try {
+				pathObjects.add(PathObjectTools.transformObjectRecursive(pathObject, transform, true));
+			} catch (UnsupportedOperationException e) {
+				logger.debug("Unable to transform {}: {}", pathObject, e.getLocalizedMessage());
+			}
+		}
+		return pathObjects;
+	}
+	
+	private void run(ImageData<BufferedImage> imageData, List<WorkflowStep> steps, String inputFingerprint, State input) throws IOException, InterruptedException {
+		int n = steps.size();
+		var fingerprints = new String[n];
+		String previous = inputFingerprint;
+		for (int i = 0; i < n; i++) {
+			previous = fingerprint(previous, steps.get(i));
+			fingerprints[i] = previous;
+		}
+		// Find the last step with a cached result
+		int start = n;
+		State state = null;
+		while (start > 0 && state == null) {
+			state = cache.get(fingerprints[start-1]);
+			if (state == null)
+				start--;
+		}
+		if (state == null)
+			state = input;
+		state.restore(imageData);
+		logger.debug("Applying {}/{} workflow steps ({} cached)", n - start, n, start);
+		
+		lastStepsApplied = 0;
+		for (int i = start; i < n; i++) {
+			if (Thread.currentThread().isInterrupted())
+				throw new InterruptedException("Workflow interrupted");
+			var step = steps.get(i);
+			logger.debug("Applying workflow step: {}", step.getName());
+			try {
+				executor.execute(imageData, step);
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("Unable to apply workflow step " + step.getName(), e);
+			}
+			lastStepsApplied++;
+			if (maxCachedStates > 0)
+				cache.put(fingerprints[i], State.capture(imageData));
+		}
+	}
+	
+	
+	/**
+	 * Default {@link StepExecutor}, which runs plugins directly.
+	 * @param imageData
+	 * @param step
+	 * @throws Exception
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void runPluginStep(ImageData<BufferedImage> imageData, WorkflowStep step) throws Exception {
+		if (!(step instanceof SimplePluginWorkflowStep) || ((SimplePluginWorkflowStep)step).hasAdditionalScript())
+			throw new UnsupportedOperationException("Workflow step '" + step.getName() + "' requires a script engine - set a StepExecutor to apply it");
+		var pluginStep = (SimplePluginWorkflowStep)step;
+		var cPlugin = WorkflowRunner.class.getClassLoader().loadClass(pluginStep.getPluginClass());
+		var plugin = (PathPlugin)cPlugin.getConstructor().newInstance();
+		if (!plugin.runPlugin(new CommandLinePluginRunner<>(imageData), pluginStep.getArg()))
+			logger.warn("Plugin {} did not complete successfully", pluginStep.getPluginClass());
+	}
+	
+	
+	private static State cropState(State state, ImageRegion region) throws IOException {
+		var hierarchy = state.readHierarchy();
+		var roiRegion = ROIs.createRectangleROI(region);
+		var transform = AffineTransform.getTranslateInstance(-region.getX(), -region.getY());
+		var pathObjects = new ArrayList<PathObject>();
+		for (var pathObject : hierarchy.getObjectsForRegion(null, region, null)) {
+			if (pathObject instanceof TMACoreObject)
+				continue;
+			try {
+				PathObject newObject;
+				var roi = pathObject.getROI();
+				if (pathObject.isAnnotation() && roi.isArea() && !roiRegion.getGeometry().covers(roi.getGeometry())) {
+					roi = RoiTools.combineROIs(roi, roiRegion, CombineOp.INTERSECT);
+					if (roi.isEmpty())
+						continue;
+					newObject = PathObjects.createAnnotationObject(RoiTools.transformROI(roi, transform), pathObject.getPathClass());
+					newObject.setName(pathObject.getName());
+				} else
+					newObject = PathObjectTools.transformObject(pathObject, transform, true);
+				pathObjects.add(newObject);
+			} catch (UnsupportedOperationException e) {
+				logger.debug("Unable to transform {}: {}", pathObject, e.getLocalizedMessage());
+			}
+		}
+		var hierarchyRegion = new PathObjectHierarchy();
+		hierarchyRegion.addPathObjects(pathObjects);
+		return new State(State.writeHierarchy(hierarchyRegion), state.type, state.stains);
+	}
+	
+	
+	private static String fingerprint(String previous, WorkflowStep step) {
+		String content;
+		if (step instanceof ScriptableWorkflowStep)
+			content = ((ScriptableWorkflowStep)step).getScript();
+		else {
+			var params = new TreeMap<String, String>();
+			for (var entry : step.getParameterMap().entrySet())
+				params.put(entry.getKey(), String.valueOf(entry.getValue()));
+			content = params.toString();
+		}
+		return fingerprint(previous, step.getClass().getName(), step.getName(), content);
+	}
+	
+	private static String fingerprint(String previous, String... content) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256");
+			if (previous != null)
+				digest.update(previous.getBytes(StandardCharsets.UTF_8));
+			for (var s : content) {
+				digest.update((byte)0);
+				if (s != null)
+					digest.update(s.getBytes(StandardCharsets.UTF_8));
+			}
+			return toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java implementation is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static String toHex(byte[] bytes) {
+		var sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+	
+	
+	/**
+	 * The state of an image that may be changed by a workflow step.
+	 * The hierarchy is stored in a compressed, serialized form, so that it can't be modified after being cached.
+	 */
+	private static class State {
+		
+		private final byte[] hierarchy;
+		private final ImageType type;
+		private final ColorDeconvolutionStains stains;
+		
+		private State(byte[] hierarchy, ImageType type, ColorDeconvolutionStains stains) {
+			this.hierarchy = hierarchy;
+			this.type = type;
+			this.stains = stains;
+		}
+		
+		static State capture(ImageData<?> imageData) throws IOException {
+			return new State(writeHierarchy(imageData.getHierarchy()), imageData.getImageType(), imageData.getColorDeconvolutionStains());
+		}
+		
+		void restore(ImageData<?> imageData) throws IOException {
+			imageData.getHierarchy().setHierarchy(readHierarchy());
+			imageData.setImageType(type);
+			imageData.setColorDeconvolutionStains(stains);
+		}
+		
+		String fingerprint() {
+			try {
+				var digest = MessageDigest.getInstance("SHA-256");
+				return WorkflowRunner.fingerprint(
+						toHex(digest.digest(hierarchy)),
+						String.valueOf(type),
+						stains == null ? null : ColorDeconvolutionStains.getColorDeconvolutionStainsAsString(stains, 8));
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		PathObjectHierarchy readHierarchy() throws IOException {
+			try (var stream = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(hierarchy)))) {
+				// Deserialized hierarchies may not be in a valid state, so copy into a new one
+				var hierarchy = new PathObjectHierarchy();
+				hierarchy.setHierarchy((PathObjectHierarchy)stream.readObject());
+				return hierarchy;
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		static byte[] writeHierarchy(PathObjectHierarchy hierarchy) throws IOException {
+			var bytes = new ByteArrayOutputStream();
+			try (var stream = new ObjectOutputStream(new GZIPOutputStream(bytes))) {
+				stream.writeObject(hierarchy);
+			}
+			return bytes.toByteArray();
+		}
+		
+	}
+
+}
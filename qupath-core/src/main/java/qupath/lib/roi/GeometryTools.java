@@ -346,12 +346,31 @@ public class GeometryTools {
     
     
     /**
-     * Calculate the union of multiple Geometry objects.
+     * Calculate the union of multiple Geometry objects, optionally assuming that they do not overlap.
+     * <p>
+     * For large numbers of polygonal geometries, the geometries are partitioned spatially and the union
+     * computed in parallel, so that only geometries close to partition boundaries need to be merged later.
+     *
+     * @param geometries
+     * @param nonOverlapping if true, it can be assumed that the Geometries are valid and cannot overlap (although they may touch).
+     *                       This permits a faster union operation, which is validated by comparing the areas before and after;
+     *                       if the areas differ, a standard union is computed instead.
+     * @return
+     */
+    public static Geometry union(Collection<? extends Geometry> geometries, boolean nonOverlapping) {
+    	if (geometries.size() >= PartitionedUnion.MIN_GEOMETRIES && geometries.stream().allMatch(g -> g instanceof Polygonal))
+    		return PartitionedUnion.union(geometries, nonOverlapping);
+    	return unionSequential(geometries, nonOverlapping);
+    }
+
+
+    /**
+     * Calculate the union of multiple Geometry objects, using a single thread.
      * @param geometries
      * @param fastUnion if true, it can be assumed that the Geometries are valid and cannot overlap. This may permit a faster union operation.
      * @return
      */
-    private static Geometry union(Collection<? extends Geometry> geometries, boolean fastUnion) {
+    static Geometry unionSequential(Collection<? extends Geometry> geometries, boolean fastUnion) {
     	if (geometries.isEmpty())
     		return DEFAULT_INSTANCE.factory.createPolygon();
     	if (geometries.size() == 1)
@@ -374,7 +393,7 @@ public class GeometryTools {
     		else {
     			// Try again with other path
     			logger.warn("Exception attempting default union: {}", e.getLocalizedMessage());
-    			return union(geometries, true);
+    			return unionSequential(geometries, true);
     		}
     	}
     }
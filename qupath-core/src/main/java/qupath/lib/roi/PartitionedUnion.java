@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.roi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.util.PolygonExtracter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper class to compute the union of a large number of polygonal geometries in parallel.
+ * <p>
+ * Geometries are first sorted into small, spatially-compact partitions using the same sort-tile-recursive packing
+ * as an STRtree. Partitions are unioned independently, and the results merged pairwise in a fork/join tree.
+ * When two partial results are merged, only the polygons that touch the intersection of their bounding boxes
+ * need to be unioned again - all others are passed through unchanged.
+ */
+class PartitionedUnion {
+
+	private static final Logger logger = LoggerFactory.getLogger(PartitionedUnion.class);
+
+	/**
+	 * Minimum number of geometries for which a partitioned union should be used.
+	 */
+	static final int MIN_GEOMETRIES = 1000;
+
+	/**
+	 * Target number of geometries in each partition.
+	 */
+	private static final int PARTITION_SIZE = 256;
+
+	/**
+	 * Calculate the union of polygonal geometries.
+	 * @param geometries the geometries; all should be {@link org.locationtech.jts.geom.Polygonal}
+	 * @param nonOverlapping if true, it can be assumed that the geometries cannot overlap (although they may touch);
+	 *                       this is checked by comparing areas before and after each union operation
+	 * @return
+	 */
+	static Geometry union(Collection<? extends Geometry> geometries, boolean nonOverlapping) {
+		long startTime = System.currentTimeMillis();
+
+		var factory = geometries.iterator().next().getFactory();
+		var partitions = partition(geometries, PARTITION_SIZE);
+		var result = new UnionTask(partitions, 0, partitions.size(), nonOverlapping).invoke();
+
+		Geometry geometry;
+		if (result.polygons.isEmpty())
+			geometry = factory.createPolygon();
+		else
+			geometry = factory.buildGeometry(result.polygons);
+
+		long endTime = System.currentTimeMillis();
+		logger.debug("Union of {} geometries ({} partitions) calculated in {} ms", geometries.size(), partitions.size(), endTime - startTime);
+		return geometry;
+	}
+
+	/**
+	 * Sort geometries into spatially-compact partitions, using sort-tile-recursive packing.
+	 * Partitions are returned in an order where consecutive partitions are usually adjacent.
+	 * @param geometries
+	 * @param partitionSize
+	 * @return
+	 */
+	static List<List<Geometry>> partition(Collection<? extends Geometry> geometries, int partitionSize) {
+		var list = new ArrayList<Geometry>(geometries);
+		int n = list.size();
+		int nPartitions = (n + partitionSize - 1) / partitionSize;
+		int nSlices = (int)Math.ceil(Math.sqrt(nPartitions));
+		int sliceSize = (int)Math.ceil(n / (double)nSlices);
+
+		Comparator<Geometry> compareX = Comparator.comparingDouble(g -> centerX(g));
+		Comparator<Geometry> compareY = Comparator.comparingDouble(g -> centerY(g));
+		list.sort(compareX);
+
+		var partitions = new ArrayList<List<Geometry>>(nPartitions);
+		int sliceCount = 0;
+		for (int sliceStart = 0; sliceStart < n; sliceStart += sliceSize) {
+			var slice = new ArrayList<>(list.subList(sliceStart, Math.min(n, sliceStart + sliceSize)));
+			// Alternate the direction, so that the last partition of one slice is close to the first of the next
+			slice.sort(sliceCount % 2 == 0 ? compareY : compareY.reversed());
+			for (int i = 0; i < slice.size(); i += partitionSize)
+				partitions.add(slice.subList(i, Math.min(slice.size(), i + partitionSize)));
+			sliceCount++;
+		}
+		return partitions;
+	}
+
+	private static double centerX(Geometry geometry) {
+		var env = geometry.getEnvelopeInternal();
+		return (env.getMinX() + env.getMaxX()) / 2.0;
+	}
+
+	private static double centerY(Geometry geometry) {
+		var env = geometry.getEnvelopeInternal();
+		return (env.getMinY() + env.getMaxY()) / 2.0;
+	}
+
+
+	/**
+	 * Union of some of the input geometries, stored as a list of polygons that do not overlap one another.
+	 */
+	private static class PartialUnion {
+
+		private final List<Polygon> polygons;
+		private final Envelope envelope;
+
+		PartialUnion(List<Polygon> polygons) {
+			this.polygons = polygons;
+			this.envelope = new Envelope();
+			for (var p : polygons)
+				envelope.expandToInclude(p.getEnvelopeInternal());
+		}
+
+	}
+
+
+	private static class UnionTask extends RecursiveTask<PartialUnion> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<List<Geometry>> partitions;
+		private final int start, end;
+		private final boolean nonOverlapping;
+
+		UnionTask(List<List<Geometry>> partitions, int start, int end, boolean nonOverlapping) {
+			this.partitions = partitions;
+			this.start = start;
+			this.end = end;
+			this.nonOverlapping = nonOverlapping;
+		}
+
+		@Override
+		protected PartialUnion compute() {
+			if (end - start == 1)
+				return new PartialUnion(toPolygons(GeometryTools.unionSequential(partitions.get(start), nonOverlapping)));
+			int mid = (start + end) / 2;
+			var left = new UnionTask(partitions, start, mid, nonOverlapping);
+			left.fork();
+			var right = new UnionTask(partitions, mid, end, nonOverlapping).compute();
+			return merge(left.join(), right);
+		}
+
+		private PartialUnion merge(PartialUnion first, PartialUnion second) {
+			var polygons = new ArrayList<Polygon>(first.polygons.size() + second.polygons.size());
+			var overlap = first.envelope.intersection(second.envelope);
+			if (overlap.isNull()) {
+				polygons.addAll(first.polygons);
+				polygons.addAll(second.polygons);
+				return new PartialUnion(polygons);
+			}
+			// A polygon outside the overlapping region cannot touch anything in the other partial union
+			var toUnion = new ArrayList<Geometry>();
+			for (var partial : List.of(first, second)) {
+				for (var p : partial.polygons) {
+					if (p.getEnvelopeInternal().intersects(overlap))
+						toUnion.add(p);
+					else
+						polygons.add(p);
+				}
+			}
+			if (!toUnion.isEmpty())
+				polygons.addAll(toPolygons(GeometryTools.unionSequential(toUnion, nonOverlapping)));
+			return new PartialUnion(polygons);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static List<Polygon> toPolygons(Geometry geometry) {
+			List<Polygon> polygons = PolygonExtracter.getPolygons(geometry);
+			polygons.removeIf(p -> p.isEmpty());
+			return polygons;
+		}
+
+	}
+
+}
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestDelaunayTools {
+	
+	private static List<PathObject> createDetections(int n, double width, double height, long seed) {
+		var rand = new Random(seed);
+		var list = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++) {
+			double x = rand.nextDouble() * width;
+			double y = rand.nextDouble() * height;
+			list.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x - 2, y - 2, 4, 4, ImagePlane.getDefaultPlane())));
+		}
+		return list;
+	}
+	
+	@Test
+	public void test_tiledNeighbors() {
+		var detections = createDetections(2000, 3000, 2000, 100L);
+		var subdivision = DelaunayTools.newBuilder(detections).centroids().build();
+		var tiled = DelaunayTools.newBuilder(detections).centroids().tileSize(250).build();
+		
+		var neighbors = subdivision.getAllNeighbors();
+		var tiledNeighbors = tiled.getAllNeighbors();
+		assertEquals(neighbors.keySet(), tiledNeighbors.keySet());
+		for (var detection : detections) {
+			// Neighbors should be identical, and sorted by distance
+			var expected = neighbors.get(detection);
+			var actual = tiledNeighbors.get(detection);
+			assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+			assertEquals(expected.get(0), tiled.getNearestNeighbor(detection));
+			assertEquals(actual, tiled.getNeighbors(detection));
+		}
+		
+		// Clusters should be the same
+		var predicate = DelaunayTools.centroidDistancePredicate(40, true);
+		assertEquals(subdivision.getClusters(predicate).size(), tiled.getClusters(predicate).size());
+	}
+	
+	@Test
+	public void test_tiledVoronoiFaces() {
+		var detections = createDetections(1000, 1000, 1000, 200L);
+		var subdivision = DelaunayTools.newBuilder(detections).centroids().build();
+		var tiled = DelaunayTools.newBuilder(detections).centroids().tileSize(100).build();
+		
+		var faces = subdivision.getVoronoiFaces();
+		var tiledFaces = tiled.getVoronoiFaces();
+		assertEquals(faces.keySet(), tiledFaces.keySet());
+		double totalArea = 0;
+		for (var detection : detections) {
+			var face = tiledFaces.get(detection);
+			assertSame(face, tiled.getVoronoiFace(detection));
+			var roi = detection.getROI();
+			assertTrue(face.covers(face.getFactory().createPoint(new Coordinate(roi.getCentroidX(), roi.getCentroidY()))));
+			totalArea += face.getArea();
+			// Faces on the convex hull are clipped differently, but others should match 
+			// (allowing for coordinates being stored at float precision)
+			var env = face.getEnvelopeInternal();
+			if (env.getMinX() > 0 && env.getMinY() > 0 && env.getMaxX() < 1000 && env.getMaxY() < 1000)
+				assertEquals(faces.get(detection).getArea(), face.getArea(), face.getArea() * 1e-3);
+		}
+		// Faces should tile the plane without overlaps
+		assertEquals(GeometryTools.union(tiledFaces.values()).getArea(), totalArea, totalArea * 1e-5);
+	}
+	
+	@Test
+	public void test_tiledSmall() {
+		// A single object has no neighbors
+		var singleObject = createDetections(1, 100, 100, 300L);
+		var single = DelaunayTools.newBuilder(singleObject).centroids().tiled(true).build();
+		var detection = singleObject.get(0);
+		assertTrue(single.getNeighbors(detection).isEmpty());
+		assertNull(single.getNearestNeighbor(detection));
+		var face = single.getVoronoiFace(detection);
+		assertNotNull(face);
+		var roi = detection.getROI();
+		assertTrue(face.covers(face.getFactory().createPoint(new Coordinate(roi.getCentroidX(), roi.getCentroidY()))));
+		
+		// Two objects are each other's only neighbor
+		var twoObjects = createDetections(2, 100, 100, 400L);
+		var two = DelaunayTools.newBuilder(twoObjects).centroids().tiled(true).build();
+		assertEquals(List.of(twoObjects.get(1)), two.getNeighbors(twoObjects.get(0)));
+		assertEquals(List.of(twoObjects.get(0)), two.getNeighbors(twoObjects.get(1)));
+	}
+
+}
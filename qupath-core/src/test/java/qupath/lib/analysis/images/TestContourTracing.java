@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
@@ -39,10 +40,15 @@ import javax.imageio.ImageIO;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.operation.valid.IsValidOp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.analysis.images.ContourTracing.ChannelThreshold;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+
 /**
  * Test conversion of raster images (binary and labelled) to ROIs.
  * 
@@ -149,6 +155,19 @@ public class TestContourTracing {
 			} else
 				logger.debug("Validity check skipped ({} points)", geom.getNumPoints());
 		}
+		
+		// Check tracing across tile boundaries
+		var server = ImageServers.pyramidalizeTiled(new WrappedBufferedImageServer("Test", img), 32, 32, 1.0);
+		for (int i = 0; i < max; i++) {
+			var polygons = new ArrayList<Geometry>();
+			ContourTracing.traceGeometriesStreaming(server, null, null, (label, geom) -> polygons.add(geom), ChannelThreshold.create(0, i, i));
+			assertEquals(hist[i], polygons.stream().mapToDouble(g -> g.getArea()).sum(), 0.000001);
+			
+			var geom = ContourTracing.traceGeometry(server, null, null, 0, i, i);
+			assertEquals(hist[i], geom.getArea(), 0.000001);
+			if (alwaysCheckValidity || geom.getNumPoints() < MAX_POINTS_FOR_VALIDITY)
+				assertNull(new IsValidOp(geom).getValidationError());
+		}
 	}
 	
 
@@ -23,6 +23,7 @@
 
 package qupath.lib.color;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -250,6 +251,12 @@ public class TestColors {
 			assertEquals(output_ch2[i], (float)deconv_pixel_ch2, EPSILON);
 		}
 		
+		// Check all 3 channels when deconvolved together
+		float[][] output = ColorTransformer.colorDeconvolveRGBArray(buf, myCDS2, null);
+		assertArrayEquals(output_ch0, output[0]);
+		assertArrayEquals(output_ch1, output[1]);
+		assertArrayEquals(output_ch2, output[2]);
+		
 //		int[] buf_output = new int[buf.length];
 		
 //		buf_output = ColorDeconvolution.colorDeconvolveReconvolveRGBArray(buf, myCDS2, myCDS2, false, buf_output);
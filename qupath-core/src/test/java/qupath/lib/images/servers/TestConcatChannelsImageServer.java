@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestConcatChannelsImageServer {
+	
+	private static final int WIDTH = 300;
+	private static final int HEIGHT = 200;
+	
+	@Test
+	public void test_channelOrder() throws Exception {
+		int n = 12;
+		var servers = new ArrayList<ImageServer<BufferedImage>>();
+		for (int i = 0; i < n; i++)
+			servers.add(new WrappedBufferedImageServer("Server " + i, createImage(i)));
+		
+		var server = new TransformedServerBuilder(servers.get(0))
+				.concatChannels(servers.subList(1, n))
+				.build();
+		assertEquals(n, server.nChannels());
+		
+		// Compare with reading each server sequentially, for the whole image and for a downsampled region
+		var requests = List.of(
+				RegionRequest.createInstance(server),
+				RegionRequest.createInstance(server.getPath(), 2.0, 50, 30, 200, 150));
+		for (var request : requests) {
+			var img = server.readBufferedImage(request);
+			assertEquals(n, img.getRaster().getNumBands());
+			for (int i = 0; i < n; i++) {
+				var requestSingle = RegionRequest.createInstance(servers.get(i).getPath(), request);
+				var imgSingle = servers.get(i).readBufferedImage(requestSingle);
+				int w = imgSingle.getWidth();
+				int h = imgSingle.getHeight();
+				assertEquals(w, img.getWidth());
+				assertEquals(h, img.getHeight());
+				assertArrayEquals(
+						imgSingle.getRaster().getSamples(0, 0, w, h, 0, (int[])null),
+						img.getRaster().getSamples(0, 0, w, h, i, (int[])null));
+			}
+		}
+		
+		// Nested concatenation shouldn't deadlock, even if it saturates the pool
+		var nested = new ArrayList<ImageServer<BufferedImage>>();
+		for (int i = 0; i < 8; i++)
+			nested.add(new TransformedServerBuilder(servers.get(0)).concatChannels(servers.subList(1, n)).build());
+		var serverNested = new TransformedServerBuilder(nested.get(0)).concatChannels(nested.subList(1, nested.size())).build();
+		assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+			var img = serverNested.readBufferedImage(RegionRequest.createInstance(serverNested));
+			assertEquals(n * nested.size(), img.getRaster().getNumBands());
+			for (int i = 0; i < img.getRaster().getNumBands(); i++)
+				assertEquals(createImage(i % n).getRaster().getSample(10, 20, 0), img.getRaster().getSample(10, 20, i));
+		});
+	}
+	
+	@Test
+	public void test_exception() throws Exception {
+		int n = 40;
+		var release = new CountDownLatch(1);
+		var nReads = new AtomicInteger();
+		var servers = new ArrayList<ImageServer<BufferedImage>>();
+		// The first server is read on the calling thread, and fails immediately
+		servers.add(new TestServer(0, () -> {
+			throw new IOException("Test failure");
+		}));
+		for (int i = 1; i < n; i++) {
+			servers.add(new TestServer(i, () -> {
+				nReads.incrementAndGet();
+				release.await();
+			}));
+		}
+		var server = new TransformedServerBuilder(servers.get(0))
+				.concatChannels(servers.subList(1, n))
+				.build();
+		
+		assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+			var e = assertThrows(IOException.class, () -> server.readBufferedImage(RegionRequest.createInstance(server)));
+			assertEquals("Test failure", e.getMessage());
+		});
+		
+		// Reads that hadn't started should have been cancelled
+		release.countDown();
+		Thread.sleep(500L);
+		assertTrue(nReads.get() < n - 1, "Expected some reads to be cancelled, but " + nReads.get() + " were started");
+	}
+	
+	@Test
+	public void test_interrupt() throws Exception {
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		var servers = new ArrayList<ImageServer<BufferedImage>>();
+		servers.add(new TestServer(0, () -> {}));
+		servers.add(new TestServer(1, () -> {
+			started.countDown();
+			release.await();
+		}));
+		var server = new TransformedServerBuilder(servers.get(0))
+				.concatChannels(servers.subList(1, servers.size()))
+				.build();
+		
+		var exception = new AtomicReference<Exception>();
+		var interrupted = new AtomicReference<Boolean>();
+		var thread = new Thread(() -> {
+			try {
+				server.readBufferedImage(RegionRequest.createInstance(server));
+			} catch (Exception e) {
+				exception.set(e);
+			}
+			interrupted.set(Thread.currentThread().isInterrupted());
+		});
+		thread.start();
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		thread.interrupt();
+		thread.join(10_000L);
+		release.countDown();
+		
+		// The interrupt should result in an exception, and the interrupted status should be preserved
+		assertTrue(exception.get() instanceof InterruptedIOException, "Expected InterruptedIOException, but got " + exception.get());
+		assertTrue(interrupted.get());
+	}
+	
+	
+	/**
+	 * Create a single-channel 16-bit image with values that depend upon the index.
+	 */
+	private static BufferedImage createImage(int index) {
+		var img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_USHORT_GRAY);
+		var raster = img.getRaster();
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++)
+				raster.setSample(x, y, 0, (index * 1000 + x + y * 7) % 65536);
+		}
+		return img;
+	}
+	
+	private static interface ReadAction {
+		void run() throws Exception;
+	}
+	
+	/**
+	 * Server that runs an action before each read.
+	 */
+	private static class TestServer extends WrappedBufferedImageServer {
+		
+		private final ReadAction action;
+		
+		TestServer(int index, ReadAction action) {
+			super("Server " + index, createImage(index));
+			this.action = action;
+		}
+		
+		@Override
+		public BufferedImage readBufferedImage(RegionRequest request) throws IOException {
+			try {
+				action.run();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted!");
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			return super.readBufferedImage(request);
+		}
+		
+	}
+
+}
@@ -0,0 +1,342 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.ColorTools;
+
+@SuppressWarnings("javadoc")
+public class TestPyramidTileStore {
+	
+	private static final int SIZE = 64, TILE_SIZE = 32;
+	
+	@TempDir
+	Path dir;
+	
+	@Test
+	public void testRoundTripSamples() throws Exception {
+		// INT8 and UINT32 aren't included, because Java rasters can't represent them
+		var types = new PixelType[] {PixelType.UINT8, PixelType.INT16, PixelType.UINT16, PixelType.INT32, PixelType.FLOAT32, PixelType.FLOAT64};
+		for (var type : types) {
+			var server = createServer("image-" + type, BufferedImage.TYPE_BYTE_GRAY);
+			var metadata = new ImageServerMetadata.Builder(createPyramidMetadata(server))
+					.pixelType(type)
+					.channels(ImageChannel.getDefaultChannelList(2))
+					.build();
+			var colorModel = ColorModelFactory.createColorModel(type, 2, false, ColorTools.RED, ColorTools.GREEN);
+			var requests = getTileRequests(server);
+			
+			try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+				for (int i = 0; i < requests.size(); i++)
+					store.write(requests.get(i), createImage(colorModel, type, i), false, false);
+				// Check the tiles can be read while the store is open
+				assertSamplesEqual(createImage(colorModel, type, 0), store.read(requests.get(0), colorModel, null));
+			}
+			
+			// Check the tiles can be read after reopening
+			try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+				assertEquals(requests.size(), store.size());
+				for (int i = 0; i < requests.size(); i++)
+					assertSamplesEqual(createImage(colorModel, type, i), store.read(requests.get(i), colorModel, null));
+			}
+		}
+	}
+	
+	@Test
+	public void testRoundTripRGB() throws Exception {
+		for (int imageType : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB}) {
+			var server = createServer("image-rgb-" + imageType, imageType);
+			var metadata = createPyramidMetadata(server);
+			var requests = getTileRequests(server);
+			
+			try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+				for (int i = 0; i < requests.size(); i++)
+					store.write(requests.get(i), createRGB(imageType, i), false, true);
+			}
+			try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+				for (int i = 0; i < requests.size(); i++) {
+					var expected = createRGB(imageType, i);
+					var img = store.read(requests.get(i), null, null);
+					assertEquals(imageType, img.getType());
+					assertArrayEquals(getRGB(expected), getRGB(img));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testEmptyTiles() throws Exception {
+		var server = createServer("image-empty", BufferedImage.TYPE_BYTE_GRAY);
+		var metadata = createPyramidMetadata(server);
+		var request = getTileRequests(server).get(0);
+		var empty = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+			store.write(request, empty, true, false);
+		}
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+			assertTrue(store.contains(request));
+			assertSame(empty, store.read(request, null, empty));
+		}
+	}
+	
+	@Test
+	public void testTruncatedTail() throws Exception {
+		var server = createServer("image-truncated", BufferedImage.TYPE_INT_RGB);
+		var metadata = createPyramidMetadata(server);
+		var requests = getTileRequests(server);
+		Path path;
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+			path = store.getPath();
+			for (int i = 0; i < 3; i++)
+				store.write(requests.get(i), createRGB(BufferedImage.TYPE_INT_RGB, i), false, true);
+		}
+		// Simulate a file that wasn't closed properly, with an incomplete record at the end
+		try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 10);
+		}
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+			assertEquals(2, store.size());
+			assertTrue(store.contains(requests.get(1)));
+			assertFalse(store.contains(requests.get(2)));
+			// The incomplete record should have been discarded, so that new records can be appended
+			store.write(requests.get(2), createRGB(BufferedImage.TYPE_INT_RGB, 2), false, true);
+		}
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+			assertEquals(3, store.size());
+			for (int i = 0; i < 3; i++)
+				assertArrayEquals(getRGB(createRGB(BufferedImage.TYPE_INT_RGB, i)), getRGB(store.read(requests.get(i), null, null)));
+		}
+	}
+	
+	@Test
+	public void testKeyMismatch() throws Exception {
+		var server = createServer("image-modified", BufferedImage.TYPE_INT_RGB);
+		var metadata = createPyramidMetadata(server);
+		var request = getTileRequests(server).get(0);
+		Path path;
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+			path = store.getPath();
+			store.write(request, createRGB(BufferedImage.TYPE_INT_RGB, 0), false, true);
+		}
+		
+		// Modifying the image should reset the same file, rather than creating a new one
+		var file = Path.of(server.getURIs().iterator().next());
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 60_000L));
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+			assertEquals(path, store.getPath());
+			assertEquals(0, store.size());
+			assertFalse(store.contains(request));
+		}
+		assertEquals(1, listCacheFiles().size());
+		
+		// Changing the pyramid should use a different file
+		var metadata2 = new ImageServerMetadata.Builder(metadata).preferredTileSize(TILE_SIZE * 2, TILE_SIZE * 2).build();
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata2)) {
+			assertFalse(path.equals(store.getPath()));
+		}
+		assertEquals(2, listCacheFiles().size());
+	}
+	
+	@Test
+	public void testChecksumFailure() throws Exception {
+		var server = createServer("image-corrupt", BufferedImage.TYPE_INT_RGB);
+		var metadata = createPyramidMetadata(server);
+		var requests = getTileRequests(server);
+		Path path;
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+			path = store.getPath();
+			store.write(requests.get(0), createRGB(BufferedImage.TYPE_INT_RGB, 0), false, true);
+			store.write(requests.get(1), createRGB(BufferedImage.TYPE_INT_RGB, 1), false, true);
+		}
+		// Corrupt the last byte, which belongs to the pixels of the second tile
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long pos = channel.size() - 1;
+			var buffer = ByteBuffer.allocate(1);
+			channel.read(buffer, pos);
+			buffer.put(0, (byte)~buffer.get(0));
+			buffer.rewind();
+			channel.write(buffer, pos);
+		}
+		try (var store = PyramidTileStore.open(dir, 0, server, metadata)) {
+			assertNotNull(store.read(requests.get(0), null, null));
+			assertTrue(store.contains(requests.get(1)));
+			assertNull(store.read(requests.get(1), null, null));
+			assertFalse(store.contains(requests.get(1)));
+		}
+	}
+	
+	@Test
+	public void testSizeLimit() throws Exception {
+		List<Path> paths = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			var server = createServer("image-lru-" + i, BufferedImage.TYPE_INT_RGB);
+			try (var store = PyramidTileStore.open(dir, 0, server, createPyramidMetadata(server))) {
+				store.write(getTileRequests(server).get(0), createRGB(BufferedImage.TYPE_INT_RGB, i), false, true);
+				paths.add(store.getPath());
+			}
+			// Ensure the files have distinct access times, with the first being the least recently used
+			Files.setLastModifiedTime(paths.get(i), FileTime.fromMillis(System.currentTimeMillis() - (3 - i) * 60_000L));
+		}
+		long fileSize = Files.size(paths.get(0));
+		
+		// Opening a new store should delete the least recently used file if the limit is exceeded
+		var server = createServer("image-lru-3", BufferedImage.TYPE_INT_RGB);
+		try (var store = PyramidTileStore.open(dir, fileSize * 2, server, createPyramidMetadata(server))) {
+			assertFalse(Files.exists(paths.get(0)));
+			assertTrue(Files.exists(paths.get(1)));
+			assertTrue(Files.exists(paths.get(2)));
+			assertTrue(Files.exists(store.getPath()));
+		}
+		
+		// Files that are open should never be deleted
+		var server1 = createServer("image-lru-1", BufferedImage.TYPE_INT_RGB);
+		try (var store1 = PyramidTileStore.open(dir, 0, server1, createPyramidMetadata(server1))) {
+			assertEquals(paths.get(1), store1.getPath());
+			Files.setLastModifiedTime(paths.get(1), FileTime.fromMillis(0L));
+			var server4 = createServer("image-lru-4", BufferedImage.TYPE_INT_RGB);
+			try (var store4 = PyramidTileStore.open(dir, 1, server4, createPyramidMetadata(server4))) {
+				assertTrue(Files.exists(paths.get(1)));
+				assertFalse(Files.exists(paths.get(2)));
+				assertTrue(Files.exists(store4.getPath()));
+			}
+		}
+	}
+	
+	
+	private List<Path> listCacheFiles() throws IOException {
+		try (var stream = Files.list(dir)) {
+			return stream.filter(p -> p.toString().endsWith(".qptiles")).collect(Collectors.toList());
+		}
+	}
+	
+	/**
+	 * Create a server backed by a (dummy) local file, since tiles can only be stored for local files.
+	 */
+	private FileServer createServer(String name, int imageType) throws IOException {
+		var file = dir.resolve(name + ".tif");
+		if (!Files.exists(file))
+			Files.write(file, new byte[] {1, 2, 3});
+		return new FileServer(file, new BufferedImage(SIZE, SIZE, imageType));
+	}
+	
+	private static ImageServerMetadata createPyramidMetadata(ImageServer<BufferedImage> server) {
+		return PyramidGeneratingImageServer.createDefaultMetadata(server, TILE_SIZE, TILE_SIZE, 1, 2);
+	}
+	
+	private static List<TileRequest> getTileRequests(ImageServer<BufferedImage> server) {
+		var pyramid = new PyramidGeneratingImageServer(server, createPyramidMetadata(server));
+		return new ArrayList<>(TileRequest.getAllTileRequests(pyramid));
+	}
+	
+	/**
+	 * Create a 2-channel tile with values that depend upon the index, including negative and non-integer values 
+	 * where these are supported.
+	 */
+	private static BufferedImage createImage(ColorModel colorModel, PixelType type, int ind) {
+		var raster = colorModel.createCompatibleWritableRaster(TILE_SIZE, TILE_SIZE);
+		double offset = type.isSignedInteger() || type.isFloatingPoint() ? -100 : 0;
+		double fraction = type.isFloatingPoint() ? 0.25 : 0;
+		for (int b = 0; b < 2; b++) {
+			for (int y = 0; y < TILE_SIZE; y++) {
+				for (int x = 0; x < TILE_SIZE; x++) {
+					raster.setSample(x, y, b, (x * 7 + y * 3 + b * 11 + ind * 5) % 200 + offset + fraction);
+				}
+			}
+		}
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+	
+	private static BufferedImage createRGB(int imageType, int ind) {
+		var img = new BufferedImage(TILE_SIZE, TILE_SIZE, imageType);
+		for (int y = 0; y < TILE_SIZE; y++) {
+			for (int x = 0; x < TILE_SIZE; x++) {
+				int alpha = imageType == BufferedImage.TYPE_INT_ARGB ? (x * 8 + ind) % 256 : 255;
+				img.setRGB(x, y, ColorTools.packARGB(alpha, (x * 8) % 256, (y * 8) % 256, (ind * 40) % 256));
+			}
+		}
+		return img;
+	}
+	
+	private static int[] getRGB(BufferedImage img) {
+		return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+	}
+	
+	private static void assertSamplesEqual(BufferedImage expected, BufferedImage actual) {
+		assertNotNull(actual);
+		var r1 = expected.getRaster();
+		var r2 = actual.getRaster();
+		assertEquals(r1.getNumBands(), r2.getNumBands());
+		assertEquals(r1.getDataBuffer().getDataType(), r2.getDataBuffer().getDataType());
+		for (int b = 0; b < r1.getNumBands(); b++)
+			assertArrayEquals(r1.getSamples(0, 0, TILE_SIZE, TILE_SIZE, b, (double[])null), r2.getSamples(0, 0, TILE_SIZE, TILE_SIZE, b, (double[])null));
+	}
+	
+	
+	static class FileServer extends WrappedBufferedImageServer {
+		
+		private final Path file;
+		
+		FileServer(Path file, BufferedImage img) {
+			super(file.getFileName().toString(), img);
+			this.file = file;
+		}
+		
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.singletonList(file.toUri());
+		}
+		
+		@Override
+		protected String createID() {
+			return "test:" + file.toUri();
+		}
+		
+	}
+
+}
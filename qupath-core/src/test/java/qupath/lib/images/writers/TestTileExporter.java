@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.images.writers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.ZipFile;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonParser;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.images.writers.TileExporter.ArchiveFormat;
+
+@SuppressWarnings("javadoc")
+public class TestTileExporter {
+	
+	private static final int WIDTH = 96, HEIGHT = 64, TILE_SIZE = 32;
+	
+	@TempDir
+	Path dir;
+	
+	@Test
+	public void testZipShards() throws IOException {
+		var img = createImage();
+		createExporter(img)
+			.archiveFormat(ArchiveFormat.ZIP)
+			.archiveShardSize(4)
+			.writeTiles(dir.toString());
+		
+		// 6 tiles should be split across 2 archives
+		Map<String, byte[]> entries = new HashMap<>();
+		for (var name : new String[] {"test-tiles-00000.zip", "test-tiles-00001.zip"}) {
+			var path = dir.resolve(name);
+			assertTrue(Files.exists(path));
+			try (var zip = new ZipFile(path.toFile())) {
+				for (var entry : zip.stream().collect(Collectors.toList())) {
+					try (var stream = zip.getInputStream(entry)) {
+						entries.put(name + "/" + entry.getName(), stream.readAllBytes());
+					}
+				}
+			}
+		}
+		assertEquals(6, entries.size());
+		assertTrue(Files.notExists(dir.resolve("test-tiles-00002.zip")));
+		checkIndex(img, entries);
+	}
+	
+	@Test
+	public void testTar() throws IOException {
+		var img = createImage();
+		createExporter(img)
+			.archiveFormat(ArchiveFormat.TAR)
+			.writeTiles(dir.toString());
+		
+		var name = "test-tiles.tar";
+		Map<String, byte[]> entries = new HashMap<>();
+		for (var entry : readTar(dir.resolve(name)).entrySet())
+			entries.put(name + "/" + entry.getKey(), entry.getValue());
+		assertEquals(6, entries.size());
+		checkIndex(img, entries);
+	}
+	
+	
+	private static TileExporter createExporter(BufferedImage img) {
+		var imageData = new ImageData<>(new WrappedBufferedImageServer("test", img));
+		return new TileExporter(imageData)
+				.tileSize(TILE_SIZE)
+				.imageExtension(".png")
+				.exportJson(true)
+				.parallelism(2, 2);
+	}
+	
+	/**
+	 * Check that the JSON index refers to every archive entry, and that each entry contains the expected pixels.
+	 */
+	private void checkIndex(BufferedImage img, Map<String, byte[]> entries) throws IOException {
+		var json = JsonParser.parseString(Files.readString(dir.resolve("test-tiles.json"))).getAsJsonObject();
+		var tiles = json.getAsJsonArray("tiles");
+		assertEquals(entries.size(), tiles.size());
+		for (var element : tiles) {
+			var tile = element.getAsJsonObject();
+			var key = tile.get("archive").getAsString() + "/" + tile.get("image").getAsString();
+			var bytes = entries.get(key);
+			assertNotNull(bytes, "Missing archive entry " + key);
+			var region = tile.getAsJsonObject("region");
+			int x = region.get("x").getAsInt();
+			int y = region.get("y").getAsInt();
+			var imgTile = ImageIO.read(new ByteArrayInputStream(bytes));
+			assertEquals(TILE_SIZE, imgTile.getWidth());
+			assertEquals(TILE_SIZE, imgTile.getHeight());
+			for (int yy = 0; yy < TILE_SIZE; yy++) {
+				for (int xx = 0; xx < TILE_SIZE; xx++)
+					assertEquals(img.getRGB(x + xx, y + yy), imgTile.getRGB(xx, yy));
+			}
+		}
+	}
+	
+	private static BufferedImage createImage() {
+		var img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++)
+				img.setRGB(x, y, (x * 2) << 16 | (y * 3) << 8 | ((x + y) % 256));
+		}
+		return img;
+	}
+	
+	/**
+	 * Minimal tar reader, supporting regular files and GNU long names.
+	 */
+	private static Map<String, byte[]> readTar(Path path) throws IOException {
+		Map<String, byte[]> entries = new HashMap<>();
+		try (InputStream stream = Files.newInputStream(path)) {
+			String longName = null;
+			while (true) {
+				byte[] header = stream.readNBytes(512);
+				assertEquals(512, header.length);
+				if (header[0] == 0)
+					break;
+				int nameLength = 0;
+				while (nameLength < 100 && header[nameLength] != 0)
+					nameLength++;
+				String name = new String(header, 0, nameLength, StandardCharsets.UTF_8);
+				int size = Integer.parseInt(new String(header, 124, 11, StandardCharsets.US_ASCII).trim(), 8);
+				byte[] bytes = stream.readNBytes(size);
+				stream.readNBytes((512 - size % 512) % 512);
+				if (header[156] == 'L') {
+					longName = new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+					continue;
+				}
+				entries.put(longName == null ? name : longName, bytes);
+				longName = null;
+			}
+		}
+		return entries;
+	}
+
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class ColumnarMeasurementWriterTest {
+	
+	@Test
+	public void test_writeObjects() throws IOException {
+		var plane = ImagePlane.getDefaultPlane();
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			var pathObject = PathObjects.createDetectionObject(
+					ROIs.createRectangleROI(i * 10, 5, 2, 2, plane),
+					i % 2 == 0 ? PathClassFactory.getPathClass("Tumor") : null);
+			pathObject.getMeasurementList().putMeasurement("Area", i * 1.5);
+			// Add a measurement only for later objects, so it appears after the first row group
+			if (i >= 5)
+				pathObject.getMeasurementList().putMeasurement("Late", -i);
+			pathObjects.add(pathObject);
+		}
+		
+		var stream = new ByteArrayOutputStream();
+		try (var writer = new ColumnarMeasurementWriter(stream).rowGroupSize(4)) {
+			writer.writeObjects("First image", pathObjects.subList(0, 6));
+			writer.writeObjects("Second image", pathObjects.subList(6, 10));
+			assertEquals(10, writer.getRowCount());
+		}
+		
+		Map<String, byte[]> entries = new HashMap<>();
+		try (var zip = new ZipInputStream(new ByteArrayInputStream(stream.toByteArray()))) {
+			for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry())
+				entries.put(entry.getName(), zip.readAllBytes());
+		}
+		
+		JsonObject schema = JsonParser.parseString(new String(entries.get(ColumnarMeasurementWriter.SCHEMA_ENTRY), StandardCharsets.UTF_8)).getAsJsonObject();
+		assertEquals(10, schema.get("rows").getAsInt());
+		assertEquals(3, schema.get("rowGroups").getAsJsonArray().size());
+		
+		var columns = schema.get("columns").getAsJsonArray();
+		Map<String, JsonObject> columnMap = new HashMap<>();
+		for (var col : columns)
+			columnMap.put(col.getAsJsonObject().get("name").getAsString(), col.getAsJsonObject());
+		
+		// Check numeric values, including NaN for missing values
+		String fileArea = columnMap.get("Area").get("file").getAsString();
+		var area = readFloats(entries.get("rowgroup-000001/" + fileArea + ".npy"));
+		assertArrayEquals(new float[] {6f, 7.5f, 9f, 10.5f}, area);
+		
+		var late = columnMap.get("Late");
+		assertEquals(1, late.get("firstRowGroup").getAsInt());
+		assertFalse(entries.containsKey("rowgroup-000000/" + late.get("file").getAsString() + ".npy"));
+		var lateValues = readFloats(entries.get("rowgroup-000001/" + late.get("file").getAsString() + ".npy"));
+		assertTrue(Float.isNaN(lateValues[0]));
+		assertEquals(-5f, lateValues[1]);
+		
+		// Check dictionary encoding
+		String fileImage = columnMap.get("Image").get("file").getAsString();
+		assertEquals("dictionary", columnMap.get("Image").get("type").getAsString());
+		assertArrayEquals(new int[] {0, 0, 1, 1}, readInts(entries.get("rowgroup-000001/" + fileImage + ".npy")));
+		assertTrue(entries.containsKey("dictionary/" + fileImage + ".npy"));
+		String fileClass = columnMap.get("Class").get("file").getAsString();
+		assertArrayEquals(new int[] {0, -1}, readInts(entries.get("rowgroup-000002/" + fileClass + ".npy")));
+	}
+	
+	@Test
+	public void test_duplicateColumnNames() throws IOException {
+		var pathObject = PathObjects.createDetectionObject(ROIs.createRectangleROI(10, 20, 2, 2, ImagePlane.getDefaultPlane()));
+		pathObject.getMeasurementList().putMeasurement("Centroid X px", 100);
+		pathObject.getMeasurementList().putMeasurement("Centroid X px (measurement)", 200);
+		
+		var stream = new ByteArrayOutputStream();
+		try (var writer = new ColumnarMeasurementWriter(stream).doublePrecision(true)) {
+			writer.writeObjects("Image", List.of(pathObject));
+		}
+		
+		Map<String, byte[]> entries = new HashMap<>();
+		try (var zip = new ZipInputStream(new ByteArrayInputStream(stream.toByteArray()))) {
+			for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry())
+				entries.put(entry.getName(), zip.readAllBytes());
+		}
+		
+		JsonObject schema = JsonParser.parseString(new String(entries.get(ColumnarMeasurementWriter.SCHEMA_ENTRY), StandardCharsets.UTF_8)).getAsJsonObject();
+		Map<String, JsonObject> columnMap = new HashMap<>();
+		for (var col : schema.get("columns").getAsJsonArray())
+			columnMap.put(col.getAsJsonObject().get("name").getAsString(), col.getAsJsonObject());
+		
+		// Column names should be unique, with the fixed centroid column unchanged
+		assertEquals(schema.get("columns").getAsJsonArray().size(), columnMap.size());
+		assertArrayEquals(new double[] {11}, readDoubles(entries.get("rowgroup-000000/" + columnMap.get("Centroid X px").get("file").getAsString() + ".npy")));
+		assertArrayEquals(new double[] {100}, readDoubles(entries.get("rowgroup-000000/" + columnMap.get("Centroid X px (measurement)").get("file").getAsString() + ".npy")));
+		assertArrayEquals(new double[] {200}, readDoubles(entries.get("rowgroup-000000/" + columnMap.get("Centroid X px (measurement 2)").get("file").getAsString() + ".npy")));
+	}
+	
+	@Test
+	public void test_rowGroupSize() {
+		assertThrows(IllegalArgumentException.class, () -> new ColumnarMeasurementWriter(new ByteArrayOutputStream()).rowGroupSize(0));
+		assertThrows(IllegalArgumentException.class, () -> new ColumnarMeasurementWriter(new ByteArrayOutputStream()).rowGroupSize(Integer.MAX_VALUE));
+	}
+	
+	private static ByteBuffer readNpy(byte[] bytes) {
+		assertEquals((byte)0x93, bytes[0]);
+		assertEquals("NUMPY", new String(bytes, 1, 5, StandardCharsets.US_ASCII));
+		int headerLength = (bytes[8] & 0xFF) | ((bytes[9] & 0xFF) << 8);
+		assertEquals(0, (10 + headerLength) % 64);
+		return ByteBuffer.wrap(bytes, 10 + headerLength, bytes.length - 10 - headerLength).slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private static float[] readFloats(byte[] bytes) {
+		var buffer = readNpy(bytes).asFloatBuffer();
+		float[] values = new float[buffer.remaining()];
+		buffer.get(values);
+		return values;
+	}
+	
+	private static double[] readDoubles(byte[] bytes) {
+		var buffer = readNpy(bytes).asDoubleBuffer();
+		double[] values = new double[buffer.remaining()];
+		buffer.get(values);
+		return values;
+	}
+	
+	private static int[] readInts(byte[] bytes) {
+		var buffer = readNpy(bytes).asIntBuffer();
+		int[] values = new int[buffer.remaining()];
+		buffer.get(values);
+		return values;
+	}
+
+}
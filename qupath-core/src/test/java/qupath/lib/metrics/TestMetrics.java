@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonParser;
+
+@SuppressWarnings("javadoc")
+public class TestMetrics {
+
+	@Test
+	public void testBuckets() {
+		// Buckets should be contiguous, and every value should map to the bucket that contains it
+		long previousUpper = -1;
+		int maxIndex = LatencyHistogram.getBucketIndex(Long.MAX_VALUE);
+		for (int i = 0; i <= maxIndex; i++) {
+			long lower = LatencyHistogram.getBucketLowerBound(i);
+			long upper = LatencyHistogram.getBucketUpperBound(i);
+			assertEquals(previousUpper + 1, lower);
+			assertEquals(i, LatencyHistogram.getBucketIndex(lower));
+			assertEquals(i, LatencyHistogram.getBucketIndex(upper));
+			// Relative error should be small
+			assertTrue((upper - lower) / (double)Math.max(1, lower) < 0.04);
+			previousUpper = upper;
+		}
+		assertEquals(Long.MAX_VALUE, previousUpper);
+	}
+
+	@Test
+	public void testHistogram() {
+		var histogram = new LatencyHistogram("test");
+		assertTrue(Double.isNaN(histogram.getMean()));
+		assertTrue(Double.isNaN(histogram.getPercentile(50)));
+
+		// Record 1-1000 microseconds, from multiple threads
+		IntStream.rangeClosed(1, 1000).parallel().forEach(i -> histogram.record(i * 1000L));
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500_500.0, histogram.getMean(), 1e-6);
+		assertEquals(1_000_000L, histogram.getMax());
+		assertEquals(500_000.0, histogram.getPercentile(50), 500_000 * 0.04);
+		assertEquals(990_000.0, histogram.getPercentile(99), 990_000 * 0.04);
+		assertEquals(1_000_000.0, histogram.getPercentile(100), 1_000_000 * 0.04);
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	public void testRegistry() {
+		var counter = Metrics.counter("test.counter");
+		assertSame(counter, Metrics.counter("test.counter"));
+		counter.reset();
+		IntStream.range(0, 100).parallel().forEach(i -> counter.increment());
+		counter.add(10);
+		assertEquals(110, counter.getCount());
+
+		var histogram = Metrics.histogram("test.histogram");
+		assertSame(histogram, Metrics.histogram("test.histogram"));
+		histogram.reset();
+		histogram.record(2_000_000L);
+
+		var json = JsonParser.parseString(Metrics.toJson()).getAsJsonObject();
+		assertEquals(110, json.getAsJsonObject("counters").get("test.counter").getAsLong());
+		var histogramJson = json.getAsJsonObject("histograms").getAsJsonObject("test.histogram");
+		assertEquals(1, histogramJson.get("count").getAsLong());
+		assertEquals(2.0, histogramJson.get("maxMillis").getAsDouble(), 1e-6);
+	}
+
+}
@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestCellTools {
+	
+	@Test
+	public void test_detectionsToCellsBlocks() {
+		double distance = 10;
+		double nucleusScale = 3;
+		var detections = createNuclei(20, 20, 17, 4, 100L);
+		var expected = getCellsById(CellTools.detectionsToCells(detections, distance, nucleusScale));
+		assertEquals(detections.size(), expected.size());
+		
+		// Use block sizes smaller than the expansion distance, so that many nuclei straddle block boundaries
+		for (double blockSize : new double[] {7.5, 16, 50, 1000}) {
+			var cells = new ArrayList<PathObject>();
+			var skipped = CellTools.detectionsToCells(detections, distance, nucleusScale, blockSize, cells::addAll);
+			assertTrue(skipped.isEmpty());
+			
+			// Check we have exactly one cell per detection
+			assertEquals(detections.size(), cells.size());
+			var cellsById = getCellsById(cells);
+			assertEquals(detections.size(), cellsById.size());
+			
+			// Check boundaries match the global result
+			for (var entry : expected.entrySet()) {
+				var cell = cellsById.get(entry.getKey());
+				assertNotNull(cell);
+				var geom = cell.getROI().getGeometry();
+				var geomExpected = entry.getValue().getROI().getGeometry();
+				double area = geomExpected.getArea();
+				assertEquals(area, geom.getArea(), area * 0.01);
+				assertEquals(0, geom.symDifference(geomExpected).getArea(), area * 0.01);
+			}
+		}
+	}
+	
+	@Test
+	public void test_detectionsToCellsEmpty() {
+		var cells = new ArrayList<PathObject>();
+		var skipped = CellTools.detectionsToCells(new ArrayList<PathObject>(), 10, 3, 100, cells::addAll);
+		assertTrue(skipped.isEmpty());
+		assertTrue(cells.isEmpty());
+	}
+	
+	/**
+	 * Create elliptical nuclei on a jittered grid, each with an 'ID' measurement.
+	 */
+	private static List<PathObject> createNuclei(int nx, int ny, double spacing, double radius, long seed) {
+		var rand = new Random(seed);
+		var detections = new ArrayList<PathObject>();
+		for (int y = 0; y < ny; y++) {
+			for (int x = 0; x < nx; x++) {
+				double cx = x * spacing + (rand.nextDouble() - 0.5) * spacing * 0.5;
+				double cy = y * spacing + (rand.nextDouble() - 0.5) * spacing * 0.5;
+				double rx = radius * (0.75 + rand.nextDouble() * 0.5);
+				double ry = radius * (0.75 + rand.nextDouble() * 0.5);
+				var roi = ROIs.createEllipseROI(cx - rx, cy - ry, rx * 2, ry * 2, ImagePlane.getDefaultPlane());
+				var detection = PathObjects.createDetectionObject(roi);
+				detection.getMeasurementList().putMeasurement("ID", detections.size());
+				detection.getMeasurementList().close();
+				detections.add(detection);
+			}
+		}
+		return detections;
+	}
+	
+	private static Map<Integer, PathObject> getCellsById(List<PathObject> cells) {
+		var map = new HashMap<Integer, PathObject>();
+		for (var cell : cells) {
+			assertTrue(cell.isCell());
+			int id = (int)cell.getMeasurementList().getMeasurementValue("ID");
+			assertNull(map.put(id, cell));
+		}
+		return map;
+	}
+
+}
@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestWorkflowRunner {
+	
+	@Test
+	public void testCachedSteps() throws Exception {
+		var imageData = createImageData();
+		var executor = new DetectionExecutor();
+		var runner = new WorkflowRunner(imageData);
+		runner.setStepExecutor(executor);
+		
+		var workflow = createWorkflow("10 10", "50 50", "100 100");
+		runner.run(workflow);
+		assertEquals(3, runner.getLastStepsApplied());
+		assertEquals(3, executor.count);
+		assertEquals(3, imageData.getHierarchy().getDetectionObjects().size());
+		
+		// An unchanged workflow shouldn't apply any steps, but should restore the same result
+		imageData.getHierarchy().clearAll();
+		runner.run(createWorkflow("10 10", "50 50", "100 100"));
+		assertEquals(0, runner.getLastStepsApplied());
+		assertEquals(3, executor.count);
+		assertEquals(List.of(10.0, 50.0, 100.0), getDetectionX(imageData.getHierarchy().getDetectionObjects()));
+		
+		// Editing the last step should apply only that step
+		var workflowEdited = createWorkflow("10 10", "50 50", "100 100");
+		workflowEdited.replaceLastStep(new DefaultScriptableWorkflowStep("Add detection", "add 200 200"));
+		runner.run(workflowEdited);
+		assertEquals(1, runner.getLastStepsApplied());
+		assertEquals(4, executor.count);
+		assertEquals(List.of(10.0, 50.0, 200.0), getDetectionX(imageData.getHierarchy().getDetectionObjects()));
+		
+		// Running the original workflow should still use cached results
+		runner.run(workflow);
+		assertEquals(0, runner.getLastStepsApplied());
+		assertEquals(List.of(10.0, 50.0, 100.0), getDetectionX(imageData.getHierarchy().getDetectionObjects()));
+	}
+	
+	@Test
+	public void testResetInput() throws Exception {
+		var imageData = createImageData();
+		var executor = new DetectionExecutor();
+		var runner = new WorkflowRunner(imageData);
+		runner.setStepExecutor(executor);
+		
+		var workflow = createWorkflow("10 10", "50 50");
+		runner.run(workflow);
+		assertEquals(2, runner.getLastStepsApplied());
+		
+		// Changing the input should invalidate the cache
+		imageData.getHierarchy().clearAll();
+		imageData.getHierarchy().addPathObject(PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 300, 300, ImagePlane.getDefaultPlane())));
+		runner.resetInput();
+		runner.run(workflow);
+		assertEquals(2, runner.getLastStepsApplied());
+		assertEquals(4, executor.count);
+		assertEquals(1, imageData.getHierarchy().getAnnotationObjects().size());
+		assertEquals(2, imageData.getHierarchy().getDetectionObjects().size());
+		
+		// Clearing the cache should also require all steps to be applied
+		runner.clearCache();
+		runner.run(workflow);
+		assertEquals(2, runner.getLastStepsApplied());
+	}
+	
+	@Test
+	public void testMaxCachedStates() throws Exception {
+		var imageData = createImageData();
+		var executor = new DetectionExecutor();
+		var runner = new WorkflowRunner(imageData);
+		runner.setStepExecutor(executor);
+		
+		runner.run(createWorkflow("10 10", "50 50", "100 100"));
+		assertEquals(3, runner.getLastStepsApplied());
+		
+		// Reducing the limit should only evict the oldest states
+		runner.setMaxCachedStates(2);
+		var workflowEdited = createWorkflow("10 10", "50 50", "100 100");
+		workflowEdited.replaceLastStep(new DefaultScriptableWorkflowStep("Add detection", "add 200 200"));
+		runner.run(workflowEdited);
+		assertEquals(1, runner.getLastStepsApplied());
+		
+		// Without caching, all steps should be applied
+		runner.setMaxCachedStates(0);
+		runner.run(workflowEdited);
+		assertEquals(3, runner.getLastStepsApplied());
+	}
+	
+	@Test
+	public void testRunRegion() throws Exception {
+		var imageData = createImageData();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(100, 100, 200, 200, ImagePlane.getDefaultPlane()));
+		imageData.getHierarchy().addPathObject(annotation);
+		var executor = new DetectionExecutor();
+		var runner = new WorkflowRunner(imageData);
+		runner.setStepExecutor(executor);
+		
+		// Steps add detections in the coordinates of the cropped region (outside the clipped annotation)
+		var region = ImageRegion.createInstance(250, 150, 100, 100, 0, 0);
+		var workflow = createWorkflow("80 20");
+		var pathObjects = runner.runRegion(workflow, region);
+		assertEquals(1, runner.getLastStepsApplied());
+		
+		// Results should be in the coordinates of the full image, with the annotation clipped to the region
+		var detections = pathObjects.stream().filter(p -> p.isDetection()).collect(Collectors.toList());
+		var annotations = pathObjects.stream().filter(p -> p.isAnnotation()).collect(Collectors.toList());
+		assertEquals(1, detections.size());
+		assertEquals(330, detections.get(0).getROI().getBoundsX(), 1e-6);
+		assertEquals(170, detections.get(0).getROI().getBoundsY(), 1e-6);
+		assertEquals(1, annotations.size());
+		var roi = annotations.get(0).getROI();
+		assertEquals(250, roi.getBoundsX(), 1e-6);
+		assertEquals(150, roi.getBoundsY(), 1e-6);
+		assertEquals(50, roi.getBoundsWidth(), 1e-6);
+		assertEquals(100, roi.getBoundsHeight(), 1e-6);
+		
+		// The image itself should be unchanged
+		assertEquals(1, imageData.getHierarchy().getAnnotationObjects().size());
+		assertTrue(imageData.getHierarchy().getDetectionObjects().isEmpty());
+		assertEquals(200, imageData.getHierarchy().getAnnotationObjects().iterator().next().getROI().getBoundsWidth(), 1e-6);
+		
+		// Running the same region again should use the cache
+		var pathObjects2 = runner.runRegion(workflow, region);
+		assertEquals(0, runner.getLastStepsApplied());
+		assertEquals(pathObjects.size(), pathObjects2.size());
+		assertEquals(1, executor.count);
+	}
+	
+	
+	private static ImageData<BufferedImage> createImageData() {
+		var server = new WrappedBufferedImageServer("Workflow test", new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB));
+		return new ImageData<>(server);
+	}
+	
+	private static Workflow createWorkflow(String... locations) {
+		var workflow = new Workflow();
+		for (var location : locations)
+			workflow.addStep(new DefaultScriptableWorkflowStep("Add detection", "add " + location));
+		return workflow;
+	}
+	
+	private static List<Double> getDetectionX(Iterable<PathObject> pathObjects) {
+		var list = new ArrayList<Double>();
+		for (var pathObject : pathObjects)
+			list.add(pathObject.getROI().getBoundsX());
+		list.sort(null);
+		return list;
+	}
+	
+	/**
+	 * Executor for steps with scripts of the form 'add x y', which add a 5x5 detection at the specified location.
+	 */
+	private static class DetectionExecutor implements WorkflowRunner.StepExecutor {
+		
+		private int count = 0;
+
+		@Override
+		public void execute(ImageData<BufferedImage> imageData, WorkflowStep step) throws Exception {
+			count++;
+			var parts = ((ScriptableWorkflowStep)step).getScript().split(" ");
+			double x = Double.parseDouble(parts[1]);
+			double y = Double.parseDouble(parts[2]);
+			imageData.getHierarchy().addPathObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(x, y, 5, 5, ImagePlane.getDefaultPlane())));
+		}
+		
+	}
+
+}
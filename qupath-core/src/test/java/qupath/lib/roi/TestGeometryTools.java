@@ -33,12 +33,16 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.Test;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.util.AffineTransformation;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
 
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 
@@ -134,5 +138,41 @@ public class TestGeometryTools {
 		
 	}
 	
+	/**
+	 * Check that a partitioned union gives the same result as a single union operation.
+	 */
+	@Test
+	public void testPartitionedUnion() {
+		var factory = GeometryTools.getDefaultFactory();
+		
+		// Non-overlapping, touching squares should merge into a single polygon
+		var squares = new ArrayList<Geometry>();
+		int n = 50;
+		for (int y = 0; y < n; y++) {
+			for (int x = 0; x < n; x++)
+				squares.add(GeometryTools.createRectangle(x * 10, y * 10, 10, 10));
+		}
+		Collections.shuffle(squares, new Random(100L));
+		for (boolean nonOverlapping : new boolean[] {true, false}) {
+			var union = GeometryTools.union(squares, nonOverlapping);
+			assertTrue(union.isValid());
+			assertEquals(1, union.getNumGeometries());
+			assertEquals(n * n * 100, union.getArea(), 0.001);
+		}
+		
+		// Overlapping circles
+		var rand = new Random(100L);
+		var circles = new ArrayList<Geometry>();
+		for (int i = 0; i < 2000; i++)
+			circles.add(factory.createPoint(new Coordinate(rand.nextDouble() * 2000, rand.nextDouble() * 2000)).buffer(5 + rand.nextDouble() * 20));
+		var expected = UnaryUnionOp.union(circles);
+		for (boolean nonOverlapping : new boolean[] {true, false}) {
+			var union = GeometryTools.union(circles, nonOverlapping);
+			assertTrue(union.isValid());
+			assertEquals(expected.getNumGeometries(), union.getNumGeometries());
+			assertEquals(expected.getArea(), union.getArea(), expected.getArea() * 1e-6);
+		}
+	}
+	
 
 }
\ No newline at end of file
@@ -63,6 +63,8 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import javax.imageio.ImageIO;
 
@@ -96,6 +98,7 @@ import loci.formats.ome.OMEXMLMetadata;
 import qupath.lib.color.ColorModelFactory;
 import qupath.lib.common.ColorTools;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.AbstractTileableImageServer;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServerBuilder.DefaultImageServerBuilder;
@@ -213,6 +216,12 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 	 */
 	private LocalReaderWrapper readerWrapper;
 	
+	/**
+	 * Pool of readers used for parallel tile requests, acquired lazily and released on close.
+	 */
+	private BioFormatsReaderPool readerPool;
+	private boolean isClosed = false;
+	
 	/**
 	 * Primary metadata store.
 	 */
@@ -813,22 +822,37 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 
 	
 	/**
-	 * Get a IFormatReader for use by the current thread.
+	 * Get the pool of readers to use for tile requests, or null if the primary reader should be used.
 	 * <p>
-	 * If willParallelize() returns false, then the global reader will be provided.
+	 * If willParallelize() returns false, then the primary reader should be used.
 	 * 
 	 * @return
 	 */
-	private IFormatReader getReader() {
-		try {
-			if (willParallelize())
-				return manager.getReaderForThread(options, filePath, bfArgs);
-			else
-				return readerWrapper.getReader();
-		} catch (Exception e) {
-			logger.error("Error requesting image reader", e);
-			return null;
-		}
+	private synchronized BioFormatsReaderPool getReaderPool() {
+		if (readerPool == null && !isClosed && willParallelize())
+			readerPool = manager.acquireReaderPool(options, filePath, bfArgs);
+		return readerPool;
+	}
+	
+	/**
+	 * Get statistics for the pool of readers used to request tiles in parallel.
+	 * This can be useful to help tune the number of readers for different image formats.
+	 * 
+	 * @return the statistics, or null if readers are not pooled for this server (i.e. {@link #willParallelize()} returns false)
+	 * @see BioFormatsServerOptions#setMaxReadersPerFile(int)
+	 */
+	public BioFormatsReaderPool.ReaderPoolStatistics getReaderPoolStatistics() {
+		var pool = getReaderPool();
+		return pool == null ? null : pool.getStatistics();
+	}
+	
+	/**
+	 * Get statistics for all reader pools that are currently active.
+	 * 
+	 * @return a list of pool statistics
+	 */
+	public static List<BioFormatsReaderPool.ReaderPoolStatistics> getAllReaderPoolStatistics() {
+		return manager.getAllPoolStatistics();
 	}
 	
 //	IFormatReader getPrimaryReader() throws DependencyException, ServiceException, FormatException, IOException {
@@ -846,24 +870,35 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 	
 	@Override
 	public BufferedImage readTile(TileRequest tileRequest) throws IOException {
-		int level = tileRequest.getLevel();
-
-		int tileX = tileRequest.getTileX();
-		int tileY = tileRequest.getTileY();
 		int tileWidth = tileRequest.getTileWidth();
 		int tileHeight = tileRequest.getTileHeight();
-		int z = tileRequest.getZ();
-		int t = tileRequest.getT();
-
-		IFormatReader ipReader = getReader();
-		if (ipReader == null) {
-			throw new IOException("Reader is null - was the image already closed? " + filePath);
-		}
 
 		// Check if this is non-zero
 		if (tileWidth <= 0 || tileHeight <= 0) {
 			throw new IOException("Unable to request pixels for region with downsampled size " + tileWidth + " x " + tileHeight);
 		}
+		
+		var pool = getReaderPool();
+		IFormatReader ipReader = pool == null ? readerWrapper.getReader() : pool.checkout();
+		if (ipReader == null) {
+			throw new IOException("Reader is null - was the image already closed? " + filePath);
+		}
+		try {
+			return readTile(ipReader, tileRequest);
+		} finally {
+			if (pool != null)
+				pool.returnReader(ipReader);
+		}
+	}
+	
+	private BufferedImage readTile(IFormatReader ipReader, TileRequest tileRequest) throws IOException {
+		int level = tileRequest.getLevel();
+		int tileX = tileRequest.getTileX();
+		int tileY = tileRequest.getTileY();
+		int tileWidth = tileRequest.getTileWidth();
+		int tileHeight = tileRequest.getTileHeight();
+		int z = tileRequest.getZ();
+		int t = tileRequest.getT();
 
 		byte[][] bytes = null;
 		int effectiveC;
@@ -1006,6 +1041,11 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 	@Override
 	public synchronized void close() throws Exception {
 		super.close();
+		isClosed = true;
+		if (readerPool != null) {
+			manager.releaseReaderPool(filePath, bfArgs);
+			readerPool = null;
+		}
 	}
 
 	boolean containsSubImages() {
@@ -1047,7 +1087,7 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 	public BufferedImage getAssociatedImage(String name) {
 		if (associatedImageMap == null || !associatedImageMap.containsKey(name))
 			throw new IllegalArgumentException("No associated image with name '" + name + "' for " + getPath());
-		IFormatReader reader = getReader();
+		IFormatReader reader = readerWrapper.getReader();
 		synchronized (reader) {
 			int series = reader.getSeries();
 			try {
@@ -1128,27 +1168,47 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 	 * <ol>
 	 *   <li>To construct IFormatReaders in a standardized way (e.g. with/without memoization).</li>
 	 *   <li>To track the size of any memoization files for particular readers.</li>
-	 *   <li>To allow BioFormatsImageServers to request separate Bio-Formats image readers for different threads.</li>
+	 *   <li>To allow BioFormatsImageServers to request separate Bio-Formats image readers from a bounded pool for each file.</li>
 	 * </ol> 
 	 * The memoization file size can be relevant because some readers are very memory-hungry, and may need to be created rarely.
 	 * On the other side, some readers are very lightweight - and having multiple such readers active at a time can help rapidly 
 	 * respond to tile requests.
 	 * <p>
-	 * It's up to any consumers to ensure that heavyweight readers aren't called for each thread. Additionally, each thread 
-	 * will have only one reader active at any time. This should be explicitly closed by the calling thread if it knows 
-	 * the reader will not be used again, but in practice this is often not the case and therefore a Cleaner is registered to 
-	 * provide some additional support for when a thread is no longer reachable.
+	 * For this reason, the maximum size of each {@link BioFormatsReaderPool} is adapted according to the memoization file size, 
+	 * so that many threads requesting tiles do not result in many heavyweight readers. Readers that are not used for some time 
+	 * are closed automatically.
 	 * <p>
-	 * Note that this does mean one should be sparing when creating threads, and not keep them around too long.
+	 * A Cleaner is registered for primary readers to provide some additional support for closing readers when they are no longer reachable.
 	 */
 	static class BioFormatsReaderManager {
 		
 		private static Cleaner cleaner = Cleaner.create();
 		
 		/**
-		 * Map of reads for each calling thread.  Care should be taking by the calling code to ensure requests are only made for 'lightweight' readers to avoid memory problems.
+		 * Approximate proportion of the available memory that may be used for pooled readers, 
+		 * using the memoization file size as an estimate of the memory required for each reader.
+		 */
+		private static double MAX_POOL_MEMORY_PROPORTION = 0.125;
+		
+		/**
+		 * Interval at which idle pooled readers are checked for eviction.
+		 */
+		private static long EVICTION_INTERVAL_MILLIS = 10_000L;
+		
+		/**
+		 * Reader pools for each file (and set of arguments).
 		 */
-		private static ThreadLocal<LocalReaderWrapper> localReader = new ThreadLocal<>();
+		private static Map<ReaderPoolKey, BioFormatsReaderPool> readerPools = new HashMap<>();
+		
+		/**
+		 * Number of open servers using each reader pool.
+		 */
+		private static Map<ReaderPoolKey, Integer> poolReferences = new HashMap<>();
+		
+		/**
+		 * Scheduled task used to close idle readers, created lazily.
+		 */
+		private static ScheduledExecutorService evictionService;
 		
 		/**
 		 * Map of memoization file sizes.
@@ -1171,40 +1231,105 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		private static Set<File> tempMemoFiles = new HashSet<>();
 		
 		/**
-		 * Request a IFormatReader for a specified path that is unique for the calling thread.
+		 * Request the pool of readers for a specified path and arguments, creating it if necessary.
 		 * <p>
-		 * Note that the state of the reader is not specified; setSeries should be called before use.
+		 * Readers must be checked out from the pool before use and returned afterwards, so that 
+		 * each reader is only used by a single thread at a time.
+		 * <p>
+		 * Each call must be matched by a call to {@link #releaseReaderPool(String, BioFormatsArgs)}, 
+		 * so that the pool can be closed when it is no longer needed.
 		 * 
 		 * @param options
 		 * @param path
 		 * @param args 
 		 * @return
-		 * @throws DependencyException
-		 * @throws ServiceException
-		 * @throws FormatException
-		 * @throws IOException
 		 */
-		public synchronized IFormatReader getReaderForThread(final BioFormatsServerOptions options, final String path, BioFormatsArgs args) throws DependencyException, ServiceException, FormatException, IOException {
-			
-			LocalReaderWrapper wrapper = localReader.get();
-			
-			// Check if we already have the correct reader
-			IFormatReader reader = wrapper == null ? null : wrapper.getReader();
-			if (reader != null) {
-				if (path.equals(reader.getCurrentFile()) && wrapper.argsMatch(args))
-					return reader;		
-				else
-					reader.close(false);
+		synchronized BioFormatsReaderPool acquireReaderPool(final BioFormatsServerOptions options, final String path, BioFormatsArgs args) {
+			var key = new ReaderPoolKey(path, args);
+			var pool = readerPools.get(key);
+			if (pool == null) {
+				int maxReaders = computeMaxReaders(options.getMaxReadersPerFile(), getMemoizationFileSize(path));
+				pool = new BioFormatsReaderPool(path, () -> createReader(options, path, null, args), maxReaders, options.getReaderIdleTimeoutMillis());
+				logger.debug("Creating reader pool with max {} readers for {}", maxReaders, path);
+				readerPools.put(key, pool);
+				ensureEvictionScheduled();
 			}
-			
-			// Create a new reader
-			reader = createReader(options, path, null, args);
-			
-			// Store wrapped reference with associated cleaner
-			wrapper = wrapReader(reader, args);
-			localReader.set(wrapper);
-			
-			return reader;
+			poolReferences.merge(key, 1, Integer::sum);
+			return pool;
+		}
+		
+		/**
+		 * Release a pool previously obtained from {@link #acquireReaderPool(BioFormatsServerOptions, String, BioFormatsArgs)}.
+		 * The pool is closed and removed when it has no more references.
+		 * 
+		 * @param path
+		 * @param args
+		 */
+		void releaseReaderPool(final String path, BioFormatsArgs args) {
+			var key = new ReaderPoolKey(path, args);
+			BioFormatsReaderPool pool = null;
+			synchronized (this) {
+				var count = poolReferences.get(key);
+				if (count == null) {
+					logger.warn("Attempted to release a reader pool that is not open for {}", path);
+					return;
+				}
+				if (count > 1)
+					poolReferences.put(key, count - 1);
+				else {
+					poolReferences.remove(key);
+					pool = readerPools.remove(key);
+				}
+			}
+			if (pool != null)
+				pool.close();
+		}
+		
+		/**
+		 * Get the statistics for all reader pools currently open.
+		 * @return
+		 */
+		synchronized List<BioFormatsReaderPool.ReaderPoolStatistics> getAllPoolStatistics() {
+			List<BioFormatsReaderPool.ReaderPoolStatistics> stats = new ArrayList<>();
+			for (var pool : readerPools.values())
+				stats.add(pool.getStatistics());
+			return stats;
+		}
+		
+		/**
+		 * Compute the maximum number of readers that should be used for a file, adapted according to the size of any 
+		 * memoization file.
+		 * @param maxReaders the maximum number of readers, regardless of memoization file size
+		 * @param memoizationFileSize the memoization file size, or 0 if there is no memoization file
+		 * @return
+		 */
+		static int computeMaxReaders(int maxReaders, long memoizationFileSize) {
+			maxReaders = Math.max(1, maxReaders);
+			if (memoizationFileSize <= 0L)
+				return maxReaders;
+			long budget = (long)(Runtime.getRuntime().maxMemory() * MAX_POOL_MEMORY_PROPORTION);
+			long nReaders = budget / memoizationFileSize;
+			return (int)Math.max(1L, Math.min(maxReaders, nReaders));
+		}
+		
+		private static synchronized void ensureEvictionScheduled() {
+			if (evictionService != null)
+				return;
+			evictionService = Executors.newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("bioformats-reader-eviction", true));
+			evictionService.scheduleWithFixedDelay(() -> evictIdleReaders(), EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * Close any pooled readers that have been idle for too long.
+		 * The pools themselves are retained, since they are lightweight and servers may continue to refer to them.
+		 */
+		private static void evictIdleReaders() {
+			List<BioFormatsReaderPool> pools;
+			synchronized (manager) {
+				pools = new ArrayList<>(readerPools.values());
+			}
+			for (var pool : pools)
+				pool.evictIdleReaders();
 		}
 		
 		
@@ -1483,6 +1608,36 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		}
 		
 		
+		/**
+		 * Key used to identify reader pools.
+		 */
+		private static class ReaderPoolKey {
+			
+			private final String path;
+			private final BioFormatsArgs args;
+			
+			private ReaderPoolKey(String path, BioFormatsArgs args) {
+				this.path = path;
+				this.args = args;
+			}
+
+			@Override
+			public int hashCode() {
+				return Objects.hash(path, args);
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				if (this == obj)
+					return true;
+				if (!(obj instanceof ReaderPoolKey))
+					return false;
+				var other = (ReaderPoolKey)obj;
+				return Objects.equals(path, other.path) && Objects.equals(args, other.args);
+			}
+			
+		}
+		
 		/**
 		 * Simple wrapper for a reader to help with cleanup.
 		 */
@@ -85,6 +85,7 @@ public class BioFormatsOptionsExtension implements QuPathExtension {
 		BooleanProperty filesOnly = PathPrefs.createPersistentPreference("bfFilesOnly", options.getFilesOnly());
 		BooleanProperty useParallelization = PathPrefs.createPersistentPreference("bfUseParallelization", options.requestParallelization());
 		IntegerProperty memoizationTimeMillis = PathPrefs.createPersistentPreference("bfMemoizationTimeMS", options.getMemoizationTimeMillis());
+		IntegerProperty maxReadersPerFile = PathPrefs.createPersistentPreference("bfMaxReadersPerFile", options.getMaxReadersPerFile());
 //		BooleanProperty parallelizeMultichannel = PathPrefs.createPersistentPreference("bfParallelizeMultichannel", options.requestParallelizeMultichannel());
 
 //		BooleanProperty requestChannelZCorrectionVSI = PathPrefs.createPersistentPreference("bfChannelZCorrectionVSI", options.requestChannelZCorrectionVSI());
@@ -99,6 +100,7 @@ public class BioFormatsOptionsExtension implements QuPathExtension {
 		options.setBioformatsEnabled(enableBioformats.get());
 		options.setRequestParallelization(useParallelization.get());
 		options.setMemoizationTimeMillis(memoizationTimeMillis.get());
+		options.setMaxReadersPerFile(maxReadersPerFile.get());
 //		options.setRequestParallelizeMultichannel(parallelizeMultichannel.get());
 //		options.setRequestChannelZCorrectionVSI(requestChannelZCorrectionVSI.get());
 		fillCollectionWithTokens(useExtensions.get(), options.getUseAlwaysExtensions());
@@ -109,6 +111,7 @@ public class BioFormatsOptionsExtension implements QuPathExtension {
 		filesOnly.addListener((v, o, n) -> options.setFilesOnly(n));
 		useParallelization.addListener((v, o, n) -> options.setRequestParallelization(n));
 		memoizationTimeMillis.addListener((v, o, n) -> options.setMemoizationTimeMillis(n.intValue()));
+		maxReadersPerFile.addListener((v, o, n) -> options.setMaxReadersPerFile(n.intValue()));
 //		parallelizeMultichannel.addListener((v, o, n) -> options.setRequestParallelizeMultichannel(n));
 
 //		requestChannelZCorrectionVSI.addListener((v, o, n) -> options.setRequestChannelZCorrectionVSI(n));
@@ -125,6 +128,8 @@ public class BioFormatsOptionsExtension implements QuPathExtension {
 		prefs.addPropertyPreference(useParallelization, Boolean.class, "Enable Bio-Formats tile parallelization", "Bio-Formats", "Enable reading image tiles in parallel when using Bio-Formats");
 //		prefs.addPropertyPreference(parallelizeMultichannel, Boolean.class, "Enable Bio-Formats channel parallelization (experimental)", "Bio-Formats", "Request multiple image channels in parallel, even if parallelization of tiles is turned off - "
 //				+ "only relevant for multichannel images, and may fail for some image formats");
+		prefs.addPropertyPreference(maxReadersPerFile, Integer.class, "Bio-Formats max readers per image", "Bio-Formats", "Specify the maximum number of readers that may be opened for a single image when parallelization is enabled - "
+				+ "fewer readers may be used if an image requires a large memoization file");
 		prefs.addPropertyPreference(memoizationTimeMillis, Integer.class, "Bio-Formats memoization time (ms)", "Bio-Formats", "Specify how long a file requires to open before Bio-Formats will create a .bfmemo file to improve performance (set < 0 to never use memoization)");
 		
 		prefs.addDirectoryPropertyPreference(pathMemoization, "Bio-Formats memoization directory", "Bio-Formats",
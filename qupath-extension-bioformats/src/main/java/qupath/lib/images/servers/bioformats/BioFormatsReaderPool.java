@@ -0,0 +1,497 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.bioformats;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+
+/**
+ * A bounded pool of Bio-Formats readers, all of which refer to the same file (and reader arguments).
+ * <p>
+ * Readers are checked out for exclusive use by a single thread, and must be returned afterwards.
+ * If the maximum number of readers is already in use, calling threads wait in a fair queue until
+ * a reader becomes available. Readers that have been idle for longer than a specified timeout
+ * can be evicted (and closed) by calling {@link #evictIdleReaders()}.
+ * <p>
+ * Basic usage statistics are recorded to help tune the maximum number of readers for different formats.
+ */
+public class BioFormatsReaderPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(BioFormatsReaderPool.class);
+
+	/**
+	 * Functional interface used to create new readers for the pool.
+	 */
+	@FunctionalInterface
+	static interface ReaderFactory {
+
+		/**
+		 * Create a new reader, with its ID already set.
+		 * @return
+		 * @throws FormatException
+		 * @throws IOException
+		 */
+		IFormatReader createReader() throws FormatException, IOException;
+
+	}
+
+	private final String path;
+	private final ReaderFactory factory;
+	private final int maxReaders;
+	private final long idleTimeoutMillis;
+
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final Condition readerAvailable = lock.newCondition();
+
+	/**
+	 * Readers that are open but not currently checked out, with the most recently returned first.
+	 */
+	private final Deque<IdleReader> idleReaders = new ArrayDeque<>();
+
+	private String format = null;
+	
+	private boolean closed = false;
+
+	// Counts that are always accessed while holding the lock
+	private int nOpen = 0;
+	private int nInUse = 0;
+	private int nWaiting = 0;
+	private int peakInUse = 0;
+	private long nCheckouts = 0L;
+	private long nWaits = 0L;
+	private long totalWaitNanos = 0L;
+	private long maxWaitNanos = 0L;
+	private long nCreated = 0L;
+	private long nEvicted = 0L;
+
+	/**
+	 * Constructor.
+	 * @param path the path to the image, used for logging and statistics
+	 * @param factory factory used to create new readers when needed
+	 * @param maxReaders the maximum number of readers that may be open at any one time
+	 * @param idleTimeoutMillis the time after which an unused reader may be evicted
+	 */
+	BioFormatsReaderPool(String path, ReaderFactory factory, int maxReaders, long idleTimeoutMillis) {
+		this.path = path;
+		this.factory = factory;
+		this.maxReaders = Math.max(1, maxReaders);
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Get the path of the image file for which readers are created.
+	 * @return
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Get the maximum number of readers that can be open at any one time.
+	 * @return
+	 */
+	public int getMaxReaders() {
+		return maxReaders;
+	}
+
+	/**
+	 * Request a reader for exclusive use by the calling thread.
+	 * This will block if the maximum number of readers are already checked out.
+	 * <p>
+	 * The reader <b>must</b> be returned with {@link #returnReader(IFormatReader)} when it is no longer needed,
+	 * typically within a finally block.
+	 * <p>
+	 * Note that the state of the reader is not specified; setSeries should be called before use.
+	 *
+	 * @return the reader
+	 * @throws IOException if the reader could not be created, or the thread was interrupted while waiting
+	 */
+	IFormatReader checkout() throws IOException {
+		long startTime = System.nanoTime();
+		boolean waited = false;
+		lock.lock();
+		try {
+			while (true) {
+				if (closed)
+					throw new IOException("Reader pool has been closed for " + path);
+				var idle = idleReaders.pollFirst();
+				if (idle != null) {
+					recordCheckout(startTime, waited);
+					return idle.reader;
+				}
+				if (nOpen < maxReaders) {
+					// Reserve a space for a new reader, which will be created without holding the lock
+					nOpen++;
+					recordCheckout(startTime, waited);
+					break;
+				}
+				waited = true;
+				nWaiting++;
+				try {
+					readerAvailable.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a reader for " + path);
+				} finally {
+					nWaiting--;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			var reader = factory.createReader();
+			lock.lock();
+			try {
+				nCreated++;
+				if (format == null)
+					format = reader.getFormat();
+			} finally {
+				lock.unlock();
+			}
+			logger.debug("Created reader {}/{} for {}", nOpen, maxReaders, path);
+			return reader;
+		} catch (Exception e) {
+			lock.lock();
+			try {
+				nOpen--;
+				nInUse--;
+				readerAvailable.signal();
+			} finally {
+				lock.unlock();
+			}
+			if (e instanceof IOException)
+				throw (IOException)e;
+			throw new IOException(e);
+		}
+	}
+
+	private void recordCheckout(long startTime, boolean waited) {
+		nInUse++;
+		nCheckouts++;
+		peakInUse = Math.max(peakInUse, nInUse);
+		if (waited) {
+			long waitNanos = System.nanoTime() - startTime;
+			nWaits++;
+			totalWaitNanos += waitNanos;
+			maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+		}
+	}
+
+	/**
+	 * Return a reader previously obtained from {@link #checkout()}, so that it can be used by other threads.
+	 * @param reader
+	 */
+	void returnReader(IFormatReader reader) {
+		if (reader == null)
+			return;
+		lock.lock();
+		try {
+			nInUse--;
+			if (closed) {
+				nOpen--;
+			} else {
+				idleReaders.addFirst(new IdleReader(reader, System.currentTimeMillis()));
+				readerAvailable.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		// Pool was closed while the reader was checked out
+		closeQuietly(reader);
+	}
+	
+	/**
+	 * Close the pool, along with all idle readers.
+	 * Readers that are currently checked out are closed when they are returned, 
+	 * and any threads waiting for a reader will receive an exception.
+	 */
+	void close() {
+		List<IFormatReader> toClose = new ArrayList<>();
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			for (var idle : idleReaders)
+				toClose.add(idle.reader);
+			idleReaders.clear();
+			nOpen -= toClose.size();
+			readerAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		logger.debug("Closing reader pool for {} ({} idle readers)", path, toClose.size());
+		for (var reader : toClose)
+			closeQuietly(reader);
+	}
+
+	/**
+	 * Close any readers that have been idle for longer than the timeout.
+	 * @return the number of readers that remain open after eviction
+	 */
+	int evictIdleReaders() {
+		List<IFormatReader> toClose = new ArrayList<>();
+		int nRemaining;
+		lock.lock();
+		try {
+			long threshold = System.currentTimeMillis() - idleTimeoutMillis;
+			// Least recently used readers are at the end of the deque
+			Iterator<IdleReader> iter = idleReaders.descendingIterator();
+			while (iter.hasNext()) {
+				var idle = iter.next();
+				if (idle.lastUsed > threshold)
+					break;
+				iter.remove();
+				toClose.add(idle.reader);
+			}
+			nOpen -= toClose.size();
+			nEvicted += toClose.size();
+			nRemaining = nOpen;
+		} finally {
+			lock.unlock();
+		}
+		if (!toClose.isEmpty()) {
+			logger.debug("Evicting {} idle reader(s) for {}", toClose.size(), path);
+			for (var reader : toClose)
+				closeQuietly(reader);
+		}
+		return nRemaining;
+	}
+
+	private void closeQuietly(IFormatReader reader) {
+		try {
+			reader.close(false);
+		} catch (IOException e) {
+			logger.warn("Error closing reader for " + path, e);
+		}
+	}
+
+	/**
+	 * Get a snapshot of the current pool statistics.
+	 * @return
+	 */
+	public ReaderPoolStatistics getStatistics() {
+		lock.lock();
+		try {
+			return new ReaderPoolStatistics(this);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getStatistics().toString();
+	}
+
+
+	private static class IdleReader {
+
+		private final IFormatReader reader;
+		private final long lastUsed;
+
+		private IdleReader(IFormatReader reader, long lastUsed) {
+			this.reader = reader;
+			this.lastUsed = lastUsed;
+		}
+
+	}
+
+
+	/**
+	 * Immutable snapshot of the utilization of a {@link BioFormatsReaderPool}.
+	 */
+	public static class ReaderPoolStatistics {
+
+		private final String path;
+		private final String format;
+		private final int maxReaders;
+		private final int nOpen;
+		private final int nInUse;
+		private final int nWaiting;
+		private final int peakInUse;
+		private final long nCheckouts;
+		private final long nWaits;
+		private final long totalWaitNanos;
+		private final long maxWaitNanos;
+		private final long nCreated;
+		private final long nEvicted;
+
+		private ReaderPoolStatistics(BioFormatsReaderPool pool) {
+			this.path = pool.path;
+			this.format = pool.format;
+			this.maxReaders = pool.maxReaders;
+			this.nOpen = pool.nOpen;
+			this.nInUse = pool.nInUse;
+			this.nWaiting = pool.nWaiting;
+			this.peakInUse = pool.peakInUse;
+			this.nCheckouts = pool.nCheckouts;
+			this.nWaits = pool.nWaits;
+			this.totalWaitNanos = pool.totalWaitNanos;
+			this.maxWaitNanos = pool.maxWaitNanos;
+			this.nCreated = pool.nCreated;
+			this.nEvicted = pool.nEvicted;
+		}
+
+		/**
+		 * Path of the image file.
+		 * @return
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Name of the Bio-Formats format used to read the file, or null if no reader has yet been created.
+		 * @return
+		 */
+		public String getFormat() {
+			return format;
+		}
+
+		/**
+		 * Maximum number of readers permitted to be open at the same time.
+		 * @return
+		 */
+		public int getMaxReaders() {
+			return maxReaders;
+		}
+
+		/**
+		 * Number of readers currently open (both idle and in use).
+		 * @return
+		 */
+		public int getOpenReaders() {
+			return nOpen;
+		}
+
+		/**
+		 * Number of readers currently checked out.
+		 * @return
+		 */
+		public int getReadersInUse() {
+			return nInUse;
+		}
+
+		/**
+		 * Number of threads currently waiting for a reader.
+		 * @return
+		 */
+		public int getWaitingThreads() {
+			return nWaiting;
+		}
+
+		/**
+		 * Maximum number of readers that have been checked out simultaneously.
+		 * @return
+		 */
+		public int getPeakReadersInUse() {
+			return peakInUse;
+		}
+
+		/**
+		 * Current utilization, defined as the proportion of the maximum number of readers currently in use.
+		 * @return
+		 */
+		public double getUtilization() {
+			return nInUse / (double)maxReaders;
+		}
+
+		/**
+		 * Total number of times a reader has been checked out.
+		 * @return
+		 */
+		public long getCheckoutCount() {
+			return nCheckouts;
+		}
+
+		/**
+		 * Number of checkouts that needed to wait for a reader to be returned.
+		 * @return
+		 */
+		public long getWaitCount() {
+			return nWaits;
+		}
+
+		/**
+		 * Mean time spent waiting for a reader, considering only checkouts that needed to wait.
+		 * @param unit
+		 * @return
+		 */
+		public double getMeanWaitTime(TimeUnit unit) {
+			if (nWaits == 0)
+				return 0;
+			return (double)unit.convert(totalWaitNanos, TimeUnit.NANOSECONDS) / nWaits;
+		}
+
+		/**
+		 * Longest time spent waiting for a reader.
+		 * @param unit
+		 * @return
+		 */
+		public long getMaxWaitTime(TimeUnit unit) {
+			return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Total number of readers created by the pool.
+		 * @return
+		 */
+		public long getCreatedCount() {
+			return nCreated;
+		}
+
+		/**
+		 * Total number of readers closed because they were idle.
+		 * @return
+		 */
+		public long getEvictedCount() {
+			return nEvicted;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Reader pool [%s, %s]: %d/%d in use (peak %d), %d open, %d waiting, %d checkouts, %d waits (mean %.2f ms, max %d ms), %d created, %d evicted",
+					path, format, nInUse, maxReaders, peakInUse, nOpen, nWaiting, nCheckouts, nWaits,
+					getMeanWaitTime(TimeUnit.MICROSECONDS)/1000.0, getMaxWaitTime(TimeUnit.MILLISECONDS), nCreated, nEvicted);
+		}
+
+	}
+
+}
@@ -58,6 +58,8 @@ public class BioFormatsServerOptions {
 	private boolean requestParallelization = true;
 	private boolean filesOnly = true;
 	private int memoizationTimeMillis = 500;
+	private int maxReadersPerFile = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+	private long readerIdleTimeoutMillis = 60_000L;
 //	private boolean requestParallelizeMultichannel = false;
 	private String pathMemoization;
 	
@@ -216,6 +218,42 @@ public class BioFormatsServerOptions {
 		this.requestParallelization = requestParallelization;
 	}
 	
+	/**
+	 * Get the maximum number of readers that may be created for any one file when parallelization is enabled.
+	 * The number actually used may be lower for readers that require a large memoization file.
+	 * @return
+	 */
+	public int getMaxReadersPerFile() {
+		return maxReadersPerFile;
+	}
+
+	/**
+	 * Set the maximum number of readers that may be created for any one file when parallelization is enabled.
+	 * <p>
+	 * This is applied when the reader pool for a file is created. Files that are already open (in any image) 
+	 * keep their existing limit until all their images have been closed.
+	 * @param maxReadersPerFile
+	 */
+	public void setMaxReadersPerFile(final int maxReadersPerFile) {
+		this.maxReadersPerFile = Math.max(1, maxReadersPerFile);
+	}
+
+	/**
+	 * Get the time in milliseconds after which an unused reader may be closed.
+	 * @return
+	 */
+	public long getReaderIdleTimeoutMillis() {
+		return readerIdleTimeoutMillis;
+	}
+
+	/**
+	 * Set the time in milliseconds after which an unused reader may be closed.
+	 * @param readerIdleTimeoutMillis
+	 */
+	public void setReaderIdleTimeoutMillis(final long readerIdleTimeoutMillis) {
+		this.readerIdleTimeoutMillis = readerIdleTimeoutMillis;
+	}
+	
 	/**
 	 * Query the set of file extensions for which Bio-Formats should not be used.
 	 * @return
@@ -27,6 +27,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -35,8 +36,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -48,6 +51,7 @@ import loci.formats.FormatException;
 import loci.formats.MetadataTools;
 import loci.formats.meta.IMetadata;
 import loci.formats.meta.IPyramidStore;
+import loci.formats.ome.OMEXMLMetadata;
 import loci.formats.out.OMETiffWriter;
 import loci.formats.out.PyramidOMETiffWriter;
 import loci.formats.tiff.IFD;
@@ -56,15 +60,18 @@ import ome.units.quantity.Length;
 import ome.xml.model.enums.DimensionOrder;
 import ome.xml.model.enums.PixelType;
 import ome.xml.model.primitives.Color;
+import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
 import qupath.lib.color.ColorModelFactory;
 import qupath.lib.common.ColorTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerMetadata;
 import qupath.lib.images.servers.PixelCalibration;
 import qupath.lib.images.servers.ServerTools;
 import qupath.lib.images.servers.ImageServerMetadata.ChannelType;
+import qupath.lib.images.writers.ome.ParallelOMETiffWriter.TiffImage;
 import qupath.lib.regions.ImageRegion;
 import qupath.lib.regions.RegionRequest;
 
@@ -275,17 +282,23 @@ public class OMEPyramidWriter {
 				throw new IOException("Unable to delete " + file.getAbsolutePath());
 		}
 				
+		boolean doBigTiff = false;
+		long nPixelBytes = 0L;
+		for (int s = 0; s < series.size(); s++) {
+			var temp = series.get(s);
+			doBigTiff = Boolean.TRUE.equals(temp.bigTiff) | doBigTiff;
+			nPixelBytes += ((long)temp.width * temp.height * temp.channels.length * temp.server.getPixelType().getBytesPerPixel() *
+					(temp.tEnd - temp.tStart) * (temp.zEnd - temp.zStart));
+			temp.initializeMetadata(meta, s);
+		}
+		
+		// Use the pure-Java writer if we can, since this can compress tiles in parallel
+		if (series.stream().allMatch(s -> s.supportsParallelTiffWriter() && s.endian == series.get(0).endian)) {
+			writeImageParallel(path, meta, doBigTiff || nPixelBytes >= Integer.MAX_VALUE);
+			return;
+		}
+				
 		try (PyramidOMETiffWriter writer = new PyramidOMETiffWriter()) {
-			boolean doBigTiff = false;
-			long nPixelBytes = 0L;
-			for (int s = 0; s < series.size(); s++) {
-				var temp = series.get(s);
-				doBigTiff = Boolean.TRUE.equals(temp.bigTiff) | doBigTiff;
-				nPixelBytes += ((long)temp.width * temp.height * temp.channels.length * temp.server.getPixelType().getBytesPerPixel() *
-						(temp.tEnd - temp.tStart) * (temp.zEnd - temp.zStart));
-				temp.initializeMetadata(meta, s);
-			}
-			
 			writer.setWriteSequentially(true); // Setting this to false can be problematic!
 			// Switch automatically to bigtiff is we have a large image or it has already been requested
 			if (doBigTiff || nPixelBytes >= Integer.MAX_VALUE)
@@ -303,6 +316,39 @@ public class OMEPyramidWriter {
 	}
 	
 	
+	/**
+	 * Write all series using a {@link ParallelOMETiffWriter}, which compresses tiles in parallel and 
+	 * appends them to the file sequentially.
+	 * 
+	 * @param path
+	 * @param meta metadata, already initialized for all series
+	 * @param bigTiff
+	 * @throws FormatException
+	 * @throws IOException
+	 */
+	private void writeImageParallel(final String path, IMetadata meta, boolean bigTiff) throws FormatException, IOException {
+		if (!(meta instanceof OMEXMLMetadata))
+			throw new FormatException("OME-XML metadata is required to write " + path);
+		
+		long startTime = System.currentTimeMillis();
+		String uuid = "urn:uuid:" + UUID.randomUUID().toString();
+		String fileName = new File(path).getName();
+		meta.setUUID(uuid);
+		
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		try (var writer = new ParallelOMETiffWriter(Paths.get(path), bigTiff, series.get(0).endian, nThreads)) {
+			int firstIFD = 0;
+			for (int s = 0; s < series.size(); s++) {
+				var temp = series.get(s);
+				logger.info("Writing {} to {} (series {}/{})", ServerTools.getDisplayableImageName(temp.server), path, s+1, series.size());
+				firstIFD = temp.writePyramid(writer, meta, s, firstIFD, uuid, fileName);
+			}
+			writer.finish(((OMEXMLMetadata)meta).dumpXML());
+		}
+		logger.info("Image written in {} ms", System.currentTimeMillis() - startTime);
+	}
+	
+	
 	/**
 	 * Class representing a single series to write to an OME-TIFF.
 	 */
@@ -530,8 +576,13 @@ public class OMEPyramidWriter {
 			writer.setSeries(series);
 			
 			Map<Integer, IFD> map = new HashMap<>();
+			
+			// The writer is synchronized, but we can still read tiles in parallel
+			ExecutorService pool = parallelExport ? 
+					Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), ThreadTools.createThreadFactory("ome-tiff-export-", true)) : null;
 	
 			writer.setSeries(series);
+			try {
 			for (int level = 0; level < downsamples.length; level++) {
 				
 				writer.setResolution(level);
@@ -626,18 +677,13 @@ public class OMEPyramidWriter {
 									}
 								}).collect(Collectors.toList());
 								
-								if (parallelExport) {
-									var pool = Executors.newWorkStealingPool(4);
-									for (var task : tasks) {
-										pool.submit(task);
-									}
-									pool.shutdown();
+								if (pool != null) {
 									try {
-										pool.awaitTermination(regions.size(), TimeUnit.MINUTES);
+										for (var future : pool.invokeAll(tasks.stream().map(task -> Executors.callable(task)).collect(Collectors.toList())))
+											future.get();
 										logger.info("Plane written in {} ms", System.currentTimeMillis() - planeStartTime);
-									} catch (InterruptedException e) {
+									} catch (InterruptedException | ExecutionException e) {
 										logger.warn("OME-TIFF export interrupted!");
-										pool.shutdownNow();
 										throw new IOException("Error writing regions", e);
 									}
 								} else {
@@ -655,12 +701,144 @@ public class OMEPyramidWriter {
 					ti++;
 				}
 			}
+			} finally {
+				if (pool != null)
+					pool.shutdownNow();
+			}
 			logger.trace("Image count: {}", meta.getImageCount());
 			logger.trace("Plane count: {}", writer.getPlaneCount());
 			logger.trace("Resolution count: {}", writer.getResolutionCount());
 		}
 	
 		
+		/**
+		 * Returns true if this series can be written with a {@link ParallelOMETiffWriter}.
+		 * This requires that parallelization is requested, the image is tiled and the compression type is supported.
+		 * @return
+		 */
+		boolean supportsParallelTiffWriter() {
+			if (!parallelExport || tileWidth <= 0 || tileHeight <= 0)
+				return false;
+			// Classification images need a color model, which isn't supported
+			if (server.getMetadata().getChannelType() == ChannelType.CLASSIFICATION)
+				return false;
+			return getTiffCompression() > 0;
+		}
+		
+		/**
+		 * Get the TIFF compression value to use with a {@link ParallelOMETiffWriter}, or -1 if the requested compression 
+		 * is not supported.
+		 * @return
+		 */
+		private int getTiffCompression() {
+			String type = compression.supportsImage(server) ? compression.getOMEString(server) : CompressionType.DEFAULT.getOMEString(server);
+			if (OMETiffWriter.COMPRESSION_UNCOMPRESSED.equals(type))
+				return ParallelOMETiffWriter.COMPRESSION_NONE;
+			if (OMETiffWriter.COMPRESSION_LZW.equals(type))
+				return ParallelOMETiffWriter.COMPRESSION_LZW;
+			if (OMETiffWriter.COMPRESSION_ZLIB.equals(type))
+				return ParallelOMETiffWriter.COMPRESSION_DEFLATE;
+			return -1;
+		}
+		
+		/**
+		 * Append an image as a specific series, using a {@link ParallelOMETiffWriter}.
+		 * 
+		 * @param writer the writer
+		 * @param meta the metadata, which should already have been initialized
+		 * @param series number of series to be written (starting with 0; assumes previous series already written)
+		 * @param firstIFD index of the first IFD for this series
+		 * @param uuid UUID for the file
+		 * @param fileName name of the file, used to populate the TiffData
+		 * @return the index of the first IFD for any subsequent series
+		 * @throws IOException
+		 */
+		int writePyramid(final ParallelOMETiffWriter writer, IMetadata meta, final int series, final int firstIFD, String uuid, String fileName) throws IOException {
+			
+			boolean isRGB = server.isRGB() && Arrays.equals(channels, new int[] {0, 1, 2});
+			int nChannels = meta.getPixelsSizeC(series).getValue();
+			int nSamples = meta.getChannelSamplesPerPixel(series, 0).getValue();
+			int sizeZ = meta.getPixelsSizeZ(series).getValue();
+			int sizeT = meta.getPixelsSizeT(series).getValue();
+			int width = meta.getPixelsSizeX(series).getValue();
+			int height = meta.getPixelsSizeY(series).getValue();
+			int effectiveSizeC = nChannels / nSamples;
+			int nPlanes = effectiveSizeC * sizeZ * sizeT;
+			
+			// TIFF tiles must be a multiple of 16 pixels
+			int tileWidth = (int)Math.ceil(this.tileWidth / 16.0) * 16;
+			int tileHeight = (int)Math.ceil(this.tileHeight / 16.0) * 16;
+			
+			var pixelType = server.getPixelType();
+			int sampleFormat;
+			if (pixelType.isFloatingPoint())
+				sampleFormat = ParallelOMETiffWriter.SAMPLE_FORMAT_FLOAT;
+			else if (pixelType.isSignedInteger())
+				sampleFormat = ParallelOMETiffWriter.SAMPLE_FORMAT_INT;
+			else
+				sampleFormat = ParallelOMETiffWriter.SAMPLE_FORMAT_UINT;
+			int photometric = isRGB ? ParallelOMETiffWriter.PHOTOMETRIC_RGB : ParallelOMETiffWriter.PHOTOMETRIC_MIN_IS_BLACK;
+			int tiffCompression = getTiffCompression();
+			
+			// Create all the images (full resolution & sub-resolutions) for each plane, and record where they will be in the file
+			TiffImage[][] images = new TiffImage[nPlanes][downsamples.length];
+			for (int ti = 0; ti < sizeT; ti++) {
+				for (int zi = 0; zi < sizeZ; zi++) {
+					for (int ci = 0; ci < effectiveSizeC; ci++) {
+						int plane = ti * sizeZ * effectiveSizeC + zi * effectiveSizeC + ci;
+						images[plane][0] = writer.addImage(width, height, tileWidth, tileHeight, nSamples,
+								pixelType.getBitsPerPixel(), sampleFormat, photometric, tiffCompression);
+						for (int level = 1; level < downsamples.length; level++) {
+							double d = downsamples[level];
+							images[plane][level] = writer.addSubResolution(images[plane][0],
+									(int)(width * downsamples[0] / d), (int)(height * downsamples[0] / d));
+						}
+						meta.setTiffDataIFD(new NonNegativeInteger(firstIFD + plane), series, plane);
+						meta.setTiffDataFirstC(new NonNegativeInteger(ci), series, plane);
+						meta.setTiffDataFirstZ(new NonNegativeInteger(zi), series, plane);
+						meta.setTiffDataFirstT(new NonNegativeInteger(ti), series, plane);
+						meta.setTiffDataPlaneCount(new NonNegativeInteger(1), series, plane);
+						meta.setUUIDValue(uuid, series, plane);
+						meta.setUUIDFileName(fileName, series, plane);
+					}
+				}
+			}
+			
+			int tInc = tEnd >= tStart ? 1 : -1;
+			int zInc = zEnd >= zStart ? 1 : -1;
+			
+			for (int level = 0; level < downsamples.length; level++) {
+				double d = downsamples[level];
+				int w = images[0][level].getWidth();
+				int h = images[0][level].getHeight();
+				int nTiles = images[0][level].nTiles();
+				logger.info("Writing resolution {} of {} (downsample={}, {} tiles)", level+1, downsamples.length, d, nTiles * nPlanes);
+				
+				int ti = 0;
+				for (int t = tStart; t < tEnd; t += tInc) {
+					int zi = 0;
+					for (int z = zStart; z < zEnd; z += zInc) {
+						for (int ci = 0; ci < effectiveSizeC; ci++) {
+							int plane = ti * sizeZ * effectiveSizeC + zi * effectiveSizeC + ci;
+							TiffImage image = images[plane][level];
+							int[] localChannels = effectiveSizeC == channels.length ? new int[] {channels[ci]} : channels;
+							for (int yy = 0, ty = 0; yy < h; yy += tileHeight, ty++) {
+								int hh = Math.min(h - yy, tileHeight);
+								for (int xx = 0, tx = 0; xx < w; xx += tileWidth, tx++) {
+									int ww = Math.min(w - xx, tileWidth);
+									var region = ImageRegion.createInstance(xx, yy, ww, hh, z, t);
+									writer.submitTile(image, tx, ty, ww, hh, () -> readRegionBytes(region, d, isRGB, localChannels));
+								}
+							}
+						}
+						zi++;
+					}
+					ti++;
+				}
+			}
+			return firstIFD + nPlanes;
+		}
+		
 		/**
 		 * Convert a region in the export coordinate space for a specific plane 
 		 * into a RegionRequest for the original ImageServer.
@@ -692,6 +870,34 @@ public class OMEPyramidWriter {
 				return;
 			}
 			
+			writer.saveBytes(plane, imageToBytes(img, isRGB, channels), ifd, region.getX(), region.getY(), img.getWidth(), img.getHeight());
+		}
+		
+		/**
+		 * Read the pixels for a region, and return them as interleaved bytes with the same size as the region.
+		 * If the image cannot be read, the bytes will all be zero.
+		 */
+		private byte[] readRegionBytes(ImageRegion region, double downsample, boolean isRGB, int[] channels) throws IOException {
+			RegionRequest request = downsampledRegionToRequest(region, downsample);
+			BufferedImage img = server.readBufferedImage(request);
+			
+			int bytesPerPixel = server.getPixelType().getBytesPerPixel() * channels.length;
+			if (img == null)
+				return new byte[region.getWidth() * region.getHeight() * bytesPerPixel];
+			
+			byte[] bytes = imageToBytes(img, isRGB, channels);
+			if (img.getWidth() == region.getWidth() && img.getHeight() == region.getHeight())
+				return bytes;
+			// Ensure the size matches what is expected (in case of rounding issues, the image may be smaller or larger)
+			return ParallelOMETiffWriter.padTile(bytes, img.getWidth(), img.getHeight(), region.getWidth(), region.getHeight(), bytesPerPixel);
+		}
+		
+		/**
+		 * Convert an image to interleaved bytes for the specified channels, using the byte order for the series.
+		 */
+		private byte[] imageToBytes(BufferedImage img, boolean isRGB, int[] channels) {
+			int bytesPerPixel = server.getPixelType().getBytesPerPixel();
+			int nChannels = channels.length;
 			int ww = img.getWidth();
 			int hh = img.getHeight();
 			ByteBuffer buf = ByteBuffer.allocate(ww * hh * bytesPerPixel * nChannels)
@@ -707,15 +913,14 @@ public class OMEPyramidWriter {
 					buf.put((byte)ColorTools.green(val));
 					buf.put((byte)ColorTools.blue(val));
 				}
-				writer.saveBytes(plane, buf.array(), ifd, region.getX(), region.getY(), ww, hh);
 			} else {
 				for (int ci = 0; ci < channels.length; ci++) {
 					int c = channels[ci];
 					int ind = ci * bytesPerPixel;
 					channelToBuffer(img.getRaster(), c, buf, ind, channels.length * bytesPerPixel);
 				}
-				writer.saveBytes(plane, buf.array(), ifd, region.getX(), region.getY(), ww, hh);
 			}
+			return buf.array();
 		}
 		
 		/**
@@ -0,0 +1,792 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.writers.ome;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Pure-Java writer for tiled, pyramidal (Bio-Formats-style) OME-TIFF images.
+ * <p>
+ * Unlike Bio-Formats' {@code PyramidOMETiffWriter}, tiles are compressed in parallel on all available cores.
+ * Compressed tiles are then appended to the file by a single writer thread using a {@link FileChannel},
+ * in whatever order they become available. The IFDs (including tile offsets, byte counts and sub-resolutions)
+ * are written at the end of the file, and the header is patched to point to them.
+ * <p>
+ * Only uncompressed, LZW and ZLIB (deflate) compression are supported.
+ */
+class ParallelOMETiffWriter implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ParallelOMETiffWriter.class);
+
+	// TIFF compression values
+	static final int COMPRESSION_NONE = 1;
+	static final int COMPRESSION_LZW = 5;
+	static final int COMPRESSION_DEFLATE = 8;
+
+	// TIFF photometric interpretation values
+	static final int PHOTOMETRIC_MIN_IS_BLACK = 1;
+	static final int PHOTOMETRIC_RGB = 2;
+
+	// TIFF sample format values
+	static final int SAMPLE_FORMAT_UINT = 1;
+	static final int SAMPLE_FORMAT_INT = 2;
+	static final int SAMPLE_FORMAT_FLOAT = 3;
+
+	// TIFF tags
+	private static final int TAG_NEW_SUBFILE_TYPE = 254;
+	private static final int TAG_IMAGE_WIDTH = 256;
+	private static final int TAG_IMAGE_LENGTH = 257;
+	private static final int TAG_BITS_PER_SAMPLE = 258;
+	private static final int TAG_COMPRESSION = 259;
+	private static final int TAG_PHOTOMETRIC = 262;
+	private static final int TAG_IMAGE_DESCRIPTION = 270;
+	private static final int TAG_SAMPLES_PER_PIXEL = 277;
+	private static final int TAG_PLANAR_CONFIGURATION = 284;
+	private static final int TAG_SOFTWARE = 305;
+	private static final int TAG_TILE_WIDTH = 322;
+	private static final int TAG_TILE_LENGTH = 323;
+	private static final int TAG_TILE_OFFSETS = 324;
+	private static final int TAG_TILE_BYTE_COUNTS = 325;
+	private static final int TAG_SUB_IFDS = 330;
+	private static final int TAG_EXTRA_SAMPLES = 338;
+	private static final int TAG_SAMPLE_FORMAT = 339;
+
+	// TIFF field types
+	private static final int TYPE_ASCII = 2;
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+	private static final int TYPE_LONG8 = 16;
+
+	private final Path path;
+	private final boolean bigTiff;
+	private final ByteOrder order;
+
+	private final FileChannel channel;
+	private final ExecutorService encoderPool;
+	private final BlockingQueue<EncodedTile> writeQueue;
+	private final Thread writerThread;
+
+	private final List<TiffImage> mainImages = new ArrayList<>();
+
+	private final AtomicReference<Throwable> error = new AtomicReference<>();
+	private final AtomicInteger nSubmitted = new AtomicInteger(0);
+	private final AtomicInteger nWritten = new AtomicInteger(0);
+
+	private long position;
+
+	private static final EncodedTile POISON = new EncodedTile(null, -1, null);
+
+	/**
+	 * Constructor. This will create the file immediately, overwriting any existing file.
+	 * @param path path to the output file
+	 * @param bigTiff if true, write a BigTIFF file
+	 * @param order byte order for the file; this must match the byte order of all pixels passed to the writer
+	 * @param nThreads number of threads to use for compression
+	 * @throws IOException
+	 */
+	ParallelOMETiffWriter(Path path, boolean bigTiff, ByteOrder order, int nThreads) throws IOException {
+		this.path = path;
+		this.bigTiff = bigTiff;
+		this.order = order;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+		// Write a header with an unknown IFD offset - this will be patched later
+		var header = ByteBuffer.allocate(bigTiff ? 16 : 8).order(order);
+		header.put(order == ByteOrder.BIG_ENDIAN ? (byte)'M' : (byte)'I');
+		header.put(order == ByteOrder.BIG_ENDIAN ? (byte)'M' : (byte)'I');
+		if (bigTiff) {
+			header.putShort((short)43);
+			header.putShort((short)8);
+			header.putShort((short)0);
+			header.putLong(0L);
+		} else {
+			header.putShort((short)42);
+			header.putInt(0);
+		}
+		header.flip();
+		writeFully(header, 0L);
+		position = header.capacity();
+
+		nThreads = Math.max(1, nThreads);
+		// Use a bounded queue & run in the caller when it is full, so that tile requests don't get too far ahead
+		encoderPool = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(nThreads * 4),
+				ThreadTools.createThreadFactory("ome-tiff-encoder-", true),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		writeQueue = new ArrayBlockingQueue<>(nThreads * 4);
+		writerThread = new Thread(this::runWriter, "ome-tiff-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Add a new full-resolution image (i.e. an IFD in the main chain). Images are written in the order they are added.
+	 * @param width image width
+	 * @param height image height
+	 * @param tileWidth tile width; must be a multiple of 16
+	 * @param tileHeight tile height; must be a multiple of 16
+	 * @param samplesPerPixel number of interleaved samples per pixel
+	 * @param bitsPerSample bits per sample
+	 * @param sampleFormat TIFF sample format
+	 * @param photometric TIFF photometric interpretation
+	 * @param compression TIFF compression
+	 * @return the image, to which tiles may be added
+	 */
+	TiffImage addImage(int width, int height, int tileWidth, int tileHeight, int samplesPerPixel, int bitsPerSample, int sampleFormat, int photometric, int compression) {
+		var image = new TiffImage(false, width, height, tileWidth, tileHeight, samplesPerPixel, bitsPerSample, sampleFormat, photometric, compression);
+		mainImages.add(image);
+		return image;
+	}
+
+	/**
+	 * Add a sub-resolution to a full-resolution image. Sub-resolutions should be added in order of decreasing size.
+	 * @param parent the full-resolution image
+	 * @param width width of the sub-resolution
+	 * @param height height of the sub-resolution
+	 * @return the sub-resolution image, to which tiles may be added
+	 */
+	TiffImage addSubResolution(TiffImage parent, int width, int height) {
+		var image = new TiffImage(true, width, height, parent.tileWidth, parent.tileHeight, parent.samplesPerPixel,
+				parent.bitsPerSample, parent.sampleFormat, parent.photometric, parent.compression);
+		parent.subResolutions.add(image);
+		return image;
+	}
+
+	/**
+	 * Submit a tile for compression and writing.
+	 * <p>
+	 * The pixel supplier is called from an encoder thread, and should return the uncompressed pixels for the tile
+	 * (interleaved, in the file byte order). If the returned tile is smaller than the full tile size
+	 * (e.g. at the image boundary), it will be padded with zeros.
+	 *
+	 * @param image the image containing the tile
+	 * @param tileX tile column index
+	 * @param tileY tile row index
+	 * @param tileWidth actual width of the pixels returned by the supplier
+	 * @param tileHeight actual height of the pixels returned by the supplier
+	 * @param pixelSupplier supplier for uncompressed pixels
+	 * @throws IOException if an earlier tile could not be written, or the thread is interrupted
+	 */
+	void submitTile(TiffImage image, int tileX, int tileY, int tileWidth, int tileHeight, Callable<byte[]> pixelSupplier) throws IOException {
+		checkError();
+		if (Thread.currentThread().isInterrupted())
+			throw new InterruptedIOException("Interrupted writing tiles!");
+		int tileIndex = tileY * image.nTilesX + tileX;
+		nSubmitted.incrementAndGet();
+		encoderPool.execute(() -> {
+			try {
+				if (error.get() != null)
+					return;
+				byte[] pixels = pixelSupplier.call();
+				pixels = padTile(pixels, tileWidth, tileHeight, image.tileWidth, image.tileHeight, image.getBytesPerPixel());
+				byte[] encoded = compress(pixels, image.compression);
+				enqueue(new EncodedTile(image, tileIndex, encoded));
+			} catch (Throwable e) {
+				fail(e);
+			}
+		});
+	}
+
+	/**
+	 * Get the number of tiles that have been written to the file.
+	 * @return
+	 */
+	int getTilesWritten() {
+		return nWritten.get();
+	}
+
+	/**
+	 * Wait for all tiles to be written, then write the IFDs and close the file.
+	 * @param description OME-XML to store as the image description of the first IFD
+	 * @throws IOException
+	 */
+	void finish(String description) throws IOException {
+		encoderPool.shutdown();
+		try {
+			while (!encoderPool.awaitTermination(1, TimeUnit.SECONDS))
+				checkError();
+			checkError();
+			enqueue(POISON);
+			writerThread.join();
+		} catch (InterruptedException e) {
+			encoderPool.shutdownNow();
+			writerThread.interrupt();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for tiles to be written");
+		}
+		checkError();
+		if (nWritten.get() != nSubmitted.get())
+			throw new IOException(String.format("Only %d/%d tiles written to %s", nWritten.get(), nSubmitted.get(), path));
+
+		// Write the IFDs, patching pointers as we go
+		long nextPointerPosition = bigTiff ? 8 : 4;
+		for (int i = 0; i < mainImages.size(); i++) {
+			var image = mainImages.get(i);
+			long[] subOffsets = new long[image.subResolutions.size()];
+			for (int s = 0; s < subOffsets.length; s++) {
+				subOffsets[s] = position;
+				writeIFD(image.subResolutions.get(s), null, null);
+			}
+			long ifdOffset = position;
+			long nextPointer = writeIFD(image, subOffsets, i == 0 ? description : null);
+			writePointer(nextPointerPosition, ifdOffset);
+			nextPointerPosition = nextPointer;
+		}
+		channel.force(false);
+		close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		encoderPool.shutdownNow();
+		if (writerThread.isAlive())
+			writerThread.interrupt();
+		channel.close();
+	}
+
+	/**
+	 * Add a tile to the write queue, waiting if necessary.
+	 * Gives up if the writer fails, so that encoder threads (or the caller) can never block indefinitely.
+	 * @param tile
+	 * @throws IOException if writing has failed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void enqueue(EncodedTile tile) throws IOException, InterruptedException {
+		while (!writeQueue.offer(tile, 100, TimeUnit.MILLISECONDS)) {
+			checkError();
+			if (!writerThread.isAlive())
+				throw new IOException("Tile writer for " + path + " stopped unexpectedly");
+		}
+	}
+	
+	/**
+	 * Record an error and stop encoding any more tiles.
+	 * @param e
+	 */
+	private void fail(Throwable e) {
+		if (error.compareAndSet(null, e)) {
+			encoderPool.shutdownNow();
+			writeQueue.clear();
+		}
+	}
+
+	private void checkError() throws IOException {
+		var e = error.get();
+		if (e == null)
+			return;
+		if (e instanceof IOException)
+			throw (IOException)e;
+		throw new IOException("Error writing " + path, e);
+	}
+
+	/**
+	 * Sequential writer stage: take compressed tiles from the queue and append them to the file.
+	 */
+	private void runWriter() {
+		try {
+			while (true) {
+				var tile = writeQueue.poll(100, TimeUnit.MILLISECONDS);
+				if (tile == POISON)
+					return;
+				if (tile == null) {
+					// Stop if an encoder has failed
+					if (error.get() != null)
+						return;
+					continue;
+				}
+				// Keep tile data word-aligned
+				if (position % 2 != 0)
+					position++;
+				tile.image.tileOffsets[tile.tileIndex] = position;
+				tile.image.tileByteCounts[tile.tileIndex] = tile.bytes.length;
+				position += writeFully(ByteBuffer.wrap(tile.bytes), position);
+				nWritten.incrementAndGet();
+			}
+		} catch (InterruptedException e) {
+			fail(new InterruptedIOException("Tile writing interrupted"));
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+
+	private int writeFully(ByteBuffer buffer, long position) throws IOException {
+		int n = 0;
+		while (buffer.hasRemaining())
+			n += channel.write(buffer, position + n);
+		return n;
+	}
+
+	private void writePointer(long pointerPosition, long value) throws IOException {
+		var buffer = ByteBuffer.allocate(bigTiff ? 8 : 4).order(order);
+		if (bigTiff)
+			buffer.putLong(value);
+		else
+			buffer.putInt((int)value);
+		buffer.flip();
+		writeFully(buffer, pointerPosition);
+	}
+
+	/**
+	 * Write an IFD at the current position.
+	 * @param image
+	 * @param subIFDs offsets of any sub-IFDs (may be null or empty)
+	 * @param description image description (may be null)
+	 * @return the position of the 'next IFD' pointer, so that it can be patched later
+	 * @throws IOException
+	 */
+	private long writeIFD(TiffImage image, long[] subIFDs, String description) throws IOException {
+		if (position % 2 != 0)
+			position++;
+
+		List<TiffEntry> entries = new ArrayList<>();
+		entries.add(TiffEntry.createLongs(TAG_NEW_SUBFILE_TYPE, image.isSubResolution ? 1 : 0));
+		entries.add(TiffEntry.createLongs(TAG_IMAGE_WIDTH, image.width));
+		entries.add(TiffEntry.createLongs(TAG_IMAGE_LENGTH, image.height));
+		int[] bitsPerSample = new int[image.samplesPerPixel];
+		int[] sampleFormat = new int[image.samplesPerPixel];
+		for (int i = 0; i < image.samplesPerPixel; i++) {
+			bitsPerSample[i] = image.bitsPerSample;
+			sampleFormat[i] = image.sampleFormat;
+		}
+		entries.add(TiffEntry.createShorts(TAG_BITS_PER_SAMPLE, bitsPerSample));
+		entries.add(TiffEntry.createShorts(TAG_COMPRESSION, image.compression));
+		entries.add(TiffEntry.createShorts(TAG_PHOTOMETRIC, image.photometric));
+		if (description != null)
+			entries.add(TiffEntry.createAscii(TAG_IMAGE_DESCRIPTION, description));
+		entries.add(TiffEntry.createShorts(TAG_SAMPLES_PER_PIXEL, image.samplesPerPixel));
+		entries.add(TiffEntry.createShorts(TAG_PLANAR_CONFIGURATION, 1));
+		entries.add(TiffEntry.createAscii(TAG_SOFTWARE, "QuPath"));
+		entries.add(TiffEntry.createLongs(TAG_TILE_WIDTH, image.tileWidth));
+		entries.add(TiffEntry.createLongs(TAG_TILE_LENGTH, image.tileHeight));
+		entries.add(createOffsets(TAG_TILE_OFFSETS, image.tileOffsets));
+		entries.add(createOffsets(TAG_TILE_BYTE_COUNTS, image.tileByteCounts));
+		if (subIFDs != null && subIFDs.length > 0)
+			entries.add(createOffsets(TAG_SUB_IFDS, subIFDs));
+		if (image.photometric != PHOTOMETRIC_RGB && image.samplesPerPixel > 1)
+			entries.add(TiffEntry.createShorts(TAG_EXTRA_SAMPLES, new int[image.samplesPerPixel - 1]));
+		entries.add(TiffEntry.createShorts(TAG_SAMPLE_FORMAT, sampleFormat));
+
+		int entrySize = bigTiff ? 20 : 12;
+		int inlineSize = bigTiff ? 8 : 4;
+		int headerSize = (bigTiff ? 8 : 2) + entries.size() * entrySize + (bigTiff ? 8 : 4);
+		int overflowSize = 0;
+		for (var entry : entries) {
+			int n = entry.getByteCount();
+			if (n > inlineSize)
+				overflowSize += n + (n % 2);
+		}
+
+		long ifdPosition = position;
+		var buffer = ByteBuffer.allocate(headerSize + overflowSize).order(order);
+		if (bigTiff)
+			buffer.putLong(entries.size());
+		else
+			buffer.putShort((short)entries.size());
+
+		int overflowOffset = headerSize;
+		for (var entry : entries) {
+			buffer.putShort((short)entry.tag);
+			buffer.putShort((short)entry.type);
+			if (bigTiff)
+				buffer.putLong(entry.count);
+			else
+				buffer.putInt((int)entry.count);
+			int n = entry.getByteCount();
+			if (n <= inlineSize) {
+				int start = buffer.position();
+				entry.write(buffer);
+				buffer.position(start + inlineSize);
+			} else {
+				if (bigTiff)
+					buffer.putLong(ifdPosition + overflowOffset);
+				else
+					buffer.putInt((int)(ifdPosition + overflowOffset));
+				int current = buffer.position();
+				buffer.position(overflowOffset);
+				entry.write(buffer);
+				overflowOffset += n + (n % 2);
+				buffer.position(current);
+			}
+		}
+		// Pointer to the next IFD (patched later if required)
+		long nextPointerPosition = ifdPosition + buffer.position();
+		buffer.position(0);
+		buffer.limit(buffer.capacity());
+		position += writeFully(buffer, ifdPosition);
+		return nextPointerPosition;
+	}
+
+	private TiffEntry createOffsets(int tag, long[] values) {
+		if (bigTiff)
+			return TiffEntry.createLong8s(tag, values);
+		int[] ints = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] > 0xFFFFFFFFL)
+				throw new IllegalArgumentException("Offset too large for TIFF - BigTIFF is required");
+			ints[i] = (int)values[i];
+		}
+		return TiffEntry.createLongs(tag, ints);
+	}
+
+
+	/**
+	 * Resize the pixels for a tile to the full tile size, if necessary.
+	 * Pixels are padded with zeros if the tile is smaller, and cropped if it is larger.
+	 */
+	static byte[] padTile(byte[] pixels, int width, int height, int tileWidth, int tileHeight, int bytesPerPixel) {
+		if (width == tileWidth && height == tileHeight)
+			return pixels;
+		byte[] padded = new byte[tileWidth * tileHeight * bytesPerPixel];
+		int rowLength = width * bytesPerPixel;
+		int tileRowLength = tileWidth * bytesPerPixel;
+		int copyLength = Math.min(width, tileWidth) * bytesPerPixel;
+		int nRows = Math.min(height, tileHeight);
+		for (int y = 0; y < nRows; y++)
+			System.arraycopy(pixels, y * rowLength, padded, y * tileRowLength, copyLength);
+		return padded;
+	}
+
+	static byte[] compress(byte[] pixels, int compression) {
+		switch (compression) {
+		case COMPRESSION_NONE:
+			return pixels;
+		case COMPRESSION_DEFLATE:
+			return deflate(pixels);
+		case COMPRESSION_LZW:
+			return lzw(pixels);
+		default:
+			throw new IllegalArgumentException("Unsupported TIFF compression " + compression);
+		}
+	}
+
+	static byte[] deflate(byte[] pixels) {
+		var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setInput(pixels);
+			deflater.finish();
+			var stream = new ByteArrayOutputStream(Math.max(64, pixels.length / 2));
+			byte[] buffer = new byte[64 * 1024];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				stream.write(buffer, 0, n);
+			}
+			return stream.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * TIFF-flavored LZW compression (MSB-first codes, with 'early change'), matching libtiff.
+	 * @param pixels
+	 * @return
+	 */
+	static byte[] lzw(byte[] pixels) {
+		final int clearCode = 256;
+		final int eoiCode = 257;
+		final int firstCode = 258;
+		final int maxCode = 4095;
+		final int minBits = 9;
+
+		// Open addressing hash table mapping (prefix code, next byte) to code
+		final int hashSize = 9001;
+		int[] hashKeys = new int[hashSize];
+		int[] hashCodes = new int[hashSize];
+
+		var out = new BitWriter(pixels.length / 2 + 16);
+		int nBits = minBits;
+		int nextCode = firstCode;
+		int maxCodeForBits = (1 << nBits) - 1;
+
+		Arrays.fill(hashKeys, -1);
+		out.write(clearCode, nBits);
+		if (pixels.length == 0) {
+			out.write(eoiCode, nBits);
+			return out.toByteArray();
+		}
+
+		int prefix = pixels[0] & 0xFF;
+		for (int i = 1; i < pixels.length; i++) {
+			int c = pixels[i] & 0xFF;
+			int key = (prefix << 8) | c;
+			int h = (key * 31 + c) % hashSize;
+			int code = -1;
+			while (hashKeys[h] != -1) {
+				if (hashKeys[h] == key) {
+					code = hashCodes[h];
+					break;
+				}
+				if (++h == hashSize)
+					h = 0;
+			}
+			if (code >= 0) {
+				prefix = code;
+				continue;
+			}
+			out.write(prefix, nBits);
+			prefix = c;
+			hashKeys[h] = key;
+			hashCodes[h] = nextCode++;
+			if (nextCode == maxCode - 1) {
+				// Table full - emit clear code & reset
+				out.write(clearCode, nBits);
+				Arrays.fill(hashKeys, -1);
+				nextCode = firstCode;
+				nBits = minBits;
+				maxCodeForBits = (1 << nBits) - 1;
+			} else if (nextCode > maxCodeForBits) {
+				nBits++;
+				maxCodeForBits = (1 << nBits) - 1;
+			}
+		}
+		out.write(prefix, nBits);
+		nextCode++;
+		if (nextCode == maxCode - 1) {
+			out.write(clearCode, nBits);
+			nBits = minBits;
+		} else if (nextCode > maxCodeForBits) {
+			nBits++;
+		}
+		out.write(eoiCode, nBits);
+		return out.toByteArray();
+	}
+
+
+	/**
+	 * Helper class to write variable-length codes, most-significant bit first.
+	 */
+	private static class BitWriter {
+
+		private byte[] bytes;
+		private int nBytes = 0;
+		private long bitBuffer = 0L;
+		private int nBitsBuffered = 0;
+
+		BitWriter(int capacity) {
+			bytes = new byte[Math.max(16, capacity)];
+		}
+
+		void write(int code, int nBits) {
+			bitBuffer = (bitBuffer << nBits) | code;
+			nBitsBuffered += nBits;
+			while (nBitsBuffered >= 8) {
+				nBitsBuffered -= 8;
+				put((byte)(bitBuffer >>> nBitsBuffered));
+			}
+			bitBuffer &= (1L << nBitsBuffered) - 1;
+		}
+
+		private void put(byte b) {
+			if (nBytes == bytes.length)
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			bytes[nBytes++] = b;
+		}
+
+		byte[] toByteArray() {
+			if (nBitsBuffered > 0) {
+				put((byte)(bitBuffer << (8 - nBitsBuffered)));
+				nBitsBuffered = 0;
+				bitBuffer = 0L;
+			}
+			return Arrays.copyOf(bytes, nBytes);
+		}
+
+	}
+
+
+	/**
+	 * An image (IFD) within the TIFF.
+	 */
+	static class TiffImage {
+
+		private final boolean isSubResolution;
+		private final int width, height;
+		private final int tileWidth, tileHeight;
+		private final int nTilesX, nTilesY;
+		private final int samplesPerPixel, bitsPerSample, sampleFormat, photometric, compression;
+
+		private final long[] tileOffsets;
+		private final long[] tileByteCounts;
+
+		private final List<TiffImage> subResolutions = new ArrayList<>();
+
+		private TiffImage(boolean isSubResolution, int width, int height, int tileWidth, int tileHeight, int samplesPerPixel, int bitsPerSample, int sampleFormat, int photometric, int compression) {
+			if (tileWidth % 16 != 0 || tileHeight % 16 != 0)
+				throw new IllegalArgumentException("Tile width and height must be multiples of 16");
+			this.isSubResolution = isSubResolution;
+			this.width = width;
+			this.height = height;
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+			this.nTilesX = (int)Math.ceil(width / (double)tileWidth);
+			this.nTilesY = (int)Math.ceil(height / (double)tileHeight);
+			this.samplesPerPixel = samplesPerPixel;
+			this.bitsPerSample = bitsPerSample;
+			this.sampleFormat = sampleFormat;
+			this.photometric = photometric;
+			this.compression = compression;
+			this.tileOffsets = new long[nTilesX * nTilesY];
+			this.tileByteCounts = new long[nTilesX * nTilesY];
+		}
+
+		int getBytesPerPixel() {
+			return samplesPerPixel * bitsPerSample / 8;
+		}
+
+		int getWidth() {
+			return width;
+		}
+
+		int getHeight() {
+			return height;
+		}
+
+		int getTileWidth() {
+			return tileWidth;
+		}
+
+		int getTileHeight() {
+			return tileHeight;
+		}
+
+		int nTiles() {
+			return tileOffsets.length;
+		}
+
+	}
+
+
+	private static class EncodedTile {
+
+		private final TiffImage image;
+		private final int tileIndex;
+		private final byte[] bytes;
+
+		private EncodedTile(TiffImage image, int tileIndex, byte[] bytes) {
+			this.image = image;
+			this.tileIndex = tileIndex;
+			this.bytes = bytes;
+		}
+
+	}
+
+
+	/**
+	 * A single IFD entry.
+	 */
+	private static class TiffEntry {
+
+		private final int tag;
+		private final int type;
+		private final long count;
+		private final Object values;
+
+		private TiffEntry(int tag, int type, long count, Object values) {
+			this.tag = tag;
+			this.type = type;
+			this.count = count;
+			this.values = values;
+		}
+
+		static TiffEntry createShorts(int tag, int... values) {
+			return new TiffEntry(tag, TYPE_SHORT, values.length, values);
+		}
+
+		static TiffEntry createLongs(int tag, int... values) {
+			return new TiffEntry(tag, TYPE_LONG, values.length, values);
+		}
+
+		static TiffEntry createLong8s(int tag, long... values) {
+			return new TiffEntry(tag, TYPE_LONG8, values.length, values);
+		}
+
+		static TiffEntry createAscii(int tag, String text) {
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			byte[] terminated = Arrays.copyOf(bytes, bytes.length + 1);
+			return new TiffEntry(tag, TYPE_ASCII, terminated.length, terminated);
+		}
+
+		int getByteCount() {
+			switch (type) {
+			case TYPE_ASCII:
+				return (int)count;
+			case TYPE_SHORT:
+				return (int)count * 2;
+			case TYPE_LONG:
+				return (int)count * 4;
+			case TYPE_LONG8:
+				return (int)count * 8;
+			default:
+				throw new IllegalArgumentException("Unsupported TIFF type " + type);
+			}
+		}
+
+		void write(ByteBuffer buffer) {
+			switch (type) {
+			case TYPE_ASCII:
+				buffer.put((byte[])values);
+				break;
+			case TYPE_SHORT:
+				for (int v : (int[])values)
+					buffer.putShort((short)v);
+				break;
+			case TYPE_LONG:
+				for (int v : (int[])values)
+					buffer.putInt(v);
+				break;
+			case TYPE_LONG8:
+				for (long v : (long[])values)
+					buffer.putLong(v);
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported TIFF type " + type);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers.bioformats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import loci.formats.in.FakeReader;
+
+@SuppressWarnings("javadoc")
+public class TestBioFormatsReaderPool {
+
+	@Test
+	public void testCheckoutAndReturn() throws Exception {
+		var pool = new BioFormatsReaderPool("test.fake", () -> new FakeReader(), 2, 0L);
+
+		var reader1 = pool.checkout();
+		var reader2 = pool.checkout();
+		assertNotSame(reader1, reader2);
+		assertEquals(2, pool.getStatistics().getReadersInUse());
+		assertEquals(2, pool.getStatistics().getOpenReaders());
+
+		// A third request must wait until a reader is returned
+		var future = CompletableFuture.supplyAsync(() -> {
+			try {
+				return pool.checkout();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		while (pool.getStatistics().getWaitingThreads() == 0)
+			Thread.sleep(10);
+		pool.returnReader(reader1);
+		var reader3 = future.get(10, TimeUnit.SECONDS);
+		assertSame(reader1, reader3);
+
+		var stats = pool.getStatistics();
+		assertEquals(3, stats.getCheckoutCount());
+		assertEquals(1, stats.getWaitCount());
+		assertEquals(2, stats.getCreatedCount());
+		assertEquals(2, stats.getPeakReadersInUse());
+
+		pool.returnReader(reader2);
+		pool.returnReader(reader3);
+		assertEquals(0, pool.getStatistics().getReadersInUse());
+
+		// With a timeout of 0, all idle readers should be evicted
+		assertEquals(0, pool.evictIdleReaders());
+		assertEquals(2, pool.getStatistics().getEvictedCount());
+	}
+
+	@Test
+	public void testMaxReaders() {
+		assertEquals(8, BioFormatsImageServer.BioFormatsReaderManager.computeMaxReaders(8, 0L));
+		assertEquals(1, BioFormatsImageServer.BioFormatsReaderManager.computeMaxReaders(8, Long.MAX_VALUE));
+		assertEquals(1, BioFormatsImageServer.BioFormatsReaderManager.computeMaxReaders(0, 0L));
+		assertTrue(BioFormatsImageServer.BioFormatsReaderManager.computeMaxReaders(8, 1024L) <= 8);
+	}
+
+}
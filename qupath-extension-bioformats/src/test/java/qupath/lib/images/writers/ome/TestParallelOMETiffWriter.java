@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.writers.ome;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import loci.formats.FormatException;
+import loci.formats.ImageReader;
+import loci.formats.MetadataTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffParser;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.images.writers.ome.OMEPyramidWriter.CompressionType;
+
+@SuppressWarnings("javadoc")
+public class TestParallelOMETiffWriter {
+
+	@Test
+	public void testCompression() throws IOException {
+		int width = 1000, height = 900, tileWidth = 512, tileHeight = 256;
+		var rand = new Random(100L);
+		byte[] pixels = new byte[width * height];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (byte)(i % 7 == 0 ? rand.nextInt(256) : (i % width) / 5);
+
+		for (int compression : new int[] {ParallelOMETiffWriter.COMPRESSION_NONE, ParallelOMETiffWriter.COMPRESSION_LZW, ParallelOMETiffWriter.COMPRESSION_DEFLATE}) {
+			for (var order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+				var path = Files.createTempFile("qupath-test", ".tif");
+				try {
+					try (var writer = new ParallelOMETiffWriter(path, false, order, 4)) {
+						var image = writer.addImage(width, height, tileWidth, tileHeight, 1, 8,
+								ParallelOMETiffWriter.SAMPLE_FORMAT_UINT, ParallelOMETiffWriter.PHOTOMETRIC_MIN_IS_BLACK, compression);
+						var sub = writer.addSubResolution(image, width/4, height/4);
+						submitTiles(writer, image, pixels, width, height);
+						submitTiles(writer, sub, new byte[(width/4)*(height/4)], width/4, height/4);
+						writer.finish("QuPath test");
+						assertEquals(image.nTiles() + sub.nTiles(), writer.getTilesWritten());
+					}
+					// The JDK TIFF reader supports tiles, LZW and deflate
+					var img = ImageIO.read(path.toFile());
+					assertNotNull(img);
+					assertEquals(width, img.getWidth());
+					assertEquals(height, img.getHeight());
+					assertArrayEquals(pixels, ((DataBufferByte)img.getRaster().getDataBuffer()).getData());
+				} finally {
+					Files.deleteIfExists(path);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBioFormatsRead() throws IOException, FormatException {
+		int width = 700, height = 500, tileWidth = 256, tileHeight = 256;
+		var rand = new Random(200L);
+		byte[] pixels = new byte[width * height];
+		rand.nextBytes(pixels);
+		
+		for (boolean bigTiff : new boolean[] {false, true}) {
+			for (int compression : new int[] {ParallelOMETiffWriter.COMPRESSION_NONE, ParallelOMETiffWriter.COMPRESSION_LZW, ParallelOMETiffWriter.COMPRESSION_DEFLATE}) {
+				var path = Files.createTempFile("qupath-test", ".tif");
+				try {
+					try (var writer = new ParallelOMETiffWriter(path, bigTiff, ByteOrder.LITTLE_ENDIAN, 4)) {
+						var image = writer.addImage(width, height, tileWidth, tileHeight, 1, 8,
+								ParallelOMETiffWriter.SAMPLE_FORMAT_UINT, ParallelOMETiffWriter.PHOTOMETRIC_MIN_IS_BLACK, compression);
+						submitTiles(writer, image, pixels, width, height);
+						writer.finish("QuPath test");
+					}
+					try (var reader = new ImageReader()) {
+						reader.setId(path.toString());
+						assertEquals(width, reader.getSizeX());
+						assertEquals(height, reader.getSizeY());
+						assertArrayEquals(pixels, reader.openBytes(0));
+						// Check tiles can be read individually too
+						int x = tileWidth + 10, y = tileHeight - 20, w = 100, h = 50;
+						byte[] region = reader.openBytes(0, x, y, w, h);
+						for (int yy = 0; yy < h; yy++) {
+							for (int xx = 0; xx < w; xx++)
+								assertEquals(pixels[(y + yy) * width + x + xx], region[yy * w + xx]);
+						}
+					}
+				} finally {
+					Files.deleteIfExists(path);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testFailure() throws IOException {
+		int width = 4096, height = 4096, tileWidth = 64, tileHeight = 64;
+		var path = Files.createTempFile("qupath-test", ".tif");
+		try {
+			// A failing tile should cause the export to fail quickly, rather than hang
+			assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+				assertThrows(IOException.class, () -> {
+					try (var writer = new ParallelOMETiffWriter(path, false, ByteOrder.LITTLE_ENDIAN, 2)) {
+						var image = writer.addImage(width, height, tileWidth, tileHeight, 1, 8,
+								ParallelOMETiffWriter.SAMPLE_FORMAT_UINT, ParallelOMETiffWriter.PHOTOMETRIC_MIN_IS_BLACK, ParallelOMETiffWriter.COMPRESSION_NONE);
+						for (int ty = 0; ty < height / tileHeight; ty++) {
+							for (int tx = 0; tx < width / tileWidth; tx++) {
+								boolean fail = tx == 3 && ty == 0;
+								writer.submitTile(image, tx, ty, tileWidth, tileHeight, () -> {
+									if (fail)
+										throw new IOException("Test failure");
+									return new byte[tileWidth * tileHeight];
+								});
+							}
+						}
+						writer.finish("QuPath test");
+					}
+				});
+			});
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void testPadTile() {
+		int bytesPerPixel = 2;
+		byte[] pixels = new byte[5 * 4 * bytesPerPixel];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (byte)(i + 1);
+		
+		// Same size
+		assertSame(pixels, ParallelOMETiffWriter.padTile(pixels, 5, 4, 5, 4, bytesPerPixel));
+		
+		// Smaller than the tile, larger than the tile, and a mix of both
+		int[][] sizes = {{8, 6}, {3, 2}, {7, 3}, {4, 5}};
+		for (int[] size : sizes) {
+			int tileWidth = size[0], tileHeight = size[1];
+			byte[] tile = ParallelOMETiffWriter.padTile(pixels, 5, 4, tileWidth, tileHeight, bytesPerPixel);
+			assertEquals(tileWidth * tileHeight * bytesPerPixel, tile.length);
+			for (int y = 0; y < tileHeight; y++) {
+				for (int x = 0; x < tileWidth; x++) {
+					for (int b = 0; b < bytesPerPixel; b++) {
+						byte expected = x < 5 && y < 4 ? pixels[(y * 5 + x) * bytesPerPixel + b] : 0;
+						assertEquals(expected, tile[(y * tileWidth + x) * bytesPerPixel + b]);
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testPyramidWriter() throws Exception {
+		int width = 1000, height = 700, blockSize = 64;
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		var raster = img.getRaster();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				raster.setSample(x, y, 0, (x / blockSize + 3 * (y / blockSize)) * 10 % 256);
+		}
+		double[] downsamples = {1, 2, 4};
+		try (var server = new WrappedBufferedImageServer("Pyramid test", img)) {
+			var path = Files.createTempFile("qupath-test", ".ome.tif");
+			try {
+				new OMEPyramidWriter.Builder(server)
+					.tileSize(256)
+					.downsamples(downsamples)
+					.compression(CompressionType.ZLIB)
+					.parallelize()
+					.build()
+					.writePyramid(path.toString());
+				
+				// Check the sub-resolutions are stored as SubIFDs of the full-resolution image
+				try (var parser = new TiffParser(path.toString())) {
+					var ifds = parser.getMainIFDs();
+					assertEquals(1, ifds.size());
+					long[] subIFDs = ifds.get(0).getIFDLongArray(IFD.SUB_IFD);
+					assertNotNull(subIFDs);
+					assertEquals(downsamples.length - 1, subIFDs.length);
+				}
+				
+				try (var reader = new ImageReader()) {
+					var meta = MetadataTools.createOMEXMLMetadata();
+					reader.setMetadataStore(meta);
+					reader.setFlattenedResolutions(false);
+					reader.setId(path.toString());
+					
+					// Check the TiffData refers to the first IFD of this file
+					assertEquals(1, meta.getTiffDataCount(0));
+					assertEquals(0, meta.getTiffDataIFD(0, 0).getValue());
+					assertEquals(1, meta.getTiffDataPlaneCount(0, 0).getValue());
+					assertEquals(path.getFileName().toString(), meta.getUUIDFileName(0, 0));
+					
+					// Check the pixels for each level
+					assertEquals(downsamples.length, reader.getResolutionCount());
+					for (int level = 0; level < downsamples.length; level++) {
+						reader.setResolution(level);
+						int w = reader.getSizeX();
+						int h = reader.getSizeY();
+						double downsample = downsamples[level];
+						assertEquals((int)(width / downsample), w, 1);
+						assertEquals((int)(height / downsample), h, 1);
+						byte[] bytes = reader.openBytes(0);
+						assertEquals(w * h, bytes.length);
+						// Downsampled pixels may be interpolated, so check only away from the block edges
+						int margin = level == 0 ? 0 : 2;
+						for (int y = 0; y < h; y++) {
+							for (int x = 0; x < w; x++) {
+								int xx = (int)(x * downsample);
+								int yy = (int)(y * downsample);
+								if (xx >= width || yy >= height)
+									continue;
+								double bx = (x * downsample) % blockSize / downsample;
+								double by = (y * downsample) % blockSize / downsample;
+								double blockSizeDownsampled = blockSize / downsample;
+								if (bx < margin || by < margin || bx >= blockSizeDownsampled - margin || by >= blockSizeDownsampled - margin)
+									continue;
+								assertEquals(raster.getSample(xx, yy, 0), bytes[y * w + x] & 0xFF);
+							}
+						}
+					}
+				}
+			} finally {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+
+	private static void submitTiles(ParallelOMETiffWriter writer, ParallelOMETiffWriter.TiffImage image, byte[] pixels, int width, int height) throws IOException {
+		int tileWidth = image.getTileWidth();
+		int tileHeight = image.getTileHeight();
+		for (int y = 0, ty = 0; y < height; y += tileHeight, ty++) {
+			for (int x = 0, tx = 0; x < width; x += tileWidth, tx++) {
+				int x0 = x, y0 = y;
+				int w = Math.min(tileWidth, width - x);
+				int h = Math.min(tileHeight, height - y);
+				writer.submitTile(image, tx, ty, w, h, () -> {
+					byte[] tile = new byte[w * h];
+					for (int yy = 0; yy < h; yy++)
+						System.arraycopy(pixels, (y0 + yy) * width + x0, tile, yy * w, w);
+					return tile;
+				});
+			}
+		}
+	}
+
+}
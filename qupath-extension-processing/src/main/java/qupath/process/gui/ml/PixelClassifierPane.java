@@ -886,6 +886,8 @@ public class PixelClassifierPane {
 			var trainingImages = getTrainingImageData();
 			if (trainingImages.size() > 1)
 				logger.info("Creating training data from {} images", trainingImages.size());
+			// Limit the size of the training data before creating the full matrix
+			helper.setMaxTrainingSamples(maxSamples);
 			trainingData = helper.createTrainingData(trainingImages);
 		} catch (Exception e) {
 			logger.error("Error when updating training data", e);
@@ -896,20 +898,13 @@ public class PixelClassifierPane {
 			 return;
 		 }
 
-		 // TODO: Optionally limit the number of training samples we use
-		 //	     		var trainData = classifier.createTrainData(matFeatures, matTargets);
-
 		 // Ensure we seed the RNG for reproducibility
 		 opencv_core.setRNGSeed(rngSeed);
 		 
 		 // TODO: Prevent training K nearest neighbor with a huge number of samples (very slow!)
-		 var actualMaxSamples = this.maxSamples;
-		 
+		 // Note that any subsampling to maxSamples has already been applied by the helper
 		 var trainData = trainingData.getTrainData();
-		 if (actualMaxSamples > 0 && trainData.getNTrainSamples() > actualMaxSamples)
-			 trainData.setTrainTestSplit(actualMaxSamples, true);
-		 else
-			 trainData.shuffleTrainTest();
+		 trainData.shuffleTrainTest();
 
 //		 System.err.println("Train: " + trainData.getTrainResponses());
 //		 System.err.println("Test: " + trainData.getTestResponses());
@@ -26,20 +26,27 @@ import org.bytedeco.opencv.global.opencv_ml;
 import org.bytedeco.opencv.opencv_ml.TrainData;
 import org.bytedeco.javacpp.indexer.FloatIndexer;
 import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.color.ColorToolsAwt;
 import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
 import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.images.servers.TileRequest;
 
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.bytedeco.opencv.opencv_core.MatVector;
-import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassFactory;
 import qupath.lib.objects.classes.PathClassFactory.StandardPathClasses;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.opencv.ops.ImageDataOp;
@@ -49,19 +56,25 @@ import qupath.opencv.ops.ImageOps;
 import java.awt.BasicStroke;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.UUID;
 import java.util.WeakHashMap;
+import java.util.stream.Collectors;
 
 /**
  * Helper class for training a pixel classifier.
@@ -81,6 +94,10 @@ public class PixelClassifierTraining {
     private Mat matTraining;
     private Mat matTargets;
     
+    private int maxSamples = -1;
+    
+    private Map<ImageData<BufferedImage>, FeatureServerEntry> featureServers = new WeakHashMap<>();
+    
     
     /**
      * Create a new pixel classifier helper, to support generating training data.
@@ -93,12 +110,99 @@ public class PixelClassifierTraining {
 
     
     synchronized ImageDataServer<BufferedImage> getFeatureServer(ImageData<BufferedImage> imageData) {
-		if (featureCalculator != null && imageData != null) {
-			if (featureCalculator.supportsImage(imageData)) {
-    			return ImageOps.buildServer(imageData, featureCalculator, resolution);
-			}
-		}
-		return null;
+    	var entry = getFeatureServerEntry(imageData);
+    	if (entry == null)
+    		return null;
+    	// Reuse the previous server if it is still available
+    	var server = entry.serverRef == null ? null : entry.serverRef.get();
+    	if (server == null) {
+    		server = ImageOps.buildServer(imageData, featureCalculator, resolution);
+    		entry.serverRef = new WeakReference<>(server);
+    	}
+    	return server;
+    }
+    
+    /**
+     * Get the ID that identifies both the image and the feature calculation, for use when caching tile features.
+     * @param imageData
+     * @return the ID, or null if features cannot be calculated for the image
+     */
+    synchronized String getFeatureID(ImageData<BufferedImage> imageData) {
+    	var entry = getFeatureServerEntry(imageData);
+    	return entry == null ? null : entry.id;
+    }
+    
+    private FeatureServerEntry getFeatureServerEntry(ImageData<BufferedImage> imageData) {
+    	if (featureCalculator == null || imageData == null || !featureCalculator.supportsImage(imageData))
+    		return null;
+    	// Keep the same entry (and ID) if nothing that influences the features has changed
+    	var state = new FeatureServerState(imageData, featureCalculator, resolution);
+    	var entry = featureServers.get(imageData);
+    	if (entry == null || !entry.state.equals(state)) {
+    		entry = new FeatureServerEntry(state);
+    		featureServers.put(imageData, entry);
+    	}
+    	return entry;
+    }
+    
+    /**
+     * Everything (beyond the pixels themselves) that influences the features calculated for an image.
+     * Stains are compared by identity, because they are immutable & replaced whenever they change.
+     */
+    private static class FeatureServerState {
+    	
+    	private final ImageDataOp op;
+    	private final PixelCalibration resolution;
+    	private final ImageServer<BufferedImage> server;
+    	private final ImageData.ImageType imageType;
+    	private final ColorDeconvolutionStains stains;
+    	private final ImageServerMetadata metadata;
+    	
+    	private FeatureServerState(ImageData<BufferedImage> imageData, ImageDataOp op, PixelCalibration resolution) {
+    		this.op = op;
+    		this.resolution = resolution;
+    		this.server = imageData.getServer();
+    		this.imageType = imageData.getImageType();
+    		this.stains = imageData.getColorDeconvolutionStains();
+    		this.metadata = imageData.getServer().getMetadata();
+    	}
+    	
+    	@Override
+    	public boolean equals(Object obj) {
+    		if (this == obj)
+    			return true;
+    		if (!(obj instanceof FeatureServerState))
+    			return false;
+    		var other = (FeatureServerState)obj;
+    		return op.equals(other.op) &&
+    				Objects.equals(resolution, other.resolution) &&
+    				server == other.server &&
+    				imageType == other.imageType &&
+    				stains == other.stains &&
+    				Objects.equals(metadata, other.metadata);
+    	}
+    	
+    	@Override
+    	public int hashCode() {
+    		return Objects.hash(op, resolution, imageType);
+    	}
+    	
+    }
+    
+    /**
+     * Feature server & ID for an image. 
+     * This must not hold a strong reference to the {@link ImageData}, since it is the value in a {@link WeakHashMap}.
+     */
+    private static class FeatureServerEntry {
+    	
+    	private final FeatureServerState state;
+    	private final String id = UUID.randomUUID().toString();
+    	private WeakReference<ImageDataServer<BufferedImage>> serverRef;
+    	
+    	private FeatureServerEntry(FeatureServerState state) {
+    		this.state = state;
+    	}
+    	
     }
     
     /**
@@ -127,6 +231,24 @@ public class PixelClassifierTraining {
     	this.resolution = cal;
     }
 
+    /**
+     * Get the maximum number of training samples (i.e. pixels) to use.
+     * @return the maximum number of samples, or &le; 0 if all samples should be used
+     * @see #setMaxTrainingSamples(int)
+     */
+    public synchronized int getMaxTrainingSamples() {
+    	return maxSamples;
+    }
+    
+    /**
+     * Set the maximum number of training samples (i.e. pixels) to use.
+     * If more samples are available, a random subset will be selected in a reproducible way.
+     * @param maxSamples the maximum number of samples, or &le; 0 if all samples should be used
+     */
+    public synchronized void setMaxTrainingSamples(int maxSamples) {
+    	this.maxSamples = maxSamples;
+    }
+
     /**
      * Set the {@link ImageDataOp} used to calculate features.
      * @param featureOp
@@ -175,30 +297,34 @@ public class PixelClassifierTraining {
         }
         
         
-        List<Mat> allFeatures = new ArrayList<>();
-        List<Mat> allTargets = new ArrayList<>();
-
+        // We need at least two classes for anything very meaningful to happen
+        int nTargets = labels.size();
+        if (nTargets <= 1) {
+        	logger.warn("Unlocked annotations for at least two classes are required to train a classifier!");
+            resetTrainingData();
+            return null;
+        }
+        
+        // Identify the tiles that contain training annotations
+        List<TileFeaturesRequest> requests = new ArrayList<>();
         for (var imageData : imageDataCollection) {
-	        // Get features & targets for all the tiles that we need
 	        var featureServer = getFeatureServer(imageData);
 	        if (featureServer != null) {
-		        var tiles = featureServer.getTileRequestManager().getAllTileRequests();
-		        for (var tile : tiles) {
-		            var tileFeatures = getTileFeatures(tile.getRegionRequest(), featureServer, boundaryStrategy, labels);
-		        	if (tileFeatures != null) {
-		        		allFeatures.add(tileFeatures.getFeatures());
-		        		allTargets.add(tileFeatures.getTargets());
-		        	}
-		        }
+	        	requests.addAll(getTileFeaturesRequests(featureServer, getFeatureID(imageData), labels));
 	        } else {
 	        	logger.warn("Unable to generate features for {}", imageData);
 	        }
         }
         
-        // We need at least two classes for anything very meaningful to happen
-        int nTargets = labels.size();
-        if (nTargets <= 1) {
-        	logger.warn("Unlocked annotations for at least two classes are required to train a classifier!");
+        // Get features & targets for all the tiles that we need, in parallel across tiles & images
+        var strategy = boundaryStrategy;
+        var allTileFeatures = requests.parallelStream()
+        		.map(r -> getTileFeatures(r, strategy, labels))
+        		.filter(t -> t != null && t.getFeatures().rows() > 0)
+        		.collect(Collectors.toList());
+        
+        if (allTileFeatures.isEmpty()) {
+        	logger.warn("No training data could be found!");
             resetTrainingData();
             return null;
         }
@@ -207,8 +333,15 @@ public class PixelClassifierTraining {
             matTraining = new Mat();
         if (matTargets == null)
             matTargets = new Mat();
-        opencv_core.vconcat(new MatVector(allFeatures.toArray(Mat[]::new)), matTraining);
-        opencv_core.vconcat(new MatVector(allTargets.toArray(Mat[]::new)), matTargets);
+        
+        int nSamples = allTileFeatures.stream().mapToInt(t -> t.getFeatures().rows()).sum();
+        if (maxSamples > 0 && nSamples > maxSamples) {
+        	logger.debug("Subsampling training data from {} to {} samples", nSamples, maxSamples);
+        	sampleRows(allTileFeatures, nSamples, maxSamples, matTraining, matTargets);
+        } else {
+	        opencv_core.vconcat(new MatVector(allTileFeatures.stream().map(t -> t.getFeatures()).toArray(Mat[]::new)), matTraining);
+	        opencv_core.vconcat(new MatVector(allTileFeatures.stream().map(t -> t.getTargets()).toArray(Mat[]::new)), matTargets);
+        }
 
         logger.debug("Training data: {} x {}, Target data: {} x {}", matTraining.rows(), matTraining.cols(), matTargets.rows(), matTargets.cols());
         
@@ -219,6 +352,16 @@ public class PixelClassifierTraining {
 
     
 	private static PathClass REGION_CLASS = PathClassFactory.getPathClass(StandardPathClasses.REGION);
+	
+	/**
+	 * Seed used when subsampling training data, so that training is reproducible.
+	 */
+	private static final long RANDOM_SEED = 100L;
+	
+	/**
+	 * Maximum memory to use for cached tile features.
+	 */
+	private static final long MAX_CACHE_BYTES = 256L * 1024L * 1024L;
 
     /**
      * Test is a PathObject can be used as a classifier training annotation.
@@ -335,23 +478,79 @@ public class PixelClassifierTraining {
     }
     
     
-	private static Map<RegionRequest, TileFeatures> cache = Collections.synchronizedMap(new WeakHashMap<>());
+    /**
+     * Select a random subset of rows from the features and targets of all tiles, using reservoir sampling.
+     * The order of the selected rows is preserved.
+     */
+    private static void sampleRows(List<TileFeatures> allTileFeatures, int nSamples, int maxSamples, Mat matTraining, Mat matTargets) {
+    	var rand = new Random(RANDOM_SEED);
+    	int[] reservoir = new int[maxSamples];
+    	for (int i = 0; i < nSamples; i++) {
+    		if (i < maxSamples)
+    			reservoir[i] = i;
+    		else {
+    			int j = rand.nextInt(i + 1);
+    			if (j < maxSamples)
+    				reservoir[j] = i;
+    		}
+    	}
+    	Arrays.sort(reservoir);
+    	
+    	int nFeatures = allTileFeatures.get(0).getFeatures().cols();
+    	matTraining.create(maxSamples, nFeatures, opencv_core.CV_32FC1);
+    	matTargets.create(maxSamples, 1, opencv_core.CV_32SC1);
+    	int r = 0;
+    	int offset = 0;
+    	for (var tileFeatures : allTileFeatures) {
+    		var features = tileFeatures.getFeatures();
+    		var targets = tileFeatures.getTargets();
+    		int n = features.rows();
+    		while (r < maxSamples && reservoir[r] < offset + n) {
+    			int row = reservoir[r] - offset;
+    			features.row(row).copyTo(matTraining.row(r));
+    			targets.row(row).copyTo(matTargets.row(r));
+    			r++;
+    		}
+    		offset += n;
+    	}
+    }
+    
     
-    private static TileFeatures getTileFeatures(RegionRequest request, ImageDataServer<BufferedImage> featureServer, BoundaryStrategy strategy, Map<PathClass, Integer> labels) {
-		TileFeatures features = cache.get(request);
-		Map<ROI, PathClass> rois = null;
-		
-		var annotations = featureServer.getImageData().getHierarchy().getObjectsForRegion(PathAnnotationObject.class, request, null);
-		if (annotations != null && !annotations.isEmpty()) {
-    		rois = new HashMap<>();
-    		for (var annotation : annotations) {
-    			// Don't train from locked annotations
-    			if (!isTrainableAnnotation(annotation))
-    				continue;
-    			
+    /**
+     * Identify all the tiles of a feature server that intersect trainable annotations, and the ROIs that should be used for each tile.
+     * Only tiles that intersect the bounding boxes of relevant annotations are visited.
+     */
+    static List<TileFeaturesRequest> getTileFeaturesRequests(ImageDataServer<BufferedImage> featureServer, String featureID, Map<PathClass, Integer> labels) {
+    	var index = new TrainingAnnotationIndex();
+    	for (var annotation : featureServer.getImageData().getHierarchy().getAnnotationObjects()) {
+    		if (isTrainableAnnotation(annotation) && labels.containsKey(annotation.getPathClass()))
+    			index.add(annotation);
+    	}
+    	if (index.isEmpty())
+    		return Collections.emptyList();
+    	
+    	// Find candidate tiles, expanding bounds slightly so that we don't miss tiles that only touch an annotation
+    	double downsample = featureServer.getDownsampleForResolution(0);
+    	var tileManager = featureServer.getTileRequestManager();
+    	Set<TileRequest> tiles = new LinkedHashSet<>();
+    	for (var annotation : index.getAnnotations()) {
+    		var roi = annotation.getROI();
+    		int x = (int)Math.floor(roi.getBoundsX()) - 1;
+    		int y = (int)Math.floor(roi.getBoundsY()) - 1;
+    		int x2 = (int)Math.ceil(roi.getBoundsX() + roi.getBoundsWidth()) + 1;
+    		int y2 = (int)Math.ceil(roi.getBoundsY() + roi.getBoundsHeight()) + 1;
+    		var region = RegionRequest.createInstance(featureServer.getPath(), downsample, x, y, x2 - x, y2 - y, roi.getZ(), roi.getT());
+    		tiles.addAll(tileManager.getTileRequests(region));
+    	}
+    	
+    	List<TileFeaturesRequest> requests = new ArrayList<>();
+    	for (var tile : tiles) {
+    		var request = tile.getRegionRequest();
+    		Map<ROI, PathClass> rois = new LinkedHashMap<>();
+    		for (var annotation : index.getAnnotations(request)) {
     			var roi = annotation.getROI();
     			// For points, make sure at least one point is in the region
-    			if (roi != null && roi.isPoint()) {
+    			if (roi.isPoint()) {
         			boolean containsPoint = false;
     				for (var p : roi.getAllPoints()) {
     					if (request.contains((int)p.getX(), (int)p.getY(), roi.getZ(), roi.getT())) {
@@ -362,72 +561,218 @@ public class PixelClassifierTraining {
     				if (!containsPoint)
     					continue;
     			}
-    			
-    			var pathClass = annotation.getPathClass();
-    			if (roi != null && labels.containsKey(pathClass)) {
-    				rois.put(roi, pathClass);
-    			}
+    			rois.put(roi, annotation.getPathClass());
     		}
-		}
-		
-		// We don't have any features
-		if (rois == null || rois.isEmpty()) {
-    		if (features != null)
-				cache.remove(request);
-			return null;
-		}
-
-		// Check if we can return cached features
-		if (features != null) {
-			if (features.featureServer.equals(featureServer) &&
-					features.labels.equals(labels) &&
-					features.strategy.equals(strategy) &&
-					features.rois.equals(rois) &&
-					features.request.equals(request))
-				return features;
-		}
+    		if (!rois.isEmpty())
+    			requests.add(new TileFeaturesRequest(featureServer, featureID, request, rois));
+    	}
+    	return requests;
+    }
+    
+    
+    /**
+     * Spatial index of the annotations used for training, for one image.
+     * <p>
+     * Annotations are returned if their bounding boxes intersect (or touch) a region on the same plane, 
+     * consistent with {@link PathObjectHierarchy#getObjectsForRegion(Class, qupath.lib.regions.ImageRegion, Collection)}.
+     */
+    private static class TrainingAnnotationIndex {
+    	
+    	private List<PathObject> annotations = new ArrayList<>();
+    	private Map<ImagePlane, STRtree> trees = new HashMap<>();
+    	
+    	void add(PathObject annotation) {
+    		var roi = annotation.getROI();
+    		var tree = trees.computeIfAbsent(ImagePlane.getPlane(roi.getZ(), roi.getT()), p -> new STRtree());
+    		// Store the index, so that we can retain the original order
+    		tree.insert(getEnvelope(roi), annotations.size());
+    		annotations.add(annotation);
+    	}
+    	
+    	boolean isEmpty() {
+    		return annotations.isEmpty();
+    	}
+    	
+    	List<PathObject> getAnnotations() {
+    		return annotations;
+    	}
+    	
+    	@SuppressWarnings("unchecked")
+		List<PathObject> getAnnotations(RegionRequest request) {
+    		var tree = trees.get(ImagePlane.getPlane(request.getZ(), request.getT()));
+    		if (tree == null)
+    			return Collections.emptyList();
+    		var envelope = new Envelope(request.getMinX(), request.getMaxX(), request.getMinY(), request.getMaxY());
+    		// STRtree returns all items with envelopes that intersect the query envelope
+    		var indices = (List<Integer>)tree.query(envelope);
+    		// Retain the hierarchy order, so that results are reproducible
+    		Collections.sort(indices);
+    		List<PathObject> list = new ArrayList<>();
+    		for (int ind : indices)
+    			list.add(annotations.get(ind));
+    		return list;
+    	}
+    	
+    	private static Envelope getEnvelope(ROI roi) {
+    		return new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
+    				roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight());
+    	}
+    	
+    }
+    
+    
+    /**
+     * A tile for which features should be calculated, along with the ROIs to use for training.
+     */
+    static class TileFeaturesRequest {
+    	
+    	private final ImageDataServer<BufferedImage> featureServer;
+    	private final String featureID;
+    	private final RegionRequest request;
+    	private final Map<ROI, PathClass> rois;
+    	
+    	private TileFeaturesRequest(ImageDataServer<BufferedImage> featureServer, String featureID, RegionRequest request, Map<ROI, PathClass> rois) {
+    		this.featureServer = featureServer;
+    		this.featureID = featureID;
+    		this.request = request;
+    		this.rois = rois;
+    	}
+    	
+    	RegionRequest getRegionRequest() {
+    		return request;
+    	}
+    	
+    	Map<ROI, PathClass> getROIs() {
+    		return Collections.unmodifiableMap(rois);
+    	}
+    	
+    }
+    
+    
+    private static TileFeaturesCache cache = new TileFeaturesCache(MAX_CACHE_BYTES);
+    
+    private static TileFeatures getTileFeatures(TileFeaturesRequest tileRequest, BoundaryStrategy strategy, Map<PathClass, Integer> labels) {
+    	// The feature ID identifies the image & the feature calculation (the request path alone isn't enough, 
+    	// since it is derived from the image name), while the ROIs, labels & strategy determine the targets
+    	var key = new TileFeaturesKey(tileRequest.featureID, tileRequest.request, tileRequest.rois, labels, strategy);
+    	var features = cache.get(key);
+    	if (features != null)
+    		return features;
 		
 		// Calculate new features
 		try {
-//			System.err.println("Calculating " + request);
-    		features = new TileFeatures(request, featureServer, strategy, rois, labels);
-    		cache.put(request, features);
+    		features = new TileFeatures(tileRequest.request, tileRequest.featureServer, strategy, tileRequest.rois, labels);
+    		cache.put(key, features);
 		} catch (IOException e) {
-			cache.remove(request);
-			logger.error("Error requesting features for " + request, e);
+			logger.error("Error requesting features for " + tileRequest.request, e);
 		}
 		
 		return features;
 	}
     
     
+    /**
+     * Key for cached features. This is explicit about everything that influences the features and targets, 
+     * so that stale entries are never returned.
+     * <p>
+     * Because the cache is static, neither keys nor values may refer to the {@link ImageData} or feature server, 
+     * since this would prevent them being garbage collected.
+     */
+    private static class TileFeaturesKey {
+    	
+    	private final String featureID;
+    	private final RegionRequest request;
+    	private final Map<ROI, PathClass> rois;
+    	private final Map<PathClass, Integer> labels;
+    	private final BoundaryStrategy strategy;
+    	private final int hashCode;
+    	
+    	private TileFeaturesKey(String featureID, RegionRequest request, Map<ROI, PathClass> rois, Map<PathClass, Integer> labels, BoundaryStrategy strategy) {
+    		this.featureID = featureID;
+    		this.request = request;
+    		this.rois = Collections.unmodifiableMap(new LinkedHashMap<>(rois));
+    		this.labels = Collections.unmodifiableMap(new LinkedHashMap<>(labels));
+    		this.strategy = strategy;
+    		this.hashCode = Objects.hash(featureID, request, this.rois, this.labels, strategy);
+    	}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TileFeaturesKey))
+				return false;
+			var other = (TileFeaturesKey)obj;
+			return hashCode == other.hashCode &&
+					featureID.equals(other.featureID) &&
+					request.equals(other.request) &&
+					strategy.equals(other.strategy) &&
+					labels.equals(other.labels) &&
+					rois.equals(other.rois);
+		}
+    	
+    }
+    
+    
+    /**
+     * Least-recently-used cache of tile features, with a maximum size based upon the memory required for the features.
+     */
+    private static class TileFeaturesCache {
+    	
+    	private final long maxBytes;
+    	private long bytes = 0L;
+    	private final LinkedHashMap<TileFeaturesKey, TileFeatures> map = new LinkedHashMap<>(16, 0.75f, true);
+    	
+    	private TileFeaturesCache(long maxBytes) {
+    		this.maxBytes = maxBytes;
+    	}
+    	
+    	synchronized TileFeatures get(TileFeaturesKey key) {
+    		return map.get(key);
+    	}
+    	
+    	synchronized void put(TileFeaturesKey key, TileFeatures features) {
+    		var previous = map.put(key, features);
+    		if (previous != null)
+    			bytes -= previous.estimateBytes();
+    		bytes += features.estimateBytes();
+    		var iter = map.values().iterator();
+    		while (bytes > maxBytes && iter.hasNext()) {
+    			var next = iter.next();
+    			// Always retain the most recent entry
+    			if (next == features)
+    				break;
+    			bytes -= next.estimateBytes();
+    			iter.remove();
+    		}
+    	}
+    	
+    }
+    
+    
+    /**
+     * Features & targets for a single tile.
+     * Only the Mats are retained, since these are stored in a static cache.
+     */
     private static class TileFeatures {
     	    	    	
-    	private Map<PathClass, Integer> labels;
-    	private ImageDataServer<BufferedImage> featureServer;
-    	private RegionRequest request;
-    	private Map<ROI, PathClass> rois;
-    	private BoundaryStrategy strategy;
     	private Mat matFeatures;
     	private Mat matTargets;
     	
     	private TileFeatures(RegionRequest request, ImageDataServer<BufferedImage> featureServer, BoundaryStrategy strategy, Map<ROI, PathClass> rois, Map<PathClass, Integer> labels) throws IOException {
-    		this.request = request;
-    		this.strategy = strategy;
-    		this.featureServer = featureServer;
-    		this.rois = rois;
-    		this.labels = labels;
-    		ensureFeaturesCalculated();
+    		calculateFeatures(request, featureServer, strategy, rois, labels);
     	};
     	
     	/**
     	 * Note that this implementation supports only one target per pixel, i.e. not multi-class classifications.
     	 * @throws IOException
     	 */
-    	private void ensureFeaturesCalculated() throws IOException {
-    		if (matFeatures != null && matTargets != null)
-    			return;
-    		
+    	private void calculateFeatures(RegionRequest request, ImageDataServer<BufferedImage> featureServer, BoundaryStrategy strategy, Map<ROI, PathClass> rois, Map<PathClass, Integer> labels) throws IOException {
     		var features = featureServer.readBufferedImage(request);
     		
     		// TODO: Handle differing boundary thicknesses
@@ -536,6 +881,10 @@ public class PixelClassifierTraining {
     	public Mat getFeatures() {
     		return matFeatures;
     	}
+    	
+    	long estimateBytes() {
+    		return matFeatures.total() * matFeatures.elemSize() + matTargets.total() * matTargets.elemSize();
+    	}
 
     	public Mat getTargets() {
     		return matTargets;
@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.process.gui.ml;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.opencv.ops.ImageOps;
+
+@SuppressWarnings("javadoc")
+public class TestPixelClassifierTraining {
+	
+	private static final int WIDTH = 2048;
+	private static final int HEIGHT = 1536;
+	
+	private static final PathClass CLASS_A = PathClassFactory.getPathClass("Class A");
+	private static final PathClass CLASS_B = PathClassFactory.getPathClass("Class B");
+	private static final PathClass CLASS_C = PathClassFactory.getPathClass("Class C");
+	
+	@Test
+	public void test_annotatedTiles() throws IOException {
+		var imageData = createImageData("Image", true);
+		var training = new PixelClassifierTraining(ImageOps.buildImageDataOp());
+		var featureServer = training.getFeatureServer(imageData);
+		var featureID = training.getFeatureID(imageData);
+		assertNotNull(featureServer);
+		assertNotNull(featureID);
+		assertEquals(512, featureServer.getMetadata().getPreferredTileWidth());
+		
+		// Only tiles containing annotations with a label should be used
+		var requests = PixelClassifierTraining.getTileFeaturesRequests(featureServer, featureID, createLabels());
+		Set<String> tiles = new HashSet<>();
+		for (var request : requests)
+			tiles.add(request.getRegionRequest().getX() + "," + request.getRegionRequest().getY());
+		assertEquals(Set.of("0,0", "512,0", "1024,0", "512,512", "1024,512"), tiles);
+		assertEquals(tiles.size(), requests.size());
+		for (var request : requests) {
+			var region = request.getRegionRequest();
+			var pathClasses = new HashSet<>(request.getROIs().values());
+			if (region.getX() == 0)
+				assertEquals(Set.of(CLASS_A), pathClasses);
+			else
+				assertEquals(Set.of(CLASS_B), pathClasses);
+		}
+		
+		// All the annotated pixels should be used exactly once
+		var data = training.createTrainingDataForLabelMap(Collections.singleton(imageData), createLabels());
+		var trainData = data.getTrainData();
+		assertEquals(50 * 40 + 60 * 50, trainData.getNSamples());
+		assertEquals(3, trainData.getSamples().cols());
+	}
+	
+	@Test
+	public void test_maxTrainingSamples() throws IOException {
+		var imageData = createImageData("Image", true);
+		var labels = createLabels();
+		
+		var training = new PixelClassifierTraining(ImageOps.buildImageDataOp());
+		List<Integer> allSamples = getSampleIndices(training.createTrainingDataForLabelMap(Collections.singleton(imageData), labels).getTrainData().getSamples());
+		assertEquals(5000, allSamples.size());
+		assertEquals(allSamples.size(), new HashSet<>(allSamples).size());
+		
+		int maxSamples = 500;
+		training.setMaxTrainingSamples(maxSamples);
+		assertEquals(maxSamples, training.getMaxTrainingSamples());
+		List<Integer> samples = getSampleIndices(training.createTrainingDataForLabelMap(Collections.singleton(imageData), labels).getTrainData().getSamples());
+		assertEquals(maxSamples, samples.size());
+		
+		// Samples should be distinct, and in the same order as the full training data
+		int ind = 0;
+		for (var sample : samples) {
+			while (ind < allSamples.size() && !allSamples.get(ind).equals(sample))
+				ind++;
+			assertTrue(ind < allSamples.size(), "Sample " + sample + " not found in order");
+			ind++;
+		}
+		
+		// Sampling should be reproducible
+		var training2 = new PixelClassifierTraining(ImageOps.buildImageDataOp());
+		training2.setMaxTrainingSamples(maxSamples);
+		List<Integer> samples2 = getSampleIndices(training2.createTrainingDataForLabelMap(Collections.singleton(imageData), labels).getTrainData().getSamples());
+		assertEquals(samples, samples2);
+		
+		// No limit if there are fewer samples available
+		training.setMaxTrainingSamples(10_000);
+		assertEquals(allSamples, getSampleIndices(training.createTrainingDataForLabelMap(Collections.singleton(imageData), labels).getTrainData().getSamples()));
+	}
+	
+	@Test
+	public void test_cacheKeys() throws IOException {
+		// Two different images with the same name (and therefore feature server path) & annotations
+		var imageData = createImageData("Same name", true);
+		var imageData2 = createImageData("Same name", false);
+		var labels = createLabels();
+		
+		var training = new PixelClassifierTraining(ImageOps.buildImageDataOp());
+		assertEquals(training.getFeatureServer(imageData).getPath(), training.getFeatureServer(imageData2).getPath());
+		assertNotEquals(training.getFeatureID(imageData), training.getFeatureID(imageData2));
+		
+		var samples = getSampleIndices(training.createTrainingDataForLabelMap(Collections.singleton(imageData), labels).getTrainData().getSamples());
+		var samples2 = getSampleIndices(training.createTrainingDataForLabelMap(Collections.singleton(imageData2), labels).getTrainData().getSamples());
+		assertEquals(5000, samples.size());
+		assertEquals(5000, samples2.size());
+		assertEquals(5000, new HashSet<>(samples).size());
+		assertEquals(Set.of(0), new HashSet<>(samples2));
+		
+		// The ID should only change if something that influences the features changes
+		var id = training.getFeatureID(imageData);
+		assertEquals(id, training.getFeatureID(imageData));
+		training.setResolution(PixelCalibration.getDefaultInstance().createScaledInstance(2, 2));
+		assertNotEquals(id, training.getFeatureID(imageData));
+		
+		// A different training instance shouldn't share the same ID
+		var training2 = new PixelClassifierTraining(ImageOps.buildImageDataOp());
+		assertNotEquals(id, training2.getFeatureID(imageData));
+	}
+	
+	@Test
+	public void test_imageDataNotRetained() throws Exception {
+		var imageData = createImageData("Image", true);
+		var training = new PixelClassifierTraining(ImageOps.buildImageDataOp());
+		assertNotNull(training.createTrainingDataForLabelMap(Collections.singleton(imageData), createLabels()));
+		
+		// Neither the training nor the cached tile features should keep the image alive
+		var ref = new WeakReference<>(imageData);
+		imageData = null;
+		for (int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertNull(ref.get());
+		assertNotNull(training);
+	}
+	
+	
+	private static Map<PathClass, Integer> createLabels() {
+		Map<PathClass, Integer> labels = new LinkedHashMap<>();
+		labels.put(CLASS_A, 0);
+		labels.put(CLASS_B, 1);
+		return labels;
+	}
+	
+	/**
+	 * Convert the RGB features for each sample back to the index of the pixel in the image.
+	 */
+	private static List<Integer> getSampleIndices(Mat mat) {
+		List<Integer> indices = new ArrayList<>();
+		FloatIndexer idx = mat.createIndexer();
+		for (int r = 0; r < mat.rows(); r++) {
+			int red = (int)idx.get(r, 0);
+			int green = (int)idx.get(r, 1);
+			int blue = (int)idx.get(r, 2);
+			indices.add((red << 16) | (green << 8) | blue);
+		}
+		idx.release();
+		return indices;
+	}
+	
+	/**
+	 * Create an RGB image with 512x512 tiles. If encodeIndex is true, each pixel value encodes its index in the image 
+	 * (otherwise all pixels are zero).
+	 * Class A covers a single tile, Class B covers four tiles & Class C isn't included in the labels.
+	 */
+	private static ImageData<BufferedImage> createImageData(String name, boolean encodeIndex) {
+		var img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		if (encodeIndex) {
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					img.setRGB(x, y, y * WIDTH + x);
+				}
+			}
+		}
+		var imageData = new ImageData<>(new WrappedBufferedImageServer(name, img));
+		var plane = ImagePlane.getDefaultPlane();
+		List<PathObject> annotations = List.of(
+				PathObjects.createAnnotationObject(ROIs.createRectangleROI(100, 100, 50, 40, plane), CLASS_A),
+				PathObjects.createAnnotationObject(ROIs.createRectangleROI(1000, 490, 60, 50, plane), CLASS_B),
+				PathObjects.createAnnotationObject(ROIs.createRectangleROI(1600, 1100, 50, 50, plane), CLASS_C)
+				);
+		for (var annotation : annotations)
+			imageData.getHierarchy().addPathObject(annotation);
+		return imageData;
+	}
+
+}
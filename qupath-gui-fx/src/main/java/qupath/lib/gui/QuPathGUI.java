@@ -841,6 +841,11 @@ public class QuPathGUI {
 		AbstractPluginRunner.setNumThreadsRequested(PathPrefs.numCommandThreadsProperty().get());
 		PathPrefs.numCommandThreadsProperty().addListener(o -> AbstractPluginRunner.setNumThreadsRequested(PathPrefs.numCommandThreadsProperty().get()));
 		
+		// Persist generated pyramids, if requested
+		updatePyramidCacheDirectory();
+		PathPrefs.persistPyramidCacheProperty().addListener(o -> updatePyramidCacheDirectory());
+		PathPrefs.userPathProperty().addListener(o -> updatePyramidCacheDirectory());
+		
 		// Activate the log at an early stage
 		// TODO: NEED TO TURN ON LOG!
 //		Action actionLog = createAction(GUIActions.SHOW_LOG);
@@ -1210,6 +1215,15 @@ public class QuPathGUI {
 	}
 	
 	
+	/**
+	 * Update the directory used to persist generated pyramids, based upon the current preferences.
+	 */
+	private static void updatePyramidCacheDirectory() {
+		String path = PathPrefs.persistPyramidCacheProperty().get() ? PathPrefs.getPyramidCachePath() : null;
+		ImageServers.setPyramidCacheDirectory(path == null ? null : Paths.get(path));
+	}
+	
+	
 	private void showStartupMessage() {
 		File fileStartup = new File("STARTUP.md");
 		if (!fileStartup.exists()) {
@@ -444,6 +444,7 @@ public class SummaryMeasurementTableCommand {
 		frame.setOnHiding(e -> {
 			hierarchy.removePathObjectListener(listener);
 			viewer.removeViewerListener(tableViewerListener);
+			model.setImageData(null, Collections.emptyList());
 		});
 
 		Scene scene = new Scene(pane, 600, 500);
@@ -27,18 +27,24 @@ import java.awt.Shape;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -50,9 +56,11 @@ import com.google.common.cache.RemovalCause;
 import com.google.common.cache.Weigher;
 
 import qupath.lib.awt.common.AwtTools;
+import qupath.lib.classifiers.pixel.PixelClassificationImageServer;
 import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.GeneratingImageServer;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ServerTools;
 import qupath.lib.regions.RegionRequest;
 
 
@@ -104,11 +112,22 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	
 	private TileRequestManager manager = new TileRequestManager(10);
 	
+	// Order queued tile requests by priority, and then by the order in which they were made
+	private static final Comparator<Runnable> WORKER_COMPARATOR = Comparator
+			.comparing(AbstractImageRegionStore::getWorkerPriority)
+			.thenComparingLong(AbstractImageRegionStore::getWorkerSequenceNumber);
+	
+	private AtomicLong workerCount = new AtomicLong();
+	
 	// Create two threadpools: a larger one for images that need to be fetched (e.g. from disk, cloud storage), and a smaller one
 	// for painting image tiles... the reason being that the high latency of distantly-stored images otherwise risks lowering
-	// repainting performance
-	private ExecutorService pool = Executors.newFixedThreadPool(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), ThreadTools.createThreadFactory("region-store-", false));
-	private ExecutorService poolLocal = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), ThreadTools.createThreadFactory("region-store-local-", false));
+	// repainting performance.
+	// Both use priority queues, so that visible tiles are never stuck behind less important requests.
+	private ThreadPoolExecutor pool = createPriorityPool(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), "region-store-");
+	private ThreadPoolExecutor poolLocal = createPriorityPool(Runtime.getRuntime().availableProcessors(), "region-store-local-");
+	
+	// Prefetchers for each viewer (or other owner) whose motion is being tracked
+	private Map<Object, ViewportPrefetcher<T>> prefetchers = Collections.synchronizedMap(new WeakHashMap<>());
 	
 	
 
@@ -221,6 +240,160 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	}
 	
 	
+	/**
+	 * Notify the store of the region currently visible within a viewer, so that tiles likely to be needed soon 
+	 * can be prefetched at a low priority.
+	 * <p>
+	 * Pan and zoom velocities are estimated from successive calls for the same owner, and used to predict which tiles 
+	 * will enter the viewport next. Pending prefetch requests that are no longer predicted to be needed are cancelled.
+	 * 
+	 * @param owner the viewer (or other object) displaying the region; this is used to track motion over time
+	 * @param server the server being displayed
+	 * @param clipShape the visible region, in the full-resolution image space
+	 * @param downsampleFactor the current downsample factor
+	 * @param zPosition
+	 * @param tPosition
+	 * @see #cancelPrefetch(Object)
+	 */
+	public void updatePrefetch(final Object owner, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
+		if (server == null || clipShape == null || server instanceof GeneratingImageServer)
+			return;
+		prefetchers.computeIfAbsent(owner, o -> new ViewportPrefetcher<>(this))
+			.update(server, clipShape, downsampleFactor, zPosition, tPosition);
+	}
+	
+	/**
+	 * Cancel any pending prefetch requests for the specified owner.
+	 * @param owner
+	 * @see #updatePrefetch(Object, ImageServer, Shape, double, int, int)
+	 */
+	public void cancelPrefetch(final Object owner) {
+		var prefetcher = prefetchers.remove(owner);
+		if (prefetcher != null)
+			prefetcher.cancel();
+	}
+	
+	/**
+	 * Request a tile with {@link TilePriority#PREFETCH}, if it is not already cached or requested.
+	 * @param server
+	 * @param request
+	 * @return the worker fetching the tile, or null if no new request was needed
+	 */
+	synchronized TileWorker<T> requestPrefetchTile(final ImageServer<T> server, final RegionRequest request) {
+		if (pool.isShutdown() || cache.containsKey(request) || waitingMap.containsKey(request))
+			return null;
+		if (server.isEmptyRegion(request))
+			return null;
+		TileWorker<T> worker = createTileWorker(server, request, cache, false);
+		worker.setPriority(TilePriority.PREFETCH);
+		workers.add(worker);
+		waitingMap.put(request, worker);
+		getPool(server).execute(worker);
+		return worker;
+	}
+	
+	/**
+	 * Cancel a prefetch request, if it has not yet started.
+	 * Requests that are already running are allowed to complete, since the tile is likely to arrive soon anyway.
+	 * @param worker
+	 * @return true if the request was cancelled, false otherwise
+	 */
+	boolean cancelPrefetchTile(final TileWorker<T> worker) {
+		// Don't cancel if the tile has since been requested for something more important
+		return cancelQueuedWorker(worker, TilePriority.PREFETCH);
+	}
+	
+	/**
+	 * Cancel a worker, if it has not yet started.
+	 * <p>
+	 * The worker is removed from its queue while holding the store's lock, but only cancelled after the lock is released. 
+	 * This is because cancelling calls {@link #workerComplete(TileWorker)}, which requires the request manager's lock - 
+	 * and the request manager may itself be waiting to cancel workers.
+	 * @param worker
+	 * @param maxPriority if not null, the worker is only cancelled if its priority is not higher than this
+	 * @return true if the worker was removed from its queue and cancelled, false otherwise
+	 */
+	private boolean cancelQueuedWorker(final TileWorker<T> worker, final TilePriority maxPriority) {
+		synchronized (this) {
+			// Lock the worker so that its priority can't be increased while it is being removed
+			synchronized (worker) {
+				if (maxPriority != null && worker.getPriority().isHigherThan(maxPriority))
+					return false;
+				if (!pool.remove(worker) && !poolLocal.remove(worker))
+					return false;
+				waitingMap.remove(worker.getRequest(), worker);
+				workers.remove(worker);
+			}
+		}
+		worker.cancel(false);
+		return true;
+	}
+	
+	/**
+	 * Increase the priority of a worker, moving it forward in its queue if it has not yet started.
+	 * @param worker
+	 * @param priority
+	 */
+	private void increasePriority(final TileWorker<T> worker, final TilePriority priority) {
+		// The priority can only safely be changed while the worker is outside the queue
+		synchronized (worker) {
+			if (!priority.isHigherThan(worker.getPriority()))
+				return;
+			for (var executor : Arrays.asList(pool, poolLocal)) {
+				if (executor.remove(worker)) {
+					logger.trace("Increasing priority of {} from {} to {}", worker.getRequest(), worker.getPriority(), priority);
+					worker.setPriority(priority);
+					if (!executor.isShutdown())
+						executor.execute(worker);
+					return;
+				}
+			}
+			worker.setPriority(priority);
+		}
+	}
+	
+	private ThreadPoolExecutor getPool(final ImageServer<T> server) {
+		return server instanceof GeneratingImageServer ? poolLocal : pool;
+	}
+	
+	/**
+	 * Get the priority for a request for a specific server, given the priority of the reason the tile is needed.
+	 * Tiles that are generated for overlays, or that require a pixel classifier, are never given a higher priority 
+	 * than reading visible tiles from the main image.
+	 * @param server
+	 * @param priority
+	 * @return
+	 */
+	static TilePriority getPriorityForServer(final ImageServer<?> server, final TilePriority priority) {
+		TilePriority serverPriority = TilePriority.VISIBLE;
+		if (server instanceof GeneratingImageServer)
+			serverPriority = TilePriority.OVERLAY;
+		else if (server instanceof PixelClassificationImageServer)
+			serverPriority = TilePriority.CLASSIFIER;
+		return serverPriority.isHigherThan(priority) ? priority : serverPriority;
+	}
+	
+	/**
+	 * Create a fixed-size thread pool that starts queued tile workers in order of priority, and then in the order they were requested.
+	 * @param nThreads
+	 * @param prefix
+	 * @return
+	 */
+	static ThreadPoolExecutor createPriorityPool(final int nThreads, final String prefix) {
+		return new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<>(64, WORKER_COMPARATOR),
+				ThreadTools.createThreadFactory(prefix, false));
+	}
+	
+	private static TilePriority getWorkerPriority(final Runnable runnable) {
+		return runnable instanceof TileWorker<?> ? ((TileWorker<?>)runnable).getPriority() : TilePriority.PREFETCH;
+	}
+	
+	private static long getWorkerSequenceNumber(final Runnable runnable) {
+		return runnable instanceof TileWorker<?> ? ((TileWorker<?>)runnable).getSequenceNumber() : Long.MAX_VALUE;
+	}
+	
+	
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.ImageRegionStore#addTileListener(qupath.lib.images.stores.TileListener)
 	 */
@@ -242,6 +415,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	@Override
 	public void removeTileListener(TileListener<T> listener) {
 		tileListeners.remove(listener);
+		manager.deregisterRequest(listener);
 	}
 	
 
@@ -306,12 +480,23 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	
 	
 	protected T getCachedRegion(final ImageServer<T> server, final RegionRequest request) {
+		return getCachedRegion(server, request, TilePriority.VISIBLE);
+	}
+	
+	/**
+	 * Get a cached tile, or request it with the specified priority if it is not yet available.
+	 * @param server
+	 * @param request
+	 * @param priority
+	 * @return the tile if it is cached, or null otherwise
+	 */
+	T getCachedRegion(final ImageServer<T> server, final RegionRequest request, final TilePriority priority) {
 		if (server == null)
 			return null;
 		// Only need to use server path & region as the hash key, because we are relying on the tile size never changing...
 		// so different requests should never end up wanting the same region
 		// If this gives trouble, the downsample could be added
-		Object result = requestImageTile(server, request, cache, false);
+		Object result = requestImageTile(server, request, cache, false, priority);
 		if (!(result == null || result instanceof TileWorker<?>)) {
 			@SuppressWarnings("unchecked")
 			T img = (T)result;
@@ -346,7 +531,23 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	 * @param ensureTileReturned 
 	 * @return
 	 */
-	protected synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned) {
+	protected Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned) {
+		return requestImageTile(server, request, cache, ensureTileReturned, TilePriority.VISIBLE);
+	}
+	
+	/**
+	 * Request an image tile with a specified priority.
+	 * If the tile has already been requested with a lower priority, its priority will be increased.
+	 * 
+	 * @param server
+	 * @param request
+	 * @param cache
+	 * @param ensureTileReturned if true, the tile is always requested with {@link TilePriority#VISIBLE} since the caller is likely to block
+	 * @param priority
+	 * @return
+	 * @see #requestImageTile(ImageServer, RegionRequest, Map, boolean)
+	 */
+	synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned, final TilePriority priority) {
 		T img = cache.get(request);
 		if (img != null)
 			return img;
@@ -362,20 +563,18 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		}
 		// Start a worker & add to the list
 		TileWorker<T> worker = null;
+		TilePriority requestPriority = ensureTileReturned ? TilePriority.VISIBLE : getPriorityForServer(server, priority);
 		worker = (TileWorker<T>)waitingMap.get(request); // TODO: Consider if this is a bad idea...
-		if (worker == null) {
+		if (worker != null)
+			increasePriority(worker, requestPriority);
+		else {
+			var executor = getPool(server);
+			if (executor.isShutdown())
+				return null;
 			worker = createTileWorker(server, request, cache, ensureTileReturned);
+			worker.setPriority(requestPriority);
 			workers.add(worker);
-			if (server instanceof GeneratingImageServer) {
-				if (poolLocal.isShutdown())
-					return null;
-				poolLocal.execute(worker);
-			}
-			else {
-				if (pool.isShutdown())
-					return null;
-				pool.execute(worker);
-			}
+			executor.execute(worker);
 //			worker.execute();
 //				System.out.println("Event dispatch putting: " + SwingUtilities.isEventDispatchThread());
 			synchronized (waitingMap) {
@@ -541,6 +740,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 			worker.cancel(true);
 		pool.shutdownNow();
 		poolLocal.shutdownNow();
+		prefetchers.clear();
 		cache.clear();
 	}
 	
@@ -558,47 +758,93 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		private int busyThreads = 0;
 		
 		private List<TileWorker<T>> requestedWorkers = new ArrayList<>();
+		
+		// Workers requested on behalf of each listener, so that they can be cancelled if no longer needed
+		private Map<TileListener<T>, Set<TileWorker<T>>> listenerWorkers = new HashMap<>();
 				
 		TileRequestManager(final int nThreads) {
 			this.nThreads = nThreads;
 		}
 		
 		
-		public synchronized void registerRequest(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
+		public void registerRequest(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
 			
-			// Check if the listener has already put in a request - if so, check if it is the same & discard it if not
-			Iterator<TileRequestCollection<T>> iter = list.iterator();
-			while (iter.hasNext()) {
-				TileRequestCollection<T> temp = iter.next();
-				if (temp.tileListener == tileListener) {
-					if (temp.clipShape.equals(clipShape) && temp.zPosition == zPosition && temp.tPosition == tPosition)
-						return;
-					iter.remove();
-					break;
+			List<TileWorker<T>> toCancel;
+			synchronized (this) {
+				// Check if the listener has already put in a request - if so, check if it is the same & discard it if not
+				boolean replaced = false;
+				Iterator<TileRequestCollection<T>> iter = list.iterator();
+				while (iter.hasNext()) {
+					TileRequestCollection<T> temp = iter.next();
+					if (temp.tileListener == tileListener) {
+						if (temp.clipShape.equals(clipShape) && temp.zPosition == zPosition && temp.tPosition == tPosition)
+							return;
+						iter.remove();
+						replaced = true;
+						break;
+					}
 				}
+				
+				// Create a new request
+				TileRequestCollection<T> requestCollection = new TileRequestCollection<>(tileListener, server, clipShape, downsampleFactor, zPosition, tPosition, 10);
+				
+				// Find anything still queued for the previous request that isn't needed for the new one
+				toCancel = replaced ? getWorkersToCancel(tileListener, new HashSet<>(requestCollection.tileRequests)) : Collections.emptyList();
+				
+				list.add(requestCollection);
+				Collections.sort(list, comparator);
+				assignTasks();
 			}
-			
-			// Create a new request
-//			if (clipShape instanceof Rectangle2D.Double)
-//				System.out.println(clipShape);
-//			else
-//				System.out.println(clipShape);
-			TileRequestCollection<T> requestCollection = new TileRequestCollection<>(tileListener, server, clipShape, downsampleFactor, zPosition, tPosition, 10);
-			list.add(requestCollection);
-//			list.sort(comparator);
-			Collections.sort(list, comparator);
-			assignTasks();
-			
+			// Cancel without holding the lock, since cancelling requires the store's lock
+			cancelWorkers(toCancel);
 		}
 		
-		public synchronized void deregisterRequest(final TileListener<T> tileListener) {
-			Iterator<TileRequestCollection<T>> iter = list.iterator();
-			while (iter.hasNext()) {
-				TileRequestCollection<T> temp = iter.next();
-				if (temp.tileListener == tileListener) {
-					iter.remove();
+		public void deregisterRequest(final TileListener<T> tileListener) {
+			List<TileWorker<T>> toCancel;
+			synchronized (this) {
+				Iterator<TileRequestCollection<T>> iter = list.iterator();
+				while (iter.hasNext()) {
+					TileRequestCollection<T> temp = iter.next();
+					if (temp.tileListener == tileListener) {
+						iter.remove();
+					}
 				}
+				toCancel = getWorkersToCancel(tileListener, Collections.emptySet());
 			}
+			cancelWorkers(toCancel);
+		}
+		
+		/**
+		 * Get any workers requested on behalf of a listener, unless their regions are still required.
+		 * @param tileListener
+		 * @param stillRequired
+		 * @return
+		 */
+		private List<TileWorker<T>> getWorkersToCancel(final TileListener<T> tileListener, final Set<RegionRequest> stillRequired) {
+			var set = listenerWorkers.get(tileListener);
+			if (set == null)
+				return Collections.emptyList();
+			List<TileWorker<T>> toCancel = new ArrayList<>();
+			for (var worker : set) {
+				if (!stillRequired.contains(worker.getRequest()))
+					toCancel.add(worker);
+			}
+			return toCancel;
+		}
+		
+		/**
+		 * Cancel any of the specified workers that are still queued.
+		 * This should not be called while holding the request manager's lock.
+		 * @param toCancel
+		 */
+		private void cancelWorkers(final Collection<TileWorker<T>> toCancel) {
+			int n = 0;
+			for (var worker : toCancel) {
+				if (cancelQueuedWorker(worker, null))
+					n++;
+			}
+			if (n > 0)
+				logger.trace("Cancelled {} queued tile requests", n);
 		}
 		
 		
@@ -618,23 +864,27 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 					continue;
 				}
 				RegionRequest request = temp.nextTileRequest();
-				if (cache.containsKey(request) || waitingMap.containsKey(request))
+				if (cache.containsKey(request))
+					continue;
+				TilePriority priority = getPriorityForServer(temp.server, temp.getPriority(request));
+				var existingWorker = waitingMap.get(request);
+				if (existingWorker != null) {
+					increasePriority(existingWorker, priority);
 					continue;
+				}
 				
 				TileWorker<T> worker = createTileWorker(temp.server, request, cache, false);
+				worker.setPriority(priority);
 				logger.trace("Adding {} to waiting map for thread {}", request, Thread.currentThread().getId());
 				synchronized (waitingMap) {
 					waitingMap.put(request, worker);
 				}
-				if (temp.server instanceof GeneratingImageServer) {
-					if (!poolLocal.isShutdown())
-						poolLocal.execute(worker);
-				} else {
-					if (!pool.isShutdown())
-						pool.execute(worker);
-				}
+				var executor = getPool(temp.server);
+				if (!executor.isShutdown())
+					executor.execute(worker);
 //				worker.execute();
 				requestedWorkers.add(worker);
+				listenerWorkers.computeIfAbsent(temp.tileListener, l -> new HashSet<>()).add(worker);
 				busyThreads++;
 			}
 //			list.sort(comparator);
@@ -645,6 +895,12 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		synchronized void taskCompleted(final TileWorker<T> worker) {
 			if (!requestedWorkers.remove(worker))
 				return;
+			var iterSets = listenerWorkers.values().iterator();
+			while (iterSets.hasNext()) {
+				var set = iterSets.next();
+				if (set.remove(worker) && set.isEmpty())
+					iterSets.remove();
+			}
 			busyThreads--;
 			logger.trace("Number of busy threads: " + busyThreads);
 //			list.sort(comparator);
@@ -726,6 +982,21 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 			return !tileRequests.isEmpty();
 		}
 		
+		/**
+		 * Get the priority for a request in this collection: tiles from other z-slices are only needed 
+		 * if the user navigates there, while tiles at a lower resolution are only needed until the 
+		 * current resolution is available.
+		 * @param request
+		 * @return
+		 */
+		TilePriority getPriority(final RegionRequest request) {
+			if (request.getZ() != zPosition || request.getT() != tPosition)
+				return TilePriority.PREFETCH;
+			if (server != null && request.getDownsample() > ServerTools.getPreferredDownsampleFactor(server, downsampleFactor) * 1.01)
+				return TilePriority.LOWER_RESOLUTION;
+			return TilePriority.VISIBLE;
+		}
+		
 		public RegionRequest nextTileRequest() {
 			int ind = tileRequests.size() - 1;
 			assert ind >= 0; // TODO: Throw RunTimeException?
@@ -770,6 +1041,8 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		
 		private final Map<RegionRequest, T> cache;
 		private final RegionRequest request;
+		private final long sequenceNumber = workerCount.incrementAndGet();
+		private volatile TilePriority priority = TilePriority.VISIBLE;
 		
 		DefaultTileWorker(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned) {
 			super(new Callable<T>() {
@@ -809,6 +1082,21 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		public Map<RegionRequest, T> getRequestedCache() {
 	    	return cache;
 	    }
+	    
+	    @Override
+		public TilePriority getPriority() {
+	    	return priority;
+	    }
+	    
+	    @Override
+		public void setPriority(TilePriority priority) {
+	    	this.priority = priority;
+	    }
+	    
+	    @Override
+		public long getSequenceNumber() {
+	    	return sequenceNumber;
+	    }
 
 	    
 	    @Override
@@ -175,11 +175,11 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	@Override
 	public void paintRegion(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay) {
 		registerRequest(null, server, clipShapeVisible, downsampleFactor, zPosition, tPosition);
-		paintRegionInternal(server, g, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay);
+		paintRegionInternal(server, g, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay, TilePriority.VISIBLE);
 	}
 
 
-	private void paintRegionInternal(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay) {
+	private void paintRegionInternal(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay, TilePriority priority) {
 
 //		// We don't need it... but try to request the thumbnail to keep it present in the cache, if it is there
 //		cache.get(getThumbnailRequest(server, zPosition, tPosition));
@@ -218,7 +218,7 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 				// Get the next downsample level if we can
 				if (nextDownsample > 0)
 //					paintRegion(server, g, clipShapeVisible, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay);
-					paintRegionInternal(server, g, missingBounds, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay);
+					paintRegionInternal(server, g, missingBounds, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay, TilePriority.LOWER_RESOLUTION);
 				else if (imgThumbnail != null) {
 					// The best we can do is paint the thumbnail
 					if (imageDisplay != null) {
@@ -246,7 +246,7 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 		BufferedImage imgTemp = null;
 		for (RegionRequest request : requests) {
 			// Load the image
-			BufferedImage img = getCachedRegion(server, request);
+			BufferedImage img = getCachedRegion(server, request, priority);
 
 			// If there is no image tile, try to get a lower-resolution version to draw -
 			// this can actually paint over previously-available regions, but they will be repainted again when this region's request comes through
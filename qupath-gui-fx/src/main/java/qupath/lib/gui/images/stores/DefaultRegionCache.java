@@ -29,6 +29,8 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
+import qupath.lib.metrics.MetricCounter;
+import qupath.lib.metrics.Metrics;
 import qupath.lib.regions.RegionRequest;
 
 /**
@@ -43,6 +45,9 @@ import qupath.lib.regions.RegionRequest;
  */
 class DefaultRegionCache<T> implements Map<RegionRequest, T> {
 
+	private static final MetricCounter evictions = Metrics.counter("tiles.cache.evictions");
+	private static final MetricCounter evictedBytes = Metrics.counter("tiles.cache.evictedBytes");
+
 	private Map<RegionRequest, T> map;
 	private final SizeEstimator<T> sizeEstimator;
 	private int maxCapacity;
@@ -63,7 +68,10 @@ class DefaultRegionCache<T> implements Map<RegionRequest, T> {
 				// Remove if the map is full (in terms of numbers), or occupying too much memory
 				boolean doRemove = nonNullSize >= maxCapacity || memoryBytes > maxMemoryBytes;
 				if (doRemove) {
-					memoryBytes = memoryBytes - sizeEstimator.getApproxImageSize(eldest.getValue());
+					long size = sizeEstimator.getApproxImageSize(eldest.getValue());
+					memoryBytes = memoryBytes - size;
+					evictions.increment();
+					evictedBytes.add(size);
 					if (eldest.getValue() != null)
 						nonNullSize--;
 //					if (getApproxImageSize(eldest.getValue()) > 10784000)
@@ -0,0 +1,67 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+/**
+ * Priority levels for tile requests, in descending order of importance.
+ * <p>
+ * When tile requests are queued, those with a higher priority are always started first; 
+ * requests with the same priority are started in the order in which they were made.
+ */
+enum TilePriority {
+	
+	/**
+	 * Tiles that are visible at the current resolution, or that are otherwise needed urgently 
+	 * (e.g. because a thread is blocked waiting for them).
+	 */
+	VISIBLE,
+	
+	/**
+	 * Visible tiles at a lower resolution, used while waiting for the current resolution.
+	 */
+	LOWER_RESOLUTION,
+	
+	/**
+	 * Tiles for overlays drawn on top of the image.
+	 */
+	OVERLAY,
+	
+	/**
+	 * Tiles that require a pixel classifier to be applied.
+	 */
+	CLASSIFIER,
+	
+	/**
+	 * Tiles that are not yet visible, but are predicted to be needed soon.
+	 */
+	PREFETCH;
+
+	/**
+	 * Returns true if this priority is higher than (i.e. should be started before) another priority.
+	 * @param priority
+	 * @return
+	 */
+	boolean isHigherThan(TilePriority priority) {
+		return compareTo(priority) < 0;
+	}
+	
+}
@@ -51,4 +51,26 @@ interface TileWorker<T> extends RunnableFuture<T> {
 	 */
 	public Map<RegionRequest, T> getRequestedCache();
 	
+	/**
+	 * The priority with which this worker should be scheduled.
+	 * 
+	 * @return
+	 */
+	public TilePriority getPriority();
+	
+	/**
+	 * Set the priority with which this worker should be scheduled.
+	 * This should not be called while the worker is queued for execution, since the queue will not be reordered.
+	 * 
+	 * @param priority
+	 */
+	public void setPriority(TilePriority priority);
+	
+	/**
+	 * A number that increases with each worker created, used to order workers with the same priority.
+	 * 
+	 * @return
+	 */
+	public long getSequenceNumber();
+	
 }
\ No newline at end of file
@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ServerTools;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Predict where a viewer is moving, based upon recent changes to its visible region,
+ * and request the tiles that are likely to be needed before they become visible.
+ * <p>
+ * Pan and zoom velocities are estimated from successive calls to {@link #update(ImageServer, Shape, double, int, int)},
+ * and extrapolated a short time into the future. Any outstanding prefetch requests that are no longer
+ * consistent with the latest prediction are cancelled immediately.
+ *
+ * @param <T>
+ */
+class ViewportPrefetcher<T> {
+
+	private static final Logger logger = LoggerFactory.getLogger(ViewportPrefetcher.class);
+
+	/**
+	 * How far into the future to extrapolate the current motion.
+	 */
+	private static final long LOOKAHEAD_MILLIS = 300L;
+
+	/**
+	 * If there is a longer gap than this between updates, assume the viewer stopped moving in between.
+	 */
+	static final long MAX_UPDATE_INTERVAL_MILLIS = 250L;
+
+	/**
+	 * Weight given to the most recent velocity estimate.
+	 */
+	private static final double SMOOTHING = 0.5;
+
+	/**
+	 * Minimum predicted displacement, as a proportion of the viewport size, before prefetching for panning.
+	 */
+	private static final double MIN_PAN_PROPORTION = 0.05;
+
+	/**
+	 * Minimum predicted change in downsample before prefetching for zooming.
+	 */
+	private static final double MIN_ZOOM_RATIO = 1.05;
+
+	/**
+	 * Maximum number of tiles to request for any single prediction.
+	 */
+	static final int MAX_PREFETCH_TILES = 64;
+
+	private final AbstractImageRegionStore<T> store;
+	private final LongSupplier clock;
+
+	private String serverPath;
+	private int zPosition, tPosition;
+
+	private long lastTimestamp = 0L;
+	private double lastX, lastY, lastDownsample;
+
+	// Velocities, in full-resolution pixels per millisecond & log downsample per millisecond
+	private double vx, vy, vZoom;
+
+	private Map<RegionRequest, TileWorker<T>> pending = new HashMap<>();
+
+	ViewportPrefetcher(final AbstractImageRegionStore<T> store) {
+		this(store, System::currentTimeMillis);
+	}
+
+	/**
+	 * Create a prefetcher using a specific clock to timestamp updates.
+	 * @param store the store used to request and cancel tiles
+	 * @param clock supplier of the current time, in milliseconds
+	 */
+	ViewportPrefetcher(final AbstractImageRegionStore<T> store, final LongSupplier clock) {
+		this.store = store;
+		this.clock = clock;
+	}
+
+	/**
+	 * Update the prefetcher with the current visible region.
+	 * @param server the server being viewed
+	 * @param clipShape the visible region, in full-resolution image coordinates
+	 * @param downsample the current downsample
+	 * @param zPosition
+	 * @param tPosition
+	 */
+	synchronized void update(final ImageServer<T> server, final Shape clipShape, final double downsample, final int zPosition, final int tPosition) {
+		long timestamp = clock.getAsLong();
+		var bounds = clipShape.getBounds2D();
+		double x = bounds.getCenterX();
+		double y = bounds.getCenterY();
+
+		long dt = timestamp - lastTimestamp;
+		if (!server.getPath().equals(serverPath) || this.zPosition != zPosition || this.tPosition != tPosition || dt > MAX_UPDATE_INTERVAL_MILLIS) {
+			vx = 0;
+			vy = 0;
+			vZoom = 0;
+		} else if (dt <= 0) {
+			// Multiple repaints in quick succession - no new velocity information
+			return;
+		} else {
+			vx = smooth(vx, (x - lastX) / dt);
+			vy = smooth(vy, (y - lastY) / dt);
+			vZoom = smooth(vZoom, Math.log(downsample / lastDownsample) / dt);
+		}
+		serverPath = server.getPath();
+		this.zPosition = zPosition;
+		this.tPosition = tPosition;
+		lastTimestamp = timestamp;
+		lastX = x;
+		lastY = y;
+		lastDownsample = downsample;
+
+		var predicted = predictTiles(server, bounds, downsample);
+
+		// Cancel anything that is no longer predicted to be needed
+		Iterator<Map.Entry<RegionRequest, TileWorker<T>>> iter = pending.entrySet().iterator();
+		while (iter.hasNext()) {
+			var entry = iter.next();
+			var worker = entry.getValue();
+			if (worker.isDone())
+				iter.remove();
+			else if (!predicted.contains(entry.getKey())) {
+				store.cancelPrefetchTile(worker);
+				iter.remove();
+			}
+		}
+
+		// Request anything new
+		for (var request : predicted) {
+			if (pending.containsKey(request))
+				continue;
+			var worker = store.requestPrefetchTile(server, request);
+			if (worker != null)
+				pending.put(request, worker);
+		}
+		if (!predicted.isEmpty())
+			logger.trace("Prefetching {} tiles (velocity {}, {}, zoom {})", pending.size(), vx, vy, vZoom);
+	}
+
+	/**
+	 * Cancel all outstanding prefetch requests, and reset the motion estimate.
+	 */
+	synchronized void cancel() {
+		for (var worker : pending.values()) {
+			if (!worker.isDone())
+				store.cancelPrefetchTile(worker);
+		}
+		pending.clear();
+		serverPath = null;
+		vx = 0;
+		vy = 0;
+		vZoom = 0;
+	}
+
+	/**
+	 * Get the current estimate of the horizontal velocity, in full-resolution pixels per millisecond.
+	 * @return
+	 */
+	synchronized double getVelocityX() {
+		return vx;
+	}
+
+	/**
+	 * Get the current estimate of the vertical velocity, in full-resolution pixels per millisecond.
+	 * @return
+	 */
+	synchronized double getVelocityY() {
+		return vy;
+	}
+
+	/**
+	 * Get the current estimate of the zoom velocity, as the change in log downsample per millisecond.
+	 * @return
+	 */
+	synchronized double getVelocityZoom() {
+		return vZoom;
+	}
+
+	private static double smooth(double previous, double current) {
+		return previous * (1 - SMOOTHING) + current * SMOOTHING;
+	}
+
+	/**
+	 * Get the tiles that are predicted to be needed soon, but are not needed for the current view.
+	 * @param server
+	 * @param bounds
+	 * @param downsample
+	 * @return
+	 */
+	private Set<RegionRequest> predictTiles(final ImageServer<T> server, final Rectangle2D bounds, final double downsample) {
+		double dx = vx * LOOKAHEAD_MILLIS;
+		double dy = vy * LOOKAHEAD_MILLIS;
+		double zoom = Math.exp(vZoom * LOOKAHEAD_MILLIS);
+
+		boolean isPanning = Math.hypot(dx, dy) > MIN_PAN_PROPORTION * Math.max(bounds.getWidth(), bounds.getHeight());
+		boolean isZooming = zoom > MIN_ZOOM_RATIO || zoom < 1.0 / MIN_ZOOM_RATIO;
+		if (!isPanning && !isZooming)
+			return Set.of();
+
+		if (!isPanning) {
+			dx = 0;
+			dy = 0;
+		}
+		if (!isZooming)
+			zoom = 1.0;
+
+		double downsamplePredicted = Math.max(downsample * zoom, server.getDownsampleForResolution(0));
+		double w = bounds.getWidth() * zoom;
+		double h = bounds.getHeight() * zoom;
+		var boundsPredicted = new Rectangle2D.Double(
+				bounds.getCenterX() + dx - w / 2.0,
+				bounds.getCenterY() + dy - h / 2.0,
+				w, h);
+
+		var requests = new LinkedHashSet<RegionRequest>(
+				ImageRegionStoreHelpers.getTilesToRequest(server, boundsPredicted, downsamplePredicted, zPosition, tPosition, null));
+
+		// When zooming, the next pyramid level in the direction of travel is likely to be needed
+		if (isZooming) {
+			int level = ServerTools.getPreferredResolutionLevel(server, downsamplePredicted);
+			int nextLevel = zoom > 1 ? level + 1 : level - 1;
+			if (nextLevel >= 0 && nextLevel < server.nResolutions())
+				requests.addAll(ImageRegionStoreHelpers.getTilesToRequest(server, boundsPredicted, server.getDownsampleForResolution(nextLevel), zPosition, tPosition, null));
+		}
+
+		// Tiles for the current view have already been requested at a higher priority
+		List<RegionRequest> visible = ImageRegionStoreHelpers.getTilesToRequest(server, bounds, downsample, zPosition, tPosition, null);
+		requests.removeAll(new HashSet<>(visible));
+
+		if (requests.size() <= MAX_PREFETCH_TILES)
+			return requests;
+		var limited = new LinkedHashSet<RegionRequest>();
+		for (var request : requests) {
+			limited.add(request);
+			if (limited.size() == MAX_PREFETCH_TILES)
+				break;
+		}
+		return limited;
+	}
+
+}
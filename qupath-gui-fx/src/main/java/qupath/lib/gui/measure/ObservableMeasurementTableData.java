@@ -24,31 +24,32 @@
 package qupath.lib.gui.measure;
 
 import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.application.Platform;
 import javafx.beans.binding.Binding;
-import javafx.beans.binding.Bindings;
 import javafx.beans.binding.DoubleBinding;
-import javafx.beans.binding.IntegerBinding;
 import javafx.beans.binding.StringBinding;
 import javafx.beans.property.ReadOnlyListWrapper;
-import javafx.beans.value.ObservableDoubleValue;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -72,6 +73,9 @@ import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassFactory;
 import qupath.lib.objects.classes.PathClassTools;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent.HierarchyEventType;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.roi.PolygonROI;
 import qupath.lib.roi.ROIs;
@@ -102,13 +106,32 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	private DerivedMeasurementManager manager;
 	private Map<String, MeasurementBuilder<?>> builderMap = new LinkedHashMap<>();
 	
+	// Cached values for entire columns, which are computed on demand and discarded when the hierarchy changes
+	private volatile ColumnCache cache;
+	
+	private PathObjectHierarchy hierarchy;
+	private final CacheInvalidationListener hierarchyListener = new CacheInvalidationListener(this);
+	
 	/**
 	 * Set the {@link ImageData} and a collection of objects to measure.
+	 * <p>
+	 * The table data listens for changes in the hierarchy, so that cached values can be discarded. 
+	 * Call {@code setImageData(null, Collections.emptyList())} when the table data is no longer needed 
+	 * to stop listening.
+	 * 
 	 * @param imageData the {@link ImageData}, required to determine many dynamic measurements
 	 * @param pathObjects the objects to measure ('rows' in the table)
 	 */
 	public synchronized void setImageData(final ImageData<?> imageData, final Collection<? extends PathObject> pathObjects) {
 		this.imageData = imageData;
+		var hierarchy = imageData == null ? null : imageData.getHierarchy();
+		if (this.hierarchy != hierarchy) {
+			if (this.hierarchy != null)
+				this.hierarchy.removePathObjectListener(hierarchyListener);
+			this.hierarchy = hierarchy;
+			if (hierarchy != null)
+				hierarchy.addPathObjectListener(hierarchyListener);
+		}
 		list.setAll(pathObjects);
 		// Cannot force this to run in application thread as this can result in unexpected behavior if called from a different thread
 		if (!Platform.isFxApplicationThread())
@@ -133,6 +156,7 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 //		PathPrefs.setAllredMinPercentagePositive(0);
 		
 		builderMap.clear();
+		cache = null;
 		
 		// Add the image name
 		builderMap.put("Image", new ImageNameMeasurementBuilder(imageData));
@@ -335,11 +359,58 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	 * Refresh the measurement values.
 	 */
 	public void refreshEntries() {
-		// Clear the cached map to force updates
-		if (manager != null)
+		invalidateCache(true);
+	}
+	
+	/**
+	 * Discard cached values.
+	 * @param includeCounts if true, also discard cached counts of classified detections; 
+	 *                      these need to be recomputed only if objects or classifications have changed
+	 */
+	private void invalidateCache(boolean includeCounts) {
+		cache = null;
+		var manager = this.manager;
+		if (includeCounts && manager != null)
 			manager.map.clear();
 	}
 	
+	private ColumnCache getCache() {
+		var cache = this.cache;
+		if (cache == null) {
+			synchronized (this) {
+				cache = this.cache;
+				if (cache == null) {
+					cache = new ColumnCache(list);
+					this.cache = cache;
+				}
+			}
+		}
+		return cache;
+	}
+	
+	/**
+	 * Get the values of a numeric column for all objects in the backing list, computing these if necessary.
+	 */
+	private double[] getColumnValues(ColumnCache cache, String column, NumericMeasurementBuilder builder) {
+		double[] values = cache.columns.get(column);
+		if (values == null) {
+			var items = cache.items;
+			double[] newValues = new double[items.length];
+			IntStream.range(0, items.length).parallel().forEach(i -> newValues[i] = computeNumericValue(items[i], builder));
+			values = cache.columns.putIfAbsent(column, newValues);
+			if (values == null)
+				values = newValues;
+		}
+		return values;
+	}
+	
+	private static double computeNumericValue(PathObject pathObject, NumericMeasurementBuilder builder) {
+		// Don't derive a measurement for a core marked as missing
+		if (pathObject instanceof TMACoreObject && ((TMACoreObject)pathObject).isMissing())
+			return Double.NaN;
+		return builder.computeValue(pathObject);
+	}
+	
 	/**
 	 * Create a specific numeric measurement.
 	 * <p>
@@ -355,9 +426,15 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		MeasurementBuilder<?> builder = builderMap.get(column);
 		if (builder == null)
 			return new ObservableMeasurement(pathObject, column);
-		else if (builder instanceof NumericMeasurementBuilder)
-			return ((NumericMeasurementBuilder)builder).createMeasurement(pathObject);
-		else
+		else if (builder instanceof NumericMeasurementBuilder) {
+			// Use cached values where possible, since this may be called very often (e.g. when sorting a table)
+			return new DoubleBinding() {
+				@Override
+				protected double computeValue() {
+					return getNumericValue(pathObject, column);
+				}
+			};
+		} else
 			throw new IllegalArgumentException(column + " does not represent a numeric measurement!");
 	}
 	
@@ -408,9 +485,22 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	@Override
 	public double[] getDoubleValues(final String column) {
 		double[] values = new double[filterList.size()];
-		if (builderMap.containsKey(column)) {
+		MeasurementBuilder<?> builder = builderMap.get(column);
+		if (builder instanceof NumericMeasurementBuilder && !((NumericMeasurementBuilder)builder).isCacheable()) {
 			for (int i = 0; i < filterList.size(); i++)
-				values[i] = getNumericValue(filterList.get(i), column);
+				values[i] = computeNumericValue(filterList.get(i), (NumericMeasurementBuilder)builder);
+			return values;
+		} else if (builder instanceof NumericMeasurementBuilder) {
+			var cache = getCache();
+			double[] allValues = getColumnValues(cache, column, (NumericMeasurementBuilder)builder);
+			for (int i = 0; i < filterList.size(); i++) {
+				var pathObject = filterList.get(i);
+				Integer row = cache.rows.get(pathObject);
+				values[i] = row == null ? computeNumericValue(pathObject, (NumericMeasurementBuilder)builder) : allValues[row];
+			}
+			return values;
+		} else if (builder != null) {
+			Arrays.fill(values, Double.NaN);
 			return values;
 		}
 		// Good news! We just need a regular measurement
@@ -421,20 +511,71 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	
 	@Override
 	public double getNumericValue(final PathObject pathObject, final String column) {
-		if (builderMap.containsKey(column)) {
-			// Don't derive a measurement for a core marked as missing
-			if (pathObject instanceof TMACoreObject && ((TMACoreObject)pathObject).isMissing())
-				return Double.NaN;
-			
-			MeasurementBuilder<?> builder = builderMap.get(column);
-			if (builder instanceof NumericMeasurementBuilder)
-				return ((NumericMeasurementBuilder)builder).createMeasurement(pathObject).getValue().doubleValue();
-			else
-				return Double.NaN;
-		}
+		MeasurementBuilder<?> builder = builderMap.get(column);
+		if (builder instanceof NumericMeasurementBuilder) {
+			if (!((NumericMeasurementBuilder)builder).isCacheable())
+				return computeNumericValue(pathObject, (NumericMeasurementBuilder)builder);
+			var cache = getCache();
+			Integer row = cache.rows.get(pathObject);
+			// Objects not in the table aren't cached
+			if (row == null)
+				return computeNumericValue(pathObject, (NumericMeasurementBuilder)builder);
+			return getColumnValues(cache, column, (NumericMeasurementBuilder)builder)[row];
+		} else if (builder != null)
+			return Double.NaN;
 		return pathObject.getMeasurementList().getMeasurementValue(column);
 	}
 	
+	
+	/**
+	 * Cached numeric values for the objects in the table, stored in primitive arrays for each column.
+	 * A new cache is created whenever the values may have changed.
+	 */
+	private static class ColumnCache {
+		
+		private final PathObject[] items;
+		private final Map<PathObject, Integer> rows;
+		private final Map<String, double[]> columns = new ConcurrentHashMap<>();
+		
+		ColumnCache(List<PathObject> list) {
+			items = list.toArray(PathObject[]::new);
+			rows = new IdentityHashMap<>(items.length);
+			for (int i = 0; i < items.length; i++)
+				rows.put(items[i], i);
+		}
+		
+	}
+	
+	/**
+	 * Listener to invalidate cached values when the hierarchy changes.
+	 * This holds only a weak reference to the table data, so that the hierarchy does not prevent it being garbage collected.
+	 */
+	private static class CacheInvalidationListener implements PathObjectHierarchyListener {
+		
+		private final WeakReference<ObservableMeasurementTableData> ref;
+		
+		CacheInvalidationListener(ObservableMeasurementTableData data) {
+			this.ref = new WeakReference<>(data);
+		}
+
+		@Override
+		public void hierarchyChanged(PathObjectHierarchyEvent event) {
+			var data = ref.get();
+			if (data == null) {
+				// The table data has been garbage collected, so stop listening. 
+				// This can't be done immediately, because the hierarchy is currently iterating through its listeners.
+				var hierarchy = event.getHierarchy();
+				if (hierarchy != null)
+					ForkJoinPool.commonPool().execute(() -> hierarchy.removePathObjectListener(this));
+				return;
+			}
+			if (event.isChanging())
+				return;
+			data.invalidateCache(event.getEventType() != HierarchyEventType.CHANGE_MEASUREMENTS);
+		}
+		
+	}
+	
 	@Override
 	public ObservableList<PathObject> getItems() {
 		return filterList;
@@ -492,31 +633,6 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	
 	
 	
-	class ObjectTypeCountMeasurement extends IntegerBinding {
-		
-		private Class<? extends PathObject> cls;
-		private PathObject pathObject;
-		
-		public ObjectTypeCountMeasurement(final PathObject pathObject, final Class<? extends PathObject> cls) {
-			this.pathObject = pathObject;
-			this.cls = cls;
-		}
-		
-		@Override
-		protected int computeValue() {
-			Collection<PathObject> pathObjects;
-			if (pathObject.isRootObject())
-				pathObjects = imageData.getHierarchy().getObjects(null, cls);
-			else
-				pathObjects = imageData.getHierarchy().getObjectsForROI(cls, pathObject.getROI());
-			pathObjects.remove(pathObject);
-			return pathObjects.size();
-//			return PathObjectTools.countChildren(pathObject, cls, true);
-		}
-		
-	}
-	
-	
 	class ObjectTypeCountMeasurementBuilder extends NumericMeasurementBuilder {
 		
 		private Class<? extends PathObject> cls;
@@ -531,8 +647,14 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		}
 		
 		@Override
-		public Binding<Number> createMeasurement(final PathObject pathObject) {
-			return new ObjectTypeCountMeasurement(pathObject, cls);
+		protected double getMeasurementValue(final PathObject pathObject) {
+			Collection<PathObject> pathObjects;
+			if (pathObject.isRootObject())
+				pathObjects = imageData.getHierarchy().getObjects(null, cls);
+			else
+				pathObjects = imageData.getHierarchy().getObjectsForROI(cls, pathObject.getROI());
+			pathObjects.remove(pathObject);
+			return pathObjects.size();
 		}
 		
 		@Override
@@ -554,8 +676,9 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		
 		private List<MeasurementBuilder<?>> builders = new ArrayList<>();
 		
-		// Map to store cached counts, will be reset when the hierarchy changes (in any way)
-		private Map<PathObject, DetectionPathClassCounts> map = new WeakHashMap<>();
+		// Map to store cached counts, will be reset when the hierarchy changes (other than measurements alone)
+		// This needs to be thread-safe, since values for different objects may be computed in parallel
+		private Map<PathObject, DetectionPathClassCounts> map = new ConcurrentHashMap<>();
 		
 		private boolean containsAnnotations;
 		
@@ -659,210 +782,11 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 				updateAvailableMeasurements();
 			return builders;
 		}
-
-		
-		
-		class ClassCountMeasurement extends IntegerBinding {
-			
-			private PathObject pathObject;
-			private PathClass pathClass;
-			private boolean baseClassification;
-			
-			public ClassCountMeasurement(final PathObject pathObject, final PathClass pathClass, final boolean baseClassification) {
-				this.pathObject = pathObject;
-				this.pathClass = pathClass;
-				this.baseClassification = baseClassification;
-			}
-
-			@Override
-			protected int computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				if (baseClassification)
-					return counts.getCountForAncestor(pathClass);
-				else
-					return counts.getDirectCount(pathClass);
-			}
-			
-		}
-		
-		
-		class ClassDensityMeasurementPerMM extends DoubleBinding {
-			
-			private ImageServer<?> server;
-			private PathObject pathObject;
-			private PathClass pathClass;
-			
-			public ClassDensityMeasurementPerMM(final ImageServer<?> server, final PathObject pathObject, final PathClass pathClass) {
-				this.server = server;
-				this.pathObject = pathObject;
-				this.pathClass = pathClass;
-			}
-
-			@Override
-			protected double computeValue() {
-				// If we have a TMA core, look for a single annotation inside
-				// If we don't have that, we can't return counts since it's ambiguous where the 
-				// area should be coming from
-				PathObject pathObjectTemp = pathObject;
-				if (pathObject instanceof TMACoreObject) {
-					var children = pathObject.getChildObjectsAsArray();
-					if (children.length != 1)
-						return Double.NaN;
-					pathObjectTemp = children[0];
-				}
-				// We need an annotation to get a meaningful area
-				if (pathObjectTemp == null || !(pathObjectTemp.isAnnotation() || pathObjectTemp.isRootObject()))
-					return Double.NaN;
-				
-				DetectionPathClassCounts counts = map.get(pathObjectTemp);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObjectTemp);
-					map.put(pathObject, counts);
-				}
-				int n = counts.getCountForAncestor(pathClass);
-				ROI roi = pathObjectTemp.getROI();
-				// For the root, we can measure density only for 2D images of a single time-point
-				if (pathObjectTemp.isRootObject() && server.nZSlices() == 1 && server.nTimepoints() == 1)
-					roi = ROIs.createRectangleROI(0, 0, server.getWidth(), server.getHeight(), ImagePlane.getDefaultPlane());
-				
-				if (roi != null && roi.isArea()) {
-					double pixelWidth = 1;
-					double pixelHeight = 1;
-					PixelCalibration cal = server == null ? null : server.getPixelCalibration();
-					if (cal != null && cal.hasPixelSizeMicrons()) {
-						pixelWidth = cal.getPixelWidthMicrons() / 1000;
-						pixelHeight = cal.getPixelHeightMicrons() / 1000;
-					}
-					return n / roi.getScaledArea(pixelWidth, pixelHeight);
-				}
-				return Double.NaN;
-			}
-			
-		}
-		
-		
-		class HScore extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			
-			public HScore(final PathObject pathObject, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-			}
-
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getHScore(pathClasses);
-			}
-			
-		}
-		
 		
-		class AllredIntensityScore extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			private ObservableDoubleValue minPositivePercentage;
-			
-			public AllredIntensityScore(final PathObject pathObject, final ObservableDoubleValue minPositivePercentage, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-				this.minPositivePercentage = minPositivePercentage;
-			}
-
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getAllredIntensity(minPositivePercentage.doubleValue() / 100, pathClasses);
-			}
-			
+		private DetectionPathClassCounts getCounts(final PathObject pathObject) {
+			return map.computeIfAbsent(pathObject, p -> new DetectionPathClassCounts(imageData.getHierarchy(), p));
 		}
-		
-		
-		class AllredProportionScore extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			private ObservableDoubleValue minPositivePercentage;
-			
-			public AllredProportionScore(final PathObject pathObject, final ObservableDoubleValue minPositivePercentage, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-				this.minPositivePercentage = minPositivePercentage;
-			}
 
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getAllredProportion(minPositivePercentage.doubleValue() / 100, pathClasses);
-			}
-			
-		}
-		
-		class AllredScore extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			private ObservableDoubleValue minPositivePercentage;
-			
-			public AllredScore(final PathObject pathObject, final ObservableDoubleValue minPositivePercentage, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-				this.minPositivePercentage = minPositivePercentage;
-			}
-
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getAllredScore(minPositivePercentage.doubleValue() / 100, pathClasses);
-			}
-			
-		}
-		
-		
-		class PositivePercentage extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			
-			public PositivePercentage(final PathObject pathObject, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-			}
-
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getPositivePercentage(pathClasses);
-			}
-			
-		}
 		
 		
 		class ClassCountMeasurementBuilder extends NumericMeasurementBuilder {
@@ -891,8 +815,12 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			}
 			
 			@Override
-			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new ClassCountMeasurement(pathObject, pathClass, baseClassification);
+			protected double getMeasurementValue(final PathObject pathObject) {
+				DetectionPathClassCounts counts = getCounts(pathObject);
+				if (baseClassification)
+					return counts.getCountForAncestor(pathClass);
+				else
+					return counts.getDirectCount(pathClass);
 			}
 			
 			@Override
@@ -923,11 +851,42 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			}
 			
 			@Override
-			public Binding<Number> createMeasurement(final PathObject pathObject) {
+			protected double getMeasurementValue(final PathObject pathObject) {
 				// Only return density measurements for annotations
-				if (pathObject.isAnnotation() || (pathObject.isTMACore() && pathObject.nChildObjects() == 1))
-					return new ClassDensityMeasurementPerMM(server, pathObject, pathClass);
-				return Bindings.createDoubleBinding(() -> Double.NaN);
+				if (!(pathObject.isAnnotation() || (pathObject.isTMACore() && pathObject.nChildObjects() == 1)))
+					return Double.NaN;
+				
+				// If we have a TMA core, look for a single annotation inside
+				// If we don't have that, we can't return counts since it's ambiguous where the 
+				// area should be coming from
+				PathObject pathObjectTemp = pathObject;
+				if (pathObject instanceof TMACoreObject) {
+					var children = pathObject.getChildObjectsAsArray();
+					if (children.length != 1)
+						return Double.NaN;
+					pathObjectTemp = children[0];
+				}
+				// We need an annotation to get a meaningful area
+				if (pathObjectTemp == null || !(pathObjectTemp.isAnnotation() || pathObjectTemp.isRootObject()))
+					return Double.NaN;
+				
+				int n = getCounts(pathObjectTemp).getCountForAncestor(pathClass);
+				ROI roi = pathObjectTemp.getROI();
+				// For the root, we can measure density only for 2D images of a single time-point
+				if (pathObjectTemp.isRootObject() && server.nZSlices() == 1 && server.nTimepoints() == 1)
+					roi = ROIs.createRectangleROI(0, 0, server.getWidth(), server.getHeight(), ImagePlane.getDefaultPlane());
+				
+				if (roi != null && roi.isArea()) {
+					double pixelWidth = 1;
+					double pixelHeight = 1;
+					PixelCalibration cal = server == null ? null : server.getPixelCalibration();
+					if (cal != null && cal.hasPixelSizeMicrons()) {
+						pixelWidth = cal.getPixelWidthMicrons() / 1000;
+						pixelHeight = cal.getPixelHeightMicrons() / 1000;
+					}
+					return n / roi.getScaledArea(pixelWidth, pixelHeight);
+				}
+				return Double.NaN;
 			}
 			
 			@Override
@@ -952,8 +911,8 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			}
 			
 			@Override
-			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new PositivePercentage(pathObject, parentClasses);
+			protected double getMeasurementValue(final PathObject pathObject) {
+				return getCounts(pathObject).getPositivePercentage(parentClasses);
 			}
 			
 		}
@@ -1004,8 +963,8 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			}
 			
 			@Override
-			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new HScore(pathObject, pathClasses);
+			protected double getMeasurementValue(final PathObject pathObject) {
+				return getCounts(pathObject).getHScore(pathClasses);
 			}
 			
 		}
@@ -1030,9 +989,18 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 				return getNameForClasses(name, pathClasses);
 			}
 			
+			/**
+			 * Returns false, because values depend upon the current minimum percentage of positive cells preference.
+			 */
+			@Override
+			protected boolean isCacheable() {
+				return false;
+			}
+			
 			@Override
-			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new AllredIntensityScore(pathObject, PathPrefs.allredMinPercentagePositiveProperty(), pathClasses);
+			protected double getMeasurementValue(final PathObject pathObject) {
+				double minPositive = PathPrefs.allredMinPercentagePositiveProperty().get() / 100;
+				return getCounts(pathObject).getAllredIntensity(minPositive, pathClasses);
 			}
 			
 		}
@@ -1056,9 +1024,18 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 				return getNameForClasses(name, pathClasses);
 			}
 			
+			/**
+			 * Returns false, because values depend upon the current minimum percentage of positive cells preference.
+			 */
 			@Override
-			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new AllredProportionScore(pathObject, PathPrefs.allredMinPercentagePositiveProperty(), pathClasses);
+			protected boolean isCacheable() {
+				return false;
+			}
+			
+			@Override
+			protected double getMeasurementValue(final PathObject pathObject) {
+				double minPositive = PathPrefs.allredMinPercentagePositiveProperty().get() / 100;
+				return getCounts(pathObject).getAllredProportion(minPositive, pathClasses);
 			}
 			
 		}
@@ -1082,9 +1059,18 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 				return getNameForClasses(name, pathClasses);
 			}
 			
+			/**
+			 * Returns false, because values depend upon the current minimum percentage of positive cells preference.
+			 */
+			@Override
+			protected boolean isCacheable() {
+				return false;
+			}
+			
 			@Override
-			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new AllredScore(pathObject, PathPrefs.allredMinPercentagePositiveProperty(), pathClasses);
+			protected double getMeasurementValue(final PathObject pathObject) {
+				double minPositive = PathPrefs.allredMinPercentagePositiveProperty().get() / 100;
+				return getCounts(pathObject).getAllredScore(minPositive, pathClasses);
 			}
 			
 		}
@@ -1197,14 +1183,8 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		}
 
 		@Override
-		public Binding<Number> createMeasurement(PathObject pathObject) {
-			return new DoubleBinding() {
-				@Override
-				protected double computeValue() {
-					return getCentroid(pathObject.getROI());
-				}
-				
-			};
+		protected double getMeasurementValue(final PathObject pathObject) {
+			return getCentroid(pathObject.getROI());
 		}
 		
 	}
@@ -1334,14 +1314,35 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	
 	static abstract class NumericMeasurementBuilder implements MeasurementBuilder<Number> {
 		
+		/**
+		 * Compute the measurement value directly, without creating a binding.
+		 * @param pathObject
+		 * @return
+		 */
+		protected abstract double getMeasurementValue(final PathObject pathObject);
+		
+		/**
+		 * Query whether values may be cached until the hierarchy changes.
+		 * This should return false if values can change for other reasons.
+		 * @return
+		 */
+		protected boolean isCacheable() {
+			return true;
+		}
+		
+		@Override
+		public Binding<Number> createMeasurement(final PathObject pathObject) {
+			return new DoubleBinding() {
+				@Override
+				protected double computeValue() {
+					return NumericMeasurementBuilder.this.computeValue(pathObject);
+				}
+			};
+		}
+		
 		public double computeValue(final PathObject pathObject) {
-			// TODO: Flip this around!  Create binding from value, not value from binding...
 			try {
-				var val = createMeasurement(pathObject).getValue();
-				if (val == null)
-					return Double.NaN;
-				else
-					return val.doubleValue();
+				return getMeasurementValue(pathObject);
 			} catch (NullPointerException e) {
 				return Double.NaN;
 			}
@@ -1412,19 +1413,13 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		}
 		
 		@Override
-		public Binding<Number> createMeasurement(final PathObject pathObject) {
-			return new DoubleBinding() {
-				@Override
-				protected double computeValue() {
-					ROI roi = pathObject.getROI();
-					if (roi == null || !roi.isArea())
-						return Double.NaN;
-					if (hasPixelSizeMicrons())
-						return roi.getScaledArea(pixelWidthMicrons(), pixelHeightMicrons());
-					return roi.getArea();
-				}
-				
-			};
+		protected double getMeasurementValue(final PathObject pathObject) {
+			ROI roi = pathObject.getROI();
+			if (roi == null || !roi.isArea())
+				return Double.NaN;
+			if (hasPixelSizeMicrons())
+				return roi.getScaledArea(pixelWidthMicrons(), pixelHeightMicrons());
+			return roi.getArea();
 		}
 		
 	}
@@ -1442,19 +1437,13 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		}
 		
 		@Override
-		public Binding<Number> createMeasurement(final PathObject pathObject) {
-			return new DoubleBinding() {
-				@Override
-				protected double computeValue() {
-					ROI roi = pathObject.getROI();
-					if (roi == null || !roi.isArea())
-						return Double.NaN;
-					if (hasPixelSizeMicrons())
-						return roi.getScaledLength(pixelWidthMicrons(), pixelHeightMicrons());
-					return roi.getLength();
-				}
-				
-			};
+		protected double getMeasurementValue(final PathObject pathObject) {
+			ROI roi = pathObject.getROI();
+			if (roi == null || !roi.isArea())
+				return Double.NaN;
+			if (hasPixelSizeMicrons())
+				return roi.getScaledLength(pixelWidthMicrons(), pixelHeightMicrons());
+			return roi.getLength();
 		}
 		
 	}
@@ -1530,19 +1519,13 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		}
 		
 		@Override
-		public Binding<Number> createMeasurement(final PathObject pathObject) {
-			return new DoubleBinding() {
-				@Override
-				protected double computeValue() {
-					ROI roi = pathObject.getROI();
-					if (roi == null || !roi.isLine())
-						return Double.NaN;
-					if (hasPixelSizeMicrons())
-						return roi.getScaledLength(pixelWidthMicrons(), pixelHeightMicrons());
-					return roi.getLength();
-				}
-				
-			};
+		protected double getMeasurementValue(final PathObject pathObject) {
+			ROI roi = pathObject.getROI();
+			if (roi == null || !roi.isLine())
+				return Double.NaN;
+			if (hasPixelSizeMicrons())
+				return roi.getScaledLength(pixelWidthMicrons(), pixelHeightMicrons());
+			return roi.getLength();
 		}
 		
 	}
@@ -1556,17 +1539,11 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		}
 		
 		@Override
-		public Binding<Number> createMeasurement(final PathObject pathObject) {
-			return new DoubleBinding() {
-				@Override
-				protected double computeValue() {
-					ROI roi = pathObject.getROI();
-					if (roi == null || !roi.isPoint())
-						return Double.NaN;
-					return roi.getNumPoints();
-				}
-				
-			};
+		protected double getMeasurementValue(final PathObject pathObject) {
+			ROI roi = pathObject.getROI();
+			if (roi == null || !roi.isPoint())
+				return Double.NaN;
+			return roi.getNumPoints();
 		}
 		
 	}
@@ -1751,10 +1728,19 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			return name;
 		}
 
+		/**
+		 * Returns false, because values become available as classified tiles are cached.
+		 */
+		@Override
+		protected boolean isCacheable() {
+			return false;
+		}
+
 		@Override
-		public Binding<Number> createMeasurement(PathObject pathObject) {
+		protected double getMeasurementValue(final PathObject pathObject) {
 			// Return only measurements that can be generated rapidly from cached tiles
-			return Bindings.createObjectBinding(() -> manager.getMeasurementValue(pathObject, name, true));
+			Number value = manager.getMeasurementValue(pathObject, name, true);
+			return value == null ? Double.NaN : value.doubleValue();
 		}
 		
 	}
@@ -126,6 +126,12 @@ public class PreferencePane {
 				"\nA high value can improve performance (especially for multichannel images), but increases risk of out-of-memory errors." +
 				"\nChanges take effect when QuPath is restarted.");
 		
+		addPropertyPreference(PathPrefs.persistPyramidCacheProperty(), Boolean.class,
+				"Store generated pyramids",
+				category,
+				"Store the tiles generated for large, non-pyramidal images in the QuPath user directory, so that they can be reused when the image is opened again." +
+				"\nThis can make opening images faster, but requires additional disk space.");
+		
 		addPropertyPreference(PathPrefs.showImageNameInTitleProperty(), Boolean.class,
 				"Show image name in window title",
 				category,
@@ -975,6 +975,30 @@ public class PathPrefs {
 	}
 	
 	
+	private static BooleanProperty persistPyramidCache = createPersistentPreference("persistPyramidCache", false);
+	
+	/**
+	 * Persist tiles generated for non-pyramidal images in the user directory, so that they can be reused 
+	 * when the same image is opened again. Requires the <code>userPathProperty()</code> to be set to a directory.
+	 * @return
+	 * @see #getPyramidCachePath()
+	 */
+	public static BooleanProperty persistPyramidCacheProperty() {
+		return persistPyramidCache;
+	}
+	
+	/**
+	 * Get the path to where generated pyramid tiles should be stored. This depends upon {@link #userPathProperty()}.
+	 * @return
+	 */
+	public static String getPyramidCachePath() {
+		String userPath = getUserPath();
+		if (userPath == null)
+			return null;
+		return new File(userPath, "pyramids").getAbsolutePath();
+	}
+	
+	
 	private static BooleanProperty useCalibratedLocationString = createPersistentPreference("useCalibratedLocationString", true);
 	
 	/**
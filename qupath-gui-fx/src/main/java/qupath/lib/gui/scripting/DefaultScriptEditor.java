@@ -2098,6 +2098,7 @@ public class DefaultScriptEditor implements ScriptEditor {
 				ObservableMeasurementTableData model = new ObservableMeasurementTableData();
 				model.setImageData(qupath.getImageData(), qupath.getImageData().getHierarchy().getObjects(null, PathDetectionObject.class));
 				List<String> data = SummaryMeasurementTableCommand.getTableModelStrings(model, "\", \"", Arrays.asList());
+				model.setImageData(null, Collections.emptyList());
 				control.paste("[\"" + data.get(0) + "\"]");
 			} else if (name.toLowerCase().equals(GeneralTools.SYMBOL_MU + ""))
 				control.paste(GeneralTools.SYMBOL_MU + "");
@@ -518,6 +518,9 @@ public class QPEx extends QP {
 			writer.close();
 		} catch (IOException e) {
 			logger.error("Error writing file to " + fileOutput, e);
+		} finally {
+			// Stop listening for hierarchy changes
+			model.setImageData(null, Collections.emptyList());
 		}
 	}
 	
@@ -22,32 +22,42 @@
 package qupath.lib.gui.tools;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.LinkedListMultimap;
-import com.google.common.collect.Multimap;
-
-import qupath.lib.gui.commands.SummaryMeasurementTableCommand;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.gui.measure.ObservableMeasurementTableData;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathRootObject;
+import qupath.lib.plugins.SimpleProgressMonitor;
 import qupath.lib.projects.ProjectImageEntry;
 
 
@@ -70,6 +80,16 @@ public class MeasurementExporter {
 	
 	private List<ProjectImageEntry<BufferedImage>> imageList;
 	
+	/**
+	 * Maximum number of rows that are combined into a single String before writing.
+	 */
+	static final int ROWS_PER_CHUNK = 1000;
+	
+	/**
+	 * Maximum number of chunks that may be waiting to be written for each image.
+	 */
+	private static final int MAX_PENDING_CHUNKS = 4;
+	
 	@SuppressWarnings("javadoc")
 	public MeasurementExporter() {}
 	
@@ -171,10 +191,10 @@ public class MeasurementExporter {
 	
 	/**
 	 * Exports the measurements of one or more entries in the project.
-	 * This function first opens all the images in the project to store 
-	 * all the column names and values of the measurements.
-	 * Then, it loops through the maps containing the values to write
-	 * them to the given output file.
+	 * This function first opens all the images in the project to determine 
+	 * the column names.
+	 * Then, it opens the images again in parallel to write the measurements 
+	 * to the given output file.
 	 * @param file
 	 */
 	public void exportMeasurements(File file) {
@@ -188,98 +208,128 @@ public class MeasurementExporter {
 	
 	/**
 	 * Exports the measurements of one or more entries in the project.
-	 * This function first opens all the images in the project to store 
-	 * all the column names and values of the measurements.
-	 * Then, it loops through the maps containing the values to write
-	 * them to the given output stream.
+	 * This function first opens all the images in the project to determine 
+	 * the column names.
+	 * Then, it opens the images again in parallel to write the measurements 
+	 * to the given output stream.
 	 * @param stream
 	 */
 	public void exportMeasurements(OutputStream stream) {
+		try {
+			exportMeasurements(stream, null);
+		} catch (IOException e) {
+			logger.error(e.getLocalizedMessage(), e);
+		}
+	}
+	
+	/**
+	 * Exports the measurements of one or more entries in the project, optionally reporting progress.
+	 * <p>
+	 * Images are processed in two passes. The first pass determines the columns, which requires only 
+	 * the names of the measurements for each image. The second pass writes the rows for each image, 
+	 * in the order of the image list.
+	 * Both passes process images in parallel, but only a small number of images are held in memory 
+	 * at any time, and rows are passed to the output in chunks - so that the memory required depends 
+	 * neither upon the number of images nor the number of objects per image.
+	 * <p>
+	 * If the measurements for an image cannot be read, the remaining images are still exported but an 
+	 * exception is thrown upon completion.
+	 * 
+	 * @param stream the output stream; this will be closed upon completion
+	 * @param monitor optional progress monitor; the progress increments twice for each image (once per pass)
+	 * @throws IOException if the measurements could not be written, or could not be read for one or more images
+	 */
+	public void exportMeasurements(OutputStream stream, SimpleProgressMonitor monitor) throws IOException {
 		long startTime = System.currentTimeMillis();
 		
-		Map<ProjectImageEntry<?>, String[]> imageCols = new HashMap<ProjectImageEntry<?>, String[]>();
-		Map<ProjectImageEntry<?>, Integer> nImageEntries = new HashMap<ProjectImageEntry<?>, Integer>();
-		List<String> allColumns = new ArrayList<String>();
-		Multimap<String, String> valueMap = LinkedListMultimap.create();
-		String pattern = "(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)";
+		int nThreads = Math.max(1, PathPrefs.numCommandThreadsProperty().get());
+		var pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("measurement-export-", true));
 		
-		for (ProjectImageEntry<?> entry: imageList) {
-			try {
-				ImageData<?> imageData = entry.readImageData();
-				ObservableMeasurementTableData model = new ObservableMeasurementTableData();
-				model.setImageData(imageData, imageData == null ? Collections.emptyList() : imageData.getHierarchy().getObjects(null, type));
-				List<String> data = SummaryMeasurementTableCommand.getTableModelStrings(model, separator, excludeColumns);
-				
-				// Get header
-				String[] header;
-				String headerString = data.get(0);
-				if (headerString.chars().filter(e -> e == '"').count() > 1)
-					header = headerString.split(separator.equals("\t") ? "\\" + separator : separator + pattern , -1);
-				else
-					header = headerString.split(separator);
-				
-				imageCols.put(entry, header);
-				nImageEntries.put(entry, data.size()-1);
-				
-				for (String col: header) {
-					if (!allColumns.contains(col)  && !excludeColumns.contains(col))
-						allColumns.add(col);
+		if (monitor != null)
+			monitor.startMonitoring("Exporting measurements", imageList.size() * 2, true);
+		
+		Set<String> failedImages = new LinkedHashSet<>();
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+			// First pass: determine the columns, in the order they are first encountered
+			List<Future<List<String>>> futureNames = new ArrayList<>();
+			for (var entry : imageList)
+				futureNames.add(pool.submit(() -> new ArrayList<>(createModel(entry).getAllNames())));
+			
+			Set<String> columnSet = new LinkedHashSet<>();
+			for (int i = 0; i < imageList.size(); i++) {
+				if (isCancelled(monitor)) {
+					logger.warn("Export cancelled");
+					return;
 				}
-				
-				// To keep the same column order, just delete non-relevant columns
-				if (!includeOnlyColumns.isEmpty())
-					allColumns.removeIf(n -> !includeOnlyColumns.contains(n));
-				
-				for (int i = 1; i < data.size(); i++) {
-					String[] row;
-					String rowString = data.get(i);
-					
-					// Check if some values in the row are escaped
-					if (rowString.chars().filter(e -> e == '"').count() > 1)
-						row = rowString.split(separator.equals("\t") ? "\\" + separator : separator + pattern , -1);
-					else
-						row = rowString.split(separator);
-					
-					// Put value in map
-					for (int elem = 0; elem < row.length; elem++) {
-						if (allColumns.contains(header[elem]))
-							valueMap.put(header[elem], row[elem]);
-					}
+				var entry = imageList.get(i);
+				try {
+					columnSet.addAll(futureNames.get(i).get());
+				} catch (ExecutionException e) {
+					logger.error("Unable to read measurements for " + entry.getImageName() + ": " + e.getCause().getLocalizedMessage(), e.getCause());
+					failedImages.add(entry.getImageName());
 				}
-				
-			} catch (Exception e) {
-				logger.error(e.getLocalizedMessage(), e);
+				updateProgress(monitor, "Calculating measurements for " + entry.getImageName());
 			}
-		}
-		
-		try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))){
-			writer.write(String.join(separator, allColumns));
+			columnSet.removeAll(excludeColumns);
+			// To keep the same column order, just delete non-relevant columns
+			if (!includeOnlyColumns.isEmpty())
+				columnSet.retainAll(includeOnlyColumns);
+			List<String> allColumns = new ArrayList<>(columnSet);
+			
+			writer.write(allColumns.stream().map(c -> escape(c)).collect(Collectors.joining(separator)));
 			writer.write(System.lineSeparator());
-
-			Iterator[] its = new Iterator[allColumns.size()];
-			for (int col = 0; col < allColumns.size(); col++) {
-				its[col] = valueMap.get(allColumns.get(col)).iterator();
-			}
-
-			for (ProjectImageEntry<?> entry: imageList) {
-				
-				for (int nObject = 0; nObject < nImageEntries.get(entry); nObject++) {
-					for (int nCol = 0; nCol < allColumns.size(); nCol++) {
-						if (Arrays.stream(imageCols.get(entry)).anyMatch(allColumns.get(nCol)::equals)) {
-							String val = (String)its[nCol].next();
-							// NaN values -> blank
-							if (val.equals("NaN"))
-								val = "";
-							writer.write(val);
-						}
-						if (nCol < allColumns.size()-1)
-							writer.write(separator);
+			
+			// Second pass: write the rows for each image in order, limiting the number of images in memory.
+			// Rows are passed to the writer in chunks through a bounded queue for each image, so that 
+			// the rows for a whole image are never held in memory at once.
+			int maxPending = nThreads * 2;
+			Deque<PendingRows> pending = new ArrayDeque<>();
+			var iterator = imageList.iterator();
+			int counter = 0;
+			while (iterator.hasNext() || !pending.isEmpty()) {
+				while (iterator.hasNext() && pending.size() < maxPending) {
+					var entry = iterator.next();
+					var chunks = new ArrayBlockingQueue<String>(MAX_PENDING_CHUNKS);
+					var future = pool.submit(() -> {
+						writeRows(entry, allColumns, chunks);
+						return null;
+					});
+					pending.add(new PendingRows(entry, chunks, future));
+				}
+				var rows = pending.poll();
+				while (true) {
+					if (isCancelled(monitor)) {
+						logger.warn("Export cancelled with {} image(s) remaining", imageList.size() - counter);
+						return;
+					}
+					String chunk = rows.chunks.poll(100L, TimeUnit.MILLISECONDS);
+					if (chunk != null) {
+						writer.write(chunk);
+					} else if (rows.future.isDone()) {
+						// All chunks must have been added before the task completed
+						List<String> remaining = new ArrayList<>();
+						rows.chunks.drainTo(remaining);
+						for (var temp : remaining)
+							writer.write(temp);
+						break;
 					}
-					writer.write(System.lineSeparator());
 				}
+				try {
+					rows.future.get();
+				} catch (ExecutionException e) {
+					logger.error("Unable to export measurements for " + rows.entry.getImageName() + ": " + e.getCause().getLocalizedMessage(), e.getCause());
+					failedImages.add(rows.entry.getImageName());
+				}
+				updateProgress(monitor, "Exporting measurements of " + rows.entry.getImageName());
+				counter++;
 			}
-		} catch (Exception e) {
-			logger.error("Error writing to file: " + e.getLocalizedMessage(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Export interrupted");
+		} finally {
+			pool.shutdownNow();
+			if (monitor != null)
+				monitor.pluginCompleted("");
 		}
 		
 		long endTime = System.currentTimeMillis();
@@ -294,5 +344,85 @@ public class MeasurementExporter {
 			time = String.format("Total processing time: %d milliseconds", timeMillis);
 		logger.info("Processed {} images", imageList.size());
 		logger.info(time);
+		
+		if (!failedImages.isEmpty())
+			throw new IOException("Unable to export measurements for " + failedImages.size() + " image(s): " + String.join(", ", failedImages));
+	}
+	
+	private static boolean isCancelled(SimpleProgressMonitor monitor) {
+		return monitor != null && monitor.cancelled();
+	}
+	
+	private static void updateProgress(SimpleProgressMonitor monitor, String message) {
+		if (monitor != null)
+			monitor.updateProgress(1, message, null);
+	}
+	
+	private ObservableMeasurementTableData createModel(ProjectImageEntry<?> entry) throws IOException {
+		ImageData<?> imageData = entry.readImageData();
+		ObservableMeasurementTableData model = new ObservableMeasurementTableData();
+		model.setImageData(imageData, imageData == null ? Collections.emptyList() : imageData.getHierarchy().getObjects(null, type));
+		return model;
+	}
+	
+	/**
+	 * Rows for an image that are in the process of being written.
+	 */
+	private static class PendingRows {
+		
+		private final ProjectImageEntry<?> entry;
+		private final BlockingQueue<String> chunks;
+		private final Future<?> future;
+		
+		private PendingRows(ProjectImageEntry<?> entry, BlockingQueue<String> chunks, Future<?> future) {
+			this.entry = entry;
+			this.chunks = chunks;
+			this.future = future;
+		}
+		
+	}
+	
+	/**
+	 * Write the rows for an entry to a queue, using the specified columns.
+	 * Rows are combined into chunks of up to {@link #ROWS_PER_CHUNK} rows; this blocks if the queue is full.
+	 * Columns that are missing for the entry are left blank.
+	 */
+	private void writeRows(ProjectImageEntry<?> entry, List<String> columns, BlockingQueue<String> chunks) throws IOException, InterruptedException {
+		var model = createModel(entry);
+		Set<String> names = new HashSet<>(model.getAllNames());
+		String[] available = columns.stream().map(c -> names.contains(c) ? c : null).toArray(String[]::new);
+		String newLine = System.lineSeparator();
+		StringBuilder sb = new StringBuilder();
+		int nRows = 0;
+		for (PathObject pathObject : model.getItems()) {
+			for (int col = 0; col < available.length; col++) {
+				String name = available[col];
+				if (name != null) {
+					String val = model.getStringValue(pathObject, name);
+					// NaN values -> blank
+					if (val != null && !val.equals("NaN"))
+						sb.append(escape(val));
+				}
+				if (col < available.length-1)
+					sb.append(separator);
+			}
+			sb.append(newLine);
+			nRows++;
+			if (nRows % ROWS_PER_CHUNK == 0) {
+				chunks.put(sb.toString());
+				sb.setLength(0);
+			}
+		}
+		if (sb.length() > 0)
+			chunks.put(sb.toString());
+	}
+	
+	/**
+	 * Quote a value if it contains the separator.
+	 */
+	private String escape(String val) {
+		if (val.contains(separator))
+			return "\"" + val + "\"";
+		return val;
 	}
-}
\ No newline at end of file
+}
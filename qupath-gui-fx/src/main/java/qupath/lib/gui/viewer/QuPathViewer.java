@@ -1689,6 +1689,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		manager.detachAll();
 		manager.clear();
 		regionStore.removeTileListener(this);
+		regionStore.cancelPrefetch(this);
 //		// Set the server to null
 //		setImageData(null);
 		// Notify listeners
@@ -2032,7 +2033,11 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			} else {
 				regionStore.paintRegion(server, gBuffered, shapeToUpdate, getZPosition(), getTPosition(), downsample, imgThumbnail, null, getRenderer());
 			}
+			// Request tiles that are likely to be needed soon, based on recent panning & zooming
+			// (motion is estimated from the full visible region, which may be larger than the region being repainted)
+			regionStore.updatePrefetch(this, server, getDisplayedRegionShape(), downsample, getZPosition(), getTPosition());
 		} else {
+			regionStore.cancelPrefetch(this);
 			// Just paint the 'thumbnail' version, which has already (potentially) been color-transformed
 			paintThumbnail(gBuffered, imgThumbnailRGB, serverWidth, serverHeight, this);
 		}
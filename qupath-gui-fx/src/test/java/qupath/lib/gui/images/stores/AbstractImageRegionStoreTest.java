@@ -0,0 +1,310 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class AbstractImageRegionStoreTest {
+	
+	private static final AtomicLong COUNTER = new AtomicLong();
+	
+	@Test
+	public void test_tilePriority() {
+		var priorities = TilePriority.values();
+		for (int i = 0; i < priorities.length; i++) {
+			for (int j = 0; j < priorities.length; j++) {
+				assertEquals(i < j, priorities[i].isHigherThan(priorities[j]));
+			}
+		}
+		assertTrue(TilePriority.VISIBLE.isHigherThan(TilePriority.PREFETCH));
+		assertFalse(TilePriority.PREFETCH.isHigherThan(TilePriority.PREFETCH));
+		
+		// Reading from an ordinary server shouldn't change the requested priority
+		var server = new BlockingServer(null);
+		for (var priority : priorities)
+			assertEquals(priority, AbstractImageRegionStore.getPriorityForServer(server, priority));
+	}
+	
+	@Test
+	public void test_priorityPool() throws Exception {
+		var pool = AbstractImageRegionStore.createPriorityPool(1, "test-priority-pool-");
+		try {
+			// Occupy the only thread, so that all the workers are queued
+			var latch = new CountDownLatch(1);
+			pool.execute(() -> awaitQuietly(latch));
+			
+			List<TestWorker> order = Collections.synchronizedList(new ArrayList<>());
+			var priorities = Arrays.asList(
+					TilePriority.PREFETCH,
+					TilePriority.VISIBLE,
+					TilePriority.OVERLAY,
+					TilePriority.PREFETCH,
+					TilePriority.VISIBLE,
+					TilePriority.CLASSIFIER,
+					TilePriority.LOWER_RESOLUTION
+					);
+			List<TestWorker> workers = new ArrayList<>();
+			for (var priority : priorities) {
+				var worker = new TestWorker(priority, order);
+				workers.add(worker);
+				pool.execute(worker);
+			}
+			latch.countDown();
+			for (var worker : workers)
+				worker.get(10, TimeUnit.SECONDS);
+			
+			// Expect highest priority first, and then first come, first served
+			var expected = new ArrayList<>(workers);
+			expected.sort(Comparator.comparing(TestWorker::getPriority).thenComparingLong(TestWorker::getSequenceNumber));
+			assertEquals(expected, order);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void test_cancelPrefetchTile() throws Exception {
+		var latch = new CountDownLatch(1);
+		var server = new BlockingServer(latch);
+		var store = new DefaultImageRegionStore(256, 64L * 1024 * 1024);
+		try {
+			// Request more tiles than there are threads, so that some must be queued
+			int tileSize = 64;
+			int n = server.getWidth() / tileSize;
+			List<RegionRequest> requests = new ArrayList<>();
+			List<TileWorker<BufferedImage>> workers = new ArrayList<>();
+			for (int y = 0; y < n; y++) {
+				for (int x = 0; x < n; x++) {
+					var request = RegionRequest.createInstance(server.getPath(), 1.0, x * tileSize, y * tileSize, tileSize, tileSize);
+					var worker = store.requestPrefetchTile(server, request);
+					assertNotNull(worker);
+					requests.add(request);
+					workers.add(worker);
+				}
+			}
+			assertTrue(workers.size() > 32);
+			
+			// Prefetch requests shouldn't be repeated
+			assertEquals(null, store.requestPrefetchTile(server, requests.get(0)));
+			
+			// The last request must still be queued; once it is needed urgently, it shouldn't be cancelled
+			var lastWorker = workers.get(workers.size()-1);
+			store.getCachedRegion(server, lastWorker.getRequest(), TilePriority.VISIBLE);
+			assertEquals(TilePriority.VISIBLE, lastWorker.getPriority());
+			assertFalse(store.cancelPrefetchTile(lastWorker));
+			
+			// Cancel everything else that hasn't started
+			int nCancelled = 0;
+			List<TileWorker<BufferedImage>> remaining = new ArrayList<>();
+			for (var worker : workers) {
+				if (worker != lastWorker && store.cancelPrefetchTile(worker)) {
+					assertTrue(worker.isCancelled());
+					nCancelled++;
+				} else
+					remaining.add(worker);
+			}
+			assertTrue(nCancelled >= workers.size() - 32);
+			
+			// Cancelled workers shouldn't be cancelled twice
+			for (var worker : workers) {
+				if (worker.isCancelled())
+					assertFalse(store.cancelPrefetchTile(worker));
+			}
+			
+			// Everything that wasn't cancelled should complete
+			latch.countDown();
+			for (var worker : remaining) {
+				assertFalse(worker.isCancelled());
+				assertNotNull(worker.get(10, TimeUnit.SECONDS));
+			}
+			
+			// Cancelled requests can be made again
+			for (var worker : workers) {
+				if (worker.isCancelled()) {
+					var newWorker = store.requestPrefetchTile(server, worker.getRequest());
+					assertNotNull(newWorker);
+					assertNotNull(newWorker.get(10, TimeUnit.SECONDS));
+					break;
+				}
+			}
+		} finally {
+			latch.countDown();
+			store.close();
+		}
+	}
+	
+	/**
+	 * Cancelling prefetch requests while listeners register and deregister their own requests should not deadlock.
+	 */
+	@Test
+	public void test_cancelWhileRegistering() {
+		var server = new BlockingServer(null);
+		var store = new DefaultImageRegionStore(256, 64L * 1024 * 1024);
+		try {
+			assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+				var listener = new TestTileListener();
+				var prefetchThread = new Thread(() -> {
+					for (int i = 0; i < 2000; i++) {
+						var request = RegionRequest.createInstance(server.getPath(), 1.0, (i % 32) * 64, ((i / 32) % 32) * 64, 64, 64);
+						var worker = store.requestPrefetchTile(server, request);
+						if (worker != null)
+							store.cancelPrefetchTile(worker);
+					}
+				});
+				prefetchThread.start();
+				for (int i = 0; i < 2000; i++) {
+					var shape = new Rectangle((i % 32) * 64, ((i / 32) % 32) * 64, 256, 256);
+					store.registerRequest(listener, server, shape, 1.0, 0, 0);
+					if (i % 10 == 0)
+						store.removeTileListener(listener);
+				}
+				prefetchThread.join();
+			});
+		} finally {
+			store.close();
+		}
+	}
+	
+	
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	
+	private static class TestWorker extends FutureTask<Object> implements TileWorker<Object> {
+		
+		private final long sequenceNumber = COUNTER.incrementAndGet();
+		private final List<TestWorker> order;
+		private TilePriority priority;
+		
+		TestWorker(TilePriority priority, List<TestWorker> order) {
+			super(() -> {}, null);
+			this.priority = priority;
+			this.order = order;
+		}
+		
+		@Override
+		public void run() {
+			order.add(this);
+			super.run();
+		}
+
+		@Override
+		public RegionRequest getRequest() {
+			return null;
+		}
+
+		@Override
+		public Map<RegionRequest, Object> getRequestedCache() {
+			return null;
+		}
+
+		@Override
+		public TilePriority getPriority() {
+			return priority;
+		}
+
+		@Override
+		public void setPriority(TilePriority priority) {
+			this.priority = priority;
+		}
+
+		@Override
+		public long getSequenceNumber() {
+			return sequenceNumber;
+		}
+		
+	}
+	
+	
+	private static class TestTileListener implements TileListener<BufferedImage> {
+
+		@Override
+		public void tileAvailable(String serverPath, ImageRegion region, BufferedImage tile) {}
+
+		@Override
+		public boolean requiresTileRegion(String serverPath, ImageRegion region) {
+			return true;
+		}
+		
+	}
+	
+	
+	/**
+	 * Server that blocks all reads until a latch is released (if one is provided).
+	 */
+	private static class BlockingServer extends WrappedBufferedImageServer {
+		
+		private final CountDownLatch latch;
+		
+		BlockingServer(CountDownLatch latch) {
+			super("Blocking server " + COUNTER.incrementAndGet(), new BufferedImage(512, 512, BufferedImage.TYPE_BYTE_GRAY));
+			this.latch = latch;
+		}
+		
+		@Override
+		public BufferedImage readBufferedImage(RegionRequest request) throws IOException {
+			if (latch != null) {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted!");
+				}
+			}
+			return super.readBufferedImage(request);
+		}
+		
+	}
+
+}
@@ -0,0 +1,297 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class ViewportPrefetcherTest {
+	
+	private static final double EPSILON = 1e-9;
+	
+	private ImageServer<BufferedImage> server;
+	private RecordingStore store;
+	private long time;
+	private ViewportPrefetcher<BufferedImage> prefetcher;
+	
+	@BeforeEach
+	public void setUp() {
+		server = new PyramidServer();
+		store = new RecordingStore();
+		time = 1000L;
+		prefetcher = new ViewportPrefetcher<>(store, () -> time);
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		store.close();
+	}
+	
+	@Test
+	public void test_velocitySmoothing() {
+		update(4096, 4096, 1024, 1024, 1.0);
+		assertEquals(0, prefetcher.getVelocityX(), EPSILON);
+		
+		// Each new velocity estimate is averaged with the previous one
+		time += 100;
+		update(4196, 4096, 1024, 1024, 1.0);
+		assertEquals(0.5, prefetcher.getVelocityX(), EPSILON);
+		assertEquals(0, prefetcher.getVelocityY(), EPSILON);
+		
+		time += 100;
+		update(4296, 4046, 1024, 1024, 1.0);
+		assertEquals(0.75, prefetcher.getVelocityX(), EPSILON);
+		assertEquals(-0.25, prefetcher.getVelocityY(), EPSILON);
+		
+		time += 100;
+		update(4296, 4046, 1024, 1024, 1.0);
+		assertEquals(0.375, prefetcher.getVelocityX(), EPSILON);
+		assertEquals(-0.125, prefetcher.getVelocityY(), EPSILON);
+		
+		time += 100;
+		update(4296, 4046, 1024, 1024, 2.0);
+		assertEquals(0.5 * Math.log(2.0) / 100, prefetcher.getVelocityZoom(), EPSILON);
+		
+		// Repeated updates with the same timestamp don't provide any new information
+		update(5000, 5000, 1024, 1024, 1.0);
+		assertEquals(0.1875, prefetcher.getVelocityX(), EPSILON);
+		assertEquals(0.5 * Math.log(2.0) / 100, prefetcher.getVelocityZoom(), EPSILON);
+	}
+	
+	@Test
+	public void test_resetAfterPause() {
+		update(4096, 4096, 1024, 1024, 1.0);
+		time += 100;
+		update(4296, 4096, 1024, 1024, 1.0);
+		assertEquals(1.0, prefetcher.getVelocityX(), EPSILON);
+		assertFalse(store.requested.isEmpty());
+		
+		// After a long gap, assume the viewer stopped moving & cancel everything pending
+		time += ViewportPrefetcher.MAX_UPDATE_INTERVAL_MILLIS + 1;
+		update(4496, 4096, 1024, 1024, 1.0);
+		assertEquals(0, prefetcher.getVelocityX(), EPSILON);
+		assertEquals(new HashSet<>(store.requested), store.cancelled);
+		
+		// Changing the z-slice should also reset the motion estimate
+		time += 100;
+		update(4696, 4096, 1024, 1024, 1.0);
+		assertEquals(1.0, prefetcher.getVelocityX(), EPSILON);
+		time += 100;
+		prefetcher.update(server, createBounds(4896, 4096, 1024, 1024), 1.0, 1, 0);
+		assertEquals(0, prefetcher.getVelocityX(), EPSILON);
+	}
+	
+	@Test
+	public void test_panThreshold() {
+		// Small movements shouldn't trigger any requests
+		update(4096, 4096, 1024, 1024, 1.0);
+		time += 100;
+		update(4106, 4096, 1024, 1024, 1.0);
+		assertTrue(store.requested.isEmpty());
+		
+		// Larger movements should request tiles ahead of the viewport, in the direction of travel
+		time += 100;
+		update(4306, 4096, 1024, 1024, 1.0);
+		assertFalse(store.requested.isEmpty());
+		var bounds = createBounds(4306, 4096, 1024, 1024);
+		for (var request : store.requested) {
+			assertTrue(request.getMaxX() > bounds.getMaxX());
+			assertEquals(1.0, request.getDownsample(), EPSILON);
+		}
+		assertTrue(store.cancelled.isEmpty());
+	}
+	
+	@Test
+	public void test_zoomThreshold() {
+		// Small changes in downsample shouldn't trigger any requests
+		update(4096, 4096, 1024, 1024, 1.0);
+		time += 100;
+		update(4096, 4096, 1024 * 1.01, 1024 * 1.01, 1.01);
+		assertTrue(store.requested.isEmpty());
+		
+		// Zooming out should request the next pyramid level
+		time += 100;
+		update(4096, 4096, 1024 * 1.2, 1024 * 1.2, 1.2);
+		assertFalse(store.requested.isEmpty());
+		assertTrue(store.requested.stream().anyMatch(r -> Math.abs(r.getDownsample() - 2.0) < EPSILON));
+	}
+	
+	@Test
+	public void test_maxPrefetchTiles() {
+		// Pan quickly with a tall viewport, so that many tiles are predicted
+		update(2048, 4096, 2048, 8192, 1.0);
+		time += 100;
+		update(2548, 4096, 2048, 8192, 1.0);
+		assertEquals(ViewportPrefetcher.MAX_PREFETCH_TILES, store.requested.size());
+		assertEquals(ViewportPrefetcher.MAX_PREFETCH_TILES, new HashSet<>(store.requested).size());
+	}
+	
+	@Test
+	public void test_cancelStalePredictions() {
+		update(4096, 4096, 1024, 1024, 1.0);
+		time += 100;
+		update(4296, 4096, 1024, 1024, 1.0);
+		var firstRequested = new HashSet<>(store.requested);
+		assertFalse(firstRequested.isEmpty());
+		
+		// Repeated updates with the same timestamp shouldn't result in repeated requests
+		update(4296, 4096, 1024, 1024, 1.0);
+		assertEquals(firstRequested.size(), store.requested.size());
+		
+		// Reverse direction - everything predicted previously should be cancelled
+		time += 100;
+		update(3696, 4096, 1024, 1024, 1.0);
+		assertTrue(prefetcher.getVelocityX() < 0);
+		assertEquals(firstRequested, store.cancelled);
+		var secondRequested = new HashSet<>(store.requested);
+		secondRequested.removeAll(firstRequested);
+		assertFalse(secondRequested.isEmpty());
+		
+		// Cancelling should cancel everything still pending
+		prefetcher.cancel();
+		var allRequested = new HashSet<>(store.requested);
+		assertEquals(allRequested, store.cancelled);
+		assertEquals(0, prefetcher.getVelocityX(), EPSILON);
+	}
+	
+	
+	private void update(double x, double y, double width, double height, double downsample) {
+		prefetcher.update(server, createBounds(x, y, width, height), downsample, 0, 0);
+	}
+	
+	private static Rectangle2D createBounds(double x, double y, double width, double height) {
+		return new Rectangle2D.Double(x - width / 2.0, y - height / 2.0, width, height);
+	}
+	
+	
+	/**
+	 * Store that records prefetch requests and cancellations, but never actually reads any tiles.
+	 */
+	private static class RecordingStore extends DefaultImageRegionStore {
+		
+		private final List<RegionRequest> requested = new ArrayList<>();
+		private final Set<RegionRequest> cancelled = new HashSet<>();
+		
+		RecordingStore() {
+			super(256, 64L * 1024 * 1024);
+		}
+		
+		@Override
+		synchronized TileWorker<BufferedImage> requestPrefetchTile(ImageServer<BufferedImage> server, RegionRequest request) {
+			requested.add(request);
+			return new PendingWorker(request);
+		}
+		
+		@Override
+		synchronized boolean cancelPrefetchTile(TileWorker<BufferedImage> worker) {
+			cancelled.add(worker.getRequest());
+			return true;
+		}
+		
+	}
+	
+	/**
+	 * Worker that is never run.
+	 */
+	private static class PendingWorker extends FutureTask<BufferedImage> implements TileWorker<BufferedImage> {
+		
+		private final RegionRequest request;
+		private TilePriority priority = TilePriority.PREFETCH;
+		
+		PendingWorker(RegionRequest request) {
+			super(() -> null);
+			this.request = request;
+		}
+
+		@Override
+		public RegionRequest getRequest() {
+			return request;
+		}
+
+		@Override
+		public Map<RegionRequest, BufferedImage> getRequestedCache() {
+			return null;
+		}
+
+		@Override
+		public TilePriority getPriority() {
+			return priority;
+		}
+
+		@Override
+		public void setPriority(TilePriority priority) {
+			this.priority = priority;
+		}
+
+		@Override
+		public long getSequenceNumber() {
+			return 0;
+		}
+		
+	}
+	
+	/**
+	 * Server with the metadata of a large, tiled pyramidal image.
+	 * Pixels are never read.
+	 */
+	private static class PyramidServer extends WrappedBufferedImageServer {
+		
+		private final ImageServerMetadata metadata;
+		
+		PyramidServer() {
+			super("Pyramid", new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY));
+			metadata = new ImageServerMetadata.Builder(super.getOriginalMetadata())
+					.width(8192)
+					.height(8192)
+					.preferredTileSize(256, 256)
+					.levelsFromDownsamples(1, 2, 4, 8, 16)
+					.build();
+		}
+		
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+		
+	}
+
+}
@@ -26,6 +26,7 @@ package qupath.lib.gui.models;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
 import java.util.Collections;
 
 import org.junit.jupiter.api.Test;
@@ -167,5 +168,35 @@ public class ObservableMeasurementTableDataTest {
 		
 		}
 	}
+	
+	@SuppressWarnings("javadoc")
+	@Test
+	public void testCachedValues() {
+		ImageData<BufferedImage> imageData = new ImageData<>(null);
+		PathObjectHierarchy hierarchy = imageData.getHierarchy();
+		PathClass tumorClass = PathClassFactory.getPathClass(StandardPathClasses.TUMOR);
+		
+		ROI smallROI = ROIs.createRectangleROI(500, 500, 1, 1, ImagePlane.getDefaultPlane());
+		PathObject parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, ImagePlane.getDefaultPlane()));
+		for (int i = 0; i < 10; i++)
+			parent.addPathObject(PathObjects.createDetectionObject(smallROI, PathClassFactory.getPositive(tumorClass)));
+		PathObject other = PathObjects.createAnnotationObject(ROIs.createRectangleROI(2000, 2000, 1000, 1000, ImagePlane.getDefaultPlane()));
+		hierarchy.addPathObjects(Arrays.asList(parent, other));
+		
+		ObservableMeasurementTableData model = new ObservableMeasurementTableData();
+		model.setImageData(imageData, Arrays.asList(parent, other));
+		
+		assertArrayEquals(new double[] {10, 0}, model.getDoubleValues("Num Tumor: Positive"), EPSILON);
+		assertEquals(10, model.getNumericValue(parent, "Num Tumor: Positive"), EPSILON);
+		assertEquals(0, model.getNumericValue(other, "Num Tumor: Positive"), EPSILON);
+		
+		// Cached values should be updated when the hierarchy changes, without needing a refresh
+		PathObject detection = PathObjects.createDetectionObject(smallROI, PathClassFactory.getPositive(tumorClass));
+		hierarchy.addPathObject(detection);
+		assertEquals(11, model.getNumericValue(parent, "Num Tumor: Positive"), EPSILON);
+		
+		hierarchy.removeObject(detection, true);
+		assertArrayEquals(new double[] {10, 0}, model.getDoubleValues("Num Tumor: Positive"), EPSILON);
+	}
 
 }
@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.tools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class MeasurementExporterTest {
+	
+	@Test
+	public void test_exportMeasurements() throws IOException {
+		// Use enough objects for the rows of the first image to be written in several chunks
+		int nFirst = MeasurementExporter.ROWS_PER_CHUNK * 2 + 500;
+		var first = createEntry("First", createImageData("First", nFirst, "Value"));
+		var second = createEntry("Second", createImageData("Second", 3, "Other"));
+		
+		var lines = export(Arrays.asList(first, second));
+		assertEquals(1 + nFirst + 3, lines.size());
+		
+		var header = Arrays.asList(lines.get(0).split("\t", -1));
+		int indImage = header.indexOf("Image");
+		int indValue = header.indexOf("Value");
+		int indOther = header.indexOf("Other");
+		assertTrue(indImage >= 0 && indValue >= 0 && indOther >= 0);
+		
+		// Rows should be in order, with blanks for missing columns
+		for (int i = 0; i < nFirst; i++) {
+			var row = lines.get(1 + i).split("\t", -1);
+			assertEquals(header.size(), row.length);
+			assertEquals("First", row[indImage]);
+			assertEquals(i, Double.parseDouble(row[indValue]));
+			assertEquals("", row[indOther]);
+		}
+		for (int i = 0; i < 3; i++) {
+			var row = lines.get(1 + nFirst + i).split("\t", -1);
+			assertEquals("Second", row[indImage]);
+			assertEquals("", row[indValue]);
+			assertEquals(i, Double.parseDouble(row[indOther]));
+		}
+	}
+	
+	@Test
+	public void test_exportFailure() {
+		var first = createEntry("First", createImageData("First", 5, "Value"));
+		var failed = createEntry("Failed", null);
+		var last = createEntry("Last", createImageData("Last", 5, "Value"));
+		
+		var exporter = new MeasurementExporter()
+				.imageList(Arrays.asList(first, failed, last))
+				.exportType(PathDetectionObject.class)
+				.separator("\t");
+		var stream = new ByteArrayOutputStream();
+		var e = assertThrows(IOException.class, () -> exporter.exportMeasurements(stream, null));
+		assertTrue(e.getMessage().contains("Failed"));
+		
+		// Images that could be read should still be exported
+		var lines = Arrays.asList(new String(stream.toByteArray(), StandardCharsets.UTF_8).split("\\R"));
+		assertEquals(1 + 5 + 5, lines.size());
+	}
+	
+	private static List<String> export(List<ProjectImageEntry<BufferedImage>> entries) throws IOException {
+		var exporter = new MeasurementExporter()
+				.imageList(entries)
+				.exportType(PathDetectionObject.class)
+				.separator("\t");
+		var stream = new ByteArrayOutputStream();
+		exporter.exportMeasurements(stream, null);
+		return Arrays.asList(new String(stream.toByteArray(), StandardCharsets.UTF_8).split("\\R"));
+	}
+	
+	private static ImageData<BufferedImage> createImageData(String name, int nObjects, String measurement) {
+		var server = new WrappedBufferedImageServer(name, new BufferedImage(1000, 1000, BufferedImage.TYPE_BYTE_GRAY));
+		var imageData = new ImageData<>(server);
+		for (int i = 0; i < nObjects; i++) {
+			var pathObject = PathObjects.createDetectionObject(
+					ROIs.createRectangleROI(i % 100 * 10, i / 100 * 10, 5, 5, ImagePlane.getDefaultPlane()));
+			pathObject.getMeasurementList().putMeasurement(measurement, i);
+			pathObject.getMeasurementList().close();
+			imageData.getHierarchy().addPathObject(pathObject);
+		}
+		return imageData;
+	}
+	
+	/**
+	 * Create a minimal project entry, which supports only the methods needed for export. 
+	 * If the image data is null, an exception is thrown when trying to read it.
+	 */
+	@SuppressWarnings("unchecked")
+	private static ProjectImageEntry<BufferedImage> createEntry(String name, ImageData<BufferedImage> imageData) {
+		return (ProjectImageEntry<BufferedImage>)Proxy.newProxyInstance(
+				MeasurementExporterTest.class.getClassLoader(),
+				new Class<?>[] {ProjectImageEntry.class},
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getImageName":
+					case "toString":
+						return name;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "readImageData":
+						if (imageData == null)
+							throw new IOException("Unable to read " + name);
+						return imageData;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+}